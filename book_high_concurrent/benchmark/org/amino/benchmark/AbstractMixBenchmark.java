@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2008 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.amino.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Common state of all mixed read/write suites. Every benchmark method picks a
+ * random key in <code>[0, keyRange)</code> and a random operation. An
+ * operation is a read with probability <code>readPercent</code>, otherwise it
+ * is an insert or a removal with equal probability, so the size of the
+ * collection stays around its pre-filled value.
+ * 
+ * Keys are boxed once in {@link #setUpKeys()}, so boxing does not show up in
+ * the measurement of either side.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class AbstractMixBenchmark {
+	/**
+	 * Operation code of a read.
+	 */
+	static final int READ = 0;
+	/**
+	 * Operation code of an insert.
+	 */
+	static final int WRITE = 1;
+	/**
+	 * Operation code of a removal.
+	 */
+	static final int REMOVE = 2;
+
+	/**
+	 * Percentage of read operations, between 0 and 100.
+	 */
+	@Param({ "90", "50", "10" })
+	public int readPercent;
+
+	/**
+	 * Number of distinct keys.
+	 */
+	@Param({ "65536" })
+	public int keyRange;
+
+	/**
+	 * Pre-boxed keys.
+	 */
+	Integer[] keys;
+
+	/**
+	 * Box all keys and check the parameters.
+	 */
+	void setUpKeys() {
+		if (readPercent < 0 || readPercent > 100)
+			throw new IllegalArgumentException("readPercent: " + readPercent);
+		keys = new Integer[keyRange];
+		for (int i = 0; i < keyRange; i++)
+			keys[i] = Integer.valueOf(i);
+	}
+
+	/**
+	 * @return a random key
+	 */
+	final Integer nextKey() {
+		return keys[ThreadLocalRandom.current().nextInt(keyRange)];
+	}
+
+	/**
+	 * @return {@link #READ}, {@link #WRITE} or {@link #REMOVE} according to
+	 *         the configured mix
+	 */
+	final int nextOp() {
+		int r = ThreadLocalRandom.current().nextInt(200);
+		if (r < readPercent * 2)
+			return READ;
+		return (r & 1) == 0 ? WRITE : REMOVE;
+	}
+}
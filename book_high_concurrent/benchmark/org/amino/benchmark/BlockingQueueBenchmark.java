@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2008 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.amino.benchmark;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.amino.ds.lockfree.LockFreeBlockQueue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * {@link LockFreeBlockQueue} against {@link LinkedBlockingQueue}, both bounded
+ * to the same capacity. Reads are <code>peek()</code>, writes are the
+ * non-blocking <code>offer()</code> and <code>poll()</code>.
+ */
+public class BlockingQueueBenchmark extends AbstractMixBenchmark {
+	/**
+	 * Implementation under test.
+	 */
+	@Param({ "LockFreeBlockQueue", "LinkedBlockingQueue" })
+	public String impl;
+
+	/**
+	 * Capacity of the queue.
+	 */
+	@Param({ "65536" })
+	public int capacity;
+
+	/**
+	 * Number of elements put into the queue before measurement.
+	 */
+	@Param({ "1024" })
+	public int initialSize;
+
+	private BlockingQueue<Integer> queue;
+
+	/**
+	 * Create and pre-fill the queue.
+	 */
+	@Setup
+	public void setUp() {
+		setUpKeys();
+		if ("LockFreeBlockQueue".equals(impl))
+			queue = new LockFreeBlockQueue<Integer>(capacity);
+		else if ("LinkedBlockingQueue".equals(impl))
+			queue = new LinkedBlockingQueue<Integer>(capacity);
+		else
+			throw new IllegalArgumentException("Unknown queue: " + impl);
+
+		for (int i = 0; i < initialSize; i++)
+			queue.offer(nextKey());
+	}
+
+	/**
+	 * @return result of the operation
+	 */
+	@Benchmark
+	public Object mixed() {
+		switch (nextOp()) {
+		case READ:
+			return queue.peek();
+		case WRITE:
+			return queue.offer(nextKey());
+		default:
+			return queue.poll();
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2008 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.amino.benchmark;
+
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.amino.ds.lockfree.EBDeque;
+import org.amino.ds.lockfree.LockFreeDeque;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Allocation per operation of {@link LockFreeDeque} and {@link EBDeque}, with
+ * and without node recycling, against {@link ConcurrentLinkedDeque}. Every
+ * invocation inserts at one end and removes at the other, so the size stays
+ * at its pre-filled value. Run it with the GC profiler and compare
+ * <code>gc.alloc.rate.norm</code>, the number of bytes allocated per
+ * invocation:
+ * 
+ * <pre>
+ * java org.amino.benchmark.Main DequeAllocationBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DequeAllocationBenchmark {
+	/**
+	 * Implementation under test.
+	 */
+	@Param({ "LockFreeDeque", "LockFreeDeque-recycled", "EBDeque",
+			"EBDeque-recycled", "ConcurrentLinkedDeque" })
+	public String impl;
+
+	/**
+	 * Number of elements put into the deque before measurement.
+	 */
+	@Param({ "1024" })
+	public int initialSize;
+
+	private Deque<Integer> deque;
+
+	/**
+	 * Pre-boxed elements, so boxing is not counted.
+	 */
+	private Integer[] values;
+
+	/**
+	 * Create and pre-fill the deque.
+	 */
+	@Setup
+	public void setUp() {
+		if ("LockFreeDeque".equals(impl))
+			deque = new LockFreeDeque<Integer>();
+		else if ("LockFreeDeque-recycled".equals(impl))
+			deque = new LockFreeDeque<Integer>(true);
+		else if ("EBDeque".equals(impl))
+			deque = new EBDeque<Integer>();
+		else if ("EBDeque-recycled".equals(impl))
+			deque = new EBDeque<Integer>(8, true);
+		else if ("ConcurrentLinkedDeque".equals(impl))
+			deque = new ConcurrentLinkedDeque<Integer>();
+		else
+			throw new IllegalArgumentException("Unknown deque: " + impl);
+
+		values = new Integer[initialSize];
+		for (int i = 0; i < initialSize; i++) {
+			values[i] = Integer.valueOf(i);
+			deque.offerLast(values[i]);
+		}
+	}
+
+	/**
+	 * @return element removed
+	 */
+	@Benchmark
+	public Object offerPoll() {
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		Integer v = values[rnd.nextInt(values.length)];
+		if (rnd.nextBoolean()) {
+			deque.offerLast(v);
+			return deque.pollFirst();
+		}
+		deque.offerFirst(v);
+		return deque.pollLast();
+	}
+}
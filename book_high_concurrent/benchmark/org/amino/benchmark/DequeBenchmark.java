@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2008 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.amino.benchmark;
+
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.amino.ds.lockfree.EBDeque;
+import org.amino.ds.lockfree.HakanDeque;
+import org.amino.ds.lockfree.LockFreeDeque;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * {@link LockFreeDeque}, {@link EBDeque} and {@link HakanDeque} against
+ * {@link ConcurrentLinkedDeque}. Every operation picks one of the two ends at
+ * random. Reads are <code>peekFirst()/peekLast()</code>, writes are
+ * <code>offerFirst()/offerLast()</code> and
+ * <code>pollFirst()/pollLast()</code>.
+ */
+public class DequeBenchmark extends AbstractMixBenchmark {
+	/**
+	 * Implementation under test.
+	 */
+	@Param({ "LockFreeDeque", "EBDeque", "HakanDeque", "ConcurrentLinkedDeque" })
+	public String impl;
+
+	/**
+	 * Number of elements put into the deque before measurement.
+	 */
+	@Param({ "1024" })
+	public int initialSize;
+
+	private Deque<Integer> deque;
+
+	/**
+	 * Create and pre-fill the deque.
+	 */
+	@Setup
+	public void setUp() {
+		setUpKeys();
+		if ("LockFreeDeque".equals(impl))
+			deque = new LockFreeDeque<Integer>();
+		else if ("EBDeque".equals(impl))
+			deque = new EBDeque<Integer>();
+		else if ("HakanDeque".equals(impl))
+			deque = new HakanDeque<Integer>();
+		else if ("ConcurrentLinkedDeque".equals(impl))
+			deque = new ConcurrentLinkedDeque<Integer>();
+		else
+			throw new IllegalArgumentException("Unknown deque: " + impl);
+
+		for (int i = 0; i < initialSize; i++)
+			deque.offerLast(nextKey());
+	}
+
+	/**
+	 * @return result of the operation
+	 */
+	@Benchmark
+	public Object mixed() {
+		boolean first = ThreadLocalRandom.current().nextBoolean();
+		switch (nextOp()) {
+		case READ:
+			return first ? deque.peekFirst() : deque.peekLast();
+		case WRITE:
+			return first ? deque.offerFirst(nextKey()) : deque
+					.offerLast(nextKey());
+		default:
+			return first ? deque.pollFirst() : deque.pollLast();
+		}
+	}
+}
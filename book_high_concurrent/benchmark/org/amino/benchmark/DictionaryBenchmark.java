@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2008 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.amino.benchmark;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.amino.ds.lockfree.LockFreeDictionary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * {@link LockFreeDictionary} against {@link ConcurrentSkipListMap}, which is
+ * the closest ordered counterpart, and {@link ConcurrentHashMap}. Reads are
+ * <code>get()</code>, writes are <code>put()</code> and <code>remove()</code>.
+ */
+public class DictionaryBenchmark extends AbstractMixBenchmark {
+	/**
+	 * Implementation under test.
+	 */
+	@Param({ "LockFreeDictionary", "ConcurrentSkipListMap",
+			"ConcurrentHashMap" })
+	public String impl;
+
+	private Map<Integer, Integer> map;
+
+	/**
+	 * Create the map and fill half of the key range.
+	 */
+	@Setup
+	public void setUp() {
+		setUpKeys();
+		if ("LockFreeDictionary".equals(impl))
+			map = new LockFreeDictionary<Integer, Integer>();
+		else if ("ConcurrentSkipListMap".equals(impl))
+			map = new ConcurrentSkipListMap<Integer, Integer>();
+		else if ("ConcurrentHashMap".equals(impl))
+			map = new ConcurrentHashMap<Integer, Integer>(keyRange);
+		else
+			throw new IllegalArgumentException("Unknown map: " + impl);
+
+		for (int i = 0; i < keyRange; i += 2)
+			map.put(keys[i], keys[i]);
+	}
+
+	/**
+	 * @return result of the operation
+	 */
+	@Benchmark
+	public Integer mixed() {
+		Integer key = nextKey();
+		switch (nextOp()) {
+		case READ:
+			return map.get(key);
+		case WRITE:
+			return map.put(key, key);
+		default:
+			return map.remove(key);
+		}
+	}
+}
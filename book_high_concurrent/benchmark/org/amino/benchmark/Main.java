@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2008 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.amino.benchmark;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run every suite of this package once per thread count. The thread counts
+ * are read from the system property <code>amino.bench.threads</code>, a comma
+ * separated list which defaults to <code>1,2,4,8</code>. All arguments are
+ * passed to JMH unchanged, so the usual options still work, e.g.
+ * 
+ * <pre>
+ * java -Damino.bench.threads=1,16 org.amino.benchmark.Main SetBenchmark -p readPercent=90
+ * </pre>
+ * 
+ * A single thread count can also be run with the plain JMH launcher and
+ * <code>-t</code>.
+ */
+public final class Main {
+	private static final String DEFAULT_THREADS = "1,2,4,8";
+
+	/**
+	 * Utility classes should not have a public or default constructor.
+	 */
+	private Main() {
+	}
+
+	/**
+	 * @param args
+	 *            JMH command line
+	 * @throws RunnerException
+	 *             if JMH fails
+	 * @throws CommandLineOptionException
+	 *             if the command line can not be parsed
+	 */
+	public static void main(String[] args) throws RunnerException,
+			CommandLineOptionException {
+		CommandLineOptions cmd = new CommandLineOptions(args);
+		String threads = System.getProperty("amino.bench.threads",
+				DEFAULT_THREADS);
+
+		for (String t : threads.split(",")) {
+			ChainedOptionsBuilder opt = new OptionsBuilder().parent(cmd)
+					.threads(Integer.parseInt(t.trim()));
+			if (cmd.getIncludes().isEmpty())
+				opt.include(Main.class.getPackage().getName() + ".*Benchmark");
+			new Runner(opt.build()).run();
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2008 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.amino.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.amino.mcas.MultiCAS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link MultiCAS} against lock striping for atomic updates of k cells of a
+ * shared array. Each operation increments k neighbouring cells, which hold
+ * pre-boxed counters so that neither variant allocates values. The striped
+ * variant takes the locks of the touched stripes in ascending order.
+ * Contention grows with the thread count and shrinks with the number of
+ * cells.
+ * 
+ * <pre>
+ * java -Damino.bench.threads=1,4 org.amino.benchmark.Main MultiCASBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultiCASBenchmark {
+	/**
+	 * Implementation under test.
+	 */
+	@Param({ "MultiCAS", "LockStriping" })
+	public String impl;
+
+	/**
+	 * Number of cells updated atomically.
+	 */
+	@Param({ "1", "2", "4" })
+	public int k;
+
+	/**
+	 * Number of cells.
+	 */
+	@Param({ "64", "4096" })
+	public int cells;
+
+	/**
+	 * Number of lock stripes; must divide the number of cells.
+	 */
+	@Param({ "16" })
+	public int stripes;
+
+	private static final int VALUES = 256;
+
+	private final Integer[] values = new Integer[VALUES];
+
+	private Object[] array;
+
+	private ReentrantLock[] locks;
+
+	private boolean striped;
+
+	/**
+	 * Create the cells and the locks.
+	 */
+	@Setup
+	public void setUp() {
+		if ("LockStriping".equals(impl))
+			striped = true;
+		else if (!"MultiCAS".equals(impl))
+			throw new IllegalArgumentException("Unknown implementation: "
+					+ impl);
+		if ((k > cells) || (k > stripes) || (cells % stripes != 0))
+			throw new IllegalArgumentException("bad k, cells or stripes");
+
+		for (int i = 0; i < VALUES; i++)
+			values[i] = Integer.valueOf(i);
+		array = new Object[cells];
+		for (int i = 0; i < cells; i++)
+			array[i] = values[0];
+		locks = new ReentrantLock[stripes];
+		for (int i = 0; i < stripes; i++)
+			locks[i] = new ReentrantLock();
+	}
+
+	private Integer inc(Object v) {
+		return values[(((Integer) v).intValue() + 1) & (VALUES - 1)];
+	}
+
+	/**
+	 * Increment k cells atomically.
+	 */
+	@Benchmark
+	public void update() {
+		int first = ThreadLocalRandom.current().nextInt(cells);
+		if (striped)
+			updateLocked(first);
+		else
+			updateMCAS(first);
+	}
+
+	private void updateMCAS(int first) {
+		while (true) {
+			MultiCAS.Op op = MultiCAS.begin();
+			for (int j = 0; j < k; j++) {
+				int i = (first + j) % cells;
+				Object v = MultiCAS.readSlot(array, i);
+				op.addSlot(array, i, v, inc(v));
+			}
+			if (op.commit())
+				return;
+		}
+	}
+
+	private void updateLocked(int first) {
+		// cells first .. first + k - 1 map to consecutive stripes, which
+		// wrap around to stripe 0 after the first w of them
+		int w = Math.min(k, stripes - first % stripes);
+		for (int j = w; j < k; j++)
+			locks[(first + j) % stripes].lock();
+		for (int j = 0; j < w; j++)
+			locks[(first + j) % stripes].lock();
+		try {
+			for (int j = 0; j < k; j++) {
+				int i = (first + j) % cells;
+				array[i] = inc(array[i]);
+			}
+		} finally {
+			for (int j = 0; j < k; j++)
+				locks[(first + j) % stripes].unlock();
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2008 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.amino.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+import org.amino.ds.lockfree.LockFreeLongVector;
+import org.amino.ds.lockfree.LockFreeVector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link LockFreeLongVector} against a {@link LockFreeVector} of boxed
+ * <code>Long</code>s, for the append-and-scan pattern of offset and timestamp
+ * logs. <code>append</code> pushes one value and pops it again, so its
+ * <code>gc.alloc.rate.norm</code> under the GC profiler shows the bytes each
+ * append costs. <code>scan</code> sums the pre-filled vector.
+ * 
+ * <pre>
+ * java org.amino.benchmark.Main PrimitiveVectorBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrimitiveVectorBenchmark {
+	/**
+	 * Implementation under test.
+	 */
+	@Param({ "LockFreeLongVector", "LockFreeVector" })
+	public String impl;
+
+	/**
+	 * Number of elements pushed before measurement.
+	 */
+	@Param({ "1048576" })
+	public int initialSize;
+
+	private LockFreeLongVector longVector;
+
+	private LockFreeVector<Long> vector;
+
+	private long next;
+
+	/**
+	 * Create and pre-fill the vector.
+	 */
+	@Setup
+	public void setUp() {
+		if ("LockFreeLongVector".equals(impl))
+			longVector = new LockFreeLongVector();
+		else if ("LockFreeVector".equals(impl))
+			vector = new LockFreeVector<Long>();
+		else
+			throw new IllegalArgumentException("Unknown vector: " + impl);
+
+		for (long i = 0; i < initialSize; i++)
+			append(i);
+	}
+
+	private void append(long v) {
+		if (longVector != null)
+			longVector.pushBack(v);
+		else
+			vector.pushBack(Long.valueOf(v));
+	}
+
+	/**
+	 * @return value popped
+	 */
+	@Benchmark
+	public long append() {
+		// large values, so that Long.valueOf() does not hit its cache
+		long v = (next++) | (1L << 40);
+		append(v);
+		if (longVector != null)
+			return longVector.popBack();
+		return vector.popBack().longValue();
+	}
+
+	/**
+	 * @return sum of all elements
+	 */
+	@Benchmark
+	public long scan() {
+		if (longVector != null) {
+			final long[] sum = new long[1];
+			longVector.forEach(new LongConsumer() {
+				public void accept(long v) {
+					sum[0] += v;
+				}
+			});
+			return sum[0];
+		}
+		long sum = 0;
+		int n = vector.size();
+		for (int i = 0; i < n; i++)
+			sum += vector.get(i).longValue();
+		return sum;
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2008 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.amino.benchmark;
+
+import java.util.Queue;
+import java.util.concurrent.PriorityBlockingQueue;
+
+import org.amino.ds.lockfree.LockFreePriorityQueue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * {@link LockFreePriorityQueue} against {@link PriorityBlockingQueue}. Reads
+ * are <code>peek()</code>, writes are <code>offer()</code> of a random key
+ * and <code>poll()</code> of the minimum.
+ */
+public class PriorityQueueBenchmark extends AbstractMixBenchmark {
+	/**
+	 * Implementation under test.
+	 */
+	@Param({ "LockFreePriorityQueue", "PriorityBlockingQueue" })
+	public String impl;
+
+	/**
+	 * Number of elements put into the queue before measurement.
+	 */
+	@Param({ "4096" })
+	public int initialSize;
+
+	private Queue<Integer> queue;
+
+	/**
+	 * Create and pre-fill the queue.
+	 */
+	@Setup
+	public void setUp() {
+		setUpKeys();
+		if ("LockFreePriorityQueue".equals(impl))
+			queue = new LockFreePriorityQueue<Integer>();
+		else if ("PriorityBlockingQueue".equals(impl))
+			queue = new PriorityBlockingQueue<Integer>(initialSize);
+		else
+			throw new IllegalArgumentException("Unknown queue: " + impl);
+
+		for (int i = 0; i < initialSize; i++)
+			queue.offer(nextKey());
+	}
+
+	/**
+	 * @return result of the operation
+	 */
+	@Benchmark
+	public Object mixed() {
+		switch (nextOp()) {
+		case READ:
+			return queue.peek();
+		case WRITE:
+			return queue.offer(nextKey());
+		default:
+			return queue.poll();
+		}
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2008 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.amino.benchmark;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.amino.ds.lockfree.LockFreeSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * {@link LockFreeSet} against the key sets of {@link ConcurrentHashMap} and
+ * {@link java.util.concurrent.ConcurrentSkipListMap}. Reads are
+ * <code>contains()</code>, writes are <code>add()</code> and
+ * <code>remove()</code>.
+ */
+public class SetBenchmark extends AbstractMixBenchmark {
+	/**
+	 * Implementation under test.
+	 */
+	@Param({ "LockFreeSet", "ConcurrentHashMap", "ConcurrentSkipListMap" })
+	public String impl;
+
+	private Set<Integer> set;
+
+	/**
+	 * Create the set and fill half of the key range.
+	 */
+	@Setup
+	public void setUp() {
+		setUpKeys();
+		if ("LockFreeSet".equals(impl))
+			set = new LockFreeSet<Integer>(keyRange);
+		else if ("ConcurrentHashMap".equals(impl))
+			set = ConcurrentHashMap.newKeySet(keyRange);
+		else if ("ConcurrentSkipListMap".equals(impl))
+			set = new ConcurrentSkipListSet<Integer>();
+		else
+			throw new IllegalArgumentException("Unknown set: " + impl);
+
+		for (int i = 0; i < keyRange; i += 2)
+			set.add(keys[i]);
+	}
+
+	/**
+	 * @return result of the operation
+	 */
+	@Benchmark
+	public boolean mixed() {
+		Integer key = nextKey();
+		switch (nextOp()) {
+		case READ:
+			return set.contains(key);
+		case WRITE:
+			return set.add(key);
+		default:
+			return set.remove(key);
+		}
+	}
+}
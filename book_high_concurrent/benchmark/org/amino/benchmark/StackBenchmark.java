@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2008 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.amino.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EmptyStackException;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+import org.amino.ds.lockfree.EBStack;
+import org.amino.ds.lockfree.IStack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * {@link EBStack} against {@link ConcurrentLinkedDeque} used as a stack.
+ * Reads are <code>peek()</code>, writes are <code>push()</code> and
+ * <code>pop()</code>.
+ */
+public class StackBenchmark extends AbstractMixBenchmark {
+	/**
+	 * Implementation under test.
+	 */
+	@Param({ "EBStack", "ConcurrentLinkedDeque" })
+	public String impl;
+
+	/**
+	 * Number of elements pushed before measurement.
+	 */
+	@Param({ "1024" })
+	public int initialSize;
+
+	/**
+	 * Number of elements moved by one pushAll/popN in {@link #batch()}.
+	 */
+	@Param({ "16" })
+	public int batchSize;
+
+	private IStack<Integer> stack;
+
+	/**
+	 * {@link IStack} view of a {@link ConcurrentLinkedDeque}.
+	 */
+	static class DequeStack<E> implements IStack<E> {
+		private final ConcurrentLinkedDeque<E> deque = new ConcurrentLinkedDeque<E>();
+
+		public E peek() {
+			return deque.peekFirst();
+		}
+
+		public E pop() {
+			E e = deque.pollFirst();
+			if (e == null)
+				throw new EmptyStackException();
+			return e;
+		}
+
+		public void push(E e) {
+			deque.offerFirst(e);
+		}
+
+		public boolean isEmpty() {
+			return deque.isEmpty();
+		}
+
+		public void pushAll(Collection<? extends E> c) {
+			for (E e : c)
+				deque.offerFirst(e);
+		}
+
+		public int popN(int n, Collection<? super E> c) {
+			int i = 0;
+			E e;
+			while ((i < n) && ((e = deque.pollFirst()) != null)) {
+				c.add(e);
+				i++;
+			}
+			return i;
+		}
+	}
+
+	/**
+	 * Create and pre-fill the stack.
+	 */
+	@Setup
+	public void setUp() {
+		setUpKeys();
+		if ("EBStack".equals(impl))
+			stack = new EBStack<Integer>();
+		else if ("ConcurrentLinkedDeque".equals(impl))
+			stack = new DequeStack<Integer>();
+		else
+			throw new IllegalArgumentException("Unknown stack: " + impl);
+
+		for (int i = 0; i < initialSize; i++)
+			stack.push(nextKey());
+	}
+
+	/**
+	 * @return result of the operation
+	 */
+	@Benchmark
+	public Object mixed() {
+		switch (nextOp()) {
+		case READ:
+			return stack.peek();
+		case WRITE:
+			Integer key = nextKey();
+			stack.push(key);
+			return key;
+		default:
+			try {
+				return stack.pop();
+			} catch (EmptyStackException e) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Object-pool pattern: reads are <code>peek()</code>, writes return a
+	 * group of objects with <code>pushAll()</code> and removes take a group
+	 * with <code>popN()</code>.
+	 * 
+	 * @return result of the operation
+	 */
+	@Benchmark
+	public Object batch() {
+		List<Integer> group;
+		switch (nextOp()) {
+		case READ:
+			return stack.peek();
+		case WRITE:
+			group = new ArrayList<Integer>(batchSize);
+			for (int i = 0; i < batchSize; i++)
+				group.add(nextKey());
+			stack.pushAll(group);
+			return group;
+		default:
+			group = new ArrayList<Integer>(batchSize);
+			stack.popN(batchSize, group);
+			return group;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2008 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.amino.benchmark;
+
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.amino.ds.lockfree.LockFreeVector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * {@link LockFreeVector} against the synchronized {@link Vector}. There is no
+ * java.util.concurrent counterpart of a growable array with tail removal.
+ * Reads are <code>get()</code> at a random index, writes are
+ * <code>pushBack()</code> and <code>popBack()</code>.
+ */
+public class VectorBenchmark extends AbstractMixBenchmark {
+	/**
+	 * Implementation under test.
+	 */
+	@Param({ "LockFreeVector", "Vector" })
+	public String impl;
+
+	/**
+	 * Number of elements appended before measurement. Reads only touch this
+	 * prefix, so they never race with popBack().
+	 */
+	@Param({ "1024" })
+	public int initialSize;
+
+	private LockFreeVector<Integer> lockFreeVector;
+
+	private Vector<Integer> vector;
+
+	private List<Integer> list;
+
+	/**
+	 * Create and pre-fill the vector.
+	 */
+	@Setup
+	public void setUp() {
+		setUpKeys();
+		if ("LockFreeVector".equals(impl))
+			list = lockFreeVector = new LockFreeVector<Integer>();
+		else if ("Vector".equals(impl))
+			list = vector = new Vector<Integer>();
+		else
+			throw new IllegalArgumentException("Unknown vector: " + impl);
+
+		for (int i = 0; i < initialSize; i++)
+			list.add(nextKey());
+	}
+
+	/**
+	 * @return result of the operation
+	 */
+	@Benchmark
+	public Object mixed() {
+		switch (nextOp()) {
+		case READ:
+			return list.get(ThreadLocalRandom.current().nextInt(initialSize));
+		case WRITE:
+			return list.add(nextKey());
+		default:
+			return popBack();
+		}
+	}
+
+	/**
+	 * Remove the last element unless it would shrink the vector below the
+	 * pre-filled prefix.
+	 */
+	private Integer popBack() {
+		if (lockFreeVector != null) {
+			// popBack() of an empty LockFreeVector fails. Concurrent pops may
+			// dip a few elements into the prefix, but never empty it.
+			if (lockFreeVector.size() <= initialSize)
+				return null;
+			return lockFreeVector.popBack();
+		}
+		synchronized (vector) {
+			int size = vector.size();
+			if (size <= initialSize)
+				return null;
+			return vector.remove(size - 1);
+		}
+	}
+}
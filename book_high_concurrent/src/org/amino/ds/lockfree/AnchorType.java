@@ -17,6 +17,8 @@ package org.amino.ds.lockfree;
 
 import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
+import org.amino.utility.EpochReclaimer;
+
 /**
  * Internal anchor type used to record the current status of deque. This class
  * contains all important information about Deque:
@@ -101,6 +103,31 @@ class AnchorType<E> {
 		setup(r, l, st, ne);
 	}
 
+	/**
+	 * Kind of this object for {@link EpochReclaimer}.
+	 */
+	static final int KIND = 1;
+
+	/**
+	 * Returns a reused anchor if g has one, or a new one. Its fields must be
+	 * set with {@link #setup(DequeNode, DequeNode, int, int)} before it is
+	 * published.
+	 * 
+	 * @param g
+	 *            guard of the calling thread, null if anchors are not
+	 *            recycled
+	 * @return an unpublished anchor
+	 */
+	@SuppressWarnings("unchecked")
+	static <E> AnchorType<E> obtain(EpochReclaimer.Guard g) {
+		if (g != null) {
+			AnchorType<E> a = (AnchorType<E>) g.reuse(KIND);
+			if (a != null)
+				return a;
+		}
+		return new AnchorType<E>();
+	}
+
 	/**
 	 * Setup the anchor with the input parameters.
 	 * 
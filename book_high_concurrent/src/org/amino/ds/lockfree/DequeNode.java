@@ -18,6 +18,8 @@ package org.amino.ds.lockfree;
 
 import java.util.concurrent.atomic.AtomicReference;
 
+import org.amino.utility.EpochReclaimer;
+
 /**
  * Internal Deque node class. This class is used by both EBDeque and
  * LockFreeDeque.
@@ -27,9 +29,14 @@ import java.util.concurrent.atomic.AtomicReference;
  */
 class DequeNode<E> {
 	/**
-	 * Data on the node.
+	 * Kind of this node for {@link EpochReclaimer}.
 	 */
-	final E data;
+	static final int KIND = 0;
+
+	/**
+	 * Data on the node. Only rewritten when the node is reused.
+	 */
+	E data;
 	/**
 	 * Right pointer.
 	 */
@@ -49,6 +56,30 @@ class DequeNode<E> {
 		this.left = new AtomicReference<DequeNode<E>>();
 	}
 
+	/**
+	 * Returns a reused node if g has one, or a new one.
+	 * 
+	 * @param g
+	 *            guard of the calling thread, null if nodes are not recycled
+	 * @param d
+	 *            element of the node
+	 * @return node holding d with both links cleared
+	 */
+	@SuppressWarnings("unchecked")
+	static <E> DequeNode<E> obtain(EpochReclaimer.Guard g, E d) {
+		if (g != null) {
+			DequeNode<E> n = (DequeNode<E>) g.reuse(KIND);
+			if (n != null) {
+				// published later by the anchor CAS
+				n.data = d;
+				n.right.lazySet(null);
+				n.left.lazySet(null);
+				return n;
+			}
+		}
+		return new DequeNode<E>(d);
+	}
+
 	/**
 	 * @param r
 	 *            right node of node
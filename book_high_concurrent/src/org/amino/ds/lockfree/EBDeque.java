@@ -24,6 +24,7 @@ import java.util.concurrent.atomic.AtomicReference;
 
 import org.amino.utility.AdaptEliminationArray;
 import org.amino.utility.EliminationArray;
+import org.amino.utility.EpochReclaimer;
 import org.amino.utility.IEliminationArray;
 
 /**
@@ -48,8 +49,9 @@ public class EBDeque<E> extends AbstractQueue<E> implements Deque<E> {
 	private static final int DEFAULT_EBARRAY_LEN = 8;
 
 	/**
-	 * Lower bound of backoff time in milliseconds. EBDeque use exponential
-	 * backoff to get some adaptability.
+	 * Lower bound of backoff time in milliseconds when clear() fails to
+	 * replace the anchor. EBDeque use exponential backoff to get some
+	 * adaptability.
 	 */
 	private static final int MIN_BACKOFF_TIME = 3;
 	/**
@@ -98,6 +100,16 @@ public class EBDeque<E> extends AbstractQueue<E> implements Deque<E> {
 		}
 	}
 
+	/**
+	 * @param first
+	 *            true for the elimination array of the first (head) end, false
+	 *            for the last (tail) end
+	 * @return fraction of elimination attempts at that end that met a partner
+	 */
+	public double getEliminationHitRatio(boolean first) {
+		return (first ? eaHead : eaTail).getHitRatio();
+	}
+
 	/**
 	 * It's used for debugging purpose.
 	 */
@@ -110,15 +122,27 @@ public class EBDeque<E> extends AbstractQueue<E> implements Deque<E> {
 	 * default constructor.
 	 */
 	public EBDeque() {
-		eaHead = new EliminationArray(DEFAULT_EBARRAY_LEN);
-		eaTail = new EliminationArray(DEFAULT_EBARRAY_LEN);
+		this(0);
 	}
 
 	/**
 	 * @param eliminationSize
-	 *            default size of elimination array
+	 *            size of a fixed elimination array, or 0 for one that adapts
+	 *            its size and waiting time to the observed contention
 	 */
 	public EBDeque(int eliminationSize) {
+		this(eliminationSize, false);
+	}
+
+	/**
+	 * @param eliminationSize
+	 *            default size of elimination array, or 0 for an adaptive one
+	 * @param recycleNodes
+	 *            if true, removed nodes and replaced anchors are reused, see
+	 *            {@link LockFreeDeque#LockFreeDeque(boolean)}
+	 */
+	public EBDeque(int eliminationSize, boolean recycleNodes) {
+		reclaimer = recycleNodes ? new EpochReclaimer(2) : null;
 		if (eliminationSize > 0) {
 			eaHead = new EliminationArray(eliminationSize);
 			eaTail = new EliminationArray(eliminationSize);
@@ -284,24 +308,39 @@ public class EBDeque<E> extends AbstractQueue<E> implements Deque<E> {
 	 * Removes all elements, clears the deque.
 	 */
 	public void clear() {
-		AnchorType<E> oanchor, nanchor;
+		EpochReclaimer.Guard g = enter();
+		try {
+			clear(g);
+		} finally {
+			exit(g);
+		}
+	}
+
+	private void clear(EpochReclaimer.Guard g) {
+		AnchorType<E> oanchor;
+		AnchorType<E> nanchor = AnchorType.obtain(g);
 		// int ostamp, nstamp;
 
 		while (true) {
 			int exp = 1;
 			oanchor = anchor.get();
 
-			if (oanchor.right == null)
+			if (oanchor.right == null) {
+				recycle(g, AnchorType.KIND, nanchor);
 				return;
+			}
 
-			nanchor = new AnchorType<E>(null, null, STABLE, 0);
+			nanchor.setup(null, null, STABLE, 0);
 			
 			/**
 			 * Any modification to anchor should be an atomic operation. Thread
 			 * will retry with Elimination process if CAS fails.
 			 */
-			if (anchor.compareAndSet(oanchor, nanchor))
+			if (anchor.compareAndSet(oanchor, nanchor)) {
+				// the removed nodes are left to the GC
+				retire(g, AnchorType.KIND, oanchor);
 				return;
+			}
 			if (BACK_OFF) {
 				try {
 					Thread.sleep(MIN_BACKOFF_TIME * exp);
@@ -371,10 +410,13 @@ public class EBDeque<E> extends AbstractQueue<E> implements Deque<E> {
 	 * @return size of the deque
 	 */
 	public int size() {
-		AnchorType<E> oanchor;
-		// oanchor = anchor..getReference();
-		oanchor = anchor.get();
-		return oanchor.getSize();
+		// a recycled anchor is set up again, so read it inside a guard
+		EpochReclaimer.Guard g = enter();
+		try {
+			return anchor.get().getSize();
+		} finally {
+			exit(g);
+		}
 	}
 
 	/**
@@ -384,6 +426,30 @@ public class EBDeque<E> extends AbstractQueue<E> implements Deque<E> {
 	private AtomicReference<AnchorType<E>> anchor = new AtomicReference<AnchorType<E>>(
 			new AnchorType<E>());
 
+	/**
+	 * Recycles nodes and anchors, or null if they are left to the GC.
+	 */
+	private final EpochReclaimer reclaimer;
+
+	private EpochReclaimer.Guard enter() {
+		return (reclaimer == null) ? null : reclaimer.enter();
+	}
+
+	private static void exit(EpochReclaimer.Guard g) {
+		if (g != null)
+			g.exit();
+	}
+
+	private static void retire(EpochReclaimer.Guard g, int kind, Object o) {
+		if (g != null)
+			g.retire(kind, o);
+	}
+
+	private static void recycle(EpochReclaimer.Guard g, int kind, Object o) {
+		if (g != null)
+			g.recycle(kind, o);
+	}
+
 	/**
 	 * Wait for a while if CAS operation fails. (Millisecond)
 	 */
@@ -406,15 +472,23 @@ public class EBDeque<E> extends AbstractQueue<E> implements Deque<E> {
 	 *            element to add
 	 */
 	public void addFirst(E d) {
+		EpochReclaimer.Guard g = enter();
+		try {
+			addFirst(d, g);
+		} finally {
+			exit(g);
+		}
+	}
+
+	private void addFirst(E d, EpochReclaimer.Guard g) {
 		DequeNode<E> newtop;
 		AnchorType<E> oanchor;
-		AnchorType<E> nanchor = new AnchorType<E>();
+		AnchorType<E> nanchor = AnchorType.obtain(g);
 		// int oStamp, n1Stamp, n2Stamp;
 
 		// Create new stack node with the data
-		newtop = new DequeNode<E>(d);
+		newtop = DequeNode.obtain(g, d);
 
-		int exp = 1;
 		while (true) {
 			oanchor = anchor.get();
 
@@ -422,16 +496,16 @@ public class EBDeque<E> extends AbstractQueue<E> implements Deque<E> {
 			{
 				nanchor.setup(newtop, newtop, oanchor.status, 1);
 				// replace the anchor with this new anchor
-				if (anchor.compareAndSet(oanchor, nanchor))
+				if (anchor.compareAndSet(oanchor, nanchor)) {
+					retire(g, AnchorType.KIND, oanchor);
 					return;
+				}
 				if (BACK_OFF) {
-					try {
-						if (eaHead.tryAdd(d, MIN_BACKOFF_TIME * exp))
-							return;
-					} catch (InterruptedException e) {
-						throw new IllegalStateException(e);
+					if (eaHead.tryAdd(d)) {
+						recycle(g, DequeNode.KIND, newtop);
+						recycle(g, AnchorType.KIND, nanchor);
+						return;
 					}
-					exp = ((exp << 1) + 1) % MAX_BACKOFF_TIME;
 				}
 			} else if (oanchor.status == STABLE) {
 				// set the newtop left pointer to the old anchor right pointer
@@ -447,17 +521,16 @@ public class EBDeque<E> extends AbstractQueue<E> implements Deque<E> {
 				 * Thread will retry with Elimination process if CAS fails.
 				 */
 				if (anchor.compareAndSet(oanchor, nanchor)) {
+					retire(g, AnchorType.KIND, oanchor);
 					this.stabilizeRight(nanchor);
 					return;
 				}
 				if (BACK_OFF) {
-					try {
-						if (eaHead.tryAdd(d, MIN_BACKOFF_TIME * exp))
-							return;
-					} catch (InterruptedException e) {
-						throw new IllegalStateException(e);
+					if (eaHead.tryAdd(d)) {
+						recycle(g, DequeNode.KIND, newtop);
+						recycle(g, AnchorType.KIND, nanchor);
+						return;
 					}
-					exp = ((exp << 1) + 1) % MAX_BACKOFF_TIME;
 				}
 			} else {
 				// deque is not in a stable state
@@ -470,12 +543,15 @@ public class EBDeque<E> extends AbstractQueue<E> implements Deque<E> {
 	 * {@inheritDoc}
 	 */
 	public E peekFirst() {
-		AnchorType<E> oanchor;
-
-		oanchor = anchor.get();
-		if (oanchor.right == null)
-			return null;
-		return oanchor.right.data;
+		EpochReclaimer.Guard g = enter();
+		try {
+			DequeNode<E> right = anchor.get().right;
+			if (right == null)
+				return null;
+			return right.data;
+		} finally {
+			exit(g);
+		}
 	}
 
 	/**
@@ -484,20 +560,31 @@ public class EBDeque<E> extends AbstractQueue<E> implements Deque<E> {
 	 * @return element polled
 	 */
 	public E pollFirst() {
+		EpochReclaimer.Guard g = enter();
+		try {
+			return pollFirst(g);
+		} finally {
+			exit(g);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private E pollFirst(EpochReclaimer.Guard g) {
 		DequeNode<E> prev;
 		AnchorType<E> oanchor;
-		AnchorType<E> nanchor = new AnchorType<E>();
+		AnchorType<E> nanchor = AnchorType.obtain(g);
 		// int oStamp, n1Stamp, n2Stamp;
 
-		int exp = 1;
 		while (true) {
 			// oanchor = anchor.getReference();
 			// oStamp = anchor.getStamp();
 			oanchor = anchor.get();
 
 			// deque is empty
-			if (oanchor.right == null)
+			if (oanchor.right == null) {
+				recycle(g, AnchorType.KIND, nanchor);
 				return null;
+			}
 
 			// deque has just one node
 			if (oanchor.right == oanchor.left) {
@@ -507,18 +594,16 @@ public class EBDeque<E> extends AbstractQueue<E> implements Deque<E> {
 				 * n1anchor.numElements = 0; n1anchor.status = oanchor.status;
 				 */
 				// n1Stamp = oStamp + 1;
-				if (anchor.compareAndSet(oanchor, nanchor))
+				if (anchor.compareAndSet(oanchor, nanchor)) {
+					retire(g, AnchorType.KIND, oanchor);
 					break;
+				}
 				if (BACK_OFF) {
-					Object res;
-					try {
-						res = eaHead.tryRemove(MIN_BACKOFF_TIME * exp);
-						if (res != null)
-							return (E) res;
-					} catch (InterruptedException e) {
-						throw new IllegalStateException(e);
+					Object res = eaHead.tryRemove();
+					if (res != null) {
+						recycle(g, AnchorType.KIND, nanchor);
+						return (E) res;
 					}
-					exp = ((exp << 1) + 1) % MAX_BACKOFF_TIME;
 				}
 			} else if (oanchor.status == STABLE) {
 				prev = oanchor.right.left.get();
@@ -527,19 +612,16 @@ public class EBDeque<E> extends AbstractQueue<E> implements Deque<E> {
 						oanchor.numElements - 1);
 
 				if (anchor.compareAndSet(oanchor, nanchor)) {
+					retire(g, AnchorType.KIND, oanchor);
 					prev.right.compareAndSet(oanchor.right, null);
 					break;
 				}
 				if (BACK_OFF) {
-					Object res;
-					try {
-						res = eaHead.tryRemove(MIN_BACKOFF_TIME * exp);
-						if (res != null)
-							return (E) res;
-					} catch (InterruptedException e) {
-						throw new IllegalStateException(e);
+					Object res = eaHead.tryRemove();
+					if (res != null) {
+						recycle(g, AnchorType.KIND, nanchor);
+						return (E) res;
 					}
-					exp = ((exp << 1) + 1) % MAX_BACKOFF_TIME;
 				}
 			} else {
 				// deque is not stable
@@ -547,7 +629,9 @@ public class EBDeque<E> extends AbstractQueue<E> implements Deque<E> {
 			}
 		}
 
-		return oanchor.right.data;
+		E result = oanchor.right.data;
+		retire(g, DequeNode.KIND, oanchor.right);
+		return result;
 	}
 
 	/**
@@ -559,32 +643,40 @@ public class EBDeque<E> extends AbstractQueue<E> implements Deque<E> {
 	 *            element
 	 */
 	public void addLast(E d) {
+		EpochReclaimer.Guard g = enter();
+		try {
+			addLast(d, g);
+		} finally {
+			exit(g);
+		}
+	}
+
+	private void addLast(E d, EpochReclaimer.Guard g) {
 		DequeNode<E> newtop;
 		AnchorType<E> oanchor;
-		AnchorType<E> nanchor = new AnchorType<E>();
+		AnchorType<E> nanchor = AnchorType.obtain(g);
 
-		newtop = new DequeNode<E>(d);
+		newtop = DequeNode.obtain(g, d);
 
 		while (true) {
 			oanchor = anchor.get();
 
-			int exp = 1;
 			if (oanchor.left == null) {
 				nanchor.setup(newtop, newtop, oanchor.status, 1);
 				/**
 				 * Any modification to anchor should be an atomic operation.
 				 * Thread will retry with Elimination process if CAS fails.
 				 */
-				if (anchor.compareAndSet(oanchor, nanchor))
+				if (anchor.compareAndSet(oanchor, nanchor)) {
+					retire(g, AnchorType.KIND, oanchor);
 					return;
+				}
 				if (BACK_OFF) {
-					try {
-						if (eaTail.tryAdd(d, MIN_BACKOFF_TIME * exp))
-							return;
-					} catch (InterruptedException e) {
-						throw new IllegalStateException(e);
+					if (eaTail.tryAdd(d)) {
+						recycle(g, DequeNode.KIND, newtop);
+						recycle(g, AnchorType.KIND, nanchor);
+						return;
 					}
-					exp = ((exp << 1) + 1) % MAX_BACKOFF_TIME;
 				}
 			} else if (oanchor.status == STABLE) {
 				newtop.setRight(oanchor.left);
@@ -597,17 +689,16 @@ public class EBDeque<E> extends AbstractQueue<E> implements Deque<E> {
 				 * Thread will retry with Elimination process if CAS fails.
 				 */
 				if (anchor.compareAndSet(oanchor, nanchor)) {
+					retire(g, AnchorType.KIND, oanchor);
 					this.stabilizeLeft(nanchor);
 					return;
 				}
 				if (BACK_OFF) {
-					try {
-						if (eaTail.tryAdd(d, MIN_BACKOFF_TIME * exp))
-							return;
-					} catch (InterruptedException e) {
-						throw new IllegalStateException(e);
+					if (eaTail.tryAdd(d)) {
+						recycle(g, DequeNode.KIND, newtop);
+						recycle(g, AnchorType.KIND, nanchor);
+						return;
 					}
-					exp = ((exp << 1) + 1) % MAX_BACKOFF_TIME;
 				}
 			} else {
 				// deque is not in a stable state, let's stablize it
@@ -621,72 +712,82 @@ public class EBDeque<E> extends AbstractQueue<E> implements Deque<E> {
 	 * {@inheritDoc}
 	 */
 	public E peekLast() {
-		AnchorType<E> oanchor;
-
-		oanchor = anchor.get();
-		if (oanchor.left == null)
-			return null;
-		return oanchor.left.data;
+		EpochReclaimer.Guard g = enter();
+		try {
+			DequeNode<E> left = anchor.get().left;
+			if (left == null)
+				return null;
+			return left.data;
+		} finally {
+			exit(g);
+		}
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	public E pollLast() {
+		EpochReclaimer.Guard g = enter();
+		try {
+			return pollLast(g);
+		} finally {
+			exit(g);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private E pollLast(EpochReclaimer.Guard g) {
 		AnchorType<E> oanchor;
-		AnchorType<E> nanchor = new AnchorType<E>();
+		AnchorType<E> nanchor = AnchorType.obtain(g);
 
-		int exp = 1;
 		while (true) {
 			oanchor = anchor.get();
 
 			// deque is empty, return null
-			if (oanchor.right == null)
+			if (oanchor.right == null) {
+				recycle(g, AnchorType.KIND, nanchor);
 				return null;
+			}
 
 			if (oanchor.right == oanchor.left) {
 				// deque has just one node
 				nanchor.setup(null, null, oanchor.status, 0);
 
 				// try to return the only node
-				if (anchor.compareAndSet(oanchor, nanchor))
+				if (anchor.compareAndSet(oanchor, nanchor)) {
+					retire(g, AnchorType.KIND, oanchor);
 					break;
+				}
 				if (BACK_OFF) {
-					Object res;
-					try {
-						res = eaTail.tryRemove(MIN_BACKOFF_TIME * exp);
-						if (res != null)
-							return (E) res;
-					} catch (InterruptedException e) {
-						throw new IllegalStateException(e);
+					Object res = eaTail.tryRemove();
+					if (res != null) {
+						recycle(g, AnchorType.KIND, nanchor);
+						return (E) res;
 					}
-					exp = ((exp << 1) + 1) % MAX_BACKOFF_TIME;
 				}
 			} else if (oanchor.status == STABLE) {
 				DequeNode<E> prev = oanchor.left.right.get();
 				nanchor.setup(oanchor.right, prev, oanchor.status,
 						oanchor.numElements - 1);
 				if (anchor.compareAndSet(oanchor, nanchor)) {
+					retire(g, AnchorType.KIND, oanchor);
 					prev.left.compareAndSet(oanchor.left, null);
 					break;
 				}
 				if (BACK_OFF) {
-					Object res;
-					try {
-						res = eaTail.tryRemove(MIN_BACKOFF_TIME * exp);
-						if (res != null)
-							return (E) res;
-					} catch (InterruptedException e) {
-						throw new IllegalStateException(e);
+					Object res = eaTail.tryRemove();
+					if (res != null) {
+						recycle(g, AnchorType.KIND, nanchor);
+						return (E) res;
 					}
-					exp = ((exp << 1) + 1) % MAX_BACKOFF_TIME;
 				}
 			} else
 				// deque is not stable, let's stablize it
 				stabilize(oanchor);
 		}
-		return oanchor.left.data;
-
+		E result = oanchor.left.data;
+		retire(g, DequeNode.KIND, oanchor.left);
+		return result;
 	}
 
 	/**
@@ -16,10 +16,14 @@
 
 package org.amino.ds.lockfree; 
 
+import java.util.Collection;
 import java.util.EmptyStackException;
 import java.util.concurrent.atomic.AtomicReference;
 
+import org.amino.utility.AdaptEliminationArray;
 import org.amino.utility.EliminationArray;
+import org.amino.utility.IEliminationArray;
+import org.amino.utility.IReclaimer;
 
 /**
  * @author Zhi Gan (ganzhi@gmail.com)
@@ -29,10 +33,6 @@ import org.amino.utility.EliminationArray;
  */
 public class EBStack<E> implements IStack<E> {
 	private static final int INIT_SIZE_OF_ELIMARRAY = 8;
-	/**
-	 * Wait for a while if CAS operation fails. (Millisecond)
-	 */
-	private static final int BACKOFF = 6;
 	/**
 	 * Top pointer of stack.
 	 */
@@ -40,13 +40,24 @@ public class EBStack<E> implements IStack<E> {
 	/**
 	 * Elimination array.
 	 */
-	EliminationArray ea;
+	IEliminationArray ea;
+
+	/**
+	 * Recycles popped nodes, or null if they are left to the GC.
+	 */
+	private final IReclaimer reclaimer;
+
+	/**
+	 * Whether a node must be protected and validated before it is read.
+	 */
+	private final boolean validate;
 
 	/**
-	 * Default constructor.
+	 * Default constructor. The elimination array adapts its size and waiting
+	 * time to the observed contention.
 	 */
 	public EBStack() {
-		this(INIT_SIZE_OF_ELIMARRAY);
+		this(0);
 	}
 
 	/**
@@ -60,10 +71,68 @@ public class EBStack<E> implements IStack<E> {
 	 * Specify size of internal elimination array.
 	 * 
 	 * @param size
-	 *            default size of stack
+	 *            size of a fixed elimination array, or 0 for an adaptive one
 	 */
 	public EBStack(int size) {
-		ea = new EliminationArray(size);
+		this(size, null);
+	}
+
+	/**
+	 * @param size
+	 *            size of a fixed elimination array, or 0 for an adaptive one
+	 * @param reclaimer
+	 *            reclaimer through which popped nodes are reused, or null to
+	 *            leave them to the GC. It needs one kind and, if it uses
+	 *            hazard pointers, one slot per thread. It may be shared with
+	 *            other EBStacks.
+	 */
+	public EBStack(int size, IReclaimer reclaimer) {
+		if (size > 0)
+			ea = new EliminationArray(size);
+		else
+			ea = new AdaptEliminationArray(INIT_SIZE_OF_ELIMARRAY);
+		this.reclaimer = reclaimer;
+		validate = (reclaimer != null) && reclaimer.needsProtect();
+	}
+
+	private IReclaimer.Guard enter() {
+		return (reclaimer == null) ? null : reclaimer.enter();
+	}
+
+	private static void exit(IReclaimer.Guard g) {
+		if (g != null)
+			g.exit();
+	}
+
+	/**
+	 * Reads top and, with hazard pointers, makes sure it stays readable.
+	 */
+	private Node<E> protectTop(IReclaimer.Guard g) {
+		Node<E> t;
+		do {
+			t = top.get();
+			if (!validate || (t == null))
+				return t;
+			g.protect(0, t);
+		} while (top.get() != t);
+		return t;
+	}
+
+	private static <E> void retire(IReclaimer.Guard g, Node<E> n) {
+		if (g != null)
+			g.retire(Node.KIND, n);
+	}
+
+	private static <E> void recycle(IReclaimer.Guard g, Node<E> n) {
+		if (g != null)
+			g.recycle(Node.KIND, n);
+	}
+
+	/**
+	 * @return fraction of elimination attempts that met a partner
+	 */
+	public double getEliminationHitRatio() {
+		return ea.getHitRatio();
 	}
 
 	/**
@@ -78,10 +147,15 @@ public class EBStack<E> implements IStack<E> {
 	 *            type of element in node
 	 */
 	static class Node<E> {
+		/**
+		 * Reclaimer kind of stack nodes.
+		 */
+		static final int KIND = 0;
+
 		/**
 		 * Data on the node.
 		 */
-		final E data;
+		E data;
 		/**
 		 * Next pointer.
 		 */
@@ -96,6 +170,70 @@ public class EBStack<E> implements IStack<E> {
 			this.data = d;
 		}
 
+		/**
+		 * @return a recycled node if the guard has one, otherwise a new node
+		 */
+		@SuppressWarnings("unchecked")
+		static <E> Node<E> obtain(IReclaimer.Guard g, E d) {
+			if (g != null) {
+				Node<E> n = (Node<E>) g.reuse(KIND);
+				if (n != null) {
+					// published later by the CAS on top
+					n.data = d;
+					n.next = null;
+					return n;
+				}
+			}
+			return new Node<E>(d);
+		}
+	}
+
+	/**
+	 * A private chain of nodes, built by pushAll() and handed over through
+	 * the elimination array as one object. The taker owns the chain and
+	 * pushes back whatever it does not consume.
+	 * 
+	 * @param <E>
+	 *            type of element in node
+	 */
+	static final class Chain<E> {
+		/**
+		 * Node that becomes the new top.
+		 */
+		Node<E> first;
+		/**
+		 * Bottom node of the chain.
+		 */
+		final Node<E> last;
+		/**
+		 * Number of nodes from first to last.
+		 */
+		int count;
+
+		Chain(Node<E> first, Node<E> last, int count) {
+			this.first = first;
+			this.last = last;
+			this.count = count;
+		}
+
+		/**
+		 * Move up to n elements to c, topmost first.
+		 * 
+		 * @return number of elements moved
+		 */
+		int take(int n, Collection<? super E> c, IReclaimer.Guard g) {
+			int k = 0;
+			while ((k < n) && (k < count)) {
+				Node<E> node = first;
+				c.add(node.data);
+				first = node.next;
+				// never published, so no other thread has seen it
+				recycle(g, node);
+				k++;
+			}
+			count -= k;
+			return k;
+		}
 	}
 
 	/**
@@ -104,15 +242,22 @@ public class EBStack<E> implements IStack<E> {
 	 * @return topmost element of the stack.
 	 */
 	public E pop() {
+		IReclaimer.Guard g = enter();
+		try {
+			return pop(g);
+		} finally {
+			exit(g);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private E pop(IReclaimer.Guard g) {
 		Node<E> oldTop, newTop;
 		// int oldStamp, newStamp;
-		int exp;
-		if (BACK_OFF)
-			exp = 1;
 		while (true) {
 			// oldStamp = top.getStamp();
 			// oldTop = top.getReference();
-			oldTop = top.get();
+			oldTop = protectTop(g);
 			if (oldTop == null)
 				throw new EmptyStackException();
 			newTop = oldTop.next;
@@ -123,19 +268,105 @@ public class EBStack<E> implements IStack<E> {
 			if (top.compareAndSet(oldTop, newTop))
 				break;
 			if (BACK_OFF) {
-				Object res;
-				try {
-					res = ea.tryRemove(BACKOFF * exp);
-					if (res != null)
-						return (E) res;
-				} catch (InterruptedException e) {
-					throw new IllegalStateException(e);
+				Object res = ea.tryRemove();
+				if (res instanceof Chain)
+					return takeOne((Chain<E>) res, g);
+				if (res != null)
+					return (E) res;
+			}
+		}
+
+		E d = oldTop.data;
+		retire(g, oldTop);
+		return d;
+	}
+
+	/**
+	 * pop() met a pushAll() in the elimination array: keep the top of its
+	 * chain and push the rest.
+	 */
+	private E takeOne(Chain<E> chain, IReclaimer.Guard g) {
+		Node<E> node = chain.first;
+		E d = node.data;
+		chain.first = node.next;
+		recycle(g, node);
+		chain.count--;
+		if (chain.count > 0)
+			pushChain(chain, false);
+		return d;
+	}
+
+	/**
+	 * Pop up to n elements with a single CAS on top. If the CAS fails, the
+	 * operation may instead be eliminated against a concurrent push() or
+	 * pushAll(), in which case it can return fewer elements even though the
+	 * stack holds more.
+	 * 
+	 * @param n
+	 *            maximal number of elements popped
+	 * @param c
+	 *            collection receiving the elements, topmost first
+	 * @return number of elements popped, 0 if stack is empty
+	 */
+	public int popN(int n, Collection<? super E> c) {
+		if (c == null)
+			throw new NullPointerException();
+		if (n < 0)
+			throw new IllegalArgumentException();
+		if (n == 0)
+			return 0;
+		IReclaimer.Guard g = enter();
+		try {
+			return popN(n, c, g);
+		} finally {
+			exit(g);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private int popN(int n, Collection<? super E> c, IReclaimer.Guard g) {
+		Node<E> oldTop, last;
+		int k;
+		while (true) {
+			oldTop = protectTop(g);
+			if (oldTop == null)
+				return 0;
+			// next pointers of published nodes never change, so the walk
+			// sees the same nodes the CAS below detaches. With hazard
+			// pointers only oldTop is protected: a node below it can only be
+			// reused after oldTop has left the top, and then the CAS fails.
+			last = oldTop;
+			k = 1;
+			while ((k < n) && (last.next != null)) {
+				last = last.next;
+				k++;
+			}
+			if (top.compareAndSet(oldTop, last.next))
+				break;
+			if (BACK_OFF) {
+				Object res = ea.tryRemove();
+				if (res instanceof Chain) {
+					Chain<E> chain = (Chain<E>) res;
+					k = chain.take(n, c, g);
+					if (chain.count > 0)
+						pushChain(chain, false);
+					return k;
+				}
+				if (res != null) {
+					c.add((E) res);
+					return 1;
 				}
-				exp = exp << 1;
 			}
 		}
 
-		return oldTop.data;
+		Node<E> cur = oldTop;
+		for (int i = 0; i < k; i++) {
+			Node<E> next = cur.next;
+			c.add(cur.data);
+			retire(g, cur);
+			cur = next;
+		}
+		return k;
 	}
 
 	/**
@@ -145,12 +376,18 @@ public class EBStack<E> implements IStack<E> {
 	 *            data to be pushed onto the stack.
 	 */
 	public void push(E d) {
+		IReclaimer.Guard g = enter();
+		try {
+			push(d, g);
+		} finally {
+			exit(g);
+		}
+	}
+
+	private void push(E d, IReclaimer.Guard g) {
 		Node<E> oldTop, newTop;
 
-		newTop = new Node<E>(d);
-		int exp;
-		if (BACK_OFF)
-			exp = 1;
+		newTop = Node.obtain(g, d);
 		while (true) {
 			oldTop = top.get();
 			newTop.next = oldTop;
@@ -160,18 +397,66 @@ public class EBStack<E> implements IStack<E> {
 			 */
 			if (top.compareAndSet(oldTop, newTop))
 				return;
-			if (BACK_OFF) {
-				try {
-					if (ea.tryAdd(d, BACKOFF))
-						return;
-				} catch (InterruptedException e) {
-					throw new IllegalStateException(e);
-				}
-				exp = exp << 1;
+			if (BACK_OFF && ea.tryAdd(d)) {
+				recycle(g, newTop);
+				return;
 			}
 		}
 	}
 
+	/**
+	 * Push every element of c. The nodes are linked privately first and then
+	 * published with a single CAS on top, so the group appears atomically:
+	 * no pop() or popN() observes only part of it. If the CAS fails the whole
+	 * chain is offered to a concurrent pop() or popN() in the elimination
+	 * array.
+	 * 
+	 * @param c
+	 *            elements pushed, the last one ends up on top
+	 */
+	public void pushAll(Collection<? extends E> c) {
+		IReclaimer.Guard g = enter();
+		try {
+			Node<E> first = null, last = null;
+			int count = 0;
+			for (E d : c) {
+				Node<E> node = Node.obtain(g, d);
+				node.next = first;
+				first = node;
+				if (last == null)
+					last = node;
+				count++;
+			}
+			if (count == 0)
+				return;
+			pushChain(new Chain<E>(first, last, count), BACK_OFF);
+		} finally {
+			exit(g);
+		}
+	}
+
+	/**
+	 * Splice a privately owned chain onto the stack.
+	 * 
+	 * @param chain
+	 *            chain to publish
+	 * @param eliminate
+	 *            whether to offer the chain to the elimination array when the
+	 *            CAS fails. Leftovers of an eliminated chain are pushed
+	 *            without it, so a chain is handed over at most once.
+	 */
+	private void pushChain(Chain<E> chain, boolean eliminate) {
+		Node<E> oldTop;
+		while (true) {
+			oldTop = top.get();
+			chain.last.next = oldTop;
+			if (top.compareAndSet(oldTop, chain.first))
+				return;
+			if (eliminate && ea.tryAdd(chain))
+				return;
+		}
+	}
+
 	/**
 	 * Check to see if Stack is empty.
 	 * 
@@ -193,12 +478,18 @@ public class EBStack<E> implements IStack<E> {
 	 * @return copy of top of stack, or null if empty.
 	 */
 	public E peek() {
-		// if (top.getReference() == null)
-		if (top.get() == null) {
-			return null;
-		} else {
-			// return top.getReference().data;
-			return top.get().data;
+		IReclaimer.Guard g = enter();
+		try {
+			// if (top.getReference() == null)
+			Node<E> t = protectTop(g);
+			if (t == null) {
+				return null;
+			} else {
+				// return top.getReference().data;
+				return t.data;
+			}
+		} finally {
+			exit(g);
 		}
 	}
 }
@@ -5,6 +5,7 @@ import java.util.Deque;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.concurrent.atomic.AtomicMarkableReference;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * http://www.cs.chalmers.se/~dcs/ConcurrentDataStructures/phd_chap7.pdf
@@ -44,7 +45,25 @@ public class HakanDeque<V> extends AbstractQueue<V> implements Deque<V> {
 	final Node<V> head, tail;
 	final BoolArrayThreadLocal flag1;
 
+	/**
+	 * Striped count of elements, or null if size() walks the deque.
+	 */
+	private final LongAdder count;
+
 	public HakanDeque() {
+		this(false);
+	}
+
+	/**
+	 * @param countSize
+	 *            if true, successful insertions and removals update a striped
+	 *            counter, so that size() costs O(number of stripes) instead of
+	 *            a walk over the deque. The count is then only approximately
+	 *            consistent with concurrent updates; {@link #exactSize()}
+	 *            still walks.
+	 */
+	public HakanDeque(boolean countSize) {
+		count = countSize ? new LongAdder() : null;
 		head = new Node<V>(null);
 		tail = new Node<V>(null);
 		head.setNext(tail, false);
@@ -70,6 +89,8 @@ public class HakanDeque<V> extends AbstractQueue<V> implements Deque<V> {
 			}
 		}
 		pushCommon(node, next);
+		if (count != null)
+			count.increment();
 	}
 
 	public void addLast(V value) {
@@ -90,6 +111,8 @@ public class HakanDeque<V> extends AbstractQueue<V> implements Deque<V> {
 			}
 		}
 		pushCommon(node, next);
+		if (count != null)
+			count.increment();
 	}
 
 	BoolArrayThreadLocal hiflag1 = new BoolArrayThreadLocal();
@@ -213,6 +236,8 @@ public class HakanDeque<V> extends AbstractQueue<V> implements Deque<V> {
 			}
 		}
 		removeCrossReference(node);
+		if (count != null)
+			count.decrement();
 		return value;
 	}
 
@@ -240,6 +265,8 @@ public class HakanDeque<V> extends AbstractQueue<V> implements Deque<V> {
 			}
 		}
 		removeCrossReference(node);
+		if (count != null)
+			count.decrement();
 		return value;
 	}
 
@@ -367,6 +394,8 @@ public class HakanDeque<V> extends AbstractQueue<V> implements Deque<V> {
 			if(next.next.compareAndSet(next2, next2, false, true)){
 				helpDelete(next);
 				removeCrossReference(next);
+				if (count != null)
+					count.decrement();
 				return true;
 			}
 		}
@@ -438,8 +467,30 @@ public class HakanDeque<V> extends AbstractQueue<V> implements Deque<V> {
 		throw new UnsupportedOperationException();
 	}
 
+	/**
+	 * Returns the number of elements. If the deque was created with a size
+	 * counter this reads the counter, otherwise it is the same as
+	 * {@link #exactSize()}.
+	 * 
+	 * @return number of elements
+	 */
 	@Override
 	public int size() {
+		if (count == null)
+			return exactSize();
+		long n = count.sum();
+		// a removal may be counted before the insertion it removed
+		if (n < 0)
+			return 0;
+		return (n > Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) n;
+	}
+
+	/**
+	 * Counts the elements by walking the deque, O(n).
+	 * 
+	 * @return number of elements
+	 */
+	public int exactSize() {
 		int _size = 0;
 		Node<V> p = head;
 		while (true) {
@@ -532,6 +583,8 @@ public class HakanDeque<V> extends AbstractQueue<V> implements Deque<V> {
 			if(prev.next.compareAndSet(next, next, false, true)){
 				helpDelete(prev);
 				removeCrossReference(prev);
+				if (count != null)
+					count.decrement();
 				return true;
 			}
 		}
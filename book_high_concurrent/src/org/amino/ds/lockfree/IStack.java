@@ -16,6 +16,8 @@
 
 package org.amino.ds.lockfree;
 
+import java.util.Collection;
+
 /**
  * interface definition of stack.
  * 
@@ -43,4 +45,24 @@ public interface IStack<E> {
      * @return true if stack is empty, otherwise false
      */
     boolean isEmpty();
+
+    /**
+     * Push every element of a collection, in iteration order, so that the
+     * last element ends up on top.
+     * 
+     * @param c
+     *            elements pushed
+     */
+    void pushAll(Collection<? extends E> c);
+
+    /**
+     * Pop up to n elements and add them to a collection, topmost first.
+     * 
+     * @param n
+     *            maximal number of elements popped
+     * @param c
+     *            collection receiving the elements
+     * @return number of elements popped, 0 if stack is empty
+     */
+    int popN(int n, Collection<? super E> c);
 }
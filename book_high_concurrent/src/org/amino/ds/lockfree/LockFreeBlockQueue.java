@@ -17,6 +17,7 @@
 package org.amino.ds.lockfree;
 
 import java.util.AbstractQueue;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.concurrent.BlockingQueue;
@@ -24,6 +25,11 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
+import org.amino.utility.IReclaimer;
+import org.amino.utility.IWaitStrategy;
+import org.amino.utility.PhasedBackoffWaitStrategy;
+import org.amino.utility.WaiterList;
+
 /**
  * This is a blocking queue based on a lock-free FIFO queue. NULL objects are
  * not allowed in the queue.
@@ -31,6 +37,14 @@ import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
  * The implementation is according to the paper An Optimistic Approach to
  * Lock-Free FIFO Queues by Edya Ladan-Mozes and Nir Shavit
  * 
+ * Blocking operations wait through a pluggable {@link IWaitStrategy}. The
+ * default one spins, then yields, then parks, so idle consumers and producers
+ * blocked on a full queue do not burn CPU. offer() and poll() only touch a
+ * waiter list when somebody is registered on it.
+ * 
+ * Dequeued nodes can be recycled through an epoch-based {@link IReclaimer},
+ * see {@link #LockFreeBlockQueue(int, IWaitStrategy, IReclaimer)}.
+ * 
  * @author Xiao Jun Dai
  * @author Zhi Gan
  * 
@@ -76,6 +90,11 @@ public class LockFreeBlockQueue<E> extends AbstractQueue<E> implements
 	 *            type of element in node
 	 */
 	private static class Node<E> {
+		/**
+		 * Reclaimer kind of queue nodes.
+		 */
+		static final int KIND = 0;
+
 		E value;
 		Node<E> next, prev;
 
@@ -112,18 +131,86 @@ public class LockFreeBlockQueue<E> extends AbstractQueue<E> implements
 		public Node<E> getNext() {
 			return prev;
 		}
+
+		/**
+		 * @return a recycled node if the guard has one, otherwise a new node
+		 */
+		@SuppressWarnings("unchecked")
+		static <E> Node<E> obtain(IReclaimer.Guard g, E val) {
+			if (g != null) {
+				Node<E> n = (Node<E>) g.reuse(KIND);
+				if (n != null) {
+					n.value = val;
+					n.next = n.prev = null;
+					return n;
+				}
+			}
+			return new Node<E>(val);
+		}
 	}
 
 	public LockFreeBlockQueue(int capacity) {
+		this(capacity, new PhasedBackoffWaitStrategy());
+	}
+
+	/**
+	 * @param capacity
+	 *            maximal number of elements
+	 * @param waitStrategy
+	 *            how blocked producers and consumers wait
+	 */
+	public LockFreeBlockQueue(int capacity, IWaitStrategy waitStrategy) {
+		this(capacity, waitStrategy, null);
+	}
+
+	/**
+	 * @param capacity
+	 *            maximal number of elements
+	 * @param waitStrategy
+	 *            how blocked producers and consumers wait
+	 * @param reclaimer
+	 *            reclaimer through which dequeued nodes are reused, or null
+	 *            to leave them to the GC. It needs one kind. Hazard pointers
+	 *            are not supported: repairing the prev pointers walks any
+	 *            number of nodes, which cannot all be announced.
+	 */
+	public LockFreeBlockQueue(int capacity, IWaitStrategy waitStrategy,
+			IReclaimer reclaimer) {
 		if (capacity <= 0) {
 			throw new IllegalArgumentException();
 		}
+		if (waitStrategy == null)
+			throw new NullPointerException();
+		if ((reclaimer != null) && reclaimer.needsProtect())
+			throw new IllegalArgumentException(
+					"reclaimer must not need protect()");
 
 		_capacity = new AtomicInteger(capacity);
 		_size = new AtomicInteger(0);
+		this.waitStrategy = waitStrategy;
+		this.reclaimer = reclaimer;
 		init();
 	}
 
+	/**
+	 * Recycles dequeued nodes, or null if they are left to the GC.
+	 */
+	private final IReclaimer reclaimer;
+
+	private IReclaimer.Guard enter() {
+		return (reclaimer == null) ? null : reclaimer.enter();
+	}
+
+	private static void exit(IReclaimer.Guard g) {
+		if (g != null)
+			g.exit();
+	}
+
+	private static <E> void retire(IReclaimer.Guard g, Node<E> n) {
+		if (g != null)
+			g.retire(Node.KIND, n);
+	}
+
 	private Node<E> dummy;
 
 	private void init() {
@@ -138,8 +225,13 @@ public class LockFreeBlockQueue<E> extends AbstractQueue<E> implements
 	 * @see java.util.AbstractCollection#isEmpty()
 	 */
 	public boolean isEmpty() {
-		return (head.value == null) && (tail.value == null);
-		// or return first() == null;
+		IReclaimer.Guard g = enter();
+		try {
+			return (head.value == null) && (tail.value == null);
+			// or return first() == null;
+		} finally {
+			exit(g);
+		}
 	}
 
 	/**
@@ -180,18 +272,24 @@ public class LockFreeBlockQueue<E> extends AbstractQueue<E> implements
 				break;
 		}
 
-		Node<E> tail;
-		Node<E> node = new Node<E>(e);
-		while (true) {
-			tail = this.tail;
-			node.next = tail;
-			if (casTail(tail, node)) {
-				// _size.incrementAndGet();
-				tail.prev = node;
-				notifyGet_();
-				return true;
+		IReclaimer.Guard g = enter();
+		try {
+			Node<E> tail;
+			Node<E> node = Node.obtain(g, e);
+			while (true) {
+				tail = this.tail;
+				node.next = tail;
+				if (casTail(tail, node)) {
+					// _size.incrementAndGet();
+					tail.prev = node;
+					break;
+				}
 			}
+		} finally {
+			exit(g);
 		}
+		notifyGet_();
+		return true;
 	}
 
 	/*
@@ -200,10 +298,20 @@ public class LockFreeBlockQueue<E> extends AbstractQueue<E> implements
 	 * @see java.util.Queue#peek()
 	 */
 	public E peek() {
+		IReclaimer.Guard g = enter();
+		try {
+			return peek(g);
+		} finally {
+			exit(g);
+		}
+	}
+
+	private E peek(IReclaimer.Guard g) {
 		while (true) {
 			Node<E> header = this.head;
-			if (header.value != null)
-				return header.value;
+			E val = header.value;
+			if (val != null)
+				return val;
 
 			Node<E> tail = this.tail;
 
@@ -229,13 +337,27 @@ public class LockFreeBlockQueue<E> extends AbstractQueue<E> implements
 						fixList(tail, header);
 						continue;
 					}
-					casHead(header, fstNodePrev);
+					if (casHead(header, fstNodePrev))
+						retire(g, header);
 				}
 			}
 		}
 	}
 
 	public E poll() {
+		IReclaimer.Guard g = enter();
+		E val;
+		try {
+			val = poll(g);
+		} finally {
+			exit(g);
+		}
+		if (val != null)
+			notifyPut_();
+		return val;
+	}
+
+	private E poll(IReclaimer.Guard g) {
 		Node<E> tail, head, fstNodePrev;
 		E val;
 		while (true) {
@@ -264,7 +386,7 @@ public class LockFreeBlockQueue<E> extends AbstractQueue<E> implements
 									System.out.println("vaule = " + val);
 								}
 
-								notifyPut_();
+								retire(g, head);
 								return val;
 							}
 						} else {
@@ -272,31 +394,33 @@ public class LockFreeBlockQueue<E> extends AbstractQueue<E> implements
 							continue;
 						}
 					} else {
-						Node<E> newdummy = new Node<E>();
+						Node<E> newdummy = Node.obtain(g, null);
 						newdummy.next = tail;
 						newdummy.prev = null;
 						if (casTail(tail, newdummy)) {
 							head.prev = newdummy;
+						} else if (g != null) {
+							// never published
+							g.recycle(Node.KIND, newdummy);
 						}
 
 						continue;
 					}
 				} else { // head points to dummy, Figure 6.B
 					if (tail == head) {
-						// If a thread is in the middle of offer() (increased
-						// _size, but not inserted the actual data yet, we
-						// should wait for it to complete
-						if (_size.get() > 0) {
-							Thread.yield();
-							continue;
-						}
+						// A thread in the middle of offer() has increased
+						// _size but not linked its node yet. Its offer has not
+						// taken effect, so report the queue as empty rather
+						// than yielding until it does; a blocked taker gets
+						// signalled once the node is linked.
 						return null;
 					} else {
 						if (null == fstNodePrev) {
 							fixList(tail, head);
 							continue;
 						}
-						casHead(head, fstNodePrev);
+						if (casHead(head, fstNodePrev))
+							retire(g, head);
 					}
 				}
 			}
@@ -306,64 +430,41 @@ public class LockFreeBlockQueue<E> extends AbstractQueue<E> implements
 	AtomicInteger _size;
 	AtomicInteger _capacity;
 
-	private final Object putQueue_ = new Object();
-	private int putQueueLen_ = 0;
-
-	private final Object getQueue_ = new Object();
-	private int getQueueLen_ = 0;
+	private final IWaitStrategy waitStrategy;
 
-	private static long WAIT_DURATION = 1000;
+	/**
+	 * Threads waiting for an element, and threads waiting for space.
+	 */
+	private final WaiterList getWaiters_ = new WaiterList();
+	private final WaiterList putWaiters_ = new WaiterList();
 
-	private void notifyGet_() {
-		// a notification may be lost in some cases - however
-		// as none of the threads wait endlessly, a waiting thread
-		// will either be notified, or will eventually wakeup
-		if (getQueueLen_ > 0) {
-			synchronized (getQueue_) {
-				getQueue_.notify();
-			}
+	private final IWaitStrategy.Condition notEmpty_ = new IWaitStrategy.Condition() {
+		public boolean isSatisfied() {
+			return !isEmpty();
 		}
-	}
+	};
 
-	private void waitGet_(long timeout) throws InterruptedException {
-		synchronized (getQueue_) {
-			try {
-				getQueueLen_++;
-
-				if (_size.get() <= 0) {
-					getQueue_.wait(timeout);
-				}
-			} catch (InterruptedException ex) {
-				getQueue_.notify();
-				throw ex;
-			} finally {
-				getQueueLen_--;
-			}
+	private final IWaitStrategy.Condition notFull_ = new IWaitStrategy.Condition() {
+		public boolean isSatisfied() {
+			return _size.get() < _capacity.get();
 		}
+	};
+
+	private void notifyGet_() {
+		if (getWaiters_.hasWaiters())
+			getWaiters_.signalOne();
 	}
 
 	private void notifyPut_() {
-		if (putQueueLen_ > 0) {
-			synchronized (putQueue_) {
-				putQueue_.notify();
-			}
-		}
+		if (putWaiters_.hasWaiters())
+			putWaiters_.signalOne();
 	}
 
-	private void waitPut_(long timeout) throws InterruptedException {
-		synchronized (putQueue_) {
-			try {
-				putQueueLen_++;
-				if (_size.get() >= _capacity.get()) {
-					putQueue_.wait(timeout);
-				}
-			} catch (InterruptedException ex) {
-				putQueue_.notify();
-				throw ex;
-			} finally {
-				putQueueLen_--;
-			}
-		}
+	/**
+	 * @return the strategy blocked threads wait with
+	 */
+	public IWaitStrategy getWaitStrategy() {
+		return waitStrategy;
 	}
 
 	public int capacity() {
@@ -375,7 +476,7 @@ public class LockFreeBlockQueue<E> extends AbstractQueue<E> implements
 			throw new IllegalArgumentException();
 
 		_capacity.addAndGet(additionalCapacity);
-
+		putWaiters_.signalAll();
 	}
 
 	public boolean offer(E x, long timeout, TimeUnit unit)
@@ -383,13 +484,15 @@ public class LockFreeBlockQueue<E> extends AbstractQueue<E> implements
 		if (x == null)
 			throw new NullPointerException();
 
-		if (offer(x))
-			return true;
-
-		waitPut_(unit.toMillis(timeout));
-
-		return offer(x);
-
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!offer(x)) {
+			long left = deadline - System.nanoTime();
+			if ((left <= 0)
+					|| !waitStrategy.await(notFull_, putWaiters_, left,
+							TimeUnit.NANOSECONDS))
+				return offer(x);
+		}
+		return true;
 	}
 
 	public void put(E x) throws InterruptedException {
@@ -397,10 +500,8 @@ public class LockFreeBlockQueue<E> extends AbstractQueue<E> implements
 			throw new IllegalArgumentException();
 		}
 
-		while (true) {
-			if (offer(x))
-				return;
-			waitPut_(WAIT_DURATION);
+		while (!offer(x)) {
+			waitStrategy.await(notFull_, putWaiters_, -1, TimeUnit.NANOSECONDS);
 		}
 	}
 
@@ -409,16 +510,7 @@ public class LockFreeBlockQueue<E> extends AbstractQueue<E> implements
 			throw new IllegalArgumentException();
 		}
 
-		if (offer(x)) {
-			return x;
-		}
-
-		waitPut_(timeoutInMillis);
-		if (offer(x)) {
-			return x;
-		} else
-			return null;
-
+		return offer(x, timeoutInMillis, TimeUnit.MILLISECONDS) ? x : null;
 	}
 
 	public Object put(E x, long timeoutInMillis, int maximumCapacity)
@@ -427,28 +519,21 @@ public class LockFreeBlockQueue<E> extends AbstractQueue<E> implements
 			throw new IllegalArgumentException();
 		}
 
-		if (offer(x)) {
-			return x;
-		}
-
-		waitPut_(timeoutInMillis);
-
-		if (offer(x)) {
-			return x;
-		} else
-			return null;
+		return offer(x, timeoutInMillis, TimeUnit.MILLISECONDS) ? x : null;
 	}
 
 	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
-		E res = poll();
-		if (res != null)
-			return res;
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (true) {
+			E res = poll();
+			if (res != null)
+				return res;
 
-		if (timeout <= 0)
-			return null;
-		else {
-			waitGet_(unit.toMillis(timeout));
-			return poll();
+			long left = deadline - System.nanoTime();
+			if ((left <= 0)
+					|| !waitStrategy.await(notEmpty_, getWaiters_, left,
+							TimeUnit.NANOSECONDS))
+				return poll();
 		}
 	}
 
@@ -458,19 +543,23 @@ public class LockFreeBlockQueue<E> extends AbstractQueue<E> implements
 			if (res != null)
 				return res;
 
-			waitGet_(WAIT_DURATION);
+			waitStrategy.await(notEmpty_, getWaiters_, -1, TimeUnit.NANOSECONDS);
 		}
 	}
 
 	public void dumpQueue() {
-		Node<E> curNode, curNodeNext;
-		curNode = tail;
-		while ((head == this.head) && (curNode != head)) {
-			curNodeNext = curNode.next;
-			System.out.print(curNodeNext.value + " -> ");
-			curNode = curNodeNext;
+		IReclaimer.Guard g = enter();
+		try {
+			Node<E> curNode, curNodeNext;
+			curNode = tail;
+			while ((head == this.head) && (curNode != head)) {
+				curNodeNext = curNode.next;
+				System.out.print(curNodeNext.value + " -> ");
+				curNode = curNodeNext;
+			}
+		} finally {
+			exit(g);
 		}
-
 	}
 
 	@Override
@@ -480,31 +569,207 @@ public class LockFreeBlockQueue<E> extends AbstractQueue<E> implements
 
 	@Override
 	public int drainTo(Collection<? super E> c) {
-		int i = 0;
-		do {
-			E tmp = poll();
-			if (tmp != null) {
-				i++;
-				c.add(tmp);
-			} else
-				return i;
-		} while (true);
+		return drainTo(c, Integer.MAX_VALUE);
 	}
 
+	/**
+	 * Moves up to maxElements elements to c. Instead of one head CAS per
+	 * element, runs of nodes are detached from the queue with a single CAS and
+	 * then read privately; only the last node before the tail is taken with
+	 * poll(), since it may need a new dummy node.
+	 */
 	@Override
 	public int drainTo(Collection<? super E> c, int maxElements) {
+		if (c == null)
+			throw new NullPointerException();
+		if (c == this)
+			throw new IllegalArgumentException();
+
+		ArrayList<E> batch = new ArrayList<E>();
 		int i = 0;
-		do {
-			E tmp = poll();
-			if (tmp != null) {
-				i++;
-				c.add(tmp);
-			} else
-				return i;
-		} while (i<maxElements);
+		while (i < maxElements) {
+			batch.clear();
+			if (detachRun(maxElements - i, batch) == 0) {
+				E tmp = poll();
+				if (tmp == null)
+					break;
+				batch.add(tmp);
+			}
+			c.addAll(batch);
+			i += batch.size();
+		}
 		return i;
 	}
 
+	/**
+	 * Detaches up to max elements starting at head with one CAS, never
+	 * including the tail node.
+	 * 
+	 * @param max
+	 *            maximal number of elements to take
+	 * @param out
+	 *            receives the detached elements in FIFO order
+	 * @return number of elements detached
+	 */
+	private int detachRun(int max, Collection<? super E> out) {
+		IReclaimer.Guard g = enter();
+		int count;
+		try {
+			count = detachRun(max, out, g);
+		} finally {
+			exit(g);
+		}
+		for (int i = 0; (i < count) && putWaiters_.hasWaiters(); i++) {
+			putWaiters_.signalOne();
+		}
+		return count;
+	}
+
+	private int detachRun(int max, Collection<? super E> out,
+			IReclaimer.Guard g) {
+		Node<E> tail, head, cur, next;
+		retry: while (true) {
+			head = this.head;
+			tail = this.tail;
+			if (head != this.head)
+				continue;
+			if (head == tail)
+				return 0;
+			if (head.value == null) { // dummy at head, skip it as poll() does
+				next = head.prev;
+				if (null == next)
+					fixList(tail, head);
+				else if (casHead(head, next))
+					retire(g, head);
+				continue;
+			}
+
+			int count = 0;
+			cur = head;
+			while ((count < max) && (cur != tail)) {
+				next = cur.prev;
+				if (null == next) {
+					fixList(tail, head);
+					continue retry;
+				}
+				if (cur.value != null)
+					count++;
+				cur = next;
+			}
+			if (count == 0)
+				return 0;
+			if (!casHead(head, cur))
+				continue;
+
+			// [head, cur) is now private to this thread
+			cur.next = null;
+			for (Node<E> n = head; n != cur;) {
+				Node<E> prev = n.prev;
+				if (n.value != null)
+					out.add(n.value);
+				retire(g, n);
+				n = prev;
+			}
+			_size.addAndGet(-count);
+			return count;
+		}
+	}
+
+	/**
+	 * Inserts as many elements of c as the capacity allows. The new nodes are
+	 * linked to each other locally and appended with a single tail CAS.
+	 * 
+	 * @param c
+	 *            elements to insert
+	 * @return number of elements inserted, from the front of c
+	 */
+	public int offerAll(Collection<? extends E> c) {
+		if (c == this)
+			throw new IllegalArgumentException();
+
+		int want = c.size();
+		if (want == 0)
+			return 0;
+		int reserved;
+		while (true) {
+			int local_size = _size.get();
+			reserved = Math.min(want, _capacity.get() - local_size);
+			if (reserved <= 0)
+				return 0;
+			if (_size.compareAndSet(local_size, local_size + reserved))
+				break;
+		}
+
+		IReclaimer.Guard g = enter();
+		try {
+			return offerAll(c, reserved, g);
+		} finally {
+			exit(g);
+		}
+	}
+
+	private int offerAll(Collection<? extends E> c, int reserved,
+			IReclaimer.Guard g) {
+		// first is the oldest node of the chain, last the newest
+		Node<E> first = null, last = null;
+		int linked = 0;
+		for (E e : c) {
+			if (linked == reserved)
+				break;
+			if (e == null) {
+				_size.addAndGet(-(reserved - linked));
+				reserved = linked;
+				if (linked > 0)
+					appendChain(first, last, linked);
+				throw new NullPointerException();
+			}
+			Node<E> node = Node.obtain(g, e);
+			if (last == null) {
+				first = node;
+			} else {
+				node.next = last;
+				last.prev = node;
+			}
+			last = node;
+			linked++;
+		}
+		// c may have shrunk since size() was called
+		if (linked < reserved)
+			_size.addAndGet(-(reserved - linked));
+		if (linked > 0)
+			appendChain(first, last, linked);
+		return linked;
+	}
+
+	private void appendChain(Node<E> first, Node<E> last, int count) {
+		Node<E> tail;
+		while (true) {
+			tail = this.tail;
+			first.next = tail;
+			if (casTail(tail, last)) {
+				tail.prev = first;
+				for (int i = 0; (i < count) && getWaiters_.hasWaiters(); i++) {
+					getWaiters_.signalOne();
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Goes through {@link #offerAll(Collection)}, so the elements that fit
+	 * are appended with one CAS.
+	 */
+	@Override
+	public boolean addAll(Collection<? extends E> c) {
+		int n = offerAll(c);
+		if (n < c.size())
+			throw new IllegalStateException("Queue full");
+		return n > 0;
+	}
+
 	@Override
 	public int remainingCapacity() {		
 		return _capacity.get()-size();
@@ -0,0 +1,404 @@
+/*
+ * Copyright (c) 2008 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.amino.ds.lockfree;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+import org.amino.utility.Parallel;
+import org.amino.utility.ParallelType;
+import org.amino.utility.WaiterList;
+
+/**
+ * An unbounded blocking queue of {@link Delayed} elements, in which an element
+ * can only be taken when its delay has expired. It is a lock-free replacement
+ * for {@link java.util.concurrent.DelayQueue}: elements are kept in a
+ * {@link LockFreePriorityQueue} ordered by deadline instead of a heap guarded
+ * by one lock.
+ * <p>
+ * Blocking follows the leader-follower pattern. Only one waiting thread, the
+ * leader, parks with a timeout until the first deadline; all other takers
+ * park on a {@link WaiterList} until the leader hands over or a new earliest
+ * element arrives. Parking and waking go through {@link LockSupport}.
+ * <p>
+ * {@link #schedule(Delayed)} returns a handle that {@link #cancel(Handle)}
+ * removes from the queue in O(log n).
+ *
+ * @param <E>
+ *            type of element in the queue
+ */
+public class LockFreeDelayQueue<E extends Delayed> extends AbstractQueue<E>
+		implements BlockingQueue<E> {
+
+	/**
+	 * A queued element together with the deadline it was scheduled for. The
+	 * sequence number breaks ties, because the priority queue keeps only one
+	 * of several elements that compare equal.
+	 *
+	 * @param <E>
+	 *            type of element
+	 */
+	public static final class Handle<E> {
+		final E element;
+		final long deadline;
+		final long seq;
+
+		Handle(E element, long deadline, long seq) {
+			this.element = element;
+			this.deadline = deadline;
+			this.seq = seq;
+		}
+
+		/**
+		 * @return the scheduled element
+		 */
+		public E getElement() {
+			return element;
+		}
+	}
+
+	private static final Comparator<Handle<?>> DEADLINE_ORDER = new Comparator<Handle<?>>() {
+		public int compare(Handle<?> h1, Handle<?> h2) {
+			if (h1 == h2)
+				return 0;
+			// deadlines are nanoTime values, compare them by difference
+			long d = h1.deadline - h2.deadline;
+			if (d != 0)
+				return (d < 0) ? -1 : 1;
+			return (h1.seq < h2.seq) ? -1 : 1;
+		}
+	};
+
+	private final LockFreePriorityQueue<Handle<E>> q = new LockFreePriorityQueue<Handle<E>>(
+			DEADLINE_ORDER);
+
+	private final AtomicLong sequencer = new AtomicLong();
+
+	/**
+	 * The thread waiting for the first deadline, or null.
+	 */
+	private volatile Thread leader;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static final AtomicReferenceFieldUpdater<LockFreeDelayQueue, Thread> leaderUpdater = AtomicReferenceFieldUpdater
+			.newUpdater(LockFreeDelayQueue.class, Thread.class, "leader");
+
+	/**
+	 * Followers parked until they may become leader.
+	 */
+	private final WaiterList waiters = new WaiterList();
+
+	/**
+	 * default constructor.
+	 */
+	public LockFreeDelayQueue() {
+	}
+
+	/**
+	 * @param c
+	 *            initial elements
+	 */
+	public LockFreeDelayQueue(Collection<? extends E> c) {
+		addAll(c);
+	}
+
+	/**
+	 * Inserts an element and returns a handle for cancelling it.
+	 *
+	 * @param e
+	 *            element
+	 * @return handle of the queued element
+	 */
+	@Parallel(ParallelType.LockFree)
+	public Handle<E> schedule(E e) {
+		if (e == null)
+			throw new NullPointerException();
+		Handle<E> h = new Handle<E>(e, System.nanoTime()
+				+ e.getDelay(TimeUnit.NANOSECONDS), sequencer
+				.getAndIncrement());
+		q.offer(h);
+		if (q.peek() == h) {
+			// the new element is due first; the leader (if any) sleeps too
+			// long, otherwise some follower has to become leader
+			Thread l = leader;
+			if (l != null)
+				LockSupport.unpark(l);
+			else
+				signalNext();
+		}
+		return h;
+	}
+
+	/**
+	 * Removes a scheduled element before it expires.
+	 *
+	 * @param h
+	 *            handle returned by {@link #schedule(Delayed)}
+	 * @return true if the element was still queued
+	 */
+	@Parallel(ParallelType.LockFree)
+	public boolean cancel(Handle<E> h) {
+		// if h was the leader's target the leader wakes early and re-reads
+		// the head, which is harmless
+		return q.remove(h);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Parallel(ParallelType.LockFree)
+	public boolean offer(E e) {
+		schedule(e);
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void put(E e) {
+		offer(e);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean offer(E e, long timeout, TimeUnit unit) {
+		return offer(e);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Parallel(ParallelType.LockFree)
+	public E poll() {
+		while (true) {
+			Handle<E> first = q.peek();
+			if ((first == null)
+					|| (first.element.getDelay(TimeUnit.NANOSECONDS) > 0))
+				return null;
+			if (q.remove(first))
+				return first.element;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public E take() throws InterruptedException {
+		return await(false, 0);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return await(true, unit.toNanos(timeout));
+	}
+
+	/**
+	 * Leader-follower wait loop shared by take() and the timed poll().
+	 */
+	private E await(boolean timed, long nanos) throws InterruptedException {
+		final long deadline = timed ? System.nanoTime() + nanos : 0L;
+		Thread current = Thread.currentThread();
+		try {
+			while (true) {
+				if (Thread.interrupted())
+					throw new InterruptedException();
+				Handle<E> first = q.peek();
+				long delay = (first == null) ? Long.MAX_VALUE : first.element
+						.getDelay(TimeUnit.NANOSECONDS);
+				if (delay <= 0) {
+					if (q.remove(first))
+						return first.element;
+					continue;
+				}
+				if (timed) {
+					nanos = deadline - System.nanoTime();
+					if (nanos <= 0)
+						return null;
+				}
+				if ((first == null) || (leader != null)) {
+					parkFollower(timed, nanos);
+					continue;
+				}
+				if (!leaderUpdater.compareAndSet(this, null, current))
+					continue;
+				try {
+					// schedule() inserts before it reads leader, we publish
+					// leader before this second look, so a new earliest
+					// element is either seen here or wakes us up
+					if (q.peek() == first)
+						LockSupport.parkNanos(this, timed ? Math.min(delay,
+								nanos) : delay);
+				} finally {
+					leaderUpdater.compareAndSet(this, current, null);
+				}
+			}
+		} finally {
+			// hand leadership over to a follower while work remains
+			if ((leader == null) && (q.peek() != null))
+				signalNext();
+		}
+	}
+
+	/**
+	 * Parks the calling thread until signalNext() picks it, the timeout runs
+	 * out, or the thread is interrupted.
+	 */
+	private void parkFollower(boolean timed, long nanos) {
+		WaiterList.Node node = waiters.add();
+		// re-check after being visible to signalNext(), so a state change
+		// that happened in between is not missed
+		Handle<E> first = q.peek();
+		if (((first == null) || (leader != null))
+				&& ((first == null) || (first.element
+						.getDelay(TimeUnit.NANOSECONDS) > 0))) {
+			if (timed)
+				LockSupport.parkNanos(this, nanos);
+			else
+				LockSupport.park(this);
+		}
+		// a signal we may have received is acted upon by the caller's loop,
+		// or handed on by the final check in await()
+		waiters.remove(node);
+	}
+
+	/**
+	 * Wakes one parked follower, if any.
+	 */
+	private void signalNext() {
+		if (waiters.hasWaiters())
+			waiters.signalOne();
+	}
+
+	/**
+	 * Retrieves, but does not remove, the element with the earliest deadline,
+	 * expired or not.
+	 *
+	 * @return the first element, or null if the queue is empty
+	 */
+	public E peek() {
+		Handle<E> first = q.peek();
+		return (first == null) ? null : first.element;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int size() {
+		return q.size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int remainingCapacity() {
+		return Integer.MAX_VALUE;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int drainTo(Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Moves the expired elements, at most maxElements of them, to c.
+	 *
+	 * @param c
+	 *            collection receiving the elements
+	 * @param maxElements
+	 *            maximal number of elements to move
+	 * @return number of elements moved
+	 */
+	public int drainTo(Collection<? super E> c, int maxElements) {
+		if (c == null)
+			throw new NullPointerException();
+		if (c == this)
+			throw new IllegalArgumentException();
+		int n = 0;
+		E x;
+		while ((n < maxElements) && ((x = poll()) != null)) {
+			c.add(x);
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Removes a single instance of o, expired or not. Unlike
+	 * {@link #cancel(Handle)} this has to look for the handle first.
+	 *
+	 * @param o
+	 *            element to remove
+	 * @return true if the element was queued
+	 */
+	public boolean remove(Object o) {
+		for (Handle<E> h : q) {
+			if (h.element == o)
+				return q.remove(h);
+		}
+		return false;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void clear() {
+		while (q.poll() != null)
+			;
+	}
+
+	/**
+	 * Returns an iterator over all elements, expired or not, in deadline
+	 * order. It is weakly consistent; remove() cancels the last element.
+	 *
+	 * @return iterator over the elements
+	 */
+	public Iterator<E> iterator() {
+		final Iterator<Handle<E>> it = q.iterator();
+		return new Iterator<E>() {
+			private Handle<E> last;
+
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			public E next() {
+				last = it.next();
+				return last.element;
+			}
+
+			public void remove() {
+				if (last == null)
+					throw new IllegalStateException();
+				q.remove(last);
+				last = null;
+			}
+		};
+	}
+}
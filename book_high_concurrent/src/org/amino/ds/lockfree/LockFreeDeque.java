@@ -22,6 +22,8 @@ import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.concurrent.atomic.AtomicReference;
 
+import org.amino.utility.EpochReclaimer;
+
 /**
  * This Deque implementation is based on the algorithm defined in the follwoing
  * paper: CAS-Based Lock-Free Algorithm for Shared Deques By Maged M. Michael
@@ -110,6 +112,48 @@ public class LockFreeDeque<E> extends AbstractQueue<E> implements Deque<E> {
 	private AtomicReference<AnchorType<E>> anchor = new AtomicReference<AnchorType<E>>(
 			new AnchorType<E>());
 
+	/**
+	 * Recycles nodes and anchors, or null if they are left to the GC.
+	 */
+	private final EpochReclaimer reclaimer;
+
+	/**
+	 * default constructor.
+	 */
+	public LockFreeDeque() {
+		this(false);
+	}
+
+	/**
+	 * @param recycleNodes
+	 *            if true, removed nodes and replaced anchors are reused once
+	 *            no thread can see them any more, so a deque in steady state
+	 *            allocates nothing per operation. Free nodes keep their last
+	 *            element reachable until they are reused.
+	 */
+	public LockFreeDeque(boolean recycleNodes) {
+		reclaimer = recycleNodes ? new EpochReclaimer(2) : null;
+	}
+
+	private EpochReclaimer.Guard enter() {
+		return (reclaimer == null) ? null : reclaimer.enter();
+	}
+
+	private static void exit(EpochReclaimer.Guard g) {
+		if (g != null)
+			g.exit();
+	}
+
+	private static void retire(EpochReclaimer.Guard g, int kind, Object o) {
+		if (g != null)
+			g.retire(kind, o);
+	}
+
+	private static void recycle(EpochReclaimer.Guard g, int kind, Object o) {
+		if (g != null)
+			g.recycle(kind, o);
+	}
+
 	/**
 	 * Inserts element e at the tail of this deque. Preferable to
 	 * <code>addLast(E)</code>.
@@ -238,7 +282,17 @@ public class LockFreeDeque<E> extends AbstractQueue<E> implements Deque<E> {
 	 * Removes all elements, clears the deque.
 	 */
 	public void clear() {
-		AnchorType<E> old_anchor, new_anchor;
+		EpochReclaimer.Guard g = enter();
+		try {
+			clear(g);
+		} finally {
+			exit(g);
+		}
+	}
+
+	private void clear(EpochReclaimer.Guard g) {
+		AnchorType<E> old_anchor;
+		AnchorType<E> new_anchor = AnchorType.obtain(g);
 
 		/*
 		 * This loop won't stop until the deque is set to empty successfully.
@@ -247,19 +301,24 @@ public class LockFreeDeque<E> extends AbstractQueue<E> implements Deque<E> {
 			old_anchor = anchor.get();
 
 			// return if already empty
-			if (old_anchor.right == null)
+			if (old_anchor.right == null) {
+				recycle(g, AnchorType.KIND, new_anchor);
 				return;
+			}
 
 			// Create a new anchor with empty left/right pointers
-			new_anchor = new AnchorType<E>(null, null, STABLE, 0);
+			new_anchor.setup(null, null, STABLE, 0);
 
 			/*
 			 * anchor is an AtomicReference variable. Modification to anchor
 			 * variable should be an atomic operation. If CAS fails, thread will
 			 * retry until succeed.
 			 */
-			if (anchor.compareAndSet(old_anchor, new_anchor))
+			if (anchor.compareAndSet(old_anchor, new_anchor)) {
+				// the removed nodes are left to the GC
+				retire(g, AnchorType.KIND, old_anchor);
 				return;
+			}
 
 			/*
 			 * if BACKOFF=true and if the CAS fails then give some other thread
@@ -331,7 +390,13 @@ public class LockFreeDeque<E> extends AbstractQueue<E> implements Deque<E> {
 	 * @return size of the deque
 	 */
 	public int size() {
-		return anchor.get().numElements;
+		// a recycled anchor is set up again, so read it inside a guard
+		EpochReclaimer.Guard g = enter();
+		try {
+			return anchor.get().numElements;
+		} finally {
+			exit(g);
+		}
 	}
 
 	/**
@@ -343,13 +408,22 @@ public class LockFreeDeque<E> extends AbstractQueue<E> implements Deque<E> {
 	 *            element being added
 	 */
 	public void addFirst(E d) {
+		EpochReclaimer.Guard g = enter();
+		try {
+			addFirst(d, g);
+		} finally {
+			exit(g);
+		}
+	}
+
+	private void addFirst(E d, EpochReclaimer.Guard g) {
 		DequeNode<E> newtop;
 		AnchorType<E> old_anchor;
 		/* Create a new anchor object to replace the old one */
-		AnchorType<E> update_anchor = new AnchorType<E>();
+		AnchorType<E> update_anchor = AnchorType.obtain(g);
 
 		/* Create new deque node and put the data into it */
-		newtop = new DequeNode<E>(d);
+		newtop = DequeNode.obtain(g, d);
 
 		/* Main insertion loop. This loop will finish until insertion succeeds */
 		while (true) {
@@ -366,8 +440,10 @@ public class LockFreeDeque<E> extends AbstractQueue<E> implements Deque<E> {
 				/*
 				 * Change the old anchor variable to the new one atomically
 				 */
-				if (anchor.compareAndSet(old_anchor, update_anchor))
+				if (anchor.compareAndSet(old_anchor, update_anchor)) {
+					retire(g, AnchorType.KIND, old_anchor);
 					return;
+				}
 
 				/*
 				 * If CAS fails and BACKOFF is set, give some other thread a
@@ -398,6 +474,7 @@ public class LockFreeDeque<E> extends AbstractQueue<E> implements Deque<E> {
 				 * Change the old anchor to the new anchor atomically
 				 */
 				if (anchor.compareAndSet(old_anchor, update_anchor)) {
+					retire(g, AnchorType.KIND, old_anchor);
 					// At this point the deque is in an unstable state. call
 					// stabilize
 					stabilizeRight(update_anchor);
@@ -428,10 +505,15 @@ public class LockFreeDeque<E> extends AbstractQueue<E> implements Deque<E> {
 	 * {@inheritDoc}
 	 */
 	public E peekFirst() {
-		AnchorType<E> old_anchor = anchor.get();
-		if (old_anchor.right == null)
-			return null;
-		return old_anchor.right.data;
+		EpochReclaimer.Guard g = enter();
+		try {
+			DequeNode<E> right = anchor.get().right;
+			if (right == null)
+				return null;
+			return right.data;
+		} finally {
+			exit(g);
+		}
 	}
 
 	/**
@@ -440,8 +522,17 @@ public class LockFreeDeque<E> extends AbstractQueue<E> implements Deque<E> {
 	 * @return head of this deque, or null if empty.
 	 */
 	public E pollFirst() {
+		EpochReclaimer.Guard g = enter();
+		try {
+			return pollFirst(g);
+		} finally {
+			exit(g);
+		}
+	}
+
+	private E pollFirst(EpochReclaimer.Guard g) {
 		AnchorType<E> old_anchor;
-		AnchorType<E> new_anchor = new AnchorType<E>();
+		AnchorType<E> new_anchor = AnchorType.obtain(g);
 
 		/*
 		 * Main loop to remove the rightmost node from the deque. It will retry
@@ -452,8 +543,10 @@ public class LockFreeDeque<E> extends AbstractQueue<E> implements Deque<E> {
 			old_anchor = anchor.get();
 
 			// Deque is empty; return null
-			if (old_anchor.right == null)
+			if (old_anchor.right == null) {
+				recycle(g, AnchorType.KIND, new_anchor);
 				return null;
+			}
 
 			// Deque has just one node.
 			if (old_anchor.right == old_anchor.left) {
@@ -516,7 +609,10 @@ public class LockFreeDeque<E> extends AbstractQueue<E> implements Deque<E> {
 		}// End Main Loop
 
 		// return the data just removed
-		return old_anchor.right.data;
+		E result = old_anchor.right.data;
+		retire(g, AnchorType.KIND, old_anchor);
+		retire(g, DequeNode.KIND, old_anchor.right);
+		return result;
 	}
 
 	/**
@@ -528,13 +624,22 @@ public class LockFreeDeque<E> extends AbstractQueue<E> implements Deque<E> {
 	 *            element to add
 	 */
 	public void addLast(E d) {
+		EpochReclaimer.Guard g = enter();
+		try {
+			addLast(d, g);
+		} finally {
+			exit(g);
+		}
+	}
+
+	private void addLast(E d, EpochReclaimer.Guard g) {
 		DequeNode<E> newtop;
 		AnchorType<E> old_anchor;
 		/* Create a new anchor to replace the old one */
-		AnchorType<E> update_anchor = new AnchorType<E>(); // new anchor node
+		AnchorType<E> update_anchor = AnchorType.obtain(g); // new anchor node
 
 		// create a new deque node with the data
-		newtop = new DequeNode<E>(d);
+		newtop = DequeNode.obtain(g, d);
 
 		/* Main loop to insert data, which will exit when operation succeeds. */
 		while (true) {
@@ -552,8 +657,10 @@ public class LockFreeDeque<E> extends AbstractQueue<E> implements Deque<E> {
 				 * Change the anchor from old to new atomically. There is NO ABA
 				 * problem since Java GC.
 				 */
-				if (anchor.compareAndSet(old_anchor, update_anchor))
+				if (anchor.compareAndSet(old_anchor, update_anchor)) {
+					retire(g, AnchorType.KIND, old_anchor);
 					return;
+				}
 
 				/*
 				 * If CAS fails and BACKOFF is set, yield thus give other
@@ -586,6 +693,7 @@ public class LockFreeDeque<E> extends AbstractQueue<E> implements Deque<E> {
 				 * NO ABA problem since Java GC.
 				 */
 				if (anchor.compareAndSet(old_anchor, update_anchor)) {
+					retire(g, AnchorType.KIND, old_anchor);
 					/*
 					 * Deque is in unstable state after the insert; stabilize
 					 * the it at first
@@ -618,20 +726,32 @@ public class LockFreeDeque<E> extends AbstractQueue<E> implements Deque<E> {
 	 * {@inheritDoc}
 	 */
 	public E peekLast() {
-		AnchorType<E> old_anchor;
-
-		old_anchor = anchor.get();
-		if (old_anchor.left == null)
-			return null;
-		return old_anchor.left.data;
+		EpochReclaimer.Guard g = enter();
+		try {
+			DequeNode<E> left = anchor.get().left;
+			if (left == null)
+				return null;
+			return left.data;
+		} finally {
+			exit(g);
+		}
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	public E pollLast() {
+		EpochReclaimer.Guard g = enter();
+		try {
+			return pollLast(g);
+		} finally {
+			exit(g);
+		}
+	}
+
+	private E pollLast(EpochReclaimer.Guard g) {
 		AnchorType<E> oldAnchor;
-		AnchorType<E> newAnchor = new AnchorType<E>();
+		AnchorType<E> newAnchor = AnchorType.obtain(g);
 
 		/*
 		 * Main loop to remove the leftmost node, which won't end until
@@ -642,8 +762,10 @@ public class LockFreeDeque<E> extends AbstractQueue<E> implements Deque<E> {
 			oldAnchor = anchor.get();
 
 			// deque is empty, return null
-			if (oldAnchor.right == null)
+			if (oldAnchor.right == null) {
+				recycle(g, AnchorType.KIND, newAnchor);
 				return null;
+			}
 
 			// deque has just one node, empty it!
 			if (oldAnchor.right == oldAnchor.left) {
@@ -707,8 +829,10 @@ public class LockFreeDeque<E> extends AbstractQueue<E> implements Deque<E> {
 				stabilize(oldAnchor);
 		}
 
-		return oldAnchor.left.data;
-
+		E result = oldAnchor.left.data;
+		retire(g, AnchorType.KIND, oldAnchor);
+		retire(g, DequeNode.KIND, oldAnchor.left);
+		return result;
 	}
 
 	/**
@@ -16,13 +16,22 @@
 
 package org.amino.ds.lockfree;
 
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.Set;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.atomic.AtomicMarkableReference;
 
 /**
@@ -30,6 +39,18 @@ import java.util.concurrent.atomic.AtomicMarkableReference;
  * dictionary implementation is based on the algorithm defined in the follwoing
  * paper: Scalable and Lock-Free Concurrent Dictionaries By Hakan Sundell and
  * Philippas Tsigas
+ * <p>
+ * The dictionary is a {@link ConcurrentNavigableMap}. Ordered queries such as
+ * {@link #floorKey(Object)} and {@link #ceilingKey(Object)} descend the
+ * skip-list levels from the head instead of scanning the bottom list. The
+ * key, value and entry views, as well as the sub-map views returned by
+ * {@link #subMap(Object, boolean, Object, boolean)} and friends, are lazy:
+ * they hold no copy of the data and read the live skip list whenever they
+ * are queried. Their iterators are weakly consistent; they never throw
+ * {@link java.util.ConcurrentModificationException} and may or may not
+ * reflect updates made after they were created. Descending iterators find
+ * each predecessor with a fresh top-down search, since nodes keep no
+ * reliable back links.
  * 
  * @author raja
  * 
@@ -38,7 +59,8 @@ import java.util.concurrent.atomic.AtomicMarkableReference;
  * @param <V>
  *            type of value in the dictionary
  */
-public class LockFreeDictionary<K, V> implements Map<K, V> {
+public class LockFreeDictionary<K, V> extends AbstractMap<K, V> implements
+		ConcurrentNavigableMap<K, V> {
 
 	/**
 	 * Internal Dictionary node class.
@@ -85,6 +107,16 @@ public class LockFreeDictionary<K, V> implements Map<K, V> {
 			this.version = 0;
 
 		}
+
+		/**
+		 * @return an immutable key/value pair, or null if the node is deleted
+		 */
+		AbstractMap.SimpleImmutableEntry<K, V> snapshot() {
+			V v = data.getReference();
+			if ((v == null) || data.isMarked())
+				return null;
+			return new AbstractMap.SimpleImmutableEntry<K, V>(key, v);
+		}
 	}
 
 	/**
@@ -155,6 +187,14 @@ public class LockFreeDictionary<K, V> implements Map<K, V> {
 
 	private final Comparator<? super K> comparator;
 
+	/**
+	 * Lazily created views.
+	 */
+	private KeySet<K> keySetView;
+	private EntrySet<K, V> entrySetView;
+	private Values<V> valuesView;
+	private SubMap<K, V> descendingMapView;
+
 	/**
 	 * default constructor.
 	 */
@@ -179,13 +219,88 @@ public class LockFreeDictionary<K, V> implements Map<K, V> {
 	}
 
 	/**
-	 * {@inheritDoc}
+	 * Bulk-loads a dictionary from entries sorted by the natural order of
+	 * their keys. The skip-list towers are laid out directly in a single pass,
+	 * which is much cheaper than inserting the entries one by one.
+	 * 
+	 * @param sorted
+	 *            entries in ascending key order; a repeated key keeps the last
+	 *            value
 	 */
-	public void clear() {
-		// throw new UnsupportedOperationException();
+	public LockFreeDictionary(
+			Iterator<? extends Map.Entry<? extends K, ? extends V>> sorted) {
+		this(sorted, null);
+	}
+
+	/**
+	 * Bulk-loads a dictionary from entries sorted by cmp.
+	 * 
+	 * @param sorted
+	 *            entries in ascending key order; a repeated key keeps the last
+	 *            value
+	 * @param cmp
+	 *            customized comparator
+	 */
+	public LockFreeDictionary(
+			Iterator<? extends Map.Entry<? extends K, ? extends V>> sorted,
+			Comparator<? super K> cmp) {
+		this(cmp);
+		bulkLoad(sorted);
+	}
 
+	/**
+	 * Appends every entry at the end of each level it reaches. Only used while
+	 * the dictionary is still private to its constructor, so plain sets are
+	 * enough. Tower heights follow the trailing zeros of the entry's position,
+	 * which gives the ideal one-in-2^i distribution instead of a random one.
+	 */
+	private void bulkLoad(
+			Iterator<? extends Map.Entry<? extends K, ? extends V>> sorted) {
+		ArrayList<Node<K, V>> last = new ArrayList<Node<K, V>>(MAXLEVEL);
 		for (int i = 0; i < MAXLEVEL; i++) {
-			head.next.add(new AtomicMarkableReference<Node<K, V>>(tail, false));
+			last.add(head);
+		}
+
+		Node<K, V> prev = null;
+		int count = 0;
+		while (sorted.hasNext()) {
+			Map.Entry<? extends K, ? extends V> e = sorted.next();
+			K k = e.getKey();
+			V v = e.getValue();
+			if ((k == null) || (v == null))
+				throw new NullPointerException();
+			if (prev != null) {
+				int c = compare(k, prev.key);
+				if (c < 0)
+					throw new IllegalArgumentException(
+							"keys are not in ascending order");
+				if (c == 0) {
+					prev.data.set(v, false);
+					continue;
+				}
+			}
+
+			int h = Math.min(MAXLEVEL - 1,
+					1 + Integer.numberOfTrailingZeros(++count));
+			// insert() links level - 1 levels, keep the same relation here
+			Node<K, V> n = new Node<K, V>(h + 1, k, v);
+			for (int i = 0; i < h; i++) {
+				n.next.add(new AtomicMarkableReference<Node<K, V>>(tail, false));
+				last.get(i).next.get(i).set(n, false);
+				last.set(i, n);
+			}
+			n.validLevel = h;
+			prev = n;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void clear() {
+		Node<K, V> n;
+		while ((n = firstNode()) != null) {
+			deleteKey(n.key);
 		}
 	}
 
@@ -194,6 +309,8 @@ public class LockFreeDictionary<K, V> implements Map<K, V> {
 	 */
 	@SuppressWarnings("unchecked")
 	public boolean containsKey(Object key) {
+		if (key == null)
+			throw new NullPointerException();
 		return findKey((K) key) != null;
 		// if (findKey((K) key) == null) {
 		// return false;
@@ -207,6 +324,8 @@ public class LockFreeDictionary<K, V> implements Map<K, V> {
 	 */
 	@SuppressWarnings("unchecked")
 	public boolean containsValue(Object value) {
+		if (value == null)
+			throw new NullPointerException();
 		return findValue((V) value) != null;
 	}
 
@@ -214,8 +333,8 @@ public class LockFreeDictionary<K, V> implements Map<K, V> {
 	 * {@inheritDoc}
 	 */
 	public Set<Map.Entry<K, V>> entrySet() {
-
-		throw new UnsupportedOperationException();
+		EntrySet<K, V> es = entrySetView;
+		return (es != null) ? es : (entrySetView = new EntrySet<K, V>(this));
 	}
 
 	/**
@@ -223,47 +342,29 @@ public class LockFreeDictionary<K, V> implements Map<K, V> {
 	 */
 	@SuppressWarnings("unchecked")
 	public V get(Object key) {
+		if (key == null)
+			throw new NullPointerException();
 		return findKey((K) key);
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
-	public Set<K> keySet() {
-
-		Node<K, V> n1, n2;
-		NodePair<K, V> tn1, tn2;
-		ConcurrentSkipListSet<K> rs = new ConcurrentSkipListSet<K>();
-
-		if (this.isEmpty())
-			return rs;
-
-		n1 = head.next.get(0).getReference();
-		rs.add(n1.key);
-		tn1 = readNext(n1, 0);
-		n1 = tn1.n1;
-		n2 = tn1.n2;
-		while (n2 != tail) {
-			rs.add(n1.key);
-			n1 = n2;
-			tn2 = readNext(n1, 0);
-			n1 = tn2.n1;
-			n2 = tn2.n2;
-		}	
-		rs.add(n1.key);
-
-		return rs;
-		// throw new UnsupportedOperationException();
+	public NavigableSet<K> keySet() {
+		KeySet<K> ks = keySetView;
+		return (ks != null) ? ks : (keySetView = new KeySet<K>(this));
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	public V put(K key, V value) {
+		if ((key == null) || (value == null))
+			throw new NullPointerException();
 
 		NodeData<V> n;
 
-		n = insert(key, value);
+		n = insert(key, value, false);
 		if (n.b) {
 			return null;
 		} else {
@@ -273,9 +374,26 @@ public class LockFreeDictionary<K, V> implements Map<K, V> {
 
 	/**
 	 * {@inheritDoc}
+	 * <p>
+	 * When m is a {@link SortedMap} ordered like this dictionary, runs of new
+	 * keys that fall between the same two existing nodes are linked into a
+	 * chain first and spliced into the bottom level with a single CAS, and the
+	 * search for each key starts from the predecessors of the previous one.
 	 */
+	@SuppressWarnings("unchecked")
 	public void putAll(Map<? extends K, ? extends V> m) {
-		throw new UnsupportedOperationException();
+		if ((m instanceof SortedMap)
+				&& sameOrder(((SortedMap<? extends K, ?>) m).comparator())) {
+			spliceSorted(m.entrySet().iterator());
+			return;
+		}
+		for (Map.Entry<? extends K, ? extends V> e : m.entrySet()) {
+			put(e.getKey(), e.getValue());
+		}
+	}
+
+	private boolean sameOrder(Comparator<?> cmp) {
+		return (cmp == comparator) || ((cmp != null) && cmp.equals(comparator));
 	}
 
 	/**
@@ -283,6 +401,8 @@ public class LockFreeDictionary<K, V> implements Map<K, V> {
 	 */
 	@SuppressWarnings("unchecked")
 	public V remove(Object key) {
+		if (key == null)
+			throw new NullPointerException();
 		return deleteKey((K) key);
 	}
 
@@ -318,20 +438,312 @@ public class LockFreeDictionary<K, V> implements Map<K, V> {
 	 * {@inheritDoc}
 	 */
 	public Collection<V> values() {
-		throw new UnsupportedOperationException();
+		Values<V> vs = valuesView;
+		return (vs != null) ? vs : (valuesView = new Values<V>(this));
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	public boolean isEmpty() {
+		// a node whose value is already marked may still be linked, so look
+		// for the first live node rather than comparing head.next with tail
+		return firstNode() == null;
+	}
 
-		return this.head.next.get(0).getReference() == tail;
-		// if (this.head.next.get(0).getReference() == tail) {
-		// return true;
-		// } else {
-		// return false;
-		// }
+	/**
+	 * {@inheritDoc}
+	 */
+	public V putIfAbsent(K key, V value) {
+		if ((key == null) || (value == null))
+			throw new NullPointerException();
+		NodeData<V> n = insert(key, value, true);
+		return n.b ? null : n.d;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@SuppressWarnings("unchecked")
+	public boolean remove(Object key, Object value) {
+		if (key == null)
+			throw new NullPointerException();
+		if (value == null)
+			return false;
+		K k = (K) key;
+		while (true) {
+			Node<K, V> n = findNode(k);
+			if (n == null)
+				return false;
+			V v = n.data.getReference();
+			if ((v == null) || n.data.isMarked())
+				continue;
+			if (!value.equals(v))
+				return false;
+			if (delete(k, true, v) == v)
+				return true;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean replace(K key, V oldValue, V newValue) {
+		if ((key == null) || (oldValue == null) || (newValue == null))
+			throw new NullPointerException();
+		while (true) {
+			Node<K, V> n = findNode(key);
+			if (n == null)
+				return false;
+			V v = n.data.getReference();
+			if ((v == null) || n.data.isMarked())
+				continue;
+			if (!oldValue.equals(v))
+				return false;
+			if (n.data.compareAndSet(v, newValue, false, false))
+				return true;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public V replace(K key, V value) {
+		if ((key == null) || (value == null))
+			throw new NullPointerException();
+		while (true) {
+			Node<K, V> n = findNode(key);
+			if (n == null)
+				return null;
+			V v = n.data.getReference();
+			if ((v != null) && n.data.compareAndSet(v, value, false, false))
+				return v;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Comparator<? super K> comparator() {
+		return comparator;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public K firstKey() {
+		Node<K, V> n = firstNode();
+		if (n == null)
+			throw new NoSuchElementException();
+		return n.key;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public K lastKey() {
+		Node<K, V> n = lastNode();
+		if (n == null)
+			throw new NoSuchElementException();
+		return n.key;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Map.Entry<K, V> firstEntry() {
+		while (true) {
+			Node<K, V> n = firstNode();
+			if (n == null)
+				return null;
+			Map.Entry<K, V> e = n.snapshot();
+			if (e != null)
+				return e;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Map.Entry<K, V> lastEntry() {
+		while (true) {
+			Node<K, V> n = lastNode();
+			if (n == null)
+				return null;
+			Map.Entry<K, V> e = n.snapshot();
+			if (e != null)
+				return e;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Map.Entry<K, V> pollFirstEntry() {
+		while (true) {
+			Node<K, V> n = firstNode();
+			if (n == null)
+				return null;
+			V v = n.data.getReference();
+			if ((v != null) && (delete(n.key, true, v) == v))
+				return new AbstractMap.SimpleImmutableEntry<K, V>(n.key, v);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Map.Entry<K, V> pollLastEntry() {
+		while (true) {
+			Node<K, V> n = lastNode();
+			if (n == null)
+				return null;
+			V v = n.data.getReference();
+			if ((v != null) && (delete(n.key, true, v) == v))
+				return new AbstractMap.SimpleImmutableEntry<K, V>(n.key, v);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Map.Entry<K, V> lowerEntry(K key) {
+		return nearEntry(key, LT);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public K lowerKey(K key) {
+		return nearKey(key, LT);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Map.Entry<K, V> floorEntry(K key) {
+		return nearEntry(key, LT | EQ);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public K floorKey(K key) {
+		return nearKey(key, LT | EQ);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Map.Entry<K, V> ceilingEntry(K key) {
+		return nearEntry(key, GT | EQ);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public K ceilingKey(K key) {
+		return nearKey(key, GT | EQ);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Map.Entry<K, V> higherEntry(K key) {
+		return nearEntry(key, GT);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public K higherKey(K key) {
+		return nearKey(key, GT);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public NavigableSet<K> navigableKeySet() {
+		return keySet();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public NavigableSet<K> descendingKeySet() {
+		return descendingMap().navigableKeySet();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public ConcurrentNavigableMap<K, V> descendingMap() {
+		SubMap<K, V> dm = descendingMapView;
+		return (dm != null) ? dm : (descendingMapView = new SubMap<K, V>(
+				this, null, false, null, false, true));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public ConcurrentNavigableMap<K, V> subMap(K fromKey,
+			boolean fromInclusive, K toKey, boolean toInclusive) {
+		if ((fromKey == null) || (toKey == null))
+			throw new NullPointerException();
+		return new SubMap<K, V>(this, fromKey, fromInclusive, toKey,
+				toInclusive, false);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public ConcurrentNavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+		if (toKey == null)
+			throw new NullPointerException();
+		return new SubMap<K, V>(this, null, false, toKey, inclusive, false);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public ConcurrentNavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+		if (fromKey == null)
+			throw new NullPointerException();
+		return new SubMap<K, V>(this, fromKey, inclusive, null, false, false);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public ConcurrentNavigableMap<K, V> subMap(K fromKey, K toKey) {
+		return subMap(fromKey, true, toKey, false);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public ConcurrentNavigableMap<K, V> headMap(K toKey) {
+		return headMap(toKey, false);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public ConcurrentNavigableMap<K, V> tailMap(K fromKey) {
+		return tailMap(fromKey, true);
+	}
+
+	Iterator<K> keyIterator() {
+		return new Iter<K>(ITER_KEYS, null, false, null, false, false);
+	}
+
+	Iterator<V> valueIterator() {
+		return new Iter<V>(ITER_VALUES, null, false, null, false, false);
+	}
+
+	Iterator<Map.Entry<K, V>> entryIterator() {
+		return new Iter<Map.Entry<K, V>>(ITER_ENTRIES, null, false, null,
+				false, false);
 	}
 
 	private Node<K, V> readnode(Node<K, V> n, int ll) {
@@ -429,34 +841,161 @@ public class LockFreeDictionary<K, V> implements Map<K, V> {
 		return prev;
 	}
 
-	private int randomLevel() {
-		return RAND_GEN.nextInt(MAXLEVEL - 1);
-	}
-
 	/**
-	 * @param k1
-	 *            first key
-	 * @param k2
-	 *            second key
-	 * @return -1 if k1 is less than k2; 0 if k1 equals k2; otherwise 1
+	 * Longest chain spliced with one CAS. Bounds the work thrown away when the
+	 * CAS loses against a concurrent update.
 	 */
-	private int compare(K k1, K k2) {
+	private static final int MAX_SPLICE_RUN = 1024;
 
-		if ((k1 == null) && (k2 == null))
-			return 0;
-		if (k1 == null)
-			return -1;
-		else if (k2 == null)
-			return 1;
-		else {
-			if (comparator == null)
-				return ((Comparable<? super K>) k1).compareTo(k2);
-			else
-				return comparator.compare(k1, k2);
+	private void spliceSorted(
+			Iterator<? extends Map.Entry<? extends K, ? extends V>> it) {
+		ArrayList<Node<K, V>> preds = new ArrayList<Node<K, V>>(MAXLEVEL);
+		for (int i = 0; i < MAXLEVEL; i++) {
+			preds.add(head);
 		}
+		// nodes built from the source but not linked yet, starting at pos
+		ArrayList<Node<K, V>> buf = new ArrayList<Node<K, V>>();
+		int pos = 0;
+		NodePair<K, V> tn1;
+
+		while (true) {
+			if (pos == buf.size()) {
+				buf.clear();
+				pos = 0;
+				if (!it.hasNext())
+					return;
+				buf.add(newNode(it.next()));
+			}
+			Node<K, V> first = buf.get(pos);
+			K k = first.key;
+
+			// finger search: on each level resume from the predecessor of the
+			// previous key unless the level above already got further
+			Node<K, V> start = head;
+			for (int i = MAXLEVEL - 1; i >= 0; i--) {
+				Node<K, V> p = preds.get(i);
+				if (p.data.isMarked() || (compare(p.key, start.key) < 0))
+					p = start;
+				start = searchLevel(p, i, k);
+				preds.set(i, start);
+			}
+			tn1 = scanKey(preds.get(0), 0, k);
+			Node<K, V> n1 = tn1.n1;
+			Node<K, V> n2 = tn1.n2;
+			preds.set(0, n1);
+
+			if ((n2 != tail) && !n2.data.isMarked()
+					&& (n2.data.getReference() != null)
+					&& (compare(n2.key, k) == 0)) {
+				V old = n2.data.getReference();
+				if (n2.data.compareAndSet(old, first.data.getReference(),
+						false, false))
+					pos++;
+				continue;
+			}
+
+			// every pending key below n2 belongs between n1 and n2
+			int end = pos + 1;
+			while (end - pos < MAX_SPLICE_RUN) {
+				if (end == buf.size()) {
+					if (!it.hasNext())
+						break;
+					buf.add(newNode(it.next()));
+				}
+				if ((n2 != tail) && (compare(buf.get(end).key, n2.key) >= 0))
+					break;
+				end++;
+			}
+			for (int j = pos; j < end; j++) {
+				Node<K, V> s = (j + 1 < end) ? buf.get(j + 1) : n2;
+				AtomicMarkableReference<Node<K, V>> ref = new AtomicMarkableReference<Node<K, V>>(
+						s, false);
+				if (buf.get(j).next.isEmpty())
+					buf.get(j).next.add(ref);
+				else
+					buf.get(j).next.set(0, ref);
+				buf.get(j).validLevel = 1;
+			}
+			if (!n1.next.get(0).compareAndSet(n2, first, false, false))
+				continue;
+
+			for (int j = pos; j < end; j++) {
+				raiseTower(buf.get(j), preds);
+			}
+			pos = end;
+		}
+	}
+
+	private Node<K, V> newNode(Map.Entry<? extends K, ? extends V> e) {
+		if ((e.getKey() == null) || (e.getValue() == null))
+			throw new NullPointerException();
+		return new Node<K, V>(randomLevel(), e.getKey(), e.getValue());
+	}
+
+	/**
+	 * Links a node that is already on the bottom level into the upper levels,
+	 * the same way insert() does, and records it as the new predecessor.
+	 */
+	private void raiseTower(Node<K, V> n, ArrayList<Node<K, V>> preds) {
+		NodePair<K, V> tn1;
+		int h = Math.max(1, n.level - 1);
+		for (int i = 1; i < h; i++) {
+			Node<K, V> n1 = preds.get(i);
+			while (true) {
+				tn1 = scanKey(n1, i, n.key);
+				n1 = tn1.n1;
+				Node<K, V> n2 = tn1.n2;
+				AtomicMarkableReference<Node<K, V>> ref = new AtomicMarkableReference<Node<K, V>>(
+						n2, false);
+				if (n.next.size() == i)
+					n.next.add(ref);
+				else
+					n.next.set(i, ref);
+				if (n.data.isMarked())
+					break;
+				if (n1.next.get(i).compareAndSet(n2, n, false, false)) {
+					n.validLevel = i + 1;
+					break;
+				}
+			}
+			if (n.data.isMarked())
+				break;
+			preds.set(i, n);
+		}
+		if (n.data.isMarked())
+			helpDelete(n, 0);
+		else
+			preds.set(0, n);
+	}
+
+	private int randomLevel() {
+		return RAND_GEN.nextInt(MAXLEVEL - 1);
+	}
+
+	/**
+	 * @param k1
+	 *            first key
+	 * @param k2
+	 *            second key
+	 * @return -1 if k1 is less than k2; 0 if k1 equals k2; otherwise 1
+	 */
+	private int compare(K k1, K k2) {
+
+		if ((k1 == null) && (k2 == null))
+			return 0;
+		if (k1 == null)
+			return -1;
+		else if (k2 == null)
+			return 1;
+		else {
+			if (comparator == null)
+				return ((Comparable<? super K>) k1).compareTo(k2);
+			else
+				return comparator.compare(k1, k2);
+		}
+
+	}
 
-	}
-
 	private Node<K, V> searchLevel(Node<K, V> last, int ll, K k) {
 		Node<K, V> stop = null;
 
@@ -519,7 +1058,190 @@ public class LockFreeDictionary<K, V> implements Map<K, V> {
 		return val;
 	}
 
-	private NodeData<V> insert(K k, V d) {
+	/**
+	 * @param k
+	 *            key
+	 * @return the live node holding key k, or null
+	 */
+	private Node<K, V> findNode(K k) {
+		Node<K, V> n = ceilingNode(k, true);
+		if ((n == null) || (compare(n.key, k) != 0))
+			return null;
+		return n;
+	}
+
+	/*
+	 * Relations understood by findNear(). GT is the absence of both LT and EQ,
+	 * so GT | EQ means "ceiling" and LT | EQ means "floor".
+	 */
+	private static final int EQ = 1;
+	private static final int LT = 2;
+	private static final int GT = 0;
+
+	/*
+	 * What an Iter returns.
+	 */
+	private static final int ITER_KEYS = 0;
+	private static final int ITER_VALUES = 1;
+	private static final int ITER_ENTRIES = 2;
+
+	/**
+	 * @param k
+	 *            key
+	 * @param rel
+	 *            combination of LT, EQ and GT
+	 * @return the live node nearest to k in the given relation, or null
+	 */
+	Node<K, V> findNear(K k, int rel) {
+		if ((rel & LT) != 0)
+			return floorNode(k, (rel & EQ) != 0);
+		return ceilingNode(k, (rel & EQ) != 0);
+	}
+
+	private Map.Entry<K, V> nearEntry(K k, int rel) {
+		if (k == null)
+			throw new NullPointerException();
+		while (true) {
+			Node<K, V> n = findNear(k, rel);
+			if (n == null)
+				return null;
+			Map.Entry<K, V> e = n.snapshot();
+			if (e != null)
+				return e;
+		}
+	}
+
+	private K nearKey(K k, int rel) {
+		if (k == null)
+			throw new NullPointerException();
+		Node<K, V> n = findNear(k, rel);
+		return (n == null) ? null : n.key;
+	}
+
+	/**
+	 * @return the first live node of the bottom list, or null
+	 */
+	Node<K, V> firstNode() {
+		Node<K, V> n = readNext(head, 0).n2;
+		while ((n != tail) && n.data.isMarked()) {
+			n = readNext(n, 0).n2;
+		}
+		return (n == tail) ? null : n;
+	}
+
+	/**
+	 * Walks right on every level from the top, dropping one level whenever the
+	 * next node is the tail, so only O(log n) nodes are touched on average.
+	 * 
+	 * @return the last live node of the bottom list, or null
+	 */
+	Node<K, V> lastNode() {
+		Node<K, V> n = head;
+		NodePair<K, V> tn1;
+		for (int i = MAXLEVEL - 1; i >= 0; i--) {
+			while (true) {
+				tn1 = readNext(n, i);
+				if (tn1.n2 == tail) {
+					n = tn1.n1;
+					break;
+				}
+				n = tn1.n2;
+			}
+		}
+		if (n == head)
+			return null;
+		if (!n.data.isMarked())
+			return n;
+		return floorNode(n.key, false);
+	}
+
+	/**
+	 * @param k
+	 *            key
+	 * @param inclusive
+	 *            whether a node holding k itself qualifies
+	 * @return the first live node whose key is greater than (or equal to) k
+	 */
+	Node<K, V> ceilingNode(K k, boolean inclusive) {
+		Node<K, V> last = head;
+		for (int i = MAXLEVEL - 1; i >= 0; i--) {
+			last = searchLevel(last, i, k);
+		}
+		Node<K, V> n = scanKey(last, 0, k).n2;
+		while (n != tail) {
+			int c = compare(n.key, k);
+			if (!n.data.isMarked() && ((c > 0) || ((c == 0) && inclusive)))
+				return n;
+			// readNext helps a marked node out of the list and may restart
+			// from a predecessor, so keys below k are skipped here as well
+			n = readNext(n, 0).n2;
+		}
+		return null;
+	}
+
+	/**
+	 * @param k
+	 *            key
+	 * @param inclusive
+	 *            whether a node holding k itself qualifies
+	 * @return the last live node whose key is less than (or equal to) k
+	 */
+	Node<K, V> floorNode(K k, boolean inclusive) {
+		while (true) {
+			Node<K, V> last = head;
+			for (int i = MAXLEVEL - 1; i >= 0; i--) {
+				last = searchLevel(last, i, k);
+			}
+			NodePair<K, V> tn1 = scanKey(last, 0, k);
+			Node<K, V> n = tn1.n2;
+			if (inclusive && (n != tail) && !n.data.isMarked()
+					&& (compare(n.key, k) == 0))
+				return n;
+			Node<K, V> b = tn1.n1;
+			if (b == head)
+				return null;
+			if (!b.data.isMarked())
+				return b;
+			// the predecessor is being deleted; search again below its key
+			k = b.key;
+			inclusive = false;
+		}
+	}
+
+	/**
+	 * Follows the bottom link of n when both n and its successor are intact,
+	 * and falls back to a top-down search otherwise.
+	 * 
+	 * @param n
+	 *            a node previously returned by one of the searches
+	 * @return the first live node whose key is greater than n's, or null
+	 */
+	Node<K, V> successor(Node<K, V> n) {
+		if (!n.data.isMarked()) {
+			Node<K, V> s = readnode(n, 0);
+			if (s == tail)
+				return null;
+			if ((s != null) && !s.data.isMarked())
+				return s;
+		}
+		return ceilingNode(n.key, false);
+	}
+
+	boolean tooLow(K k, K lo, boolean loInclusive) {
+		if (lo == null)
+			return false;
+		int c = compare(k, lo);
+		return (c < 0) || ((c == 0) && !loInclusive);
+	}
+
+	boolean tooHigh(K k, K hi, boolean hiInclusive) {
+		if (hi == null)
+			return false;
+		int c = compare(k, hi);
+		return (c > 0) || ((c == 0) && !hiInclusive);
+	}
+
+	private NodeData<V> insert(K k, V d, boolean onlyIfAbsent) {
 		int level, i;
 		Node<K, V> n1, n2, newNode;
 		ArrayList<Node<K, V>> savedNodes = new ArrayList<Node<K, V>>();
@@ -550,8 +1272,9 @@ public class LockFreeDictionary<K, V> implements Map<K, V> {
 			if ((!n2.data.isMarked()) && (n2.data.getReference() != null)
 					&& (compare(n2.key, k) == 0)) {
 				olddata = n2.data.getReference();
-				if (n2.data.compareAndSet(n2.data.getReference(), d, false,
-						false)) {
+				if (onlyIfAbsent)
+					return new NodeData<V>(olddata, false);
+				if (n2.data.compareAndSet(olddata, d, false, false)) {
 					return new NodeData<V>(olddata, false);
 				} else
 					continue;
@@ -764,4 +1487,679 @@ public class LockFreeDictionary<K, V> implements Map<K, V> {
 			}
 		}
 	}
+
+	/**
+	 * Weakly consistent iterator over a key range of the dictionary. Ascending
+	 * iteration follows the bottom list; descending iteration searches for the
+	 * predecessor of the last returned key from the top level each time.
+	 * 
+	 * @param <T>
+	 *            type of the returned elements
+	 */
+	final class Iter<T> implements Iterator<T> {
+		private final int kind;
+		private final K lo, hi;
+		private final boolean loInclusive, hiInclusive, descending;
+		private Node<K, V> nextNode;
+		private V nextValue;
+		private Node<K, V> lastReturned;
+
+		Iter(int kind, K lo, boolean loInclusive, K hi, boolean hiInclusive,
+				boolean descending) {
+			this.kind = kind;
+			this.lo = lo;
+			this.loInclusive = loInclusive;
+			this.hi = hi;
+			this.hiInclusive = hiInclusive;
+			this.descending = descending;
+			Node<K, V> n;
+			if (descending)
+				n = (hi == null) ? lastNode() : floorNode(hi, hiInclusive);
+			else
+				n = (lo == null) ? firstNode() : ceilingNode(lo, loInclusive);
+			advanceTo(n);
+		}
+
+		private void advanceTo(Node<K, V> n) {
+			while (n != null) {
+				if (descending ? tooLow(n.key, lo, loInclusive) : tooHigh(n.key,
+						hi, hiInclusive)) {
+					n = null;
+					break;
+				}
+				V v = n.data.getReference();
+				if ((v != null) && !n.data.isMarked()) {
+					nextValue = v;
+					break;
+				}
+				n = descending ? floorNode(n.key, false) : successor(n);
+			}
+			nextNode = n;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public boolean hasNext() {
+			return nextNode != null;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@SuppressWarnings("unchecked")
+		public T next() {
+			Node<K, V> n = nextNode;
+			if (n == null)
+				throw new NoSuchElementException();
+			V v = nextValue;
+			lastReturned = n;
+			advanceTo(descending ? floorNode(n.key, false) : successor(n));
+			if (kind == ITER_KEYS)
+				return (T) n.key;
+			if (kind == ITER_VALUES)
+				return (T) v;
+			return (T) new AbstractMap.SimpleImmutableEntry<K, V>(n.key, v);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public void remove() {
+			if (lastReturned == null)
+				throw new IllegalStateException();
+			deleteKey(lastReturned.key);
+			lastReturned = null;
+		}
+	}
+
+	/**
+	 * Lazy view of a key range, possibly in descending order. It keeps only the
+	 * bounds; every operation is answered by the backing dictionary.
+	 * 
+	 * @param <K>
+	 *            type of key in dictionary
+	 * @param <V>
+	 *            type of value in dictionary
+	 */
+	static final class SubMap<K, V> extends AbstractMap<K, V> implements
+			ConcurrentNavigableMap<K, V> {
+		private final LockFreeDictionary<K, V> m;
+		private final K lo, hi;
+		private final boolean loInclusive, hiInclusive, isDescending;
+
+		private KeySet<K> keySetView;
+		private EntrySet<K, V> entrySetView;
+		private Values<V> valuesView;
+
+		SubMap(LockFreeDictionary<K, V> map, K fromKey, boolean fromInclusive,
+				K toKey, boolean toInclusive, boolean isDescending) {
+			if ((fromKey != null) && (toKey != null)
+					&& (map.compare(fromKey, toKey) > 0))
+				throw new IllegalArgumentException("inconsistent range");
+			this.m = map;
+			this.lo = fromKey;
+			this.loInclusive = fromInclusive;
+			this.hi = toKey;
+			this.hiInclusive = toInclusive;
+			this.isDescending = isDescending;
+		}
+
+		private boolean inBounds(K key) {
+			return !m.tooLow(key, lo, loInclusive)
+					&& !m.tooHigh(key, hi, hiInclusive);
+		}
+
+		private void checkKeyBounds(K key) {
+			if (key == null)
+				throw new NullPointerException();
+			if (!inBounds(key))
+				throw new IllegalArgumentException("key out of range");
+		}
+
+		private Node<K, V> loNode() {
+			Node<K, V> n = (lo == null) ? m.firstNode() : m.ceilingNode(lo,
+					loInclusive);
+			if ((n == null) || m.tooHigh(n.key, hi, hiInclusive))
+				return null;
+			return n;
+		}
+
+		private Node<K, V> hiNode() {
+			Node<K, V> n = (hi == null) ? m.lastNode() : m.floorNode(hi,
+					hiInclusive);
+			if ((n == null) || m.tooLow(n.key, lo, loInclusive))
+				return null;
+			return n;
+		}
+
+		private Node<K, V> headNode() {
+			return isDescending ? hiNode() : loNode();
+		}
+
+		private Node<K, V> tailNode() {
+			return isDescending ? loNode() : hiNode();
+		}
+
+		private Node<K, V> nearNode(K key, int rel) {
+			if (key == null)
+				throw new NullPointerException();
+			if (isDescending) {
+				// mirror the relation: "lower" in this view is "higher" below
+				if ((rel & LT) == 0)
+					rel |= LT;
+				else
+					rel &= ~LT;
+			}
+			if (m.tooLow(key, lo, loInclusive))
+				return ((rel & LT) != 0) ? null : loNode();
+			if (m.tooHigh(key, hi, hiInclusive))
+				return ((rel & LT) != 0) ? hiNode() : null;
+			Node<K, V> n = m.findNear(key, rel);
+			if ((n == null) || !inBounds(n.key))
+				return null;
+			return n;
+		}
+
+		private Map.Entry<K, V> nearEntry(K key, int rel) {
+			while (true) {
+				Node<K, V> n = nearNode(key, rel);
+				if (n == null)
+					return null;
+				Map.Entry<K, V> e = n.snapshot();
+				if (e != null)
+					return e;
+			}
+		}
+
+		private K nearKey(K key, int rel) {
+			Node<K, V> n = nearNode(key, rel);
+			return (n == null) ? null : n.key;
+		}
+
+		private Map.Entry<K, V> endEntry(boolean first, boolean poll) {
+			while (true) {
+				Node<K, V> n = first ? headNode() : tailNode();
+				if (n == null)
+					return null;
+				if (!poll) {
+					Map.Entry<K, V> e = n.snapshot();
+					if (e != null)
+						return e;
+					continue;
+				}
+				V v = n.data.getReference();
+				if ((v != null) && (m.delete(n.key, true, v) == v))
+					return new AbstractMap.SimpleImmutableEntry<K, V>(n.key, v);
+			}
+		}
+
+		private SubMap<K, V> newSubMap(K fromKey, boolean fromInclusive,
+				K toKey, boolean toInclusive) {
+			if (isDescending) {
+				K tk = fromKey;
+				fromKey = toKey;
+				toKey = tk;
+				boolean ti = fromInclusive;
+				fromInclusive = toInclusive;
+				toInclusive = ti;
+			}
+			if (lo != null) {
+				if (fromKey == null) {
+					fromKey = lo;
+					fromInclusive = loInclusive;
+				} else {
+					int c = m.compare(fromKey, lo);
+					if ((c < 0) || ((c == 0) && !loInclusive && fromInclusive))
+						throw new IllegalArgumentException("key out of range");
+				}
+			}
+			if (hi != null) {
+				if (toKey == null) {
+					toKey = hi;
+					toInclusive = hiInclusive;
+				} else {
+					int c = m.compare(toKey, hi);
+					if ((c > 0) || ((c == 0) && !hiInclusive && toInclusive))
+						throw new IllegalArgumentException("key out of range");
+				}
+			}
+			return new SubMap<K, V>(m, fromKey, fromInclusive, toKey,
+					toInclusive, isDescending);
+		}
+
+		Iterator<K> keyIterator() {
+			return m.new Iter<K>(ITER_KEYS, lo, loInclusive, hi, hiInclusive,
+					isDescending);
+		}
+
+		Iterator<V> valueIterator() {
+			return m.new Iter<V>(ITER_VALUES, lo, loInclusive, hi,
+					hiInclusive, isDescending);
+		}
+
+		Iterator<Map.Entry<K, V>> entryIterator() {
+			return m.new Iter<Map.Entry<K, V>>(ITER_ENTRIES, lo, loInclusive,
+					hi, hiInclusive, isDescending);
+		}
+
+		@SuppressWarnings("unchecked")
+		public boolean containsKey(Object key) {
+			if (key == null)
+				throw new NullPointerException();
+			return inBounds((K) key) && m.containsKey(key);
+		}
+
+		@SuppressWarnings("unchecked")
+		public V get(Object key) {
+			if (key == null)
+				throw new NullPointerException();
+			return inBounds((K) key) ? m.get(key) : null;
+		}
+
+		public V put(K key, V value) {
+			checkKeyBounds(key);
+			return m.put(key, value);
+		}
+
+		@SuppressWarnings("unchecked")
+		public V remove(Object key) {
+			if (key == null)
+				throw new NullPointerException();
+			return inBounds((K) key) ? m.remove(key) : null;
+		}
+
+		public int size() {
+			int sz = 0;
+			for (Iterator<K> it = keyIterator(); it.hasNext(); it.next()) {
+				if (++sz == Integer.MAX_VALUE)
+					break;
+			}
+			return sz;
+		}
+
+		public boolean isEmpty() {
+			return loNode() == null;
+		}
+
+		public boolean containsValue(Object value) {
+			if (value == null)
+				throw new NullPointerException();
+			for (Iterator<V> it = valueIterator(); it.hasNext();) {
+				if (value.equals(it.next()))
+					return true;
+			}
+			return false;
+		}
+
+		public void clear() {
+			for (Iterator<K> it = keyIterator(); it.hasNext();) {
+				it.next();
+				it.remove();
+			}
+		}
+
+		public V putIfAbsent(K key, V value) {
+			checkKeyBounds(key);
+			return m.putIfAbsent(key, value);
+		}
+
+		@SuppressWarnings("unchecked")
+		public boolean remove(Object key, Object value) {
+			if (key == null)
+				throw new NullPointerException();
+			return inBounds((K) key) && m.remove(key, value);
+		}
+
+		public boolean replace(K key, V oldValue, V newValue) {
+			checkKeyBounds(key);
+			return m.replace(key, oldValue, newValue);
+		}
+
+		public V replace(K key, V value) {
+			checkKeyBounds(key);
+			return m.replace(key, value);
+		}
+
+		public Comparator<? super K> comparator() {
+			Comparator<? super K> cmp = m.comparator();
+			return isDescending ? Collections.reverseOrder(cmp) : cmp;
+		}
+
+		public K firstKey() {
+			Node<K, V> n = headNode();
+			if (n == null)
+				throw new NoSuchElementException();
+			return n.key;
+		}
+
+		public K lastKey() {
+			Node<K, V> n = tailNode();
+			if (n == null)
+				throw new NoSuchElementException();
+			return n.key;
+		}
+
+		public Map.Entry<K, V> firstEntry() {
+			return endEntry(true, false);
+		}
+
+		public Map.Entry<K, V> lastEntry() {
+			return endEntry(false, false);
+		}
+
+		public Map.Entry<K, V> pollFirstEntry() {
+			return endEntry(true, true);
+		}
+
+		public Map.Entry<K, V> pollLastEntry() {
+			return endEntry(false, true);
+		}
+
+		public Map.Entry<K, V> lowerEntry(K key) {
+			return nearEntry(key, LT);
+		}
+
+		public K lowerKey(K key) {
+			return nearKey(key, LT);
+		}
+
+		public Map.Entry<K, V> floorEntry(K key) {
+			return nearEntry(key, LT | EQ);
+		}
+
+		public K floorKey(K key) {
+			return nearKey(key, LT | EQ);
+		}
+
+		public Map.Entry<K, V> ceilingEntry(K key) {
+			return nearEntry(key, GT | EQ);
+		}
+
+		public K ceilingKey(K key) {
+			return nearKey(key, GT | EQ);
+		}
+
+		public Map.Entry<K, V> higherEntry(K key) {
+			return nearEntry(key, GT);
+		}
+
+		public K higherKey(K key) {
+			return nearKey(key, GT);
+		}
+
+		public ConcurrentNavigableMap<K, V> subMap(K fromKey,
+				boolean fromInclusive, K toKey, boolean toInclusive) {
+			if ((fromKey == null) || (toKey == null))
+				throw new NullPointerException();
+			return newSubMap(fromKey, fromInclusive, toKey, toInclusive);
+		}
+
+		public ConcurrentNavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+			if (toKey == null)
+				throw new NullPointerException();
+			return newSubMap(null, false, toKey, inclusive);
+		}
+
+		public ConcurrentNavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+			if (fromKey == null)
+				throw new NullPointerException();
+			return newSubMap(fromKey, inclusive, null, false);
+		}
+
+		public ConcurrentNavigableMap<K, V> subMap(K fromKey, K toKey) {
+			return subMap(fromKey, true, toKey, false);
+		}
+
+		public ConcurrentNavigableMap<K, V> headMap(K toKey) {
+			return headMap(toKey, false);
+		}
+
+		public ConcurrentNavigableMap<K, V> tailMap(K fromKey) {
+			return tailMap(fromKey, true);
+		}
+
+		public ConcurrentNavigableMap<K, V> descendingMap() {
+			return new SubMap<K, V>(m, lo, loInclusive, hi, hiInclusive,
+					!isDescending);
+		}
+
+		public NavigableSet<K> keySet() {
+			KeySet<K> ks = keySetView;
+			return (ks != null) ? ks : (keySetView = new KeySet<K>(this));
+		}
+
+		public NavigableSet<K> navigableKeySet() {
+			return keySet();
+		}
+
+		public NavigableSet<K> descendingKeySet() {
+			return descendingMap().navigableKeySet();
+		}
+
+		public Set<Map.Entry<K, V>> entrySet() {
+			EntrySet<K, V> es = entrySetView;
+			return (es != null) ? es : (entrySetView = new EntrySet<K, V>(this));
+		}
+
+		public Collection<V> values() {
+			Values<V> vs = valuesView;
+			return (vs != null) ? vs : (valuesView = new Values<V>(this));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static <K> Iterator<K> keyIteratorOf(ConcurrentNavigableMap<K, ?> m) {
+		if (m instanceof LockFreeDictionary)
+			return ((LockFreeDictionary<K, ?>) m).keyIterator();
+		return ((SubMap<K, ?>) m).keyIterator();
+	}
+
+	@SuppressWarnings("unchecked")
+	static <V> Iterator<V> valueIteratorOf(ConcurrentNavigableMap<?, V> m) {
+		if (m instanceof LockFreeDictionary)
+			return ((LockFreeDictionary<?, V>) m).valueIterator();
+		return ((SubMap<?, V>) m).valueIterator();
+	}
+
+	@SuppressWarnings("unchecked")
+	static <K, V> Iterator<Map.Entry<K, V>> entryIteratorOf(
+			ConcurrentNavigableMap<K, V> m) {
+		if (m instanceof LockFreeDictionary)
+			return ((LockFreeDictionary<K, V>) m).entryIterator();
+		return ((SubMap<K, V>) m).entryIterator();
+	}
+
+	/**
+	 * Navigable key view of the dictionary or of one of its sub-maps.
+	 * 
+	 * @param <E>
+	 *            type of key
+	 */
+	static final class KeySet<E> extends AbstractSet<E> implements
+			NavigableSet<E> {
+		private final ConcurrentNavigableMap<E, ?> m;
+
+		KeySet(ConcurrentNavigableMap<E, ?> map) {
+			m = map;
+		}
+
+		public int size() {
+			return m.size();
+		}
+
+		public boolean isEmpty() {
+			return m.isEmpty();
+		}
+
+		public boolean contains(Object o) {
+			return m.containsKey(o);
+		}
+
+		public boolean remove(Object o) {
+			return m.remove(o) != null;
+		}
+
+		public void clear() {
+			m.clear();
+		}
+
+		public Iterator<E> iterator() {
+			return keyIteratorOf(m);
+		}
+
+		public E lower(E e) {
+			return m.lowerKey(e);
+		}
+
+		public E floor(E e) {
+			return m.floorKey(e);
+		}
+
+		public E ceiling(E e) {
+			return m.ceilingKey(e);
+		}
+
+		public E higher(E e) {
+			return m.higherKey(e);
+		}
+
+		public Comparator<? super E> comparator() {
+			return m.comparator();
+		}
+
+		public E first() {
+			return m.firstKey();
+		}
+
+		public E last() {
+			return m.lastKey();
+		}
+
+		public E pollFirst() {
+			Map.Entry<E, ?> e = m.pollFirstEntry();
+			return (e == null) ? null : e.getKey();
+		}
+
+		public E pollLast() {
+			Map.Entry<E, ?> e = m.pollLastEntry();
+			return (e == null) ? null : e.getKey();
+		}
+
+		public NavigableSet<E> descendingSet() {
+			return new KeySet<E>(m.descendingMap());
+		}
+
+		public Iterator<E> descendingIterator() {
+			return descendingSet().iterator();
+		}
+
+		public NavigableSet<E> subSet(E fromElement, boolean fromInclusive,
+				E toElement, boolean toInclusive) {
+			return new KeySet<E>(m.subMap(fromElement, fromInclusive,
+					toElement, toInclusive));
+		}
+
+		public NavigableSet<E> headSet(E toElement, boolean inclusive) {
+			return new KeySet<E>(m.headMap(toElement, inclusive));
+		}
+
+		public NavigableSet<E> tailSet(E fromElement, boolean inclusive) {
+			return new KeySet<E>(m.tailMap(fromElement, inclusive));
+		}
+
+		public SortedSet<E> subSet(E fromElement, E toElement) {
+			return subSet(fromElement, true, toElement, false);
+		}
+
+		public SortedSet<E> headSet(E toElement) {
+			return headSet(toElement, false);
+		}
+
+		public SortedSet<E> tailSet(E fromElement) {
+			return tailSet(fromElement, true);
+		}
+	}
+
+	/**
+	 * Value view of the dictionary or of one of its sub-maps.
+	 * 
+	 * @param <E>
+	 *            type of value
+	 */
+	static final class Values<E> extends AbstractCollection<E> {
+		private final ConcurrentNavigableMap<?, E> m;
+
+		Values(ConcurrentNavigableMap<?, E> map) {
+			m = map;
+		}
+
+		public Iterator<E> iterator() {
+			return valueIteratorOf(m);
+		}
+
+		public int size() {
+			return m.size();
+		}
+
+		public boolean isEmpty() {
+			return m.isEmpty();
+		}
+
+		public boolean contains(Object o) {
+			return m.containsValue(o);
+		}
+
+		public void clear() {
+			m.clear();
+		}
+	}
+
+	/**
+	 * Entry view of the dictionary or of one of its sub-maps. Entries are
+	 * immutable snapshots; use the map to change a mapping.
+	 * 
+	 * @param <K1>
+	 *            type of key
+	 * @param <V1>
+	 *            type of value
+	 */
+	static final class EntrySet<K1, V1> extends AbstractSet<Map.Entry<K1, V1>> {
+		private final ConcurrentNavigableMap<K1, V1> m;
+
+		EntrySet(ConcurrentNavigableMap<K1, V1> map) {
+			m = map;
+		}
+
+		public Iterator<Map.Entry<K1, V1>> iterator() {
+			return entryIteratorOf(m);
+		}
+
+		public boolean contains(Object o) {
+			if (!(o instanceof Map.Entry))
+				return false;
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			V1 v = m.get(e.getKey());
+			return (v != null) && v.equals(e.getValue());
+		}
+
+		public boolean remove(Object o) {
+			if (!(o instanceof Map.Entry))
+				return false;
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			return m.remove(e.getKey(), e.getValue());
+		}
+
+		public int size() {
+			return m.size();
+		}
+
+		public boolean isEmpty() {
+			return m.isEmpty();
+		}
+
+		public void clear() {
+			m.clear();
+		}
+	}
 }
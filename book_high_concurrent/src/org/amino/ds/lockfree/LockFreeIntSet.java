@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2008 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.amino.ds.lockfree;
+
+import java.util.PrimitiveIterator;
+
+import org.amino.utility.Parallel;
+import org.amino.utility.ParallelType;
+
+/**
+ * A lock-free hash set of primitive <code>int</code> keys. Keys are widened
+ * and stored in a {@link LockFreeLongSet}. A node is padded to the same size
+ * whether its key is an <code>int</code> or a <code>long</code>, so this
+ * costs no memory.
+ *
+ * @see LockFreeLongSet
+ */
+public class LockFreeIntSet {
+	private final LockFreeLongSet set;
+
+	/**
+	 * Create a new set with explicitly specified expected size and load factor.
+	 *
+	 * @param expectedSize
+	 *            the estimated size of set
+	 * @param loadFactor
+	 *            average load factor. Number of dummy nodes will expand 2X if
+	 *            the actual load factor is higher than this parameter.
+	 */
+	public LockFreeIntSet(int expectedSize, float loadFactor) {
+		set = new LockFreeLongSet(expectedSize, loadFactor);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            expected set size.
+	 */
+	public LockFreeIntSet(int expectedSize) {
+		set = new LockFreeLongSet(expectedSize);
+	}
+
+	/**
+	 * Create a new set. The default expected size is 512. And load factor
+	 * defaults to 0.75f
+	 */
+	public LockFreeIntSet() {
+		set = new LockFreeLongSet();
+	}
+
+	/**
+	 * Adds the key to the set.
+	 *
+	 * @param key
+	 *            key to add
+	 * @return true if the set didn't contain the key
+	 */
+	@Parallel(ParallelType.LockFree)
+	public boolean add(int key) {
+		return set.add(key);
+	}
+
+	/**
+	 * @param key
+	 *            key whose presence in this set is to be tested
+	 * @return true if the set contains the key
+	 */
+	@Parallel(ParallelType.LockFree)
+	public boolean contains(int key) {
+		return set.contains(key);
+	}
+
+	/**
+	 * Removes the key from the set.
+	 *
+	 * @param key
+	 *            key to remove
+	 * @return true if the set contained the key
+	 */
+	@Parallel(ParallelType.LockFree)
+	public boolean remove(int key) {
+		return set.remove(key);
+	}
+
+	/**
+	 * @return number of keys in the set
+	 */
+	@Parallel(ParallelType.LockFree)
+	public int size() {
+		return set.size();
+	}
+
+	/**
+	 * @return true if the set is empty
+	 */
+	public boolean isEmpty() {
+		return set.isEmpty();
+	}
+
+	/**
+	 * Removes all keys. Keys added concurrently may or may not survive.
+	 */
+	public void clear() {
+		set.clear();
+	}
+
+	/**
+	 * Returns a weakly consistent iterator over the keys, in no particular
+	 * order.
+	 *
+	 * @return an iterator over the keys
+	 */
+	public PrimitiveIterator.OfInt iterator() {
+		final PrimitiveIterator.OfLong iter = set.iterator();
+		return new PrimitiveIterator.OfInt() {
+			public boolean hasNext() {
+				return iter.hasNext();
+			}
+
+			public int nextInt() {
+				return (int) iter.nextLong();
+			}
+		};
+	}
+}
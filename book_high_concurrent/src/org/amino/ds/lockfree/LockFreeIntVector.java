@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2008 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.amino.ds.lockfree;
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+import org.amino.utility.Parallel;
+import org.amino.utility.ParallelType;
+
+/**
+ * A lock-free vector of primitive <code>int</code> values, backed by
+ * {@link AtomicIntegerArray} segments. An element takes 4 bytes, where
+ * {@link LockFreeVector} needs a reference and, outside the small-value
+ * cache, a boxed <code>Integer</code>. Otherwise it is the same as
+ * {@link LockFreeLongVector}.
+ *
+ * @see LockFreeVector
+ * @see LockFreeLongVector
+ */
+public class LockFreeIntVector extends
+        PrimitiveVectorBase<AtomicIntegerArray> {
+    /**
+     * Writes one element.
+     */
+    static class WriteDescriptor extends Operation {
+        private final AtomicIntegerArray addr;
+        private final int addrInd;
+        private final int oldV;
+        private final int newV;
+
+        /**
+         * @param addr
+         *            Operation address
+         * @param addrInd
+         *            Index of address
+         * @param oldV
+         *            old operand
+         * @param newV
+         *            new operand
+         */
+        WriteDescriptor(AtomicIntegerArray addr, int addrInd, int oldV, int newV) {
+            this.addr = addr;
+            this.addrInd = addrInd;
+            this.oldV = oldV;
+            this.newV = newV;
+        }
+
+        /**
+         * set newV to the address.
+         */
+        public void doIt() {
+            addr.compareAndSet(addrInd, oldV, newV);
+        }
+    }
+
+    /**
+     * Writes a contiguous range of elements into buckets captured when the
+     * descriptor was created.
+     */
+    static class RangeWriteDescriptor extends Operation {
+        private final AtomicIntegerArray[] addrs;
+        private final int firstBucket;
+        private final int firstIndex;
+        private final int[] oldVs;
+        private final int[] newVs;
+
+        /**
+         * @param addrs
+         *            buckets covering the range, starting at firstBucket
+         * @param firstBucket
+         *            bucket of the first element
+         * @param firstIndex
+         *            index of the first element in the vector
+         * @param oldVs
+         *            old operands
+         * @param newVs
+         *            new operands
+         */
+        RangeWriteDescriptor(AtomicIntegerArray[] addrs, int firstBucket,
+                int firstIndex, int[] oldVs, int[] newVs) {
+            this.addrs = addrs;
+            this.firstBucket = firstBucket;
+            this.firstIndex = firstIndex;
+            this.oldVs = oldVs;
+            this.newVs = newVs;
+        }
+
+        /**
+         * set every new value to its address.
+         */
+        public void doIt() {
+            for (int i = 0; i < newVs.length; i++) {
+                int pos = firstIndex + i + FIRST_BUCKET_SIZE;
+                addrs[bucketOf(pos) - firstBucket].compareAndSet(slotOf(pos),
+                        oldVs[i], newVs[i]);
+            }
+        }
+    }
+
+    /**
+     * Create a new lock-free vector.
+     */
+    public LockFreeIntVector() {
+    }
+
+    @Override
+    AtomicIntegerArray newBucket(int length) {
+        return new AtomicIntegerArray(length);
+    }
+
+    /**
+     * add v at the end of vector.
+     *
+     * @param v
+     *            value added
+     */
+    @Parallel(ParallelType.LockFree)
+    public void pushBack(int v) {
+        Descriptor desc;
+        Descriptor newd;
+        do {
+            desc = current();
+            checkCapacity(desc.size, 1);
+            int pos = desc.size + FIRST_BUCKET_SIZE;
+            AtomicIntegerArray bucket = bucket(bucketOf(pos));
+            int idx = slotOf(pos);
+            newd = new Descriptor(desc.size + 1, new WriteDescriptor(bucket,
+                    idx, bucket.get(idx), v));
+        } while (!descriptor.compareAndSet(desc, newd));
+        descriptor.get().completeWrite();
+    }
+
+    /**
+     * Add all values at the end of vector, at contiguous indices, with one
+     * descriptor CAS.
+     *
+     * @param values
+     *            values added
+     */
+    @Parallel(ParallelType.LockFree)
+    public void pushBackAll(int[] values) {
+        int n = values.length;
+        if (n == 0)
+            return;
+        int[] newVs = values.clone();
+        Descriptor desc;
+        Descriptor newd;
+        do {
+            desc = current();
+            int first = desc.size;
+            checkCapacity(first, n);
+            int firstBucket = bucketOf(first + FIRST_BUCKET_SIZE);
+            int lastBucket = bucketOf(first + n - 1 + FIRST_BUCKET_SIZE);
+
+            AtomicIntegerArray[] addrs = new AtomicIntegerArray[lastBucket
+                    - firstBucket + 1];
+            for (int b = firstBucket; b <= lastBucket; b++)
+                addrs[b - firstBucket] = bucket(b);
+            int[] oldVs = new int[n];
+            for (int i = 0; i < n; i++) {
+                int pos = first + i + FIRST_BUCKET_SIZE;
+                oldVs[i] = addrs[bucketOf(pos) - firstBucket].get(slotOf(pos));
+            }
+            newd = new Descriptor(first + n, new RangeWriteDescriptor(addrs,
+                    firstBucket, first, oldVs, newVs));
+        } while (!descriptor.compareAndSet(desc, newd));
+        descriptor.get().completeWrite();
+    }
+
+    /**
+     * Remove the last element in the vector.
+     *
+     * @return element removed
+     * @throws NoSuchElementException
+     *             if the vector is empty
+     */
+    @Parallel(ParallelType.LockFree)
+    public int popBack() {
+        while (true) {
+            Descriptor desc = current();
+            if (desc.size == 0)
+                throw new NoSuchElementException();
+            AtomicIntegerArray bucket = lastBucket(desc);
+            if (bucket == null)
+                continue;
+            int elem = bucket.get(slotOf(desc.size + FIRST_BUCKET_SIZE - 1));
+            if (descriptor.compareAndSet(desc, new Descriptor(desc.size - 1,
+                    null)))
+                return elem;
+        }
+    }
+
+    /**
+     * Get element with the index.
+     *
+     * @param index
+     *            index
+     * @return element with the index
+     */
+    public int get(int index) {
+        return bucketFor(index).get(slotOf(index + FIRST_BUCKET_SIZE));
+    }
+
+    /**
+     * Set the element with index to v.
+     *
+     * @param index
+     *            index of element to be reset
+     * @param v
+     *            value to set
+     * @return old value
+     */
+    public int set(int index, int v) {
+        return bucketFor(index).getAndSet(slotOf(index + FIRST_BUCKET_SIZE), v);
+    }
+
+    /**
+     * Apply action to the first size() elements, in index order, walking each
+     * bucket sequentially. Elements pushed during the walk are not visited.
+     * If elements are popped concurrently, the values visited for the removed
+     * indices may be stale.
+     *
+     * @param action
+     *            action applied to every element
+     */
+    public void forEach(IntConsumer action) {
+        int n = current().size;
+        int pos = FIRST_BUCKET_SIZE;
+        int end = n + FIRST_BUCKET_SIZE;
+        for (int b = 0; pos < end; b++) {
+            AtomicIntegerArray bucket = buckets.get(b);
+            if (bucket == null) // released by a concurrent shrinkToFit()
+                return;
+            int bucketEnd = Math.min(end, FIRST_BUCKET_SIZE << (b + 1));
+            for (int idx = pos - (FIRST_BUCKET_SIZE << b); pos < bucketEnd; pos++, idx++)
+                action.accept(bucket.get(idx));
+        }
+    }
+
+    /**
+     * @return a copy of the first size() elements
+     */
+    public int[] toArray() {
+        retry: while (true) {
+            int[] a = new int[current().size];
+            int pos = FIRST_BUCKET_SIZE;
+            int end = a.length + FIRST_BUCKET_SIZE;
+            for (int b = 0; pos < end; b++) {
+                AtomicIntegerArray bucket = buckets.get(b);
+                // the size dropped and the tail was released, start over
+                if (bucket == null)
+                    continue retry;
+                int bucketEnd = Math.min(end, FIRST_BUCKET_SIZE << (b + 1));
+                for (; pos < bucketEnd; pos++)
+                    a[pos - FIRST_BUCKET_SIZE] = bucket.get(slotOf(pos));
+            }
+            return a;
+        }
+    }
+
+    /**
+     * Returns a sequential stream over the elements present when this method
+     * is called. The stream splits by index range, so it can also run in
+     * parallel.
+     *
+     * @return stream view of the vector
+     */
+    public IntStream stream() {
+        return StreamSupport.intStream(spliterator(0, current().size), false);
+    }
+
+    /**
+     * @return an iterator over the elements present when it is created
+     */
+    public PrimitiveIterator.OfInt iterator() {
+        return Spliterators.iterator(spliterator(0, current().size));
+    }
+
+    private Spliterator.OfInt spliterator(int from, int to) {
+        return new RangeSpliterator(from, to);
+    }
+
+    /**
+     * Spliterator over a fixed index range.
+     */
+    private final class RangeSpliterator implements Spliterator.OfInt {
+        private int index;
+        private final int fence;
+
+        RangeSpliterator(int index, int fence) {
+            this.index = index;
+            this.fence = fence;
+        }
+
+        public boolean tryAdvance(IntConsumer action) {
+            if (index >= fence)
+                return false;
+            int pos = index++ + FIRST_BUCKET_SIZE;
+            AtomicIntegerArray bucket = buckets.get(bucketOf(pos));
+            if (bucket == null) {
+                index = fence;
+                return false;
+            }
+            action.accept(bucket.get(slotOf(pos)));
+            return true;
+        }
+
+        public Spliterator.OfInt trySplit() {
+            int mid = (index + fence) >>> 1;
+            if (mid - index < FIRST_BUCKET_SIZE)
+                return null;
+            Spliterator.OfInt prefix = new RangeSpliterator(index, mid);
+            index = mid;
+            return prefix;
+        }
+
+        public long estimateSize() {
+            return fence - index;
+        }
+
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED;
+        }
+    }
+}
@@ -16,12 +16,20 @@
 
 package org.amino.ds.lockfree;
 
+import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.NoSuchElementException;
 import java.util.concurrent.atomic.AtomicMarkableReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.amino.utility.HazardPointerReclaimer;
+import org.amino.utility.IReclaimer;
 
 /**
  * This is an implementation of a lock-free linked list data structure. The
@@ -38,9 +46,21 @@ import java.util.concurrent.atomic.AtomicMarkableReference;
  * elements.
  * <p>
  * This is a lock-free implementation intended for highly scalable add, remove
- * and contains which is thread safe. All method related to index is not
- * implemented. Add() will add the element to the head of the list which is
- * different with the normal list.
+ * and contains which is thread safe. Add() will add the element to the head of
+ * the list which is different with the normal list.
+ * <p>
+ * Positional methods are served by a skip index: a snapshot of every
+ * {@value #INDEX_STRIDE}th live entry, tagged with a modification count. While
+ * the list is not modified, get(int), size() and the other positional
+ * operations walk at most {@value #INDEX_STRIDE} entries from the nearest
+ * sample. The first positional call after a modification rebuilds the index
+ * in O(n). Positions are weakly consistent: under concurrent updates an index
+ * refers to some position the list had during the call.
+ * <p>
+ * A list constructed with an {@link IReclaimer} recycles the entries it
+ * removes. Entries must then not be held between calls, so the skip index is
+ * not used: positional methods and size() walk from the head, and iterators
+ * are read-only snapshots.
  * 
  * @author Xiao Jun Dai
  * 
@@ -64,9 +84,14 @@ public class LockFreeList<E> implements List<E> {
 	 */
 	protected static class Entry<E> {
 		/**
-		 * element in the entry.
+		 * Reclaimer kind of list entries.
+		 */
+		static final int KIND = 0;
+
+		/**
+		 * element in the entry. Volatile, because set() replaces it in place.
 		 */
-		E element;
+		volatile E element;
 		/**
 		 * point to next entry in the list. According to the algorithm, next
 		 * pointer of node should be compare and swap in order to make status of
@@ -120,6 +145,18 @@ public class LockFreeList<E> implements List<E> {
 		 * Pointer to the next node.
 		 */
 		Entry<E> next;
+		/**
+		 * Number of live entries before cur.
+		 */
+		int index;
+		/**
+		 * If not null, receives the elements of the live entries passed.
+		 */
+		ArrayList<E> collect;
+		/**
+		 * Scratch space for reading a reference and its mark together.
+		 */
+		final boolean[] mark = new boolean[1];
 
 		public ListStateHolder() {
 			found = false;
@@ -128,8 +165,8 @@ public class LockFreeList<E> implements List<E> {
 			next = null;
 		}
 
-		public void casPrev() {
-			prev.compareAndSet(cur, next, false, false);
+		public boolean casPrev() {
+			return prev.compareAndSet(cur, next, false, false);
 		}
 
 		public boolean markRemoved() {
@@ -138,121 +175,136 @@ public class LockFreeList<E> implements List<E> {
 	}
 
 	/**
-	 * iterator definition of list. Iterator definition of list. This iterator
-	 * is not thread safe. The action of method of iterator is not specified if
-	 * other. It is only used for debug. iterator use LockFreeList.head to
-	 * initialize which is not static. Could not declare to static.
+	 * Pointer to header node, initialized to a dummy node. The first actual
+	 * node is at head.getNext().
+	 */
+	protected AtomicMarkableReference<Entry<E>> head;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static final AtomicReferenceFieldUpdater<Entry, Object> elementUpdater = AtomicReferenceFieldUpdater
+			.newUpdater(Entry.class, Object.class, "element");
+
+	/**
+	 * Number of live entries between two samples of the skip index.
+	 */
+	static final int INDEX_STRIDE = 32;
+
+	/**
+	 * Snapshot of the list used to answer positional queries.
 	 * 
+	 * @param <E>
+	 *            type of element on node
 	 */
-	private class ListItr implements Iterator<E> {
+	private static final class SkipIndex<E> {
 		/**
-		 * Pointer to the previous node.
+		 * Modification count the snapshot was taken at.
 		 */
-		AtomicMarkableReference<Entry<E>> prev;
+		final long version;
 		/**
-		 * Pointer to the current node.
+		 * Number of live entries.
 		 */
-		Entry<E> cur;
+		final int size;
 		/**
-		 * Pointer to the next node.
+		 * Entries at positions 0, INDEX_STRIDE, 2*INDEX_STRIDE...
 		 */
-		Entry<E> next;
+		final Entry<E>[] samples;
 
-		public ListItr() {
-			prev = head;
-			cur = head.getReference();
-			next = null;
+		SkipIndex(long version, int size, Entry<E>[] samples) {
+			this.version = version;
+			this.size = size;
+			this.samples = samples;
 		}
+	}
 
-		/**
-		 * move iterator one node forward and return the value of current node.
-		 * Iterator points to the dummy node of list. The actual first node is
-		 * the next node of dummy node.
-		 * 
-		 * @return the value of current node
-		 */
-		private E advance() {
-			/* at the end of list */
-			if (null == cur) {
-				return null;
-			}
+	/**
+	 * Counts structural modifications, so that a stale skip index is noticed.
+	 * Striped because every add and remove updates it.
+	 */
+	private final LongAdder modCount = new LongAdder();
 
-			try_again: while (true) {
-//				System.out.println("cur: " + cur);
-				E curItem = cur.element;
-				next = cur.next.getReference();
-				
-				if(next == null){
-					cur = null;
-					return curItem;
-				}
+	private volatile SkipIndex<E> skipIndex;
 
-				/*
-				 * If the node is marked, it means logically removed. Find
-				 * routine will help to remove it from the list physically
-				 */
-				if (cur.next.isMarked()) {
-					/*
-					 * Every thread tries to help deletion of certain elements.
-					 * If CAS fails, it means other thread succeeds and physical
-					 * deletion is completed. Now the value of prev is not
-					 * correct and need to retry from the head. No ABA problem
-					 * here. in garbage-collected language such Java, ABA does
-					 * not occur.
-					 */
-					prev.compareAndSet(cur, next, false, false);
+	/**
+	 * Hazard slots used by a traversal: the next entry, the current entry and
+	 * the entry owning the previous link.
+	 */
+	static final int HP_NEXT = 0, HP_CUR = 1, HP_PREV = 2;
 
-					cur = next;
-					continue try_again;
-				} else {
-					prev = cur.next;
-					cur = next;
-				}
-				return curItem;
-			}
-		}
+	/**
+	 * Recycles removed entries, or null if they are left to the GC.
+	 */
+	private final IReclaimer reclaimer;
 
-		/**
-		 * {@inheritDoc}
-		 */
-		public boolean hasNext() {
-			return null != cur;
-		}
+	/**
+	 * Whether an entry must be protected and validated before it is read.
+	 */
+	protected final boolean validate;
 
-		/**
-		 * {@inheritDoc}
-		 */
-		public E next() {
-			E result = advance();
+	/**
+	 * Constructs an empty list.
+	 */
+	public LockFreeList() {
+		this(null);
+	}
 
-			if (null == result)
-				throw new NoSuchElementException();
-			else {
-				return result;
-			}
-		}
+	/**
+	 * Constructs an empty list that reuses removed entries.
+	 * 
+	 * @param reclaimer
+	 *            reclaimer through which removed entries are reused, or null
+	 *            to leave them to the GC. It needs one kind and, if it uses
+	 *            hazard pointers, three slots per thread.
+	 */
+	public LockFreeList(IReclaimer reclaimer) {
+		if ((reclaimer instanceof HazardPointerReclaimer)
+				&& ((HazardPointerReclaimer) reclaimer).getSlots() < 3)
+			throw new IllegalArgumentException("3 hazard slots needed");
+		head = new AtomicMarkableReference<Entry<E>>(null, false);
+		this.reclaimer = reclaimer;
+		validate = (reclaimer != null) && reclaimer.needsProtect();
+	}
 
-		/**
-		 * Iterator is just for debugging. It is a read-only iterator.
-		 * 
-		 * {@inheritDoc}
-		 */
-		public void remove() {
-			throw new UnsupportedOperationException();
-		}
+	/**
+	 * @return the calling thread's guard, or null if entries are not recycled
+	 */
+	protected IReclaimer.Guard enter() {
+		return (reclaimer == null) ? null : reclaimer.enter();
 	}
 
 	/**
-	 * Pointer to header node, initialized to a dummy node. The first actual
-	 * node is at head.getNext().
+	 * @param g
+	 *            guard returned by {@link #enter()}
 	 */
-	protected AtomicMarkableReference<Entry<E>> head;
+	protected static void exit(IReclaimer.Guard g) {
+		if (g != null)
+			g.exit();
+	}
 
 	/**
-	 * Constructs an empty list.
+	 * @return a recycled entry if the guard has one, otherwise a new entry.
+	 *         Its next pointer is null and unmarked.
 	 */
-	public LockFreeList() {
-		head = new AtomicMarkableReference<Entry<E>>(null, false);
+	@SuppressWarnings("unchecked")
+	protected Entry<E> newEntry(IReclaimer.Guard g, E e) {
+		if (g != null) {
+			Entry<E> n = (Entry<E>) g.reuse(Entry.KIND);
+			if (n != null) {
+				n.element = e;
+				n.next.set(null, false);
+				return n;
+			}
+		}
+		return new Entry<E>(e, new AtomicMarkableReference<Entry<E>>(null,
+				false));
+	}
+
+	/**
+	 * Hands an entry over for reuse. Only the thread whose CAS unlinked it may
+	 * call this.
+	 */
+	protected static <E> void retire(IReclaimer.Guard g, Entry<E> e) {
+		if (g != null)
+			g.retire(Entry.KIND, e);
 	}
 
 	/**
@@ -275,9 +327,18 @@ public class LockFreeList<E> implements List<E> {
 		if (null == e)
 			throw new NullPointerException();
 
+		IReclaimer.Guard g = enter();
+		try {
+			add(e, g);
+		} finally {
+			exit(g);
+		}
+		return true;
+	}
+
+	private void add(E e, IReclaimer.Guard g) {
 		/* Create a new node and put e on it */
-		final Entry<E> newNode = new Entry<E>(e,
-				new AtomicMarkableReference<Entry<E>>(null, false));
+		final Entry<E> newNode = newEntry(g, e);
 
 		/*
 		 * loop will terminate when CAS success, otherwise retry infinitely.
@@ -302,7 +363,8 @@ public class LockFreeList<E> implements List<E> {
 			 * language such Java, ABA does not occur.
 			 */
 			if (head.compareAndSet(cur, newNode, false, false)) {
-				return true;
+				structureChanged();
+				return;
 			}
 			/* Retry if CAS is not success */
 		}
@@ -318,6 +380,7 @@ public class LockFreeList<E> implements List<E> {
 	 */
 	public void clear() {
 		head.set(null, false);
+		structureChanged();
 	}
 
 	/**
@@ -338,27 +401,40 @@ public class LockFreeList<E> implements List<E> {
 			throw new NullPointerException();
 
 		ListStateHolder<E> holder = new ListStateHolder<E>();
-		return findByObject(o, head, holder).found;
+		IReclaimer.Guard g = enter();
+		try {
+			return find(o, -1, head, holder, g).found;
+		} finally {
+			exit(g);
+		}
 	}
 
 	/**
-	 * Find object o start from start position and record the previous, current,
-	 * next pointer and index in the list state holder.
+	 * Find object o, or the live entry at position at if o is null, start from
+	 * start position and record the previous, current, next pointer and index
+	 * in the list state holder.
 	 * 
 	 * <p>
-	 * Thread Safe.
+	 * Thread Safe. With hazard pointers, the entry owning holder.prev and
+	 * holder.cur stay protected until the next traversal.
 	 * 
 	 * @param o
 	 *            element whose presence in this list is to be tested.
+	 * @param at
+	 *            position to find if o is null.
 	 * @param start
 	 *            start position to find.
 	 * @param holder
 	 *            information of position found.
+	 * @param g
+	 *            guard of the calling thread, or null.
 	 * 
 	 * @return state holder of list
 	 */
-	private ListStateHolder<E> findByObject(Object o,
-			AtomicMarkableReference<Entry<E>> start, ListStateHolder<E> holder) {
+	@SuppressWarnings("unchecked")
+	private ListStateHolder<E> find(Object o, int at,
+			AtomicMarkableReference<Entry<E>> start, ListStateHolder<E> holder,
+			IReclaimer.Guard g) {
 
 		/*
 		 * local variable for cache the position of pointers of previous node,
@@ -367,6 +443,8 @@ public class LockFreeList<E> implements List<E> {
 		AtomicMarkableReference<Entry<E>> prev;
 		Entry<E> cur = null;
 		Entry<E> nextEntry = null;
+		boolean[] mark = holder.mark;
+		int index;
 
 		/*
 		 * Purpose of this loop is retry infinite if CAS operation fails. It
@@ -382,6 +460,19 @@ public class LockFreeList<E> implements List<E> {
 			 */
 			prev = start;
 			cur = prev.getReference();
+			index = 0;
+			if (holder.collect != null)
+				holder.collect.clear();
+			/*
+			 * With hazard pointers an entry may only be read once it is
+			 * announced and still linked from prev; otherwise it could have
+			 * been recycled already.
+			 */
+			if (validate) {
+				g.protect(HP_CUR, cur);
+				if (prev.getReference() != cur)
+					continue try_again;
+			}
 
 			/*
 			 * Purpose of this loop is find the expected element in the list. It
@@ -398,6 +489,7 @@ public class LockFreeList<E> implements List<E> {
 					holder.prev = prev;
 					holder.cur = cur;
 					holder.next = nextEntry;
+					holder.index = index;
 					holder.found = false;
 					return holder;
 				}
@@ -405,16 +497,27 @@ public class LockFreeList<E> implements List<E> {
 				/*
 				 * nextRef is cached in a local variable in order to reduce the
 				 * times of read a object field cur.next from twice to once.
+				 * Reference and mark are read together: a next pointer only
+				 * stays fixed once it is marked.
 				 */
 				AtomicMarkableReference<Entry<E>> nextEntryRef = cur.next;
-				nextEntry = nextEntryRef.getReference();
+				nextEntry = nextEntryRef.get(mark);
+				boolean marked = mark[0];
+				if (validate) {
+					g.protect(HP_NEXT, nextEntry);
+					if ((nextEntryRef.get(mark) != nextEntry)
+							|| (mark[0] != marked))
+						continue try_again;
+				}
 				Object cKey = cur.element;
+				if (validate && ((prev.getReference() != cur) || prev.isMarked()))
+					continue try_again;
 
 				/*
 				 * If the node is marked, it means logically removed. Find
 				 * routine will help to remove it from the list physically
 				 */
-				if (nextEntryRef.isMarked()) {
+				if (marked) {
 					/*
 					 * In lock-free algorithm, threads will help to finish each
 					 * others' work. find() will help to finish remove()'s work
@@ -428,15 +531,23 @@ public class LockFreeList<E> implements List<E> {
 						 * physical removal is completed. Now the value of prev
 						 * is not correct and need to retry from the head. No
 						 * ABA problem here. in garbage-collected language such
-						 * Java, ABA does not occur.
+						 * Java, ABA does not occur. A recycled entry is not
+						 * reused while it is protected.
 						 */
 						continue try_again;
 					}
+					retire(g, cur);
 				} else {
-					/* stop when found the same object */
-					if (cKey != o && !cKey.equals(o)) {
+					/* stop when found the same object, or the position */
+					if ((o != null) ? (cKey != o && !cKey.equals(o))
+							: (index != at)) {
+						if (holder.collect != null)
+							holder.collect.add((E) cKey);
+						index++;
 						/* make prev pointer move one node forward */
 						prev = nextEntryRef;
+						if (validate)
+							g.protect(HP_PREV, cur);
 					} else {
 						/*
 						 * found the expected elements. store the previous,
@@ -447,12 +558,15 @@ public class LockFreeList<E> implements List<E> {
 						holder.prev = prev;
 						holder.cur = cur;
 						holder.next = nextEntry;
+						holder.index = index;
 						return holder;
 					}
 				}
 
 				/* move forward */
 				cur = nextEntry;
+				if (validate)
+					g.protect(HP_CUR, cur);
 			}
 		}
 	}
@@ -478,7 +592,12 @@ public class LockFreeList<E> implements List<E> {
 		if (null == o)
 			throw new NullPointerException();
 
-		return remove(o, head);
+		IReclaimer.Guard g = enter();
+		try {
+			return remove(o, head, g);
+		} finally {
+			exit(g);
+		}
 	}
 
 	/**
@@ -491,9 +610,12 @@ public class LockFreeList<E> implements List<E> {
 	 *            object
 	 * @param start
 	 *            start node
+	 * @param g
+	 *            guard of the calling thread, or null
 	 * @return true if remove successful, otherwise false
 	 */
-	private boolean remove(Object o, AtomicMarkableReference<Entry<E>> start) {
+	private boolean remove(Object o, AtomicMarkableReference<Entry<E>> start,
+			IReclaimer.Guard g) {
 		/*
 		 * hold state between two function calls. It take place of thread local
 		 * variable because the performance of thread local variable is not
@@ -511,7 +633,7 @@ public class LockFreeList<E> implements List<E> {
 			 * Find the position of object o and keep the value of current and
 			 * previous pointers and other status in holder
 			 */
-			findByObject(o, start, holder);
+			find(o, -1, start, holder, g);
 			/*
 			 * holder.found record whether the expected element is found in
 			 * previous find(). If not found, remove fails, return false.
@@ -550,122 +672,764 @@ public class LockFreeList<E> implements List<E> {
 			 * entry from the list.
 			 */
 			/* TODO can find() be removed? because other threads will do the job */
-			holder.casPrev();
+			if (holder.casPrev())
+				retire(g, holder.cur);
+			structureChanged();
 			return true;
 		}
 	}
 
-	/*
-	 * Following operations are not thread safe. They are used when debugging.
+	/**
+	 * Walk to the live entry at a position, for lists that recycle entries
+	 * and so cannot use the skip index.
+	 * 
+	 * @return holder positioned at index; found is false if the list is
+	 *         shorter, and holder.index then is the size of the list
+	 */
+	private ListStateHolder<E> locate(int index, IReclaimer.Guard g) {
+		return find(null, index, head, new ListStateHolder<E>(), g);
+	}
+
+	/**
+	 * @return the live elements, copied under a guard
+	 */
+	private List<E> snapshot() {
+		ListStateHolder<E> holder = new ListStateHolder<E>();
+		holder.collect = new ArrayList<E>();
+		IReclaimer.Guard g = enter();
+		try {
+			find(null, -1, head, holder, g);
+		} finally {
+			exit(g);
+		}
+		return Collections.unmodifiableList(holder.collect);
+	}
+
+	/**
+	 * Record a structural modification: an entry was linked in or marked as
+	 * removed. Subclasses with their own insertion paths must call it after
+	 * the linking CAS succeeds.
+	 */
+	protected void structureChanged() {
+		modCount.increment();
+	}
+
+	/**
+	 * Called by every operation that places an element at a given position or
+	 * replaces it in place. Subclasses that keep their own order override it
+	 * to throw {@link UnsupportedOperationException}.
+	 */
+	protected void checkPositionalUpdate() {
+	}
+
+	/**
+	 * @return a skip index that was current at some point during this call
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private SkipIndex<E> index() {
+		long version = modCount.sum();
+		SkipIndex<E> idx = skipIndex;
+		if (idx != null && idx.version == version)
+			return idx;
+
+		ArrayList<Entry<E>> samples = new ArrayList<Entry<E>>();
+		int size = 0;
+		for (Entry<E> cur = head.getReference(); cur != null; cur = cur.next
+				.getReference()) {
+			if (cur.next.isMarked())
+				continue;
+			if (size % INDEX_STRIDE == 0)
+				samples.add(cur);
+			size++;
+		}
+		// tagged with the count read before the walk, so a modification
+		// that overlaps the walk forces the next caller to rebuild
+		idx = new SkipIndex<E>(version, size, samples
+				.toArray(new Entry[samples.size()]));
+		skipIndex = idx;
+		return idx;
+	}
+
+	/**
+	 * Find the live entry at a position.
+	 *
+	 * @param index
+	 *            position
+	 * @return the entry, or null if the list is shorter
+	 */
+	private Entry<E> entryAt(int index) {
+		if (index < 0)
+			return null;
+		SkipIndex<E> idx = index();
+		if (index >= idx.size)
+			return null;
+		// a sample removed since the snapshot still links to its successors
+		Entry<E> cur = idx.samples[index / INDEX_STRIDE];
+		int skip = index % INDEX_STRIDE;
+		for (; cur != null; cur = cur.next.getReference()) {
+			if (cur.next.isMarked())
+				continue;
+			if (skip-- == 0)
+				return cur;
+		}
+		return null;
+	}
+
+	/**
+	 * @param index
+	 *            position of the entry the returned link points to
+	 * @return head for position 0, otherwise the next pointer of the entry
+	 *         before index; null if the list is shorter
+	 */
+	private AtomicMarkableReference<Entry<E>> linkTo(int index) {
+		if (index == 0)
+			return head;
+		Entry<E> pred = entryAt(index - 1);
+		return (pred == null) ? null : pred.next;
+	}
+
+	/**
+	 * Link a new entry at link, unless the entry owning link has been
+	 * removed.
+	 *
+	 * @return the new entry, or null if the owner of link was removed
 	 */
+	private Entry<E> insertAt(AtomicMarkableReference<Entry<E>> link, E e) {
+		Entry<E> newNode = new Entry<E>(e,
+				new AtomicMarkableReference<Entry<E>>(null, false));
+		while (true) {
+			Entry<E> succ = link.getReference();
+			if (link.isMarked())
+				return null;
+			newNode.next.set(succ, false);
+			if (link.compareAndSet(succ, newNode, false, false)) {
+				structureChanged();
+				return newNode;
+			}
+		}
+	}
+
+	/**
+	 * Logically remove a given entry, and try to unlink it.
+	 *
+	 * @param entry
+	 *            entry to remove
+	 * @param link
+	 *            reference that pointed to the entry, or null if unknown
+	 * @return false if the entry had already been removed
+	 */
+	private boolean removeEntry(Entry<E> entry,
+			AtomicMarkableReference<Entry<E>> link) {
+		while (true) {
+			Entry<E> next = entry.next.getReference();
+			if (entry.next.isMarked())
+				return false;
+			if (entry.next.compareAndSet(next, next, false, true)) {
+				// a failed unlink is completed by later traversals
+				if (link != null)
+					link.compareAndSet(entry, next, false, false);
+				structureChanged();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Weakly consistent list iterator. Moving forward follows the links;
+	 * moving backward looks the position up in the skip index, so
+	 * previous() is O({@value #INDEX_STRIDE}) while the list is unchanged and
+	 * O(n) after a modification.
+	 */
+	private class ListItr implements ListIterator<E> {
+		/**
+		 * The next element is the first live entry reachable from link, unless
+		 * pending is set.
+		 */
+		private AtomicMarkableReference<Entry<E>> link;
+		/**
+		 * Entry returned by previous(), or found by hasNext(), to be returned
+		 * by next().
+		 */
+		private Entry<E> pending;
+		/**
+		 * Reference pending was found through, null if unknown.
+		 */
+		private AtomicMarkableReference<Entry<E>> pendingLink;
+		/**
+		 * Index of the element returned by next().
+		 */
+		private int cursor;
+		/**
+		 * Entry returned by the last next() or previous(), null after
+		 * remove() or add().
+		 */
+		private Entry<E> lastRet;
+		/**
+		 * Reference lastRet was found through, null if unknown.
+		 */
+		private AtomicMarkableReference<Entry<E>> lastLink;
+
+		ListItr(AtomicMarkableReference<Entry<E>> link, int cursor) {
+			this.link = link;
+			this.cursor = cursor;
+		}
+
+		/**
+		 * Skip removed entries after link, helping to unlink them.
+		 */
+		private Entry<E> firstLive() {
+			Entry<E> cur = link.getReference();
+			while (cur != null && cur.next.isMarked()) {
+				Entry<E> next = cur.next.getReference();
+				link.compareAndSet(cur, next, false, false);
+				cur = next;
+			}
+			return cur;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public boolean hasNext() {
+			if (pending != null)
+				return true;
+			// keep the entry, so next() cannot miss it if it is removed
+			Entry<E> e = firstLive();
+			if (e == null)
+				return false;
+			pending = e;
+			pendingLink = link;
+			return true;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public E next() {
+			Entry<E> e = pending;
+			if (e != null) {
+				lastLink = pendingLink;
+				pending = null;
+				pendingLink = null;
+			} else {
+				e = firstLive();
+				if (e == null)
+					throw new NoSuchElementException();
+				lastLink = link;
+			}
+			link = e.next;
+			lastRet = e;
+			cursor++;
+			return e.element;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public boolean hasPrevious() {
+			return cursor > 0;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public E previous() {
+			Entry<E> e = (cursor > 0) ? entryAt(cursor - 1) : null;
+			if (e == null)
+				throw new NoSuchElementException();
+			cursor--;
+			pending = lastRet = e;
+			pendingLink = lastLink = null;
+			return e.element;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public int nextIndex() {
+			return cursor;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public int previousIndex() {
+			return cursor - 1;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public void remove() {
+			if (lastRet == null)
+				throw new IllegalStateException();
+			removeEntry(lastRet, lastLink);
+			if (pending == lastRet)
+				pending = null;
+			else
+				cursor--;
+			// lastRet.next still leads to the rest of the list
+			link = lastRet.next;
+			lastRet = null;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@SuppressWarnings("unchecked")
+		public void set(E e) {
+			checkPositionalUpdate();
+			if (null == e)
+				throw new NullPointerException();
+			if (lastRet == null)
+				throw new IllegalStateException();
+			elementUpdater.set(lastRet, e);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public void add(E e) {
+			checkPositionalUpdate();
+			if (null == e)
+				throw new NullPointerException();
+			if (pending != null) {
+				// the link in front of pending is not known after previous()
+				if (pendingLink == null)
+					link = linkTo(cursor);
+				pending = null;
+				pendingLink = null;
+				if (link == null)
+					throw new NoSuchElementException();
+			}
+			Entry<E> node = insertAt(link, e);
+			if (node == null) {
+				// our predecessor was removed, place e by position instead
+				link = linkTo(cursor);
+				if (link == null || (node = insertAt(link, e)) == null)
+					throw new NoSuchElementException();
+			}
+			link = node.next;
+			cursor++;
+			lastRet = null;
+		}
+	}
+
 	/**
 	 * {@inheritDoc}
-	 * 
+	 *
 	 * <p>
-	 * Not Thread Safe
+	 * Thread Safe, weakly consistent. remove() is supported, unless entries
+	 * are recycled: the iterator then runs over a read-only snapshot.
 	 */
 	public Iterator<E> iterator() {
-		return new ListItr();
+		if (reclaimer != null)
+			return snapshot().iterator();
+		return new ListItr(head, 0);
 	}
 
 	/**
 	 * {@inheritDoc}
-	 * 
+	 *
 	 * <p>
-	 * Not Thread Safe
+	 * Thread Safe, weakly consistent. O(1) while the list is unchanged, O(n)
+	 * after a modification, and always O(n) if entries are recycled.
 	 */
 	public int size() {
-		int i = 0;
-		for (Iterator<E> iter = iterator(); iter.hasNext(); iter.next()) {
-			++i;
+		if (reclaimer != null) {
+			IReclaimer.Guard g = enter();
+			try {
+				return locate(Integer.MAX_VALUE, g).index;
+			} finally {
+				exit(g);
+			}
 		}
-		return i;
+		return index().size;
 	}
 
-	/*
-	 * Unsupported Operations. This is a lock-free implementation intended for
-	 * highly scalable add(), remove() and contains() which is thread safe. All
-	 * operations related to index cannot be thread-safe. They are not supported
-	 * in this class.
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Thread Safe. O(n) if index is past the end of the list.
 	 */
-
-	@Override
 	public void add(int index, E element) {
-		throw new UnsupportedOperationException();
+		checkPositionalUpdate();
+		if (null == element)
+			throw new NullPointerException();
+		if (reclaimer != null) {
+			addRecycled(index, element);
+			return;
+		}
+		while (true) {
+			AtomicMarkableReference<Entry<E>> link = linkTo(index);
+			if (link == null)
+				throw new IndexOutOfBoundsException("Index: " + index);
+			if (insertAt(link, element) != null)
+				return;
+		}
 	}
 
-	@Override
+	private void addRecycled(int index, E element) {
+		if (index < 0)
+			throw new IndexOutOfBoundsException("Index: " + index);
+		IReclaimer.Guard g = enter();
+		try {
+			Entry<E> node = newEntry(g, element);
+			while (true) {
+				ListStateHolder<E> holder = locate(index, g);
+				if (!holder.found && holder.index != index) {
+					g.recycle(Entry.KIND, node);
+					throw new IndexOutOfBoundsException("Index: " + index);
+				}
+				node.next.set(holder.cur, false);
+				if (holder.prev.compareAndSet(holder.cur, node, false, false)) {
+					structureChanged();
+					return;
+				}
+			}
+		} finally {
+			exit(g);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Thread Safe. The elements are inserted one by one, so other threads may
+	 * see a part of c.
+	 */
 	public boolean addAll(int index, Collection<? extends E> c) {
-		throw new UnsupportedOperationException();
+		checkPositionalUpdate();
+		if (index < 0)
+			throw new IndexOutOfBoundsException("Index: " + index);
+		if (reclaimer != null) {
+			for (E e : c)
+				add(index++, e);
+			return !c.isEmpty();
+		}
+		ListIterator<E> it = listIterator(index);
+		for (E e : c)
+			it.add(e);
+		return !c.isEmpty();
 	}
 
-	@Override
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Thread Safe
+	 */
 	public E get(int index) {
-		throw new UnsupportedOperationException();
+		if (reclaimer != null) {
+			IReclaimer.Guard g = enter();
+			try {
+				ListStateHolder<E> holder = (index < 0) ? null : locate(index,
+						g);
+				if (holder == null || !holder.found)
+					throw new IndexOutOfBoundsException("Index: " + index);
+				return holder.cur.element;
+			} finally {
+				exit(g);
+			}
+		}
+		Entry<E> e = entryAt(index);
+		if (e == null)
+			throw new IndexOutOfBoundsException("Index: " + index);
+		return e.element;
 	}
 
-	@Override
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Thread Safe. O(n).
+	 */
 	public int indexOf(Object o) {
-		throw new UnsupportedOperationException();
+		int i = 0;
+		for (Iterator<E> it = iterator(); it.hasNext(); i++) {
+			if (o != null && o.equals(it.next()))
+				return i;
+		}
+		return -1;
 	}
 
-	@Override
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Thread Safe. O(n), it always walks the whole list.
+	 */
 	public int lastIndexOf(Object o) {
-		throw new UnsupportedOperationException();
+		int i = 0, last = -1;
+		for (Iterator<E> it = iterator(); it.hasNext(); i++) {
+			if (o != null && o.equals(it.next()))
+				last = i;
+		}
+		return last;
 	}
 
-	@Override
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Thread Safe, weakly consistent.
+	 */
 	public ListIterator<E> listIterator() {
-		throw new UnsupportedOperationException();
+		if (reclaimer != null)
+			return snapshot().listIterator();
+		return new ListItr(head, 0);
 	}
 
-	@Override
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Thread Safe, weakly consistent.
+	 */
 	public ListIterator<E> listIterator(int index) {
-		throw new UnsupportedOperationException();
+		if (reclaimer != null)
+			return snapshot().listIterator(index);
+		AtomicMarkableReference<Entry<E>> link = linkTo(index);
+		if (link == null)
+			throw new IndexOutOfBoundsException("Index: " + index);
+		return new ListItr(link, index);
 	}
 
-	@Override
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Thread Safe. If another thread removes the entry first, the entry now
+	 * at index is removed instead.
+	 */
 	public E remove(int index) {
-		throw new UnsupportedOperationException();
+		if (reclaimer != null)
+			return removeRecycled(index);
+		while (true) {
+			Entry<E> e = entryAt(index);
+			if (e == null)
+				throw new IndexOutOfBoundsException("Index: " + index);
+			E element = e.element;
+			if (removeEntry(e, null))
+				return element;
+		}
+	}
+
+	private E removeRecycled(int index) {
+		if (index < 0)
+			throw new IndexOutOfBoundsException("Index: " + index);
+		IReclaimer.Guard g = enter();
+		try {
+			while (true) {
+				ListStateHolder<E> holder = locate(index, g);
+				if (!holder.found)
+					throw new IndexOutOfBoundsException("Index: " + index);
+				E element = holder.cur.element;
+				if (!holder.markRemoved())
+					continue;
+				if (holder.casPrev())
+					retire(g, holder.cur);
+				structureChanged();
+				return element;
+			}
+		} finally {
+			exit(g);
+		}
 	}
 
-	@Override
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Thread Safe. Each element is removed separately.
+	 */
 	public boolean removeAll(Collection<?> c) {
-		throw new UnsupportedOperationException();
+		boolean modified = false;
+		if (reclaimer != null) {
+			for (E e : snapshot()) {
+				if (c.contains(e) && remove(e))
+					modified = true;
+			}
+			return modified;
+		}
+		for (Iterator<E> it = iterator(); it.hasNext();) {
+			if (c.contains(it.next())) {
+				it.remove();
+				modified = true;
+			}
+		}
+		return modified;
 	}
 
-	@Override
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Thread Safe. Each element is removed separately.
+	 */
 	public boolean retainAll(Collection<?> c) {
-		throw new UnsupportedOperationException();
+		boolean modified = false;
+		if (reclaimer != null) {
+			for (E e : snapshot()) {
+				if (!c.contains(e) && remove(e))
+					modified = true;
+			}
+			return modified;
+		}
+		for (Iterator<E> it = iterator(); it.hasNext();) {
+			if (!c.contains(it.next())) {
+				it.remove();
+				modified = true;
+			}
+		}
+		return modified;
 	}
 
-	@Override
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Thread Safe
+	 */
+	@SuppressWarnings("unchecked")
 	public E set(int index, E element) {
-		throw new UnsupportedOperationException();
+		checkPositionalUpdate();
+		if (null == element)
+			throw new NullPointerException();
+		if (reclaimer != null) {
+			IReclaimer.Guard g = enter();
+			try {
+				ListStateHolder<E> holder = (index < 0) ? null : locate(index,
+						g);
+				if (holder == null || !holder.found)
+					throw new IndexOutOfBoundsException("Index: " + index);
+				return (E) elementUpdater.getAndSet(holder.cur, element);
+			} finally {
+				exit(g);
+			}
+		}
+		Entry<E> e = entryAt(index);
+		if (e == null)
+			throw new IndexOutOfBoundsException("Index: " + index);
+		return (E) elementUpdater.getAndSet(e, element);
 	}
 
-	@Override
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * The view is backed by this list through positional calls, so each of
+	 * its operations costs as much as the corresponding one on this list. Its
+	 * size only follows changes made through the view.
+	 */
 	public List<E> subList(int fromIndex, int toIndex) {
-		throw new UnsupportedOperationException();
+		if (fromIndex < 0 || toIndex > size() || fromIndex > toIndex)
+			throw new IndexOutOfBoundsException("fromIndex: " + fromIndex
+					+ ", toIndex: " + toIndex);
+		return new SubList<E>(this, fromIndex, toIndex - fromIndex);
+	}
+
+	/**
+	 * Positional view of a range of a LockFreeList.
+	 *
+	 * @param <E>
+	 *            type of element
+	 */
+	private static final class SubList<E> extends AbstractList<E> {
+		private final LockFreeList<E> list;
+		private final int offset;
+		private int size;
+
+		SubList(LockFreeList<E> list, int offset, int size) {
+			this.list = list;
+			this.offset = offset;
+			this.size = size;
+		}
+
+		private void rangeCheck(int index, int limit) {
+			if (index < 0 || index >= limit)
+				throw new IndexOutOfBoundsException("Index: " + index);
+		}
+
+		public E get(int index) {
+			rangeCheck(index, size);
+			return list.get(offset + index);
+		}
+
+		public E set(int index, E element) {
+			rangeCheck(index, size);
+			return list.set(offset + index, element);
+		}
+
+		public void add(int index, E element) {
+			rangeCheck(index, size + 1);
+			list.add(offset + index, element);
+			size++;
+		}
+
+		public E remove(int index) {
+			rangeCheck(index, size);
+			E e = list.remove(offset + index);
+			size--;
+			return e;
+		}
+
+		public int size() {
+			return size;
+		}
 	}
 
-	@Override
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Thread Safe, weakly consistent.
+	 */
 	public Object[] toArray() {
-		throw new UnsupportedOperationException();
+		ArrayList<E> copy = new ArrayList<E>();
+		for (E e : this)
+			copy.add(e);
+		return copy.toArray();
 	}
 
-	@Override
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Thread Safe, weakly consistent.
+	 */
 	public <T> T[] toArray(T[] a) {
-		throw new UnsupportedOperationException();
+		ArrayList<E> copy = new ArrayList<E>();
+		for (E e : this)
+			copy.add(e);
+		return copy.toArray(a);
 	}
 
-	@Override
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Thread Safe. Elements are added one by one with add(E).
+	 */
 	public boolean addAll(Collection<? extends E> c) {
-		throw new UnsupportedOperationException();
+		for (E e : c)
+			add(e);
+		return !c.isEmpty();
 	}
 
-	@Override
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Thread Safe
+	 */
 	public boolean containsAll(Collection<?> c) {
-		throw new UnsupportedOperationException();
+		for (Object o : c) {
+			if (!contains(o))
+				return false;
+		}
+		return true;
 	}
 }
@@ -0,0 +1,587 @@
+/*
+ * Copyright (c) 2008 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.amino.ds.lockfree;
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import org.amino.utility.Parallel;
+import org.amino.utility.ParallelType;
+
+/**
+ * A lock-free hash set of primitive <code>long</code> keys. It uses the same
+ * split-ordered list as {@link LockFreeSet}, but keys are stored in the nodes
+ * directly, together with their precomputed split-order key. Neither
+ * <code>add()</code>, <code>contains()</code> nor <code>remove()</code> boxes
+ * the key.
+ *
+ * <p>
+ * Links are plain volatile fields updated by CAS. A node is deleted by
+ * appending a marker node after it, as in
+ * {@link java.util.concurrent.ConcurrentSkipListMap}, instead of wrapping
+ * every link in an {@link java.util.concurrent.atomic.AtomicMarkableReference}.
+ * So <code>add()</code> allocates exactly one node, <code>remove()</code>
+ * allocates one marker and <code>contains()</code> allocates nothing.
+ * </p>
+ *
+ * @see LockFreeSet
+ * @see LockFreeIntSet
+ */
+public class LockFreeLongSet {
+	private static final float DEFAULT_LOAD_FACTOR = 0.75f;
+	private static final int DEFAULT_SIZE = 512;
+	private static final int MINIMAL_SIZE = 64;
+	private static final int MAXIMAL_SEGMENT_SIZE = 1 << 16;
+
+	/**
+	 * The maximal number of dummy nodes is <code>1<< MAX_BUCKET_LOG2</code>.
+	 */
+	static final int MAX_BUCKET_LOG2 = 30;
+
+	/**
+	 * The initial number of dummy nodes is <code>1<< N_INIT_BUCKET</code>.
+	 */
+	static final int N_INIT_BUCKET = 6;
+
+	/**
+	 * Node of the internal list. Dummy nodes have an even split-order key,
+	 * which is the binary reversal of their bucket index. Nodes holding keys
+	 * have an odd one.
+	 */
+	static final class Node {
+		/**
+		 * Key of the node, zero for dummy nodes and markers.
+		 */
+		final long key;
+
+		/**
+		 * Split-order key, compared as an unsigned integer.
+		 */
+		final int soKey;
+
+		/**
+		 * True if this node is a deletion marker of its predecessor.
+		 */
+		final boolean marker;
+
+		/**
+		 * Pointer to the next node.
+		 */
+		volatile Node next;
+
+		/**
+		 * @param key
+		 *            key of the node
+		 * @param soKey
+		 *            split-order key
+		 * @param next
+		 *            the next node
+		 */
+		Node(long key, int soKey, Node next) {
+			this.key = key;
+			this.soKey = soKey;
+			this.marker = false;
+			this.next = next;
+		}
+
+		/**
+		 * Create a marker.
+		 *
+		 * @param next
+		 *            the successor of the deleted node
+		 */
+		Node(Node next) {
+			this.key = 0;
+			this.soKey = 0;
+			this.marker = true;
+			this.next = next;
+		}
+
+		/**
+		 * @return true if this node has been deleted
+		 */
+		boolean isDeleted() {
+			Node f = next;
+			return f != null && f.marker;
+		}
+
+		/**
+		 * @return true if this node holds a key
+		 */
+		boolean isRegular() {
+			return (soKey & 1) != 0;
+		}
+
+		/**
+		 * @param cmp
+		 *            expected value
+		 * @param val
+		 *            new value
+		 * @return true if cas is successful, otherwise false
+		 */
+		boolean casNext(Node cmp, Node val) {
+			return nextUpdater.compareAndSet(this, cmp, val);
+		}
+
+		/**
+		 * Compare this node with a split-order key and a key.
+		 *
+		 * @param so
+		 *            split-order key
+		 * @param k
+		 *            key
+		 * @return -1 if this node sorts before, 0 if equal, otherwise 1
+		 */
+		int compareTo(int so, long k) {
+			if (soKey != so)
+				return (soKey ^ Integer.MIN_VALUE) < (so ^ Integer.MIN_VALUE) ? -1
+						: 1;
+			if (key == k)
+				return 0;
+			return key < k ? -1 : 1;
+		}
+	}
+
+	private static final AtomicReferenceFieldUpdater<Node, Node> nextUpdater = AtomicReferenceFieldUpdater
+			.newUpdater(Node.class, Node.class, "next");
+
+	private final float loadFactor;
+
+	/**
+	 * Size of each segment.
+	 */
+	private final int segmentSize;
+
+	private final int segmentBit;
+
+	/**
+	 * Dummy node of each bucket, laid out in segments of growing size as in
+	 * {@link LockFreeSet}.
+	 */
+	private volatile AtomicReferenceArray<AtomicReferenceArray<Node>> segments;
+
+	/**
+	 * The current number of buckets is 2^bucketSizeLog2.
+	 */
+	private volatile AtomicInteger bucketSizeLog2;
+
+	/**
+	 * element number of the set.
+	 */
+	private volatile AtomicInteger totalElement;
+
+	/**
+	 * Create a new set with explicitly specified expected size and load factor.
+	 *
+	 * @param expectedSize
+	 *            the estimated size of set
+	 * @param loadFactor
+	 *            average load factor. Number of dummy nodes will expand 2X if
+	 *            the actual load factor is higher than this parameter.
+	 */
+	public LockFreeLongSet(int expectedSize, float loadFactor) {
+		this.loadFactor = loadFactor;
+
+		if (expectedSize < MINIMAL_SIZE)
+			expectedSize = MINIMAL_SIZE;
+		if (expectedSize > MAXIMAL_SEGMENT_SIZE)
+			expectedSize = MAXIMAL_SEGMENT_SIZE;
+		int size = Integer.highestOneBit(expectedSize);
+		if (size < expectedSize)
+			size = size << 1;
+		segmentSize = size;
+		segmentBit = Integer.numberOfTrailingZeros(segmentSize);
+
+		initInternal();
+	}
+
+	/**
+	 * @param expectedSize
+	 *            expected set size.
+	 */
+	public LockFreeLongSet(int expectedSize) {
+		this(expectedSize, DEFAULT_LOAD_FACTOR);
+	}
+
+	/**
+	 * Create a new set. The default expected size is 512. And load factor
+	 * defaults to 0.75f
+	 */
+	public LockFreeLongSet() {
+		this(DEFAULT_SIZE, DEFAULT_LOAD_FACTOR);
+	}
+
+	private void initInternal() {
+		AtomicReferenceArray<AtomicReferenceArray<Node>> segs = new AtomicReferenceArray<AtomicReferenceArray<Node>>(
+				MAX_BUCKET_LOG2 + 1 - segmentBit);
+		AtomicReferenceArray<Node> segment = new AtomicReferenceArray<Node>(
+				segmentSize);
+		segs.set(0, segment);
+
+		// The first dummy node is parent or ancestor of all other dummy nodes
+		Node first = new Node(0, 0, null);
+		segment.set(0, first);
+		for (int i = 1; i < 1 << N_INIT_BUCKET; i++)
+			segment.set(i, insertDummy(segment.get(i ^ Integer.highestOneBit(i)),
+					Integer.reverse(i)));
+
+		totalElement = new AtomicInteger(0);
+		bucketSizeLog2 = new AtomicInteger(N_INIT_BUCKET);
+		segments = segs;
+	}
+
+	/**
+	 * Hash function. The result is treated as an already reversed hash, so its
+	 * high bits select the bucket. This is why the key is mixed thoroughly
+	 * here: sequential ids would otherwise only differ in the low bits.
+	 *
+	 * @param key
+	 *            key to hash
+	 * @return hash of key
+	 */
+	static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	/**
+	 * Find the dummy node of the bucket of <code>hash</code>, creating it if
+	 * necessary.
+	 *
+	 * @param hash
+	 *            hash value of working element
+	 * @return the dummy node
+	 */
+	private Node bucketAt(int hash) {
+		int bucket = Integer.reverse(hash) & ((1 << bucketSizeLog2.get()) - 1);
+		Node dummy = getDummy(bucket);
+		if (dummy != null)
+			return dummy;
+		return initBucket(bucket);
+	}
+
+	/**
+	 * @param bucket
+	 *            index of a bucket
+	 * @return index of the segment holding the bucket
+	 */
+	private int segmentOf(int bucket) {
+		if (bucket < segmentSize)
+			return 0;
+		return 32 - Integer.numberOfLeadingZeros(bucket) - segmentBit;
+	}
+
+	/**
+	 * @param bucket
+	 *            index of a bucket
+	 * @return index of the bucket inside its segment
+	 */
+	private int indexInSegment(int bucket) {
+		if (bucket < segmentSize)
+			return bucket;
+		return bucket ^ Integer.highestOneBit(bucket);
+	}
+
+	private Node getDummy(int bucket) {
+		AtomicReferenceArray<Node> seg = segments.get(segmentOf(bucket));
+		if (seg == null)
+			return null;
+		return seg.get(indexInSegment(bucket));
+	}
+
+	/**
+	 * Insert the dummy node of <code>bucket</code> after the dummy node of its
+	 * parent, initializing the parent first if necessary.
+	 *
+	 * @param bucket
+	 *            index of a bucket other than 0
+	 * @return the dummy node
+	 */
+	private Node initBucket(int bucket) {
+		int parent = bucket ^ Integer.highestOneBit(bucket);
+		Node pDummy = getDummy(parent);
+		if (pDummy == null)
+			pDummy = initBucket(parent);
+
+		Node dummy = insertDummy(pDummy, Integer.reverse(bucket));
+
+		int segment = segmentOf(bucket);
+		AtomicReferenceArray<Node> seg = segments.get(segment);
+		if (seg == null) {
+			seg = new AtomicReferenceArray<Node>(segment == 0 ? segmentSize
+					: segmentSize << (segment - 1));
+			if (!segments.compareAndSet(segment, null, seg))
+				seg = segments.get(segment);
+		}
+		seg.compareAndSet(indexInSegment(bucket), null, dummy);
+		return dummy;
+	}
+
+	/**
+	 * Insert a dummy node unless there is one with the same key already.
+	 *
+	 * @param start
+	 *            dummy node of the parent bucket
+	 * @param so
+	 *            split-order key of the dummy node
+	 * @return the dummy node in the list
+	 */
+	private Node insertDummy(Node start, int so) {
+		Node z = null;
+		retry: while (true) {
+			Node b = start;
+			Node n = b.next;
+			while (true) {
+				if (n != null) {
+					Node f = n.next;
+					if (f != null && f.marker) {
+						if (!b.casNext(n, f.next))
+							continue retry;
+						n = f.next;
+						continue;
+					}
+					int c = n.compareTo(so, 0);
+					if (c == 0)
+						return n;
+					if (c < 0) {
+						b = n;
+						n = f;
+						continue;
+					}
+				}
+
+				if (z == null)
+					z = new Node(0, so, n);
+				else
+					z.next = n;
+				if (b.casNext(n, z))
+					return z;
+				continue retry;
+			}
+		}
+	}
+
+	/**
+	 * Adds the key to the set.
+	 *
+	 * @param key
+	 *            key to add
+	 * @return true if the set didn't contain the key
+	 */
+	@Parallel(ParallelType.LockFree)
+	public boolean add(long key) {
+		int hash = hash(key);
+		int so = hash | 1;
+		Node start = bucketAt(hash);
+		Node z = null;
+
+		retry: while (true) {
+			Node b = start;
+			Node n = b.next;
+			while (true) {
+				if (n != null) {
+					Node f = n.next;
+					if (f != null && f.marker) {
+						// help remove a marked node
+						if (!b.casNext(n, f.next))
+							continue retry;
+						n = f.next;
+						continue;
+					}
+					int c = n.compareTo(so, key);
+					if (c == 0)
+						return false;
+					if (c < 0) {
+						b = n;
+						n = f;
+						continue;
+					}
+				}
+
+				if (z == null)
+					z = new Node(key, so, n);
+				else
+					z.next = n;
+				if (b.casNext(n, z))
+					break retry;
+				// Retry if CAS is not success
+				continue retry;
+			}
+		}
+
+		int total = totalElement.incrementAndGet();
+		int bSize = bucketSizeLog2.get();
+		int cSize = 1 << bSize;
+
+		// expand number of dummy nodes
+		if (total > cSize * loadFactor && bSize < MAX_BUCKET_LOG2)
+			bucketSizeLog2.compareAndSet(bSize, bSize + 1);
+		return true;
+	}
+
+	/**
+	 * @param key
+	 *            key whose presence in this set is to be tested
+	 * @return true if the set contains the key
+	 */
+	@Parallel(ParallelType.LockFree)
+	public boolean contains(long key) {
+		int hash = hash(key);
+		int so = hash | 1;
+		Node n = bucketAt(hash).next;
+
+		while (n != null) {
+			Node f = n.next;
+			if (f != null && f.marker) {
+				n = f.next;
+				continue;
+			}
+			int c = n.compareTo(so, key);
+			if (c == 0)
+				return true;
+			if (c > 0)
+				return false;
+			n = f;
+		}
+		return false;
+	}
+
+	/**
+	 * Removes the key from the set.
+	 *
+	 * @param key
+	 *            key to remove
+	 * @return true if the set contained the key
+	 */
+	@Parallel(ParallelType.LockFree)
+	public boolean remove(long key) {
+		int hash = hash(key);
+		int so = hash | 1;
+		Node start = bucketAt(hash);
+		Node m = null;
+
+		retry: while (true) {
+			Node b = start;
+			Node n = b.next;
+			while (true) {
+				if (n == null)
+					return false;
+				Node f = n.next;
+				if (f != null && f.marker) {
+					if (!b.casNext(n, f.next))
+						continue retry;
+					n = f.next;
+					continue;
+				}
+				int c = n.compareTo(so, key);
+				if (c > 0)
+					return false;
+				if (c < 0) {
+					b = n;
+					n = f;
+					continue;
+				}
+
+				// Appending the marker completes the removal logically.
+				if (m == null)
+					m = new Node(f);
+				else
+					m.next = f;
+				if (!n.casNext(f, m))
+					continue retry;
+				totalElement.decrementAndGet();
+
+				// It doesn't matter if this fails, the next traversal passing
+				// by will unlink the node.
+				b.casNext(n, f);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return number of keys in the set
+	 */
+	@Parallel(ParallelType.LockFree)
+	public int size() {
+		return totalElement.get();
+	}
+
+	/**
+	 * @return true if the set is empty
+	 */
+	public boolean isEmpty() {
+		return totalElement.get() == 0;
+	}
+
+	/**
+	 * Removes all keys. Keys added concurrently may or may not survive.
+	 */
+	public void clear() {
+		initInternal();
+	}
+
+	/**
+	 * Returns a weakly consistent iterator over the keys, in no particular
+	 * order.
+	 *
+	 * @return an iterator over the keys
+	 */
+	public PrimitiveIterator.OfLong iterator() {
+		return new KeyItr(getDummy(0));
+	}
+
+	/**
+	 * Iterator walking the whole list and skipping dummy and deleted nodes.
+	 */
+	private static class KeyItr implements PrimitiveIterator.OfLong {
+		private Node next;
+
+		KeyItr(Node head) {
+			next = head;
+			advance();
+		}
+
+		private void advance() {
+			Node n = next.next;
+			while (n != null && (!n.isRegular() || n.isDeleted())) {
+				Node f = n.next;
+				n = (f != null && f.marker) ? f.next : f;
+			}
+			next = n;
+		}
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		public long nextLong() {
+			Node n = next;
+			if (n == null)
+				throw new NoSuchElementException();
+			advance();
+			return n.key;
+		}
+	}
+}
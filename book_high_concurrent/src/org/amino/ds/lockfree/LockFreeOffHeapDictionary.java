@@ -0,0 +1,761 @@
+/*
+ * Copyright (c) 2008 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.amino.ds.lockfree;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+import org.amino.mcas.UnsafeWrapper;
+import org.amino.utility.Parallel;
+import org.amino.utility.ParallelType;
+
+import sun.misc.Unsafe;
+
+/**
+ * A lock-free hash map from <code>long</code> keys to <code>long</code>
+ * values whose nodes live outside the Java heap. It is the split-ordered list
+ * of {@link LockFreeLongSet} laid out in direct or memory-mapped buffers: a
+ * link is the byte offset of the next node, and links, values and counters
+ * are changed by CAS on the buffer memory. However many keys it holds, the
+ * dictionary is a handful of objects to the GC.
+ *
+ * <p>
+ * The region starts with a header, followed by the bucket table, which holds
+ * the offset of each dummy node, and by nodes of {@value #NODE_SIZE} bytes.
+ * It is split into buffers of 1 GB, so it may exceed the 2 GB limit of a
+ * single buffer. A node is deleted by setting the low bit of its next link,
+ * as in Harris' list. Deleted nodes are not reused: the capacity given at
+ * creation bounds the number of insertions, not of live keys.
+ * </p>
+ *
+ * <p>
+ * A dictionary created on a file persists, and opening the file again maps
+ * the existing table instead of rebuilding it. Every change of the list is a
+ * single CAS, so the file is a valid table even after the process dies in
+ * the middle of an operation; only the size may be off, and it is recounted
+ * when a file that was not {@link #close() closed} is opened. Surviving a
+ * crash of the operating system needs {@link #flush()}. The file is written
+ * in the native byte order.
+ * </p>
+ *
+ * @see LockFreeLongSet
+ */
+public class LockFreeOffHeapDictionary implements Closeable {
+	private static final Unsafe UNSAFE = UnsafeWrapper.getUnsafe();
+
+	/**
+	 * Offset of the native address field of direct buffers.
+	 */
+	private static final long ADDRESS_OFFSET;
+
+	static {
+		try {
+			Field address = Buffer.class.getDeclaredField("address");
+			ADDRESS_OFFSET = UNSAFE.objectFieldOffset(address);
+		} catch (NoSuchFieldException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private static final float DEFAULT_LOAD_FACTOR = 0.75f;
+
+	/**
+	 * Identifies a dictionary file. Read in the wrong byte order, it does not
+	 * match.
+	 */
+	private static final long MAGIC = 0x414d494e4f4f4801L;
+
+	/*
+	 * Header fields. The magic number is written last when a region is
+	 * formatted, so a file whose formatting was interrupted is formatted
+	 * again.
+	 */
+	private static final long H_MAGIC = 0;
+	private static final long H_CAPACITY = 8;
+	private static final long H_CURSOR = 16;
+	private static final long H_SIZE = 24;
+	private static final long H_BUCKET_LOG2 = 32;
+	private static final long H_CLEAN = 40;
+	private static final int HEADER_SIZE = 64;
+
+	/**
+	 * Size of a node: next link, split-order key, key and value.
+	 */
+	static final int NODE_SIZE = 32;
+
+	private static final long N_NEXT = 0;
+	private static final long N_SOKEY = 8;
+	private static final long N_KEY = 16;
+	private static final long N_VALUE = 24;
+
+	private static final int CHUNK_SHIFT = 30;
+	private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+	/**
+	 * Low bit of a link, set once the node owning the link is deleted.
+	 */
+	private static final long MARK = 1L;
+
+	/**
+	 * Buffers backing the region, plus what is known about it before the
+	 * dictionary is constructed on top.
+	 */
+	private static final class Region {
+		final ByteBuffer[] chunks;
+		final FileChannel channel;
+		final long capacity;
+		final boolean formatted;
+
+		Region(ByteBuffer[] chunks, FileChannel channel, long capacity,
+				boolean formatted) {
+			this.chunks = chunks;
+			this.channel = channel;
+			this.capacity = capacity;
+			this.formatted = formatted;
+		}
+
+		static Region allocate(long capacity) {
+			long size = regionSize(capacity);
+			ByteBuffer[] chunks = new ByteBuffer[chunkCount(size)];
+			for (int i = 0; i < chunks.length; i++)
+				chunks[i] = ByteBuffer.allocateDirect(chunkLength(size, i));
+			return new Region(chunks, null, capacity, false);
+		}
+
+		static Region map(File file, long capacity) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			FileChannel channel = raf.getChannel();
+			try {
+				boolean formatted = false;
+				if (raf.length() >= HEADER_SIZE) {
+					ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE).order(
+							ByteOrder.nativeOrder());
+					channel.read(h, 0);
+					long magic = h.getLong((int) H_MAGIC);
+					if (magic == MAGIC) {
+						formatted = true;
+						capacity = h.getLong((int) H_CAPACITY);
+					} else if (magic != 0) {
+						throw new IOException(file
+								+ " is not a dictionary in native byte order");
+					}
+				}
+				checkCapacity(capacity);
+				long size = regionSize(capacity);
+				if (!formatted)
+					raf.setLength(size);
+				else if (raf.length() < size)
+					throw new IOException(file + " is truncated");
+				ByteBuffer[] chunks = new ByteBuffer[chunkCount(size)];
+				for (int i = 0; i < chunks.length; i++)
+					chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+							(long) i << CHUNK_SHIFT, chunkLength(size, i));
+				return new Region(chunks, channel, capacity, formatted);
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			} catch (RuntimeException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		private static int chunkCount(long size) {
+			return (int) ((size + CHUNK_MASK) >>> CHUNK_SHIFT);
+		}
+
+		private static int chunkLength(long size, int chunk) {
+			return (int) Math.min(size - ((long) chunk << CHUNK_SHIFT),
+					1L << CHUNK_SHIFT);
+		}
+	}
+
+	/**
+	 * Keeps the buffers, and so the memory at base, reachable.
+	 */
+	private final ByteBuffer[] chunks;
+
+	/**
+	 * Native address of each chunk.
+	 */
+	private final long[] base;
+
+	/**
+	 * Channel of the mapped file, or null.
+	 */
+	private final FileChannel channel;
+
+	private final float loadFactor;
+
+	/**
+	 * Number of insertions the region has room for.
+	 */
+	private final long capacity;
+
+	/**
+	 * The bucket table has 2^maxBucketLog2 slots.
+	 */
+	private final int maxBucketLog2;
+
+	/**
+	 * Offset of the first node, the dummy node of bucket 0.
+	 */
+	private final long firstNode;
+
+	/**
+	 * Offset past the last node.
+	 */
+	private final long end;
+
+	/**
+	 * Create a dictionary in direct buffers.
+	 *
+	 * @param capacity
+	 *            maximal number of insertions
+	 * @param loadFactor
+	 *            average load factor. Number of dummy nodes will expand 2X if
+	 *            the actual load factor is higher than this parameter.
+	 */
+	public LockFreeOffHeapDictionary(long capacity, float loadFactor) {
+		this(Region.allocate(checkCapacity(capacity)), loadFactor);
+	}
+
+	/**
+	 * Create a dictionary in direct buffers, with load factor 0.75f.
+	 *
+	 * @param capacity
+	 *            maximal number of insertions
+	 */
+	public LockFreeOffHeapDictionary(long capacity) {
+		this(capacity, DEFAULT_LOAD_FACTOR);
+	}
+
+	/**
+	 * Open the dictionary stored in a file, or create it there.
+	 *
+	 * @param file
+	 *            file holding the dictionary
+	 * @param capacity
+	 *            maximal number of insertions of a new dictionary; ignored if
+	 *            the file already holds one
+	 * @throws IOException
+	 *             if the file cannot be mapped or holds something else
+	 */
+	public LockFreeOffHeapDictionary(File file, long capacity)
+			throws IOException {
+		this(Region.map(file, capacity), DEFAULT_LOAD_FACTOR);
+	}
+
+	private LockFreeOffHeapDictionary(Region region, float loadFactor) {
+		if (!(loadFactor > 0))
+			throw new IllegalArgumentException("loadFactor: " + loadFactor);
+		this.loadFactor = loadFactor;
+		chunks = region.chunks;
+		channel = region.channel;
+		capacity = region.capacity;
+		maxBucketLog2 = maxBucketLog2(capacity);
+		firstNode = nodesStart(maxBucketLog2);
+		end = regionSize(capacity);
+		base = new long[chunks.length];
+		for (int i = 0; i < chunks.length; i++)
+			base[i] = UNSAFE.getLong(chunks[i], ADDRESS_OFFSET);
+
+		if (region.formatted)
+			reopen();
+		else
+			format();
+	}
+
+	private static long checkCapacity(long capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity: " + capacity);
+		return capacity;
+	}
+
+	/**
+	 * @return log2 of the number of buckets the table can grow to
+	 */
+	private static int maxBucketLog2(long capacity) {
+		long min = 1L << LockFreeLongSet.N_INIT_BUCKET;
+		int log2 = 64 - Long.numberOfLeadingZeros(Math.max(capacity, min) - 1);
+		return Math.min(log2, LockFreeLongSet.MAX_BUCKET_LOG2);
+	}
+
+	private static long nodesStart(int maxBucketLog2) {
+		long start = HEADER_SIZE + (8L << maxBucketLog2);
+		return (start + NODE_SIZE - 1) & -NODE_SIZE;
+	}
+
+	/**
+	 * @return bytes needed for the given capacity, including one dummy node
+	 *         per bucket
+	 */
+	private static long regionSize(long capacity) {
+		int log2 = maxBucketLog2(capacity);
+		return nodesStart(log2) + (capacity + (1L << log2)) * NODE_SIZE;
+	}
+
+	private long addr(long off) {
+		return base[(int) (off >>> CHUNK_SHIFT)] + (off & CHUNK_MASK);
+	}
+
+	private long getLong(long off) {
+		return UNSAFE.getLongVolatile(null, addr(off));
+	}
+
+	private void putLong(long off, long val) {
+		UNSAFE.putLongVolatile(null, addr(off), val);
+	}
+
+	/**
+	 * @param off
+	 *            offset of the word
+	 * @param cmp
+	 *            expected value
+	 * @param val
+	 *            new value
+	 * @return true if cas is successful, otherwise false
+	 */
+	private boolean cas(long off, long cmp, long val) {
+		return UNSAFE.compareAndSwapLong(null, addr(off), cmp, val);
+	}
+
+	private long next(long node) {
+		return getLong(node + N_NEXT);
+	}
+
+	/**
+	 * Compare a node with a split-order key and a key, as
+	 * {@link LockFreeLongSet}'s nodes do. The keys of a published node never
+	 * change, so they are read without ordering.
+	 *
+	 * @return -1 if the node sorts before, 0 if equal, otherwise 1
+	 */
+	private int compare(long node, int so, long k) {
+		int soKey = UNSAFE.getInt(addr(node + N_SOKEY));
+		if (soKey != so)
+			return (soKey ^ Integer.MIN_VALUE) < (so ^ Integer.MIN_VALUE) ? -1
+					: 1;
+		long key = UNSAFE.getLong(addr(node + N_KEY));
+		if (key == k)
+			return 0;
+		return key < k ? -1 : 1;
+	}
+
+	/**
+	 * Take a node from the unused part of the region. It is published by the
+	 * CAS that links it, which orders the plain writes made here.
+	 */
+	private long newNode(long key, int so, long value) {
+		while (true) {
+			long node = getLong(H_CURSOR);
+			if (node >= end)
+				throw new IllegalStateException("dictionary is full");
+			if (cas(H_CURSOR, node, node + NODE_SIZE)) {
+				long a = addr(node);
+				UNSAFE.putInt(a + N_SOKEY, so);
+				UNSAFE.putLong(a + N_KEY, key);
+				UNSAFE.putLong(a + N_VALUE, value);
+				return node;
+			}
+		}
+	}
+
+	private void format() {
+		long first = firstNode;
+		putLong(H_CAPACITY, capacity);
+		putLong(H_SIZE, 0);
+		putLong(H_BUCKET_LOG2, LockFreeLongSet.N_INIT_BUCKET);
+		putLong(H_CURSOR, first);
+		// the first dummy node is parent or ancestor of all other dummy nodes
+		putLong(newNode(0, 0, 0) + N_NEXT, 0);
+		putLong(bucketSlot(0), first);
+		for (int i = 1; i < 1 << LockFreeLongSet.N_INIT_BUCKET; i++)
+			putLong(bucketSlot(i), insertDummy(
+					getLong(bucketSlot(i ^ Integer.highestOneBit(i))), Integer
+							.reverse(i)));
+		putLong(H_CLEAN, 0);
+		putLong(H_MAGIC, MAGIC);
+	}
+
+	private void reopen() {
+		if (getLong(H_CLEAN) == 0) {
+			long n = 0;
+			for (PrimitiveIterator.OfLong it = keyIterator(); it.hasNext(); it
+					.nextLong())
+				n++;
+			putLong(H_SIZE, n);
+		}
+		putLong(H_CLEAN, 0);
+	}
+
+	private long bucketSlot(int bucket) {
+		return HEADER_SIZE + ((long) bucket << 3);
+	}
+
+	/**
+	 * Find the dummy node of the bucket of <code>hash</code>, creating it if
+	 * necessary.
+	 */
+	private long bucketAt(int hash) {
+		int bucket = Integer.reverse(hash)
+				& ((1 << (int) getLong(H_BUCKET_LOG2)) - 1);
+		long dummy = getLong(bucketSlot(bucket));
+		if (dummy != 0)
+			return dummy;
+		return initBucket(bucket);
+	}
+
+	private long initBucket(int bucket) {
+		int parent = bucket ^ Integer.highestOneBit(bucket);
+		long pDummy = getLong(bucketSlot(parent));
+		if (pDummy == 0)
+			pDummy = initBucket(parent);
+
+		long dummy = insertDummy(pDummy, Integer.reverse(bucket));
+		cas(bucketSlot(bucket), 0, dummy);
+		return dummy;
+	}
+
+	/**
+	 * Insert a dummy node unless there is one with the same key already.
+	 * Dummy nodes are never deleted.
+	 */
+	private long insertDummy(long start, int so) {
+		long z = 0;
+		retry: while (true) {
+			long b = start;
+			long n = next(b);
+			while (true) {
+				if (n != 0) {
+					long f = next(n);
+					if ((f & MARK) != 0) {
+						if (!cas(b + N_NEXT, n, f & ~MARK))
+							continue retry;
+						n = f & ~MARK;
+						continue;
+					}
+					int c = compare(n, so, 0);
+					if (c == 0)
+						return n;
+					if (c < 0) {
+						b = n;
+						n = f;
+						continue;
+					}
+				}
+
+				if (z == 0)
+					z = newNode(0, so, 0);
+				putLong(z + N_NEXT, n);
+				if (cas(b + N_NEXT, n, z))
+					return z;
+				continue retry;
+			}
+		}
+	}
+
+	/**
+	 * Maps key to value, replacing the value of a present key.
+	 *
+	 * @param key
+	 *            key
+	 * @param value
+	 *            value
+	 * @return true if the key was not present
+	 * @throws IllegalStateException
+	 *             if the key is new and the capacity is used up
+	 */
+	@Parallel(ParallelType.LockFree)
+	public boolean put(long key, long value) {
+		return insert(key, value, true);
+	}
+
+	/**
+	 * Maps key to value unless the key is present.
+	 *
+	 * @param key
+	 *            key
+	 * @param value
+	 *            value
+	 * @return true if the key was not present
+	 * @throws IllegalStateException
+	 *             if the key is new and the capacity is used up
+	 */
+	@Parallel(ParallelType.LockFree)
+	public boolean putIfAbsent(long key, long value) {
+		return insert(key, value, false);
+	}
+
+	private boolean insert(long key, long value, boolean replace) {
+		int hash = LockFreeLongSet.hash(key);
+		int so = hash | 1;
+		long start = bucketAt(hash);
+		long z = 0;
+
+		retry: while (true) {
+			long b = start;
+			long n = next(b);
+			while (true) {
+				if (n != 0) {
+					long f = next(n);
+					if ((f & MARK) != 0) {
+						// help remove a deleted node
+						if (!cas(b + N_NEXT, n, f & ~MARK))
+							continue retry;
+						n = f & ~MARK;
+						continue;
+					}
+					int c = compare(n, so, key);
+					if (c == 0) {
+						// a node z taken on an earlier round is lost; this
+						// takes a concurrent insertion of the same key
+						if (replace)
+							putLong(n + N_VALUE, value);
+						return false;
+					}
+					if (c < 0) {
+						b = n;
+						n = f;
+						continue;
+					}
+				}
+
+				if (z == 0)
+					z = newNode(key, so, value);
+				putLong(z + N_NEXT, n);
+				// fails as well if b has been deleted meanwhile
+				if (cas(b + N_NEXT, n, z))
+					break retry;
+				continue retry;
+			}
+		}
+
+		long total = UNSAFE.getAndAddLong(null, addr(H_SIZE), 1) + 1;
+		long bSize = getLong(H_BUCKET_LOG2);
+
+		// expand number of dummy nodes
+		if (total > (1L << bSize) * loadFactor && bSize < maxBucketLog2)
+			cas(H_BUCKET_LOG2, bSize, bSize + 1);
+		return true;
+	}
+
+	/**
+	 * @return offset of the live node holding key, or 0
+	 */
+	private long lookup(long key) {
+		int hash = LockFreeLongSet.hash(key);
+		int so = hash | 1;
+		long n = next(bucketAt(hash));
+
+		while (n != 0) {
+			long f = next(n);
+			if ((f & MARK) == 0) {
+				int c = compare(n, so, key);
+				if (c == 0)
+					return n;
+				if (c > 0)
+					return 0;
+			}
+			n = f & ~MARK;
+		}
+		return 0;
+	}
+
+	/**
+	 * @param key
+	 *            key whose presence is to be tested
+	 * @return true if the dictionary contains the key
+	 */
+	@Parallel(ParallelType.LockFree)
+	public boolean containsKey(long key) {
+		return lookup(key) != 0;
+	}
+
+	/**
+	 * @param key
+	 *            key
+	 * @param defaultValue
+	 *            value returned for an absent key
+	 * @return the value of key, or defaultValue
+	 */
+	@Parallel(ParallelType.LockFree)
+	public long getOrDefault(long key, long defaultValue) {
+		long n = lookup(key);
+		return (n == 0) ? defaultValue : getLong(n + N_VALUE);
+	}
+
+	/**
+	 * Removes the key. Its node keeps occupying the region.
+	 *
+	 * @param key
+	 *            key to remove
+	 * @return true if the dictionary contained the key
+	 */
+	@Parallel(ParallelType.LockFree)
+	public boolean remove(long key) {
+		int hash = LockFreeLongSet.hash(key);
+		int so = hash | 1;
+		long start = bucketAt(hash);
+
+		retry: while (true) {
+			long b = start;
+			long n = next(b);
+			while (true) {
+				if (n == 0)
+					return false;
+				long f = next(n);
+				if ((f & MARK) != 0) {
+					if (!cas(b + N_NEXT, n, f & ~MARK))
+						continue retry;
+					n = f & ~MARK;
+					continue;
+				}
+				int c = compare(n, so, key);
+				if (c > 0)
+					return false;
+				if (c < 0) {
+					b = n;
+					n = f;
+					continue;
+				}
+
+				// Marking the link completes the removal logically.
+				if (!cas(n + N_NEXT, f, f | MARK))
+					continue retry;
+				UNSAFE.getAndAddLong(null, addr(H_SIZE), -1);
+
+				// It doesn't matter if this fails, the next traversal passing
+				// by will unlink the node.
+				cas(b + N_NEXT, n, f);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return number of keys in the dictionary
+	 */
+	@Parallel(ParallelType.LockFree)
+	public long size() {
+		return getLong(H_SIZE);
+	}
+
+	/**
+	 * @return true if the dictionary is empty
+	 */
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * @return maximal number of insertions
+	 */
+	public long capacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return number of unused nodes. New keys and the dummy nodes of new
+	 *         buckets both draw from them.
+	 */
+	public long remainingNodes() {
+		return (end - getLong(H_CURSOR)) / NODE_SIZE;
+	}
+
+	/**
+	 * Returns a weakly consistent iterator over the keys, in no particular
+	 * order.
+	 *
+	 * @return an iterator over the keys
+	 */
+	public PrimitiveIterator.OfLong keyIterator() {
+		return new KeyItr();
+	}
+
+	/**
+	 * Iterator walking the whole list and skipping dummy and deleted nodes.
+	 */
+	private class KeyItr implements PrimitiveIterator.OfLong {
+		private long next = firstNode;
+
+		KeyItr() {
+			advance();
+		}
+
+		private void advance() {
+			long n = getLong(next + N_NEXT) & ~MARK;
+			while (n != 0) {
+				long f = getLong(n + N_NEXT);
+				if ((f & MARK) == 0
+						&& (UNSAFE.getInt(addr(n + N_SOKEY)) & 1) != 0)
+					break;
+				n = f & ~MARK;
+			}
+			next = n;
+		}
+
+		public boolean hasNext() {
+			return next != 0;
+		}
+
+		public long nextLong() {
+			long n = next;
+			if (n == 0)
+				throw new NoSuchElementException();
+			advance();
+			return UNSAFE.getLong(addr(n + N_KEY));
+		}
+	}
+
+	/**
+	 * Writes the changes of a dictionary stored in a file through to the
+	 * disk. Does nothing for a dictionary in direct buffers.
+	 */
+	public void flush() {
+		for (ByteBuffer chunk : chunks) {
+			if (chunk instanceof MappedByteBuffer)
+				((MappedByteBuffer) chunk).force();
+		}
+	}
+
+	/**
+	 * Marks a file as cleanly closed, so that opening it again does not
+	 * recount the size, flushes it and closes the file. The dictionary must
+	 * not be used afterwards. Must not run concurrently with updates.
+	 *
+	 * @throws IOException
+	 *             if closing the file fails
+	 */
+	public void close() throws IOException {
+		if (channel == null)
+			return;
+		putLong(H_CLEAN, 1);
+		flush();
+		channel.close();
+	}
+}
@@ -19,6 +19,8 @@ package org.amino.ds.lockfree;
 import java.util.Collection;
 import java.util.concurrent.atomic.AtomicMarkableReference;
 
+import org.amino.utility.IReclaimer;
+
 /**
  * This an implementation of a lock-free ordered linked list data structure. The
  * implementation is according to the paper <a
@@ -54,6 +56,18 @@ public class LockFreeOrderedList<E> extends LockFreeList<E> {
 		super();
 	}
 
+	/**
+	 * Creates a <tt>LockfreeList</tt> that is initially empty and reuses
+	 * removed entries.
+	 * 
+	 * @param reclaimer
+	 *            reclaimer through which removed entries are reused, see
+	 *            {@link LockFreeList#LockFreeList(IReclaimer)}
+	 */
+	public LockFreeOrderedList(IReclaimer reclaimer) {
+		super(reclaimer);
+	}
+
 	/**
 	 * Creates a <tt>LockfreeList</tt> initially containing the elements of
 	 * the given collection, added in traversal order of the collection's
@@ -67,21 +81,23 @@ public class LockFreeOrderedList<E> extends LockFreeList<E> {
 		addAll(c);
 	}
 
-	private boolean add(E e, AtomicMarkableReference<Entry<E>> start) {
+	private boolean add(E e, AtomicMarkableReference<Entry<E>> start,
+			IReclaimer.Guard g) {
 		// Create a new node
-		Entry<E> node = new Entry<E>(e);
+		Entry<E> node = newEntry(g, e);
 		ListStateHolder<E> holder = new ListStateHolder<E>();
 
 		while (true) {
 			// find the right position to insert
-			findByObject(e, start, holder);
+			findByObject(e, start, holder, g);
 
 			Entry<E> cur = holder.cur;
 			// make new node's next pointer point to next node
-			node.next = new AtomicMarkableReference<Entry<E>>(cur, false);
+			node.next.set(cur, false);
 
 			// change the next pointer of previous node to new node
 			if (holder.prev.compareAndSet(cur, node, false, false)) {
+				structureChanged();
 				return true;
 			}
 		}
@@ -102,7 +118,12 @@ public class LockFreeOrderedList<E> extends LockFreeList<E> {
 	public boolean add(E e) {
 		if (null == e)
 			throw new NullPointerException();
-		return add(e, head);
+		IReclaimer.Guard g = enter();
+		try {
+			return add(e, head, g);
+		} finally {
+			exit(g);
+		}
 	}
 
 	/**
@@ -118,12 +139,15 @@ public class LockFreeOrderedList<E> extends LockFreeList<E> {
 	 *            start position to find.
 	 * @param holder
 	 *            information of position found.
+	 * @param g
+	 *            guard of the calling thread, or null.
 	 * 
 	 * @return state holder of list
 	 */
 	@SuppressWarnings("unchecked")
 	private ListStateHolder<E> findByObject(Object o,
-			AtomicMarkableReference<Entry<E>> start, ListStateHolder<E> holder) {
+			AtomicMarkableReference<Entry<E>> start, ListStateHolder<E> holder,
+			IReclaimer.Guard g) {
 
 		/*
 		 * local variable for cache the position of pointers of previous node,
@@ -132,6 +156,7 @@ public class LockFreeOrderedList<E> extends LockFreeList<E> {
 		AtomicMarkableReference<Entry<E>> prev;
 		Entry<E> cur = null;
 		Entry<E> nextEntry = null;
+		boolean[] mark = holder.mark;
 
 		/*
 		 * Purpose of this loop is retry infinitly if CAS operation fails. It
@@ -143,6 +168,12 @@ public class LockFreeOrderedList<E> extends LockFreeList<E> {
 			/* start from the head of list */
 			prev = start;
 			cur = prev.getReference();
+			/* same hazard pointer protocol as LockFreeList */
+			if (validate) {
+				g.protect(HP_CUR, cur);
+				if (prev.getReference() != cur)
+					continue try_again;
+			}
 
 			/*
 			 * Purpose of this loop is find the expected element in the list. It
@@ -164,15 +195,24 @@ public class LockFreeOrderedList<E> extends LockFreeList<E> {
 				 * times of read a object field cur.next from twice to once.
 				 */
 				AtomicMarkableReference<Entry<E>> nextEntryRef = cur.next;
-				nextEntry = nextEntryRef.getReference();
+				nextEntry = nextEntryRef.get(mark);
+				boolean marked = mark[0];
+				if (validate) {
+					g.protect(HP_NEXT, nextEntry);
+					if ((nextEntryRef.get(mark) != nextEntry)
+							|| (mark[0] != marked))
+						continue try_again;
+				}
 				Comparable cKey = (Comparable) cur.element;
+				if (validate && ((prev.getReference() != cur) || prev.isMarked()))
+					continue try_again;
 				int cr = cKey.compareTo(o);
 
 				/*
 				 * If the node is marked, it means logically removed. Find
 				 * routine will help to remove it from the list physically
 				 */
-				if (nextEntryRef.isMarked()) {
+				if (marked) {
 					/*
 					 * In lock-free algorithm, threads will help to finish each
 					 * others' work. find() will help to finish remove()'s work
@@ -187,6 +227,7 @@ public class LockFreeOrderedList<E> extends LockFreeList<E> {
 						 */
 						continue try_again;
 					}
+					retire(g, cur);
 				} else {
 					/*
 					 * stop before the greater element. because the list is
@@ -217,13 +258,28 @@ public class LockFreeOrderedList<E> extends LockFreeList<E> {
 					} else {
 						/* make prev pointer move one node forward */
 						prev = nextEntryRef;
+						if (validate)
+							g.protect(HP_PREV, cur);
 					}
 				}
 
 				// move forward
 				cur = nextEntry;
+				if (validate)
+					g.protect(HP_CUR, cur);
 			}
 		}
 	}
 
+	/**
+	 * Elements are kept in ascending order, so they cannot be placed at a
+	 * given position or replaced in place.
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             always
+	 */
+	@Override
+	protected void checkPositionalUpdate() {
+		throw new UnsupportedOperationException();
+	}
 }
@@ -18,12 +18,18 @@ package org.amino.ds.lockfree;
 
 import java.util.ArrayList;
 import java.util.AbstractQueue;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.SortedSet;
 import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicMarkableReference;
 
+import org.amino.utility.FastRandom;
+
 /**
  * It is a thread-safe and lock-free queue. This lock free priority queue
  * implementation, which based on the algorithm defined in the follwoing paper:
@@ -134,7 +140,22 @@ public class LockFreePriorityQueue<E> extends AbstractQueue<E> {
     private class PQueueIterator implements Iterator<E> {
 
         // FIXME why use default access level here
-        Node<E> cursor = head.next.get(0).getReference();
+        Node<E> cursor = advance(head, null);
+
+        /**
+         * Moves past n to the next node that is not being deleted. readNext
+         * may step back to a predecessor while helping a deletion, so nodes
+         * not above the last returned element are skipped as well.
+         */
+        private Node<E> advance(Node<E> n, E last) {
+            n = readNext(n, 0).n2;
+            while ((n != tail)
+                    && (n.data.isMarked() || ((last != null) && (compare(n.data
+                            .getReference(), last) <= 0)))) {
+                n = readNext(n, 0).n2;
+            }
+            return n;
+        }
 
         /**
          * {@inheritDoc}
@@ -151,7 +172,7 @@ public class LockFreePriorityQueue<E> extends AbstractQueue<E> {
                 throw new NoSuchElementException();
 
             E result = cursor.data.getReference();
-            cursor = cursor.next.get(0).getReference();
+            cursor = advance(cursor, result);
             return result;
         }
 
@@ -191,27 +212,140 @@ public class LockFreePriorityQueue<E> extends AbstractQueue<E> {
 
     private final Comparator<? super E> comparator;
 
+    /**
+     * Maximal number of elements, Integer.MAX_VALUE when unbounded.
+     */
+    private final int capacity;
+
+    /**
+     * Number of elements plus in-flight offers in bounded mode. Null when the
+     * queue is unbounded, so that the unbounded queue pays for no counter.
+     */
+    private final AtomicInteger count;
+
+    private final Object putQueue_ = new Object();
+    private volatile int putQueueLen_ = 0;
+
+    /**
+     * Upper bound of one wait in put(), so a lost notification only delays a
+     * producer instead of blocking it forever.
+     */
+    private static final long WAIT_DURATION = 1000;
+
     /**
      * default constructor.
      */
     public LockFreePriorityQueue() {
+        this(Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * @param cmp
+     *            customized comparator
+     */
+    public LockFreePriorityQueue(Comparator<? super E> cmp) {
+        this(Integer.MAX_VALUE, cmp);
+    }
+
+    /**
+     * Creates a bounded queue. {@link #offer(Object)} rejects an element when
+     * the queue is full, {@link #put(Object)} waits for space.
+     * 
+     * @param capacity
+     *            maximal number of elements
+     */
+    public LockFreePriorityQueue(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * Creates a bounded queue ordered by cmp.
+     * 
+     * @param capacity
+     *            maximal number of elements, Integer.MAX_VALUE for an
+     *            unbounded queue
+     * @param cmp
+     *            customized comparator
+     */
+    public LockFreePriorityQueue(int capacity, Comparator<? super E> cmp) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException();
         for (int i = 0; i < MAXLEVEL; i++) {
             head.next.add(new AtomicMarkableReference<Node<E>>(tail, false));
         }
 
-        comparator = null;
+        comparator = cmp;
+        this.capacity = capacity;
+        count = (capacity == Integer.MAX_VALUE) ? null : new AtomicInteger();
     }
 
     /**
+     * Bulk-loads a queue from elements sorted by their natural order. The
+     * skip-list towers are laid out directly in one pass instead of running
+     * the concurrent insert for every element.
+     * 
+     * @param sorted
+     *            elements in ascending order; equal elements collapse into one,
+     *            as they do in {@link #add(Object)}
+     */
+    public LockFreePriorityQueue(Iterator<? extends E> sorted) {
+        this(sorted, null);
+    }
+
+    /**
+     * Bulk-loads a queue from elements sorted by cmp.
+     * 
+     * @param sorted
+     *            elements in ascending order
      * @param cmp
      *            customized comparator
      */
-    public LockFreePriorityQueue(Comparator<? super E> cmp) {
+    public LockFreePriorityQueue(Iterator<? extends E> sorted,
+            Comparator<? super E> cmp) {
+        this(cmp);
+        bulkLoad(sorted);
+    }
+
+    /**
+     * Appends each element at the end of every level it reaches. The queue is
+     * not shared yet, so plain sets are enough. Heights come from the
+     * trailing zeros of the element's position rather than from
+     * randomLevel(), which yields the ideal tower distribution.
+     */
+    private void bulkLoad(Iterator<? extends E> sorted) {
+        ArrayList<Node<E>> last = new ArrayList<Node<E>>(MAXLEVEL);
         for (int i = 0; i < MAXLEVEL; i++) {
-            head.next.add(new AtomicMarkableReference<Node<E>>(tail, false));
+            last.add(head);
         }
 
-        comparator = cmp;
+        Node<E> prev = null;
+        int count = 0;
+        while (sorted.hasNext()) {
+            E d = sorted.next();
+            if (d == null)
+                throw new NullPointerException();
+            if (prev != null) {
+                int c = compare(d, prev.data.getReference());
+                if (c < 0)
+                    throw new IllegalArgumentException(
+                            "elements are not in ascending order");
+                if (c == 0) {
+                    prev.data.set(d, false);
+                    continue;
+                }
+            }
+
+            int h = Math.min(MAXLEVEL - 1, 1 + Integer
+                    .numberOfTrailingZeros(++count));
+            Node<E> n = new Node<E>(h, d);
+            for (int i = 0; i < h; i++) {
+                n.next.add(new AtomicMarkableReference<Node<E>>(tail, false));
+                last.get(i).next.get(i).set(n, false);
+                last.set(i, n);
+            }
+            n.validLevel = h;
+            prev = n;
+        }
     }
 
     /**
@@ -231,7 +365,12 @@ public class LockFreePriorityQueue<E> extends AbstractQueue<E> {
      * {@inheritDoc}
      */
     public E peek() {
-        return head.next.get(0).getReference().data.getReference();
+        // skip nodes that poll() has claimed but not unlinked yet
+        Node<E> n = readNext(head, 0).n2;
+        while ((n != tail) && n.data.isMarked()) {
+            n = readNext(n, 0).n2;
+        }
+        return (n == tail) ? null : n.data.getReference();
     }
 
     /**
@@ -240,7 +379,108 @@ public class LockFreePriorityQueue<E> extends AbstractQueue<E> {
     public boolean offer(E e) {
     	if (e == null)
 			throw new NullPointerException();
-        return add(e);
+        if (count == null) {
+            insert(e);
+            return true;
+        }
+        if (!reserve())
+            return false;
+        if (!insert(e))
+            release(1);
+        return true;
+    }
+
+    /**
+     * Inserts an element, waiting for space if the queue is bounded and full.
+     * 
+     * @param e
+     *            element
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public void put(E e) throws InterruptedException {
+        while (!offer(e)) {
+            waitPut_(WAIT_DURATION);
+        }
+    }
+
+    /**
+     * Inserts an element, waiting up to timeout for space if the queue is
+     * bounded and full.
+     * 
+     * @param e
+     *            element
+     * @param timeout
+     *            how long to wait
+     * @param unit
+     *            unit of timeout
+     * @return false if no space became available in time
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public boolean offer(E e, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!offer(e)) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0)
+                return false;
+            waitPut_(Math.max(1, TimeUnit.NANOSECONDS.toMillis(left)));
+        }
+        return true;
+    }
+
+    /**
+     * @return maximal number of elements, Integer.MAX_VALUE if unbounded
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of elements that can still be offered without being
+     *         rejected, Integer.MAX_VALUE if unbounded
+     */
+    public int remainingCapacity() {
+        return (count == null) ? Integer.MAX_VALUE : capacity - count.get();
+    }
+
+    private boolean reserve() {
+        int c;
+        do {
+            c = count.get();
+            if (c >= capacity)
+                return false;
+        } while (!count.compareAndSet(c, c + 1));
+        return true;
+    }
+
+    private void release(int n) {
+        count.addAndGet(-n);
+        notifyPut_();
+    }
+
+    private void notifyPut_() {
+        if (putQueueLen_ > 0) {
+            synchronized (putQueue_) {
+                putQueue_.notifyAll();
+            }
+        }
+    }
+
+    private void waitPut_(long timeout) throws InterruptedException {
+        synchronized (putQueue_) {
+            putQueueLen_++;
+            try {
+                // putQueueLen_ is published before count is read, and
+                // release() updates count before reading putQueueLen_, so
+                // either we see the space or the releaser sees us
+                if (count.get() >= capacity)
+                    putQueue_.wait(timeout);
+            } finally {
+                putQueueLen_--;
+            }
+        }
     }
 
     /**
@@ -254,7 +494,153 @@ public class LockFreePriorityQueue<E> extends AbstractQueue<E> {
      * {@inheritDoc}
      */
     public E poll() {
-        return deleteMin();
+        E val = deleteMin();
+        if ((val != null) && (count != null))
+            release(1);
+        return val;
+    }
+
+    /**
+     * Removes the element that compares equal to o. Equal elements never
+     * coexist in this queue, so the node is located with one top-down search
+     * and removal costs O(log n) instead of a scan.
+     * 
+     * @param o
+     *            element to remove
+     * @return true if an element was removed
+     */
+    @SuppressWarnings("unchecked")
+    public boolean remove(Object o) {
+        if (o == null)
+            return false;
+        Node<E> probe = new Node<E>(0, (E) o);
+        Node<E> n1 = head;
+        for (int i = MAXLEVEL - 1; i >= 1; i--) {
+            n1 = scanKey(n1, i, probe).n1;
+        }
+        while (true) {
+            NodePair<E> tn1 = scanKey(n1, 0, probe);
+            n1 = tn1.n1;
+            Node<E> n2 = tn1.n2;
+            if ((n2 == tail)
+                    || (compare(probe.data.getReference(), n2.data
+                            .getReference()) != 0) || n2.data.isMarked())
+                return false;
+            E val = n2.data.getReference();
+            if (n2.data.compareAndSet(val, val, false, true)) {
+                n2.prev = n1;
+                unlink(n2);
+                if (count != null)
+                    release(1);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Removes up to max of the smallest elements in a single traversal of the
+     * bottom level and adds them to c in ascending order. Every node is
+     * claimed by the same CAS poll() uses, so no element is handed out twice,
+     * but an element inserted behind the traversal may be smaller than the
+     * ones returned.
+     * 
+     * @param max
+     *            maximal number of elements to remove
+     * @param c
+     *            collection receiving the elements
+     * @return number of elements removed
+     */
+    public int pollBatch(int max, Collection<? super E> c) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+
+        ArrayList<Node<E>> claimed = new ArrayList<Node<E>>();
+        Node<E> n = readNext(head, 0).n2;
+        while ((claimed.size() < max) && (n != tail)) {
+            E val = n.data.getReference();
+            if (!n.data.isMarked()
+                    && n.data.compareAndSet(val, val, false, true)) {
+                n.prev = head;
+                claimed.add(n);
+            }
+            Node<E> next = n.next.get(0).getReference();
+            // a helper already unlinked n, start over from the front
+            n = (next != null) ? next : readNext(head, 0).n2;
+        }
+
+        for (Node<E> d : claimed) {
+            unlink(d);
+        }
+        if ((count != null) && !claimed.isEmpty())
+            release(claimed.size());
+        for (Node<E> d : claimed) {
+            c.add(d.data.getReference());
+        }
+        return claimed.size();
+    }
+
+    /**
+     * Number of threads the relaxed poll spreads over.
+     */
+    private static final int SPRAY_LOG_P = 32 - Integer
+            .numberOfLeadingZeros(Runtime.getRuntime().availableProcessors() - 1);
+    /**
+     * Level the spray walk starts from.
+     */
+    private static final int SPRAY_HEIGHT = Math.min(MAXLEVEL - 1,
+            SPRAY_LOG_P + 1);
+    /**
+     * Maximal number of forward steps on each level.
+     */
+    private static final int SPRAY_JUMP = SPRAY_LOG_P + 1;
+    /**
+     * Spray walks tried before falling back to poll().
+     */
+    private static final int SPRAY_ATTEMPTS = 4;
+
+    /**
+     * Removes an element close to, but not necessarily at, the head of the
+     * queue. Following the SprayList idea, the caller takes a short random
+     * walk down from an upper level and claims the node it lands on. With p
+     * processors it lands among the first O(p log p) elements, so concurrent
+     * pollers do not all fight over the first node.
+     * 
+     * @return a small element, or null if the queue is empty
+     */
+    public E pollRelaxed() {
+        if (SPRAY_LOG_P == 0)
+            return poll();
+
+        for (int attempt = 0; attempt < SPRAY_ATTEMPTS; attempt++) {
+            Node<E> n = head;
+            for (int i = SPRAY_HEIGHT - 1; i >= 0; i--) {
+                for (int j = FastRandom.localNextInt(SPRAY_JUMP + 1); j > 0; j--) {
+                    Node<E> next = n.next.get(i).getReference();
+                    if ((next == null) || (next == tail))
+                        break;
+                    n = next;
+                }
+            }
+            if (n == head)
+                n = head.next.get(0).getReference();
+            while ((n != null) && (n != tail) && n.data.isMarked()) {
+                n = n.next.get(0).getReference();
+            }
+            if ((n == null) || (n == tail))
+                break;
+
+            E val = n.data.getReference();
+            if (n.data.compareAndSet(val, val, false, true)) {
+                n.prev = head;
+                unlink(n);
+                if (count != null)
+                    release(1);
+                return val;
+            }
+        }
+        return poll();
     }
 
     /**
@@ -430,9 +816,11 @@ public class LockFreePriorityQueue<E> extends AbstractQueue<E> {
     }
 
     /**
-     * {@inheritDoc}
+     * @param d
+     *            element
+     * @return false if an equal element was already queued and got replaced
      */
-    public boolean add(E d) {
+    private boolean insert(E d) {
         int level, i;
 
         Node<E> newN;
@@ -469,7 +857,7 @@ public class LockFreePriorityQueue<E> extends AbstractQueue<E> {
                     && (!n2.data.isMarked())) {
                 if (n2.data.compareAndSet(n2.data.getReference(), d, false,
                         false)) {
-                    return true;
+                    return false;
                 } else {
                     continue;
                 }
@@ -522,16 +910,173 @@ public class LockFreePriorityQueue<E> extends AbstractQueue<E> {
         return true;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * When c is a {@link SortedSet} ordered like this queue, the search for
+     * each element resumes from the predecessors of the previous one, and runs
+     * of elements that land between the same two nodes are chained up front
+     * and spliced into the bottom level with one CAS.
+     */
+    @SuppressWarnings("unchecked")
+    public boolean addAll(Collection<? extends E> c) {
+        if (c == this)
+            throw new IllegalArgumentException();
+        // the splice does not reserve space, keep it to unbounded queues
+        if ((count == null) && (c instanceof SortedSet)
+                && sameOrder(((SortedSet<? extends E>) c).comparator())) {
+            return spliceSorted(c.iterator());
+        }
+        return super.addAll(c);
+    }
+
+    private boolean sameOrder(Comparator<?> cmp) {
+        return (cmp == comparator) || ((cmp != null) && cmp.equals(comparator));
+    }
+
+    /**
+     * Longest chain spliced with one CAS, so that a lost race never throws
+     * away more than this many prepared nodes.
+     */
+    private static final int MAX_SPLICE_RUN = 1024;
+
+    private boolean spliceSorted(Iterator<? extends E> it) {
+        ArrayList<Node<E>> preds = new ArrayList<Node<E>>(MAXLEVEL);
+        for (int i = 0; i < MAXLEVEL; i++) {
+            preds.add(head);
+        }
+        // nodes built from the source but not linked yet, starting at pos
+        ArrayList<Node<E>> buf = new ArrayList<Node<E>>();
+        int pos = 0;
+        boolean modified = false;
+        NodePair<E> tn1;
+
+        while (true) {
+            if (pos == buf.size()) {
+                buf.clear();
+                pos = 0;
+                if (!it.hasNext())
+                    return modified;
+                buf.add(newNode(it.next()));
+            }
+            Node<E> first = buf.get(pos);
+            E d = first.data.getReference();
+
+            // finger search: resume from the previous element's predecessor
+            // unless the level above already got further
+            Node<E> n1 = head;
+            for (int i = MAXLEVEL - 1; i >= 1; i--) {
+                Node<E> p = preds.get(i);
+                if (!p.data.isMarked()
+                        && (compare(p.data.getReference(), n1.data
+                                .getReference()) > 0))
+                    n1 = p;
+                n1 = scanKey(n1, i, first).n1;
+                preds.set(i, n1);
+            }
+            Node<E> p0 = preds.get(0);
+            if (!p0.data.isMarked()
+                    && (compare(p0.data.getReference(), n1.data.getReference()) > 0))
+                n1 = p0;
+            tn1 = scanKey(n1, 0, first);
+            n1 = tn1.n1;
+            Node<E> n2 = tn1.n2;
+            preds.set(0, n1);
+
+            if ((n2 != tail) && (compare(d, n2.data.getReference()) == 0)
+                    && !n2.data.isMarked()) {
+                if (n2.data.compareAndSet(n2.data.getReference(), d, false,
+                        false)) {
+                    modified = true;
+                    pos++;
+                }
+                continue;
+            }
+
+            // every pending element below n2 belongs between n1 and n2
+            int end = pos + 1;
+            while (end - pos < MAX_SPLICE_RUN) {
+                if (end == buf.size()) {
+                    if (!it.hasNext())
+                        break;
+                    buf.add(newNode(it.next()));
+                }
+                if ((n2 != tail)
+                        && (compare(buf.get(end).data.getReference(), n2.data
+                                .getReference()) >= 0))
+                    break;
+                end++;
+            }
+            for (int j = pos; j < end; j++) {
+                Node<E> s = (j + 1 < end) ? buf.get(j + 1) : n2;
+                AtomicMarkableReference<Node<E>> ref = new AtomicMarkableReference<Node<E>>(
+                        s, false);
+                if (buf.get(j).next.isEmpty())
+                    buf.get(j).next.add(ref);
+                else
+                    buf.get(j).next.set(0, ref);
+                buf.get(j).validLevel = 1;
+            }
+            if (!n1.next.get(0).compareAndSet(n2, first, false, false))
+                continue;
+
+            modified = true;
+            for (int j = pos; j < end; j++) {
+                raiseTower(buf.get(j), preds);
+            }
+            pos = end;
+        }
+    }
+
+    private Node<E> newNode(E d) {
+        if (d == null)
+            throw new NullPointerException();
+        return new Node<E>(randomLevel(), d);
+    }
+
+    /**
+     * Links a node that is already on the bottom level into its upper levels,
+     * then makes it the predecessor for the next element of the run.
+     */
+    private void raiseTower(Node<E> n, ArrayList<Node<E>> preds) {
+        NodePair<E> tn1;
+        for (int i = 1; i < n.level; i++) {
+            Node<E> n1 = preds.get(i);
+            while (true) {
+                tn1 = scanKey(n1, i, n);
+                n1 = tn1.n1;
+                Node<E> n2 = tn1.n2;
+                AtomicMarkableReference<Node<E>> ref = new AtomicMarkableReference<Node<E>>(
+                        n2, false);
+                if (n.next.size() == i)
+                    n.next.add(ref);
+                else
+                    n.next.set(i, ref);
+                if (n.data.isMarked())
+                    break;
+                if (n1.next.get(i).compareAndSet(n2, n, false, false)) {
+                    n.validLevel = i + 1;
+                    break;
+                }
+            }
+            if (n.data.isMarked())
+                break;
+            preds.set(i, n);
+        }
+        if (n.data.isMarked())
+            helpDelete(n, 0);
+        else
+            preds.set(0, n);
+    }
+
     /**
      * @return min element
      */
     private E deleteMin() {
-        Node<E> n2, last, prev;
+        Node<E> prev;
         Node<E> n1 = null;
         E val;
-        int i = 0;
-        NodePair<E> tn1, tn2;
-        AtomicMarkableReference<Node<E>> tempn1;
+        NodePair<E> tn1;
         int iflag = 0;
 
         prev = head;
@@ -562,6 +1107,24 @@ public class LockFreePriorityQueue<E> extends AbstractQueue<E> {
             }
             prev = n1;
         }
+        unlink(n1);
+
+        return val;
+    }
+
+    /**
+     * Physically removes a node whose data has already been marked: marks
+     * its next pointers, then unlinks it level by level from the top.
+     * 
+     * @param n1
+     *            logically deleted node
+     */
+    private void unlink(Node<E> n1) {
+        Node<E> n2, last, prev;
+        NodePair<E> tn2;
+        AtomicMarkableReference<Node<E>> tempn1;
+        int i;
+
         // FIXME why is validLevel here? different from paper
         for (i = 0; i <= n1.validLevel - 1; i++) {
             do {
@@ -599,8 +1162,6 @@ public class LockFreePriorityQueue<E> extends AbstractQueue<E> {
             }
 
         }
-
-        return val;
     }
 
 }
\ No newline at end of file
@@ -54,13 +54,17 @@ public class LockFreeSet<E> implements Set<E> {
 	private static final float DEFAULT_LOAD_FACTOR = 0.75f;
 	private static final int DEFAULT_SIZE = 512;
 	private static final int MINIMAL_SIZE = 64;
+	/**
+	 * Upper bound of size of the first segment. Later segments double in size,
+	 * so a big first segment only wastes memory while the set is small.
+	 */
+	private static final int MAXIMAL_SEGMENT_SIZE = 1 << 16;
 
 	/**
 	 * Create a new set with explicitly specified expected size and load factor.
-	 * The number of dummy nodes has a maximum of <code>512*expectedSize</code>.
-	 * This isn't a limitation of actual elements stored in set. But the average
-	 * search number will increase if number of elements is bigger than
-	 * <code>512*expectedSize</code>
+	 * The expected size only decides size of the first segment of dummy nodes.
+	 * Number of dummy nodes keeps growing with the set, up to
+	 * <code>2^30</code>.
 	 * 
 	 * @param expectedSize
 	 *            the estimated size of set
@@ -73,6 +77,8 @@ public class LockFreeSet<E> implements Set<E> {
 
 		if (expectedSize < MINIMAL_SIZE)
 			expectedSize = MINIMAL_SIZE;
+		if (expectedSize > MAXIMAL_SEGMENT_SIZE)
+			expectedSize = MAXIMAL_SEGMENT_SIZE;
 		segmentSize = Integer.highestOneBit(expectedSize);
 		if (segmentSize < expectedSize)
 			segmentSize = segmentSize << 1;
@@ -102,7 +108,7 @@ public class LockFreeSet<E> implements Set<E> {
 	private void initInternal() {
 		totalElement = new AtomicInteger(0);
 		head = new AtomicMarkableReference<HashLinkNode<E>>(null, false);
-		segments = new AtomicReferenceArray(N_SEGMENT);
+		segments = new AtomicReferenceArray(MAX_BUCKET_LOG2 + 1 - segmentBit);
 
 		/*
 		 * Initialize the first segment
@@ -137,14 +143,17 @@ public class LockFreeSet<E> implements Set<E> {
 	/**
 	 * We store dummy nodes in this two-dimension array object. If we use
 	 * one-dimension array here, we will need a large array to save dummy nodes
-	 * even when elements number is less than 10.
+	 * even when elements number is less than 10. The first segment holds
+	 * <code>segmentSize</code> buckets, and each following segment is as large
+	 * as all segments before it. So the index grows without copying, and the
+	 * top level array stays small.
 	 */
 	AtomicReferenceArray<AtomicReferenceArray<AtomicMarkableReference<HashLinkNode<E>>>> segments;
 
 	/**
-	 * Number of segments.
+	 * The maximal number of dummy nodes is <code>1<< MAX_BUCKET_LOG2</code>.
 	 */
-	static final int N_SEGMENT = 512;
+	static final int MAX_BUCKET_LOG2 = 30;
 
 	/**
 	 * The initial number of dummy nodes is <code>1<< N_INIT_BUCKET</code>.
@@ -158,75 +167,108 @@ public class LockFreeSet<E> implements Set<E> {
 
 	private int segmentBit;
 
+	/**
+	 * @param bucket
+	 *            index of a bucket
+	 * @return index of the segment holding the bucket
+	 */
+	private int segmentOf(int bucket) {
+		if (bucket < segmentSize)
+			return 0;
+		return 32 - Integer.numberOfLeadingZeros(bucket) - segmentBit;
+	}
+
+	/**
+	 * @param bucket
+	 *            index of a bucket
+	 * @return index of the bucket inside its segment
+	 */
+	private int indexInSegment(int bucket) {
+		if (bucket < segmentSize)
+			return bucket;
+		return bucket ^ Integer.highestOneBit(bucket);
+	}
+
+	/**
+	 * @param segment
+	 *            index of a segment
+	 * @return number of buckets in the segment
+	 */
+	private int segmentLength(int segment) {
+		if (segment == 0)
+			return segmentSize;
+		return segmentSize << (segment - 1);
+	}
+
+	/**
+	 * Get the dummy node of a bucket from the segments.
+	 * 
+	 * @param bucket
+	 *            index of a bucket
+	 * @return reference to the next node of the dummy node, or null if the
+	 *         bucket isn't initialized or was removed by {@link #compact()}
+	 */
+	private AtomicMarkableReference<HashLinkNode<E>> getBucket(int bucket) {
+		AtomicReferenceArray<AtomicMarkableReference<HashLinkNode<E>>> seg = segments
+				.get(segmentOf(bucket));
+		if (seg == null)
+			return null;
+		int bkptr = indexInSegment(bucket);
+		AtomicMarkableReference<HashLinkNode<E>> segValue = seg.get(bkptr);
+		if (segValue != null && segValue.isMarked()) {
+			// The dummy node has been deleted by compact(). Forget it, so the
+			// bucket will be initialized again.
+			seg.compareAndSet(bkptr, segValue, null);
+			return null;
+		}
+		return segValue;
+	}
+
 	/**
 	 * Find the dummy node for elements which is closest to the inserting
 	 * position of objects with <code>hash</code>.
 	 * 
-	 * @param bucket
+	 * @param hash
 	 *            hash value of working element
 	 * 
 	 * @return return the bucket when found
 	 */
-	@SuppressWarnings("unchecked")
 	private AtomicMarkableReference<HashLinkNode<E>> bucketAt(int hash) {
 		int bSize = bucketSizeLog2.get();
-		// We only need several bits of the hash value.
-		int bucket = hash & (0x80000000 >> bSize);
-		bucket = Integer.reverse(bucket);
-
-		// Work out the index of the segment
-		int segment = bucket >> segmentBit;
-		// Work out the index inside the segment
-		int bkptr = bucket & (segmentSize - 1);
-
-		// Get the segment or create a segment if it's null.
-		AtomicReferenceArray<AtomicMarkableReference<HashLinkNode<E>>> seg = segments
-				.get(segment);
-		if (seg != null) {
-			// Get the value of dummy nodes
-			AtomicMarkableReference<HashLinkNode<E>> segValue = seg.get(bkptr);
-			if (segValue != null) {
-				return segValue;
-			}
-		}
-
-		// No such dummy node yet, create one!
-		int pk, ps, parent;
-		parent = bucket;
-		AtomicReferenceArray<AtomicMarkableReference<HashLinkNode<E>>> pseg;
-		AtomicMarkableReference<HashLinkNode<E>> pSegPos = null;
-
+		// We only need the highest bSize bits of the hash value, since the
+		// hash is treated as a reversed hash.
+		int bucket = Integer.reverse(hash) & ((1 << bSize) - 1);
+
+		AtomicMarkableReference<HashLinkNode<E>> segValue = getBucket(bucket);
+		if (segValue != null)
+			return segValue;
+
+		// No such dummy node yet, create one! Every thread initializes the
+		// buckets it touches, so this work is spread across threads.
+		int parent = bucket;
+		AtomicMarkableReference<HashLinkNode<E>> pSegPos;
 		do {
 			parent = getParent(parent, bSize);
-			ps = parent >> segmentBit;
-			pk = parent & (segmentSize - 1);
-
-			// Get segment of parent
-			pseg = segments.get(ps);
-			if (pseg != null) {
-				pSegPos = pseg.get(pk);
-				if (pSegPos != null)
-					break;
-			}
-		} while (true);
+			pSegPos = getBucket(parent);
+		} while (pSegPos == null);
 
 		// insert dummy node after ancestor dummy node
 		HashLinkNode<E> dummyNode = HashLinkNode.dummyNode(bucket);
 		dummyNode = insert(dummyNode, pSegPos);
 
-		seg = segments.get(segment);
+		int segment = segmentOf(bucket);
+		AtomicReferenceArray<AtomicMarkableReference<HashLinkNode<E>>> seg = segments
+				.get(segment);
 		if (seg == null) {
 			seg = new AtomicReferenceArray<AtomicMarkableReference<HashLinkNode<E>>>(
-					segmentSize);
+					segmentLength(segment));
 			if (!segments.compareAndSet(segment, null, seg)) {
 				seg = segments.get(segment);
 			}
 		}
-		if (seg.get(bkptr) == null)
-			seg.compareAndSet(bkptr, null, dummyNode.next);
-
-		return seg.get(bkptr);
+		seg.compareAndSet(indexInSegment(bucket), null, dummyNode.next);
 
+		return dummyNode.next;
 	}
 
 	/**
@@ -255,7 +297,7 @@ public class LockFreeSet<E> implements Set<E> {
 
 			// expand number of dummy nodes
 			if (totalElement.get() > cSize * loadFactor
-					&& cSize < N_SEGMENT * segmentSize)
+					&& bSize < MAX_BUCKET_LOG2)
 				bucketSizeLog2.compareAndSet(bSize, bSize + 1);
 			return true;
 		}
@@ -413,6 +455,176 @@ public class LockFreeSet<E> implements Set<E> {
 		return totalElement.get();
 	}
 
+	/**
+	 * Shrink number of buckets after heavy removals. Number of buckets is
+	 * reduced to the smallest power of two which keeps the load factor, and
+	 * dummy nodes of dropped buckets are removed from the list. Segments which
+	 * only hold dropped buckets are released.
+	 * 
+	 * <p>
+	 * Readers and writers may run concurrently with this method. A thread
+	 * which still starts its search from a removed dummy node notices the
+	 * deletion mark and looks its bucket up again. Buckets dropped here are
+	 * initialized again lazily if the set grows later.
+	 * </p>
+	 * 
+	 * @return number of dummy nodes removed
+	 */
+	@Parallel(ParallelType.ThreadSafe)
+	public synchronized int compact() {
+		int oldLog2 = bucketSizeLog2.get();
+		int newLog2 = N_INIT_BUCKET;
+		while (newLog2 < oldLog2
+				&& (1 << newLog2) * loadFactor < totalElement.get())
+			newLog2++;
+		if (newLog2 >= oldLog2
+				|| !bucketSizeLog2.compareAndSet(oldLog2, newLog2))
+			return 0;
+
+		int newCount = 1 << newLog2;
+		int removed = 0;
+		CompositeStateHolder<E> holder = new CompositeStateHolder<E>();
+
+		// Delete children before their parents, so every dummy node is
+		// unlinked while the search starting from its parent still works
+		for (int segment = segments.length() - 1; segment >= 0; segment--) {
+			AtomicReferenceArray<AtomicMarkableReference<HashLinkNode<E>>> seg = segments
+					.get(segment);
+			if (seg == null)
+				continue;
+			int first = segment == 0 ? 0 : segmentLength(segment);
+			for (int bkptr = seg.length() - 1; bkptr >= 0; bkptr--) {
+				int bucket = first + bkptr;
+				if (bucket < newCount)
+					break;
+				AtomicMarkableReference<HashLinkNode<E>> segValue = seg
+						.get(bkptr);
+				if (segValue == null)
+					continue;
+
+				// Set the deletion mark of the dummy node
+				while (!segValue.isMarked()) {
+					HashLinkNode<E> next = segValue.getReference();
+					segValue.compareAndSet(next, next, false, true);
+				}
+				seg.compareAndSet(bkptr, segValue, null);
+
+				// Searching for it from the closest ancestor removes it
+				// physically
+				int parent = bucket;
+				AtomicMarkableReference<HashLinkNode<E>> pSegPos;
+				do {
+					parent = getParent(parent, newLog2);
+					pSegPos = getBucket(parent);
+				} while (pSegPos == null);
+				findNode(HashLinkNode.dummyNode(bucket), pSegPos, holder);
+				removed++;
+			}
+
+			if (first >= newCount)
+				segments.compareAndSet(segment, seg, null);
+		}
+
+		return removed;
+	}
+
+	/**
+	 * Snapshot of the internal shape of a set.
+	 */
+	public static final class Stats {
+		private final int bucketCount;
+		private final int dummyCount;
+		private final int size;
+		private final double averageProbeLength;
+
+		Stats(int bucketCount, int dummyCount, int size,
+				double averageProbeLength) {
+			this.bucketCount = bucketCount;
+			this.dummyCount = dummyCount;
+			this.size = size;
+			this.averageProbeLength = averageProbeLength;
+		}
+
+		/**
+		 * @return current number of buckets
+		 */
+		public int getBucketCount() {
+			return bucketCount;
+		}
+
+		/**
+		 * @return number of dummy nodes in the list, i.e. initialized buckets
+		 */
+		public int getDummyCount() {
+			return dummyCount;
+		}
+
+		/**
+		 * @return number of elements
+		 */
+		public int getSize() {
+			return size;
+		}
+
+		/**
+		 * @return average number of elements per bucket
+		 */
+		public double getLoad() {
+			return bucketCount == 0 ? 0 : size / (double) bucketCount;
+		}
+
+		/**
+		 * @return average number of nodes visited after the closest dummy node
+		 *         to find an element
+		 */
+		public double getAverageProbeLength() {
+			return averageProbeLength;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public String toString() {
+			return "buckets=" + bucketCount + ", dummies=" + dummyCount
+					+ ", size=" + size + ", load=" + getLoad()
+					+ ", avgProbe=" + averageProbeLength;
+		}
+	}
+
+	/**
+	 * Collect statistics of the set by walking the whole internal list. The
+	 * result is only approximate if the set is modified meanwhile.
+	 * 
+	 * @return statistics of the set
+	 */
+	@Parallel(ParallelType.ThreadSafe)
+	public Stats stats() {
+		int dummies = 0;
+		int elements = 0;
+		long probes = 0;
+		int run = 0;
+
+		HashLinkNode<E> node = head.getReference();
+		while (node != null) {
+			AtomicMarkableReference<HashLinkNode<E>> next = node.next;
+			if (!next.isMarked()) {
+				if (node.key == null) {
+					dummies++;
+					run = 0;
+				} else {
+					elements++;
+					run++;
+					probes += run;
+				}
+			}
+			node = next.getReference();
+		}
+
+		return new Stats(1 << bucketSizeLog2.get(), dummies, elements,
+				elements == 0 ? 0 : probes / (double) elements);
+	}
+
 	/**
 	 * This method puts all elements of set into an array and returns it. This
 	 * method is not thread-safe. It's programmer's responsibility to ensure
@@ -514,6 +726,10 @@ public class LockFreeSet<E> implements Set<E> {
 			AtomicMarkableReference<HashLinkNode<E>> start,
 			CompositeStateHolder<E> holder) {
 		try_again: while (true) {
+			// The dummy node we started from has been deleted by compact()
+			if (start.isMarked())
+				start = head;
+
 			// initialize holder
 			holder.prev = start;
 			holder.cur = start.getReference();
@@ -582,11 +798,18 @@ public class LockFreeSet<E> implements Set<E> {
 		HashLinkNode<E> cur;
 
 		try_again: while (true) {
+			// The dummy node we started from has been deleted by compact()
+			if (start.isMarked())
+				start = bucketAt(hash);
+
 			prev = start;
 			cur = prev.getReference();
 
 			while (true) {
-				if (null == cur || cur.key == null) {
+				// Don't stop at dummy nodes. If the set grew since start was
+				// looked up, dummy nodes of new buckets may lie between start
+				// and the searched position.
+				if (null == cur) {
 					holder.found = false;
 					holder.cur = cur;
 					holder.prev = prev;
@@ -650,30 +873,37 @@ public class LockFreeSet<E> implements Set<E> {
 		HashLinkNode<E> cur;
 
 		try_again: while (true) {
+			// The dummy node we started from has been deleted by compact()
+			if (start.isMarked())
+				start = bucketAt(hash);
+
 			prev = start;
 			cur = prev.getReference();
 			try {
 				while (true) {
 					AtomicMarkableReference<HashLinkNode<E>> nextprt = cur.next;
 
-					int cr = cur.compareToElement(regKey);
-
-					if (cr < 0)
-						prev = nextprt;
-					else if (cr > 0) {
-						return false;
-					} else if (cr == 0 && cur.equalsElement(o)) {
-						if (nextprt.isMarked()) {
-							// Found an element with deletion mark checked.
-							// Let's delete it physically now.
-							if (!prev.compareAndSet(cur,
-									nextprt.getReference(), false, false)) {
-								continue try_again;
-							}
-						} else
+					if (nextprt.isMarked()) {
+						// Physically removing element which has a deletion
+						// mark, as insert and remove do. If it were skipped,
+						// unlinking a later node would start from its marked
+						// link and fail on every retry.
+						if (!prev.compareAndSet(cur, nextprt.getReference(),
+								false, false)) {
+							continue try_again;
+						}
+					} else {
+						int cr = cur.compareToElement(regKey);
+
+						if (cr < 0)
+							prev = nextprt;
+						else if (cr > 0) {
+							return false;
+						} else if (cr == 0 && cur.equalsElement(o)) {
 							return true;
-					} else
-						prev = nextprt;
+						} else
+							prev = nextprt;
+					}
 
 					cur = nextprt.getReference();
 				}
@@ -940,10 +1170,9 @@ class HashLinkNode<E> implements Comparable<HashLinkNode<E>> {
 	 *            key for dummy node
 	 * @return generated dummy node
 	 */
-	@SuppressWarnings("unchecked")
-	public static HashLinkNode dummyNode(int dummykey) {
-		HashLinkNode hn = new HashLinkNode();
-		hn.next = new AtomicMarkableReference<HashLinkNode>(null, false);
+	public static <E> HashLinkNode<E> dummyNode(int dummykey) {
+		HashLinkNode<E> hn = new HashLinkNode<E>();
+		hn.next = new AtomicMarkableReference<HashLinkNode<E>>(null, false);
 		hn.brKey = Integer.reverse(dummykey);
 		return hn;
 	}
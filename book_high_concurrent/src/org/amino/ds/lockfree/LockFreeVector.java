@@ -17,6 +17,7 @@
 package org.amino.ds.lockfree;
 
 import java.util.AbstractList;
+import java.util.Collection;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
@@ -38,6 +39,9 @@ import org.amino.utility.ParallelType;
  * of '0') can contain 8 elements. The <i>n</i>th
  * segment can contain 8*(2**<i>n</i>) elements.
  * 
+ * Segments are only released by {@link #shrinkToFit()}, or by popBack() on a
+ * vector created with auto-shrink enabled.
+ * 
  * @author Zhi Gan
  * 
  * @param <E>
@@ -63,12 +67,24 @@ public class LockFreeVector<E> extends AbstractList<E> {
      */
     private final AtomicReferenceArray<AtomicReferenceArray<E>> buckets;
 
+    /**
+     * A pending operation attached to a {@link Descriptor}. Every thread that
+     * reads the descriptor completes it before doing anything else, so it may
+     * run several times and must be idempotent.
+     */
+    abstract static class Operation {
+        /**
+         * Execute the operation.
+         */
+        public abstract void doIt();
+    }
+
     /**
      * The descriptor is used to describe write operation.
      * 
      * @param <E>
      */
-    static class WriteDescriptor<E> {
+    static class WriteDescriptor<E> extends Operation {
         /**
          * Old value.
          */
@@ -114,6 +130,96 @@ public class LockFreeVector<E> extends AbstractList<E> {
         }
     }
 
+    /**
+     * Writes a contiguous range of elements, possibly spanning several
+     * buckets. The buckets are captured when the descriptor is created, so a
+     * helper that runs late never writes into a bucket allocated after a
+     * release.
+     * 
+     * @param <E>
+     */
+    static class RangeWriteDescriptor<E> extends Operation {
+        private final AtomicReferenceArray<E>[] addrs;
+        private final int firstBucket;
+        private final int firstIndex;
+        private final Object[] oldVs;
+        private final Object[] newVs;
+
+        /**
+         * @param addrs
+         *            buckets covering the range, starting at firstBucket
+         * @param firstBucket
+         *            bucket of the first element
+         * @param firstIndex
+         *            index of the first element in the vector
+         * @param oldVs
+         *            old operands
+         * @param newVs
+         *            new operands
+         */
+        RangeWriteDescriptor(AtomicReferenceArray<E>[] addrs,
+                int firstBucket, int firstIndex, Object[] oldVs,
+                Object[] newVs) {
+            this.addrs = addrs;
+            this.firstBucket = firstBucket;
+            this.firstIndex = firstIndex;
+            this.oldVs = oldVs;
+            this.newVs = newVs;
+        }
+
+        /**
+         * set every new value to its address.
+         */
+        @SuppressWarnings("unchecked")
+        public void doIt() {
+            for (int i = 0; i < newVs.length; i++) {
+                int pos = firstIndex + i + FIRST_BUCKET_SIZE;
+                AtomicReferenceArray<E> addr = addrs[bucketOf(pos)
+                        - firstBucket];
+                addr.compareAndSet(Integer.highestOneBit(pos) ^ pos,
+                        (E) oldVs[i], (E) newVs[i]);
+            }
+        }
+    }
+
+    /**
+     * Drops trailing buckets. Each bucket is cleared with a CAS against the
+     * instance seen when the descriptor was created, so a late helper cannot
+     * remove a bucket that was allocated again afterwards.
+     * 
+     * @param <E>
+     */
+    static class ReleaseDescriptor<E> extends Operation {
+        private final AtomicReferenceArray<AtomicReferenceArray<E>> buckets;
+        private final AtomicReferenceArray<E>[] released;
+        private final int firstBucket;
+
+        /**
+         * @param buckets
+         *            bucket table of the vector
+         * @param released
+         *            buckets to drop, null entries are skipped
+         * @param firstBucket
+         *            bucket index of released[0]
+         */
+        ReleaseDescriptor(AtomicReferenceArray<AtomicReferenceArray<E>> buckets,
+                AtomicReferenceArray<E>[] released, int firstBucket) {
+            this.buckets = buckets;
+            this.released = released;
+            this.firstBucket = firstBucket;
+        }
+
+        /**
+         * remove the buckets from the bucket table.
+         */
+        public void doIt() {
+            for (int i = released.length - 1; i >= 0; i--) {
+                if (released[i] != null)
+                    buckets.compareAndSet(firstBucket + i, released[i], null);
+            }
+        }
+    }
+
     /**
      * The descriptor is used to describe current status of vector. It exists so
      * that we can replace two important information in one CAS operation:
@@ -138,7 +244,7 @@ public class LockFreeVector<E> extends AbstractList<E> {
         /**
          * Write operation.
          */
-        volatile WriteDescriptor<E> writeop;
+        volatile Operation writeop;
 
         /**
          * Create a new descriptor.
@@ -148,7 +254,7 @@ public class LockFreeVector<E> extends AbstractList<E> {
          * @param writeop
          *            Executor write operation
          */
-        public Descriptor(int size, WriteDescriptor<E> writeop) {
+        public Descriptor(int size, Operation writeop) {
             this.size = size;
             this.writeop = writeop;
         }
@@ -157,7 +263,7 @@ public class LockFreeVector<E> extends AbstractList<E> {
          * Complete the write operation.
          */
         public void completeWrite() {
-            WriteDescriptor<E> tmpOp = writeop;
+            Operation tmpOp = writeop;
             if (tmpOp != null) {
                 tmpOp.doIt();
                 writeop = null; // this is safe since all write to writeop use
@@ -179,10 +285,29 @@ public class LockFreeVector<E> extends AbstractList<E> {
     private static final int ZERO_NUM_FIRST = Integer
             .numberOfLeadingZeros(FIRST_BUCKET_SIZE);;
 
+    /**
+     * Whether popBack() releases buckets that fall far enough behind size.
+     */
+    private final boolean autoShrink;
+
     /**
      * Create a new lock-free vector.
      */
     public LockFreeVector() {
+        this(false);
+    }
+
+    /**
+     * Create a new lock-free vector.
+     * 
+     * @param autoShrink
+     *            if true, popBack() releases the trailing buckets once size
+     *            drops to the start of the bucket two below them. The gap of
+     *            one bucket keeps a push/pop sequence at a bucket boundary
+     *            from allocating and releasing the same bucket repeatedly.
+     */
+    public LockFreeVector(boolean autoShrink) {
+        this.autoShrink = autoShrink;
         buckets = new AtomicReferenceArray<AtomicReferenceArray<E>>(N_BUCKET);
         buckets.set(0, new AtomicReferenceArray<E>(FIRST_BUCKET_SIZE));
         descriptor = new AtomicReference<Descriptor<E>>(new Descriptor<E>(0,
@@ -207,9 +332,12 @@ public class LockFreeVector<E> extends AbstractList<E> {
             int zeroNumPos = Integer.numberOfLeadingZeros(pos);
             int bucketInd = ZERO_NUM_FIRST - zeroNumPos;
 
-            // Add a new segment if all segments are occupied
-            if (buckets.get(bucketInd) == null) {
-                int newLen = 2 * buckets.get(bucketInd - 1).length();
+            // Add a new segment if all segments are occupied. If a release
+            // drops it again before we read it back, desc is stale and our
+            // CAS below fails.
+            AtomicReferenceArray<E> bucket;
+            while ((bucket = buckets.get(bucketInd)) == null) {
+                int newLen = FIRST_BUCKET_SIZE << bucketInd;
 
                 if (DEBUG)
                     System.out.println("New Length is:" + newLen);
@@ -222,15 +350,71 @@ public class LockFreeVector<E> extends AbstractList<E> {
             // inside selected bucket
             int idx = (MARK_FIRST_BIT >>> zeroNumPos) ^ pos;
 
+            // the slot still holds the value of an earlier popBack(), if any
             newd = new Descriptor<E>(desc.size + 1, new WriteDescriptor<E>(
-                    buckets.get(bucketInd), idx, null, e));
+                    bucket, idx, bucket.get(idx), e));
         } while (!descriptor.compareAndSet(desc, newd));
         descriptor.get().completeWrite();
     }
 
     /**
-     * Remove the last element in the vector. We don't shrink size of segments
-     * here. So the memory of vector never shrink.
+     * Add every element of c at the end of vector. Space for all of them is
+     * reserved by one descriptor CAS, and one write descriptor fills the
+     * whole range, so the elements get contiguous indices.
+     * 
+     * @param c
+     *            elements added
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Parallel(ParallelType.LockFree)
+    public void pushBackAll(Collection<? extends E> c) {
+        Object[] newVs = c.toArray();
+        int n = newVs.length;
+        if (n == 0)
+            return;
+        Object[] oldVs = new Object[n];
+        Descriptor<E> desc;
+        Descriptor<E> newd;
+        do {
+            desc = descriptor.get();
+            desc.completeWrite();
+
+            int first = desc.size;
+            if (first + n + FIRST_BUCKET_SIZE < 0)
+                throw new IllegalStateException("Vector full");
+            int firstBucket = bucketOf(first + FIRST_BUCKET_SIZE);
+            int lastBucket = bucketOf(first + n - 1 + FIRST_BUCKET_SIZE);
+            if (lastBucket >= N_BUCKET)
+                throw new IllegalStateException("Vector full");
+
+            AtomicReferenceArray<E>[] addrs = new AtomicReferenceArray[lastBucket
+                    - firstBucket + 1];
+            for (int b = firstBucket; b <= lastBucket; b++) {
+                if (buckets.get(b) == null)
+                    buckets.compareAndSet(b, null, new AtomicReferenceArray<E>(
+                            FIRST_BUCKET_SIZE << b));
+                addrs[b - firstBucket] = buckets.get(b);
+            }
+            for (int i = 0; i < n; i++) {
+                int pos = first + i + FIRST_BUCKET_SIZE;
+                AtomicReferenceArray<E> addr = addrs[bucketOf(pos)
+                        - firstBucket];
+                // null only if a concurrent release raced with us; our CAS
+                // below fails in that case
+                oldVs[i] = (addr == null) ? null : addr
+                        .get(Integer.highestOneBit(pos) ^ pos);
+            }
+            newd = new Descriptor<E>(first + n,
+                    new RangeWriteDescriptor<E>(addrs, firstBucket, first,
+                            oldVs.clone(), newVs));
+        } while (!descriptor.compareAndSet(desc, newd));
+        descriptor.get().completeWrite();
+    }
+
+    /**
+     * Remove the last element in the vector. Segments are only released if
+     * the vector was created with auto-shrink, see
+     * {@link #LockFreeVector(boolean)}.
      * 
      * @return element removed
      */
@@ -238,7 +422,7 @@ public class LockFreeVector<E> extends AbstractList<E> {
         Descriptor<E> desc;
         Descriptor<E> newd;
         E elem;
-        do {
+        while (true) {
             desc = descriptor.get();
             desc.completeWrite();
 
@@ -246,14 +430,96 @@ public class LockFreeVector<E> extends AbstractList<E> {
             int bucketInd = Integer.numberOfLeadingZeros(FIRST_BUCKET_SIZE)
                     - Integer.numberOfLeadingZeros(pos);
             int idx = Integer.highestOneBit(pos) ^ pos;
-            elem = buckets.get(bucketInd).get(idx);
+            AtomicReferenceArray<E> bucket = buckets.get(bucketInd);
+            // released by a pop and shrink after we read desc, which is stale
+            if (bucket == null)
+                continue;
+            elem = bucket.get(idx);
             newd = new Descriptor<E>(desc.size - 1, null);
-        } while (!descriptor.compareAndSet(desc, newd)); // CAS to complete all
-        // steps if succeed
+            if (descriptor.compareAndSet(desc, newd)) // CAS to complete all
+                break; // steps if succeed
+        }
 
+        if (autoShrink) {
+            int pos = newd.size + FIRST_BUCKET_SIZE;
+            // size just dropped to the first slot of a bucket
+            if ((pos & (pos - 1)) == 0)
+                release(bucketOf(pos) + 1);
+        }
         return elem;
     }
 
+    /**
+     * Release the buckets that lie behind the current size, so that their
+     * memory can be reclaimed. It runs concurrently with other operations:
+     * the release is published through the descriptor like a write, and
+     * elements below the size seen at that moment stay reachable.
+     */
+    @Parallel(ParallelType.LockFree)
+    public void shrinkToFit() {
+        release(0);
+    }
+
+    /**
+     * Release every bucket above keep and above the bucket of the next free
+     * slot.
+     * 
+     * @param keep
+     *            highest bucket kept regardless of size
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private void release(int keep) {
+        Descriptor<E> desc;
+        Descriptor<E> newd;
+        do {
+            desc = descriptor.get();
+            desc.completeWrite();
+
+            int firstBucket = Math.max(keep, bucketOf(desc.size
+                    + FIRST_BUCKET_SIZE)) + 1;
+            if (firstBucket >= N_BUCKET)
+                return;
+            AtomicReferenceArray<E>[] released = new AtomicReferenceArray[N_BUCKET
+                    - firstBucket];
+            boolean any = false;
+            for (int b = firstBucket; b < N_BUCKET; b++) {
+                released[b - firstBucket] = buckets.get(b);
+                any |= released[b - firstBucket] != null;
+            }
+            if (!any)
+                return;
+            newd = new Descriptor<E>(desc.size, new ReleaseDescriptor<E>(
+                    buckets, released, firstBucket));
+        } while (!descriptor.compareAndSet(desc, newd));
+        descriptor.get().completeWrite();
+    }
+
+    /**
+     * @param pos
+     *            index plus FIRST_BUCKET_SIZE
+     * @return index of the bucket holding pos
+     */
+    private static int bucketOf(int pos) {
+        return ZERO_NUM_FIRST - Integer.numberOfLeadingZeros(pos);
+    }
+
+    /**
+     * @param bucketInd
+     *            index of a bucket
+     * @param index
+     *            index of the element looked up
+     * @return the bucket
+     * @throws IndexOutOfBoundsException
+     *             if the bucket has been released, which only happens to
+     *             buckets above the size
+     */
+    private AtomicReferenceArray<E> bucketFor(int bucketInd, int index) {
+        AtomicReferenceArray<E> bucket = buckets.get(bucketInd);
+        if (bucket == null)
+            throw new IndexOutOfBoundsException("Index: " + index);
+        return bucket;
+    }
+
     /**
      * Get element with the index.
      * 
@@ -267,7 +533,7 @@ public class LockFreeVector<E> extends AbstractList<E> {
         int zeroNumPos = Integer.numberOfLeadingZeros(pos);
         int bucketInd = ZERO_NUM_FIRST - zeroNumPos;
         int idx = (MARK_FIRST_BIT >>> zeroNumPos) ^ pos;
-        return buckets.get(bucketInd).get(idx);
+        return bucketFor(bucketInd, index).get(idx);
     }
 
     /**
@@ -285,7 +551,7 @@ public class LockFreeVector<E> extends AbstractList<E> {
         int bucketInd = Integer.numberOfLeadingZeros(FIRST_BUCKET_SIZE)
                 - Integer.numberOfLeadingZeros(pos);
         int idx = Integer.highestOneBit(pos) ^ pos;
-        AtomicReferenceArray<E> bucket = buckets.get(bucketInd);
+        AtomicReferenceArray<E> bucket = bucketFor(bucketInd, index);
         while (true) {
             E oldV = bucket.get(idx);
             if (bucket.compareAndSet(idx, oldV, e))
@@ -307,13 +573,12 @@ public class LockFreeVector<E> extends AbstractList<E> {
         if (i < 1)
             i = 1;
 
-        int initialSize = buckets.get(i - 1).length();
+        // bucket i - 1 may have been released, so derive the length from i
         while (i < Integer.numberOfLeadingZeros(FIRST_BUCKET_SIZE)
                 - Integer.numberOfLeadingZeros(newSize + FIRST_BUCKET_SIZE - 1)) {
             i++;
-            initialSize *= FIRST_BUCKET_SIZE;
             buckets.compareAndSet(i, null, new AtomicReferenceArray<E>(
-                    initialSize));
+                    FIRST_BUCKET_SIZE << i));
         }
     }
 
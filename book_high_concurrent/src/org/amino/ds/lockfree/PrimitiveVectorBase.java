@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2008 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.amino.ds.lockfree;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.amino.utility.Parallel;
+import org.amino.utility.ParallelType;
+
+/**
+ * Bucket table and descriptor shared by {@link LockFreeLongVector} and
+ * {@link LockFreeIntVector}. Subclasses supply the bucket type and the write
+ * operations on it; allocation, release and the lookup of slots whose bucket
+ * may have been released live here.
+ *
+ * @param <A>
+ *            type of a bucket, an atomic array of primitives
+ *
+ * @see LockFreeVector
+ */
+abstract class PrimitiveVectorBase<A> {
+    /**
+     * Size of the first bucket. sizeof(bucket[i+1])=2*sizeof(bucket[i])
+     */
+    static final int FIRST_BUCKET_SIZE = 8;
+
+    /**
+     * number of buckets. 30 will allow 8*(2^30-1) elements
+     */
+    static final int N_BUCKET = 30;
+
+    private static final int ZERO_NUM_FIRST = Integer
+            .numberOfLeadingZeros(FIRST_BUCKET_SIZE);
+
+    /**
+     * A pending operation attached to a {@link Descriptor}, completed by every
+     * thread that reads the descriptor.
+     */
+    abstract static class Operation {
+        /**
+         * Execute the operation.
+         */
+        public abstract void doIt();
+    }
+
+    /**
+     * Drops trailing buckets, each by a CAS against the instance seen when
+     * the descriptor was created.
+     *
+     * @param <A>
+     *            type of a bucket
+     */
+    static class ReleaseDescriptor<A> extends Operation {
+        private final AtomicReferenceArray<A> buckets;
+        private final Object[] released;
+        private final int firstBucket;
+
+        /**
+         * @param buckets
+         *            bucket table of the vector
+         * @param released
+         *            buckets to drop, null entries are skipped
+         * @param firstBucket
+         *            bucket index of released[0]
+         */
+        ReleaseDescriptor(AtomicReferenceArray<A> buckets, Object[] released,
+                int firstBucket) {
+            this.buckets = buckets;
+            this.released = released;
+            this.firstBucket = firstBucket;
+        }
+
+        /**
+         * remove the buckets from the bucket table.
+         */
+        @SuppressWarnings("unchecked")
+        public void doIt() {
+            for (int i = released.length - 1; i >= 0; i--) {
+                if (released[i] != null)
+                    buckets.compareAndSet(firstBucket + i, (A) released[i],
+                            null);
+            }
+        }
+    }
+
+    /**
+     * Size of the vector together with the operation that has to complete
+     * before the size is valid, see {@link LockFreeVector}.
+     */
+    static class Descriptor {
+        /**
+         * size of vector.
+         */
+        final int size;
+        /**
+         * Pending operation.
+         */
+        volatile Operation writeop;
+
+        /**
+         * @param size
+         *            Size of the vector
+         * @param writeop
+         *            pending operation
+         */
+        Descriptor(int size, Operation writeop) {
+            this.size = size;
+            this.writeop = writeop;
+        }
+
+        /**
+         * Complete the pending operation.
+         */
+        void completeWrite() {
+            Operation tmpOp = writeop;
+            if (tmpOp != null) {
+                tmpOp.doIt();
+                writeop = null;
+            }
+        }
+    }
+
+    final AtomicReferenceArray<A> buckets;
+
+    final AtomicReference<Descriptor> descriptor;
+
+    PrimitiveVectorBase() {
+        buckets = new AtomicReferenceArray<A>(N_BUCKET);
+        buckets.set(0, newBucket(FIRST_BUCKET_SIZE));
+        descriptor = new AtomicReference<Descriptor>(new Descriptor(0, null));
+    }
+
+    /**
+     * @param length
+     *            number of slots
+     * @return a new, zeroed bucket
+     */
+    abstract A newBucket(int length);
+
+    /**
+     * @param pos
+     *            index plus FIRST_BUCKET_SIZE
+     * @return index of the bucket holding pos
+     */
+    static int bucketOf(int pos) {
+        return ZERO_NUM_FIRST - Integer.numberOfLeadingZeros(pos);
+    }
+
+    /**
+     * @param pos
+     *            index plus FIRST_BUCKET_SIZE
+     * @return index of pos inside its bucket
+     */
+    static int slotOf(int pos) {
+        return Integer.highestOneBit(pos) ^ pos;
+    }
+
+    /**
+     * @return the current descriptor, with its pending operation completed
+     */
+    final Descriptor current() {
+        Descriptor desc = descriptor.get();
+        desc.completeWrite();
+        return desc;
+    }
+
+    /**
+     * @return bucket b, allocated if necessary
+     */
+    final A bucket(int b) {
+        A bucket;
+        while ((bucket = buckets.get(b)) == null)
+            buckets.compareAndSet(b, null, newBucket(FIRST_BUCKET_SIZE << b));
+        return bucket;
+    }
+
+    /**
+     * @param first
+     *            index of the first new element
+     * @param n
+     *            number of new elements
+     * @throws IllegalStateException
+     *             if the elements do not fit
+     */
+    static void checkCapacity(int first, int n) {
+        int end = first + n + FIRST_BUCKET_SIZE;
+        if (end < 0 || bucketOf(end - 1) >= N_BUCKET)
+            throw new IllegalStateException("Vector full");
+    }
+
+    /**
+     * Look up the bucket of the last element, for a pop.
+     *
+     * @param desc
+     *            a descriptor with size greater than 0
+     * @return the bucket, or null if it has been released since desc was
+     *         read; desc is stale then and the caller retries
+     */
+    final A lastBucket(Descriptor desc) {
+        return buckets.get(bucketOf(desc.size + FIRST_BUCKET_SIZE - 1));
+    }
+
+    /**
+     * Look up the bucket of an element, for a read or write.
+     *
+     * @param index
+     *            index of the element
+     * @return the bucket
+     * @throws IndexOutOfBoundsException
+     *             if index is outside the size, or its bucket has been
+     *             released, which only happens to buckets above the size
+     */
+    final A bucketFor(int index) {
+        if (index < 0 || index >= size())
+            throw new IndexOutOfBoundsException("Index: " + index);
+        A bucket = buckets.get(bucketOf(index + FIRST_BUCKET_SIZE));
+        if (bucket == null)
+            throw new IndexOutOfBoundsException("Index: " + index);
+        return bucket;
+    }
+
+    /**
+     * Release the buckets behind the current size, see
+     * {@link LockFreeVector#shrinkToFit()}.
+     */
+    @Parallel(ParallelType.LockFree)
+    public void shrinkToFit() {
+        Descriptor desc;
+        Descriptor newd;
+        do {
+            desc = current();
+            int firstBucket = bucketOf(desc.size + FIRST_BUCKET_SIZE) + 1;
+            if (firstBucket >= N_BUCKET)
+                return;
+            Object[] released = new Object[N_BUCKET - firstBucket];
+            boolean any = false;
+            for (int b = firstBucket; b < N_BUCKET; b++) {
+                released[b - firstBucket] = buckets.get(b);
+                any |= released[b - firstBucket] != null;
+            }
+            if (!any)
+                return;
+            newd = new Descriptor(desc.size, new ReleaseDescriptor<A>(
+                    buckets, released, firstBucket));
+        } while (!descriptor.compareAndSet(desc, newd));
+        descriptor.get().completeWrite();
+    }
+
+    /**
+     * return size of vector.
+     *
+     * @return size of vector
+     */
+    public int size() {
+        return descriptor.get().size;
+    }
+
+    /**
+     * @return true if the vector has no element
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+}
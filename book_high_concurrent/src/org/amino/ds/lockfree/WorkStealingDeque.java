@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2008 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.amino.ds.lockfree;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.amino.utility.Parallel;
+import org.amino.utility.ParallelType;
+
+/**
+ * A work-stealing deque for one owner thread and any number of thieves, based
+ * on the algorithm in the following paper: Dynamic Circular Work-Stealing
+ * Deque By David Chase and Yossi Lev (SPAA 2005).
+ * 
+ * <p>
+ * Elements live in a circular array indexed by two counters, top and bottom.
+ * The owner pushes and pops at the bottom with plain volatile writes; only
+ * when a single element is left does it race the thieves with a CAS on top.
+ * Thieves take the oldest element by CAS on top. No node is allocated per
+ * element. The array doubles when it becomes full and is never shrunk. A
+ * stolen element stays referenced by its slot until the owner reuses it.
+ * 
+ * <p>
+ * <b>Thread Safety:</b> <br>
+ * {@link #pushBottom(Object)} and {@link #popBottom()} may only be called by
+ * the owner thread. {@link #steal()}, {@link #size()} and {@link #isEmpty()}
+ * may be called by any thread.
+ * 
+ * @param <E>
+ *            type of element in the deque
+ */
+public class WorkStealingDeque<E> {
+	/**
+	 * Initial capacity of the array, must be a power of 2.
+	 */
+	private static final int INITIAL_CAPACITY = 1 << 5;
+
+	/**
+	 * Capacity above which the array is no longer grown.
+	 */
+	private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+	/**
+	 * Index of the oldest element, only ever incremented by CAS.
+	 */
+	private volatile long top;
+
+	/**
+	 * Index of the next free slot, only written by the owner.
+	 */
+	private volatile long bottom;
+
+	private volatile AtomicReferenceArray<E> array;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static final AtomicLongFieldUpdater<WorkStealingDeque> topUpdater = AtomicLongFieldUpdater
+			.newUpdater(WorkStealingDeque.class, "top");
+
+	/**
+	 * default constructor.
+	 */
+	public WorkStealingDeque() {
+		this(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * @param initialCapacity
+	 *            initial size of the array, rounded up to a power of 2
+	 */
+	public WorkStealingDeque(int initialCapacity) {
+		if (initialCapacity <= 0)
+			throw new IllegalArgumentException();
+		int cap = 2;
+		while ((cap < initialCapacity) && (cap < MAXIMUM_CAPACITY))
+			cap <<= 1;
+		array = new AtomicReferenceArray<E>(cap);
+	}
+
+	/**
+	 * Inserts an element at the bottom. Must only be called by the owner.
+	 * 
+	 * @param e
+	 *            element to insert
+	 */
+	@Parallel(ParallelType.ThreadUnSafe)
+	public void pushBottom(E e) {
+		if (e == null)
+			throw new NullPointerException();
+		long b = bottom;
+		long t = top;
+		AtomicReferenceArray<E> a = array;
+		if (b - t >= a.length() - 1)
+			a = grow(a, t, b);
+		a.lazySet((int) b & (a.length() - 1), e);
+		// the volatile write publishes the element to thieves
+		bottom = b + 1;
+	}
+
+	/**
+	 * Removes the most recently pushed element. Must only be called by the
+	 * owner.
+	 * 
+	 * @return the bottom element, or null if the deque is empty or the last
+	 *         element was stolen concurrently
+	 */
+	@Parallel(ParallelType.ThreadUnSafe)
+	public E popBottom() {
+		AtomicReferenceArray<E> a = array;
+		long b = bottom - 1;
+		// claim the slot before reading top; a thief reading bottom after
+		// this will not go past it
+		bottom = b;
+		long t = top;
+		long size = b - t;
+		if (size < 0) {
+			bottom = t;
+			return null;
+		}
+		int i = (int) b & (a.length() - 1);
+		E e = a.get(i);
+		if (size > 0) {
+			a.lazySet(i, null);
+			return e;
+		}
+		// one element left, thieves may be after it too
+		boolean won = topUpdater.compareAndSet(this, t, t + 1);
+		if (won)
+			a.lazySet(i, null);
+		bottom = t + 1;
+		return won ? e : null;
+	}
+
+	/**
+	 * Removes the oldest element. May be called by any thread.
+	 * 
+	 * @return the top element, or null if the deque is empty
+	 */
+	@Parallel(ParallelType.LockFree)
+	public E steal() {
+		while (true) {
+			long t = top;
+			long b = bottom;
+			if (b - t <= 0)
+				return null;
+			AtomicReferenceArray<E> a = array;
+			int i = (int) t & (a.length() - 1);
+			E e = a.get(i);
+			if (topUpdater.compareAndSet(this, t, t + 1)) {
+				// the slot is left to the owner: after a wraparound it may
+				// already hold the same reference again, pushed anew
+				return e;
+			}
+		}
+	}
+
+	/**
+	 * Copies the live part of the array into one twice as large.
+	 */
+	private AtomicReferenceArray<E> grow(AtomicReferenceArray<E> old, long t,
+			long b) {
+		int oldCap = old.length();
+		if (oldCap >= MAXIMUM_CAPACITY)
+			throw new IllegalStateException("Deque full");
+		AtomicReferenceArray<E> a = new AtomicReferenceArray<E>(oldCap << 1);
+		// thieves still reading the old array find the same elements there
+		for (long i = t; i < b; i++)
+			a.lazySet((int) i & (a.length() - 1), old
+					.get((int) i & (oldCap - 1)));
+		array = a;
+		return a;
+	}
+
+	/**
+	 * @return number of elements, possibly stale when other threads are
+	 *         active
+	 */
+	@Parallel(ParallelType.LockFree)
+	public int size() {
+		long n = bottom - top;
+		return (n < 0) ? 0 : (int) n;
+	}
+
+	/**
+	 * @return true if the deque holds no element
+	 */
+	@Parallel(ParallelType.LockFree)
+	public boolean isEmpty() {
+		return bottom - top <= 0;
+	}
+}
@@ -16,18 +16,28 @@
 
 package org.amino.ds.tree;
 
-import java.util.Set;
-import java.util.concurrent.Callable;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.EnumSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.amino.pattern.internal.Doable;
+import org.amino.utility.WaiterList;
 
 /**
  * This is an implementation of a relaxed balanced red-black tree data
@@ -61,7 +71,19 @@ import org.amino.pattern.internal.Doable;
  * ordered universe) are stored in the leaves of the binary tree. The internal
  * nods contains routers, which guide the search from the root to a leaf.
  * <p>
- * Sample performance results here
+ * Writers lock nodes hand-over-hand. Lookups do not lock: every node carries a
+ * version stamp which is odd while a writer changes the node's links, value or
+ * removal mark, and a lookup checks that the stamps of the nodes it passes did
+ * not change while it read them, in the manner of a sequence lock, and retries
+ * from the root otherwise. Merely locking a node on the way down leaves its
+ * stamp alone, so lookups only retry for actual changes on their path. A
+ * lookup that keeps failing falls back to locking like a writer.
+ * <p>
+ * Rebalancing requests are settled by a pool of threads, in parallel for
+ * distinct subtrees. If the balancer falls behind by more than the backlog
+ * limit, insert and remove wait until it has worked the backlog down to half
+ * the limit, so a burst of updates cannot leave the tree skewed for long.
+ * {@link #pendingRequests()} and {@link #getHeight()} show how far it lags.
  * <p>
  * The following operations are thread-safe and scalable (but see notes in
  * method javadoc): insert, remove, find, search.
@@ -81,6 +103,11 @@ public class ParallelRBTree<E> {
      */
     private static final int WAIT_FOR_TRY_LOCK = 50;
 
+    /**
+     * Optimistic attempts of a lookup before it locks its path.
+     */
+    private static final int OPTIMISTIC_ATTEMPTS = 8;
+
     /**
      * sentinel stands for a dummy node.
      */
@@ -105,30 +132,180 @@ public class ParallelRBTree<E> {
          */
         private Color color;
         /**
-         * Value of node.
+         * Value of node. Volatile, like the child pointers, because lookups
+         * read it without locking.
          */
-        private E value;
+        private volatile E value;
         /**
          * Left child of node.
          */
-        private Node<E> left;
+        private volatile Node<E> left;
         /**
          * Right child of node.
          */
-        private Node<E> right;
+        private volatile Node<E> right;
         /**
          * Parent of node.
          */
         private Node<E> p;
-        private final ReadWriteLock lock = new ReentrantReadWriteLock();
         /**
-         * Read lock on the node.
+         * Lock of writers. A plain reentrant lock is a fraction of the size of
+         * a read-write lock, and lookups do not need a read lock.
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+        /**
+         * Version stamp, odd while a writer changes the links, the value or
+         * the REMOVAL request of the node. Taking the lock alone leaves it
+         * even, so hand-over-hand traversals of writers do not fail lookups.
+         */
+        private volatile long version;
+        /**
+         * Requests of the node, a bit per {@link Request} ordinal. Updated by
+         * CAS, as a few balancer paths add a request to a node whose lock
+         * they do not hold, and read by lookups without locking.
+         */
+        private volatile int req;
+        /**
+         * 1 while the node waits in a queue of the balancer. Requests added
+         * meanwhile are settled together with the queued ones.
+         */
+        private volatile int queued;
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        private static final AtomicIntegerFieldUpdater<Node> QUEUED = AtomicIntegerFieldUpdater
+                .newUpdater(Node.class, "queued");
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        private static final AtomicIntegerFieldUpdater<Node> REQ = AtomicIntegerFieldUpdater
+                .newUpdater(Node.class, "req");
+
+        /**
+         * Acquire the lock of the node. The lock is reentrant.
          */
-        final Lock rlock = lock.readLock(); // read lock
+        void lock() {
+            lock.lock();
+        }
+
+        /**
+         * Acquire the lock of the node if it becomes free within the timeout.
+         * 
+         * @param timeout
+         *            maximal time to wait
+         * @param unit
+         *            unit of timeout
+         * @return true if the lock is held
+         * @throws InterruptedException
+         *             if interrupted while waiting
+         */
+        boolean tryLock(long timeout, TimeUnit unit)
+                throws InterruptedException {
+            return lock.tryLock(timeout, unit);
+        }
+
         /**
-         * Write lock on the node.
+         * Release the lock of the node.
          */
-        final Lock xlock = lock.writeLock(); // write lock
+        void unlock() {
+            lock.unlock();
+        }
+
+        /**
+         * Make the stamp odd before the links, the value or the REMOVAL
+         * request change, so that lookups reading the node meanwhile fail
+         * validation. The caller holds the lock.
+         */
+        void beginWrite() {
+            assert lock.isHeldByCurrentThread() && ((version & 1) == 0);
+            version = version + 1;
+        }
+
+        /**
+         * Make the stamp even again after {@link #beginWrite()}.
+         */
+        void endWrite() {
+            version = version + 1;
+        }
+
+        /**
+         * @param r
+         *            request
+         * @return true if the node has request r
+         */
+        boolean has(Request r) {
+            return (req & (1 << r.ordinal())) != 0;
+        }
+
+        /**
+         * @return true if the node has any request
+         */
+        boolean hasRequests() {
+            return req != 0;
+        }
+
+        /**
+         * Add request r to the node.
+         * 
+         * @param r
+         *            request
+         */
+        void add(Request r) {
+            int bit = 1 << r.ordinal();
+            int s;
+            do {
+                s = req;
+                if ((s & bit) != 0) {
+                    return;
+                }
+            } while (!REQ.compareAndSet(this, s, s | bit));
+        }
+
+        /**
+         * Remove request r from the node.
+         * 
+         * @param r
+         *            request
+         */
+        void remove(Request r) {
+            int bit = 1 << r.ordinal();
+            int s;
+            do {
+                s = req;
+                if ((s & bit) == 0) {
+                    return;
+                }
+            } while (!REQ.compareAndSet(this, s, s & ~bit));
+        }
+
+        /**
+         * Drop all requests of the node.
+         */
+        void clearRequests() {
+            req = 0;
+        }
+
+        /**
+         * Replace the requests of the node with those of another node, as
+         * part of a structural change.
+         * 
+         * @param from
+         *            node whose requests are copied
+         */
+        void copyRequests(Node<E> from) {
+            req = from.req;
+        }
+
+        /**
+         * @return the requests of the node
+         */
+        EnumSet<Request> requests() {
+            EnumSet<Request> set = EnumSet.noneOf(Request.class);
+            for (Request r : Request.values()) {
+                if (has(r)) {
+                    set.add(r);
+                }
+            }
+            return set;
+        }
 
         /**
          * Get value.
@@ -139,12 +316,6 @@ public class ParallelRBTree<E> {
             return value;
         }
 
-        /**
-         * Request list of the node. It removes duplicated requests on the same
-         * node.
-         */
-        Set<Request> req;
-
         /**
          * Default constructor.
          * 
@@ -159,7 +330,6 @@ public class ParallelRBTree<E> {
             left = SENTINEL;
             right = SENTINEL;
             p = SENTINEL;
-            req = new CopyOnWriteArraySet<Request>();
         }
 
         /**
@@ -175,7 +345,6 @@ public class ParallelRBTree<E> {
             left = SENTINEL;
             right = SENTINEL;
             p = SENTINEL;
-            req = new CopyOnWriteArraySet<Request>();
         }
 
         /**
@@ -193,7 +362,6 @@ public class ParallelRBTree<E> {
             this.left = SENTINEL;
             this.right = SENTINEL;
             p = parent;
-            req = new CopyOnWriteArraySet<Request>();
         }
 
         /**
@@ -215,7 +383,6 @@ public class ParallelRBTree<E> {
             this.p = parent;
             this.left = left;
             this.right = right;
-            req = new CopyOnWriteArraySet<Request>();
         }
 
         /**
@@ -223,7 +390,7 @@ public class ParallelRBTree<E> {
          */
         public String toString() {
             return value == null ? "sentinal" : value.toString()
-                    + ((color == Color.BLACK) ? "B" : "R") + req
+                    + ((color == Color.BLACK) ? "B" : "R") + requests()
                     + this.hashCode();
         }
 
@@ -247,31 +414,282 @@ public class ParallelRBTree<E> {
         }
     }
 
+    /**
+     * Default limit of nodes waiting for the balancer. Under ascending
+     * insertions every waiting node can add a level to the tree, so the limit
+     * bounds the excess height too.
+     */
+    public static final int DEFAULT_MAX_BACKLOG = 256;
+
     /**
      * Root of the red-black tree.
      */
-    private Node<E> root;
+    private volatile Node<E> root;
 
     /**
-     * Balancer which execute balancing request in a separated thread.
+     * Balancer which execute balancing request in separated threads.
      */
     private final RelaxedBalancer balancer;
 
     /**
-     * Default constructor.
+     * Length of the path of the latest insertion.
+     */
+    private volatile int insertDepth;
+
+    /**
+     * Default constructor. The balancer gets a thread per processor.
      */
     public ParallelRBTree() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_BACKLOG);
+    }
+
+    /**
+     * Constructor with a balancer of its own.
+     * 
+     * @param threads
+     *            number of balancer threads
+     * @param maxBacklog
+     *            number of nodes waiting for the balancer above which
+     *            updating threads wait
+     */
+    public ParallelRBTree(int threads, int maxBacklog) {
+        if (threads < 1) {
+            throw new IllegalArgumentException();
+        }
+        root = SENTINEL;
+        balancer = new RelaxedBalancer(Executors.newFixedThreadPool(threads),
+                true, threads, maxBacklog);
+    }
+
+    /**
+     * Constructor with a balancer which runs on the given executor. The
+     * executor is not shut down by {@link #shutdown()}. It must not be the
+     * one that runs the threads updating the tree, since those may wait for
+     * the balancer.
+     * 
+     * @param executor
+     *            executor of balancing tasks
+     * @param parallelism
+     *            number of threads of executor the balancer may use
+     * @param maxBacklog
+     *            number of nodes waiting for the balancer above which
+     *            updating threads wait
+     */
+    @SuppressWarnings("unchecked")
+    public ParallelRBTree(ExecutorService executor, int parallelism,
+            int maxBacklog) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException();
+        }
         root = SENTINEL;
-        balancer = new RelaxedBalancer();
+        balancer = new RelaxedBalancer(executor, false, parallelism,
+                maxBacklog);
     }
 
     /**
-     * Shutdown balancer thread.
+     * Leaves a bulk-build task builds without forking.
+     */
+    private static final int BUILD_THRESHOLD = 1 << 12;
+
+    /**
+     * Build a tree from sorted elements, with a balancer as made by the
+     * default constructor.
+     * 
+     * @see #fromSorted(Object[], int, int)
+     * @param <E>
+     *            Type of element
+     * @param sorted
+     *            elements in strictly ascending order
+     * @return the new tree
+     */
+    public static <E> ParallelRBTree<E> fromSorted(E[] sorted) {
+        Node<E> r = build(sorted);
+        ParallelRBTree<E> tree = new ParallelRBTree<E>();
+        tree.root = r;
+        return tree;
+    }
+
+    /**
+     * Build a tree from sorted elements. Subtrees are built in parallel on the
+     * common fork/join pool. The tree is complete: leaves differ in depth by
+     * one at most, internal nodes just above the deepest leaves are red and
+     * all other nodes black, so it is a red-black tree as it stands and
+     * leaves no work to the balancer.
+     * 
+     * @param <E>
+     *            Type of element
+     * @param sorted
+     *            elements in strictly ascending order
+     * @param threads
+     *            number of balancer threads
+     * @param maxBacklog
+     *            number of nodes waiting for the balancer above which
+     *            updating threads wait
+     * @return the new tree
+     * @throws IllegalArgumentException
+     *             if the elements are not in strictly ascending order
+     * @throws NullPointerException
+     *             if an element is null
+     */
+    public static <E> ParallelRBTree<E> fromSorted(E[] sorted, int threads,
+            int maxBacklog) {
+        Node<E> r = build(sorted);
+        ParallelRBTree<E> tree = new ParallelRBTree<E>(threads, maxBacklog);
+        tree.root = r;
+        return tree;
+    }
+
+    /**
+     * Build the nodes of a tree before the tree, and its balancer threads,
+     * exist, so that invalid input leaves nothing to shut down.
+     * 
+     * @param sorted
+     *            elements in strictly ascending order
+     * @return root of the new nodes
+     */
+    @SuppressWarnings("unchecked")
+    private static <E> Node<E> build(E[] sorted) {
+        if (0 == sorted.length) {
+            return SENTINEL;
+        }
+        // leaves lie at this depth or one below
+        int redDepth = 31 - Integer.numberOfLeadingZeros(sorted.length);
+        return ForkJoinPool.commonPool().invoke(
+                new Build<E>(sorted, 0, sorted.length, 0, redDepth));
+    }
+
+    /**
+     * Builds the subtree of sorted[lo, hi), forking the right half while the
+     * range is large.
+     * 
+     * @param <E>
+     *            Type of element
+     */
+    private static final class Build<E> extends RecursiveTask<Node<E>> {
+        private static final long serialVersionUID = 1L;
+        private final E[] sorted;
+        private final int lo;
+        private final int hi;
+        private final int depth;
+        private final int redDepth;
+
+        Build(E[] sorted, int lo, int hi, int depth, int redDepth) {
+            this.sorted = sorted;
+            this.lo = lo;
+            this.hi = hi;
+            this.depth = depth;
+            this.redDepth = redDepth;
+        }
+
+        protected Node<E> compute() {
+            if (hi - lo <= BUILD_THRESHOLD) {
+                return build(sorted, lo, hi, depth, redDepth);
+            }
+            int mid = (lo + hi) >>> 1;
+            Build<E> right = new Build<E>(sorted, mid, hi, depth + 1, redDepth);
+            right.fork();
+            Node<E> left = new Build<E>(sorted, lo, mid, depth + 1, redDepth)
+                    .compute();
+            return link(sorted[mid], left, right.join(), depth, redDepth);
+        }
+    }
+
+    /**
+     * Build the subtree of sorted[lo, hi) sequentially. Each leaf checks the
+     * order against the element before it.
+     * 
+     * @param sorted
+     *            elements
+     * @param lo
+     *            first element of the subtree
+     * @param hi
+     *            element after the last one of the subtree
+     * @param depth
+     *            depth of the subtree root
+     * @param redDepth
+     *            depth of the red internal nodes
+     * @return root of the subtree
+     */
+    @SuppressWarnings("unchecked")
+    private static <E> Node<E> build(E[] sorted, int lo, int hi, int depth,
+            int redDepth) {
+        if (hi - lo == 1) {
+            E value = sorted[lo];
+            if (null == value) {
+                throw new NullPointerException();
+            }
+            if ((lo > 0)
+                    && (((Comparable) sorted[lo - 1]).compareTo(value) >= 0)) {
+                throw new IllegalArgumentException(
+                        "elements not in strictly ascending order at " + lo);
+            }
+            return new Node<E>(value);
+        }
+        int mid = (lo + hi) >>> 1;
+        return link(sorted[mid], build(sorted, lo, mid, depth + 1, redDepth),
+                build(sorted, mid, hi, depth + 1, redDepth), depth, redDepth);
+    }
+
+    /**
+     * Make the internal node above two subtrees. Its router is the lowest
+     * element of the right subtree, as insert leaves it.
+     */
+    private static <E> Node<E> link(E router, Node<E> left, Node<E> right,
+            int depth, int redDepth) {
+        @SuppressWarnings("unchecked")
+        Node<E> x = new Node<E>(router, SENTINEL, left, right);
+        x.color = (depth == redDepth) ? Color.RED : Color.BLACK;
+        left.p = x;
+        right.p = x;
+        return x;
+    }
+
+    /**
+     * Shutdown balancer thread. Pending requests get up to the termination
+     * timeout to be settled.
      */
     public void shutdown() {
         balancer.shutdown();
     }
 
+    /**
+     * Get number of nodes whose requests wait for the balancer.
+     * 
+     * @return number of nodes waiting for the balancer
+     */
+    public int pendingRequests() {
+        return balancer.pending.get();
+    }
+
+    /**
+     * Get number of nodes the balancer has worked on so far.
+     * 
+     * @return number of nodes handled
+     */
+    public long settledRequests() {
+        return balancer.settled.sum();
+    }
+
+    /**
+     * Get number of requests which joined a node already waiting for the
+     * balancer.
+     * 
+     * @return number of coalesced requests
+     */
+    public long coalescedRequests() {
+        return balancer.coalesced.sum();
+    }
+
+    /**
+     * Get length of the path of the latest insertion, a cheap sample of the
+     * height of the tree while {@link #getHeight()} walks all of it.
+     * 
+     * @return depth of the latest inserted leaf
+     */
+    public int lastInsertDepth() {
+        return insertDepth;
+    }
+
     /**
      * Insert a element into the tree.
      * 
@@ -280,6 +698,7 @@ public class ParallelRBTree<E> {
      */
     public void insert(E element) {
         insert(new Node<E>(element));
+        balancer.throttle();
     }
 
     /**
@@ -296,23 +715,40 @@ public class ParallelRBTree<E> {
          * leaf by an internal red node with two black leaves.The two leaves now
          * store the old key (where the search ended) and the new key x.
          */
-        Node<E> x = root;
+        Node<E> x;
         Node<E> y = SENTINEL; // parent of x
+        int depth = 0;
 
-        x.xlock.lock();
+        while (true) {
+            x = root;
+            x.lock();
+            if (x == root) {
+                break;
+            }
+            // the tree was emptied or refilled while we waited for the lock
+            x.unlock();
+        }
         try {
-            // locate position to insert, use w-lock coupling from the root
+            /*
+             * locate position to insert, use w-lock coupling from the root.
+             * The parent stays locked too, so that the balancer cannot
+             * recolor it between the check of its color below and the
+             * request that depends on it.
+             */
             while (x.isNotLeaf()) {
-                y = x;
+                Node<E> c;
                 if (((Comparable) z.value).compareTo(x.value) < 0) {
-                    x.left.xlock.lock();
-                    x.xlock.unlock();
-                    x = x.left;
+                    c = x.left;
                 } else {
-                    x.right.xlock.lock();
-                    x.xlock.unlock();
-                    x = x.right;
+                    c = x.right;
                 }
+                c.lock();
+                if (SENTINEL != y) {
+                    y.unlock();
+                }
+                y = x;
+                x = c;
+                depth++;
             }
 
             // assertion for debug
@@ -325,11 +761,18 @@ public class ParallelRBTree<E> {
             // assert x == root;
             // }
 
+            if (insertDepth != depth) {
+                // skip the store, and the cache miss of other inserters
+                insertDepth = depth;
+            }
+
             // x is the location to insert and always leaf
-            if (x.req.contains(Request.REMOVAL)) {
+            if (x.has(Request.REMOVAL)) {
                 // just replace the value of REMOVAL node
-                x.req.remove(Request.REMOVAL);
+                x.beginWrite();
                 x.value = z.value;
+                x.remove(Request.REMOVAL);
+                x.endWrite();
             } else {
                 z.p = x;
                 if (SENTINEL == x) { // tree is empty
@@ -340,6 +783,7 @@ public class ParallelRBTree<E> {
                      * replace the leaf by an internal red node with two black
                      * leaves, internal node has the bigger value
                      */
+                    x.beginWrite();
                     if (((Comparable) z.value).compareTo(x.value) < 0) {
                         x.left = z;
                         x.right = new Node<E>(x.value, x);
@@ -348,14 +792,15 @@ public class ParallelRBTree<E> {
                         x.left = new Node<E>(x.value, x);
                         x.value = z.value;
                     }
+                    x.endWrite();
                     x.color = Color.RED;
 
                     assert x.left.color == Color.BLACK
                             && x.right.color == Color.BLACK;
 
                     // addtional transformation
-                    // if (x.req.contains(Request.UP_OUT)) {
-                    // x.req.remove(Request.UP_OUT);
+                    // if (x.has(Request.UP_OUT)) {
+                    // x.remove(Request.UP_OUT);
                     // x.color = Color.BLACK;
                     // }
 
@@ -367,13 +812,16 @@ public class ParallelRBTree<E> {
                      * up-in for the new inner node p.
                      */
                     if (y.color == Color.RED) {
-                        x.req.add(Request.UP_IN);
+                        x.add(Request.UP_IN);
                         balancer.addRequest(x);
                     }
                 }
             }
         } finally {
-            x.xlock.unlock();
+            x.unlock();
+            if (SENTINEL != y) {
+                y.unlock();
+            }
         }
     }
 
@@ -404,18 +852,24 @@ public class ParallelRBTree<E> {
 
             Node<E> x = root;
             // locate position to insert, use w-lock coupling from the root
-            x.xlock.lock();
+            x.lock();
             try {
+                if (x != root) {
+                    // the tree was emptied or refilled meanwhile
+                    continue RE_TRY;
+                }
                 // reach the leaf to remove
                 while (x.isNotLeaf()) {
                     if (((Comparable) element).compareTo(x.value) < 0) {
-                        x.left.xlock.lock();
-                        x.xlock.unlock();
-                        x = x.left;
+                        Node<E> c = x.left;
+                        c.lock();
+                        x.unlock();
+                        x = c;
                     } else {
-                        x.right.xlock.lock();
-                        x.xlock.unlock();
-                        x = x.right;
+                        Node<E> c = x.right;
+                        c.lock();
+                        x.unlock();
+                        x = c;
                     }
                 }
 
@@ -426,27 +880,33 @@ public class ParallelRBTree<E> {
 
                 // x is the leaf
                 if (root == x) {// x is the root
-                    x.req.clear();
+                    // a lookup that read the root before sees the null value
+                    // and starts over from the new, empty root
+                    x.beginWrite();
+                    x.clearRequests();
+                    x.value = null;
                     root = SENTINEL;
+                    x.endWrite();
                 } else {
                     final Node<E> parent = x.p; // x's parent
                     try {
                         // get the lock of y
-                        if (parent.xlock.tryLock(WAIT_FOR_TRY_LOCK,
+                        if (parent.tryLock(WAIT_FOR_TRY_LOCK,
                                 TimeUnit.MILLISECONDS)) {
                             if (Color.RED == parent.color) {
                                 balancer.removeLeafAndParent(x);
                             } else {// see Fig 3a-c
                                 // removed parent is black then rb-tree
                                 // structure is violated
-                                x.req.add(Request.REMOVAL);
+                                x.beginWrite();
+                                x.add(Request.REMOVAL);
+                                x.endWrite();
                                 balancer.addRequest(x);
                             }
-                            parent.xlock.unlock();
+                            parent.unlock();
                         } else {
                             // if try lock parent fails, release all locks and
-                            // retry from the top.
-                            x.xlock.unlock();
+                            // retry from the top; the finally block unlocks x
                             continue RE_TRY;
                         }
                     } catch (InterruptedException e) {
@@ -454,8 +914,9 @@ public class ParallelRBTree<E> {
                     }
                 }
             } finally {
-                x.xlock.unlock();
+                x.unlock();
             }
+            balancer.throttle();
             return true;
         }
     }
@@ -486,6 +947,140 @@ public class ParallelRBTree<E> {
         inorderWalk(root, operation);
     }
 
+    /**
+     * Levels of the tree above the deepest fork of a parallel walk, beyond
+     * those needed to give each thread a subtree.
+     */
+    private static final int WALK_FORK_SLACK = 3;
+
+    /**
+     * Queued tasks of a walker thread above which it stops forking.
+     */
+    private static final int WALK_SURPLUS = 3;
+
+    /**
+     * Iterate the tree in-order on the common fork/join pool. Left and right
+     * subtrees of the top levels are visited by different threads at the
+     * same time, so operation must be thread-safe. It is applied to the same
+     * values as by {@link #inOrderWalk(Doable)}, and in ascending order
+     * within each part given to a thread. The tree should not be updated
+     * during the walk.
+     * 
+     * @param operation
+     *            operation done during walk
+     */
+    public void parallelInOrderWalk(Doable<E, E> operation) {
+        ForkJoinPool.commonPool().invoke(
+                new Walk<E>(root, operation, false, walkForks()));
+    }
+
+    /**
+     * Iterate the tree in-order on the common fork/join pool, like
+     * {@link #parallelInOrderWalk(Doable)}, and collect the results of
+     * operation. The results are in in-order position, whichever thread
+     * computed them.
+     * 
+     * @param <R>
+     *            Type of result
+     * @param operation
+     *            operation done during walk
+     * @return results of operation in in-order sequence
+     */
+    public <R> List<R> parallelInOrderMap(Doable<E, R> operation) {
+        List<List<R>> chunks = ForkJoinPool.commonPool().invoke(
+                new Walk<R>(root, operation, true, walkForks()));
+        int n = 0;
+        for (List<R> chunk : chunks) {
+            n += chunk.size();
+        }
+        List<R> results = new ArrayList<R>(n);
+        for (List<R> chunk : chunks) {
+            results.addAll(chunk);
+        }
+        return results;
+    }
+
+    private static int walkForks() {
+        int threads = ForkJoinPool.commonPool().getParallelism();
+        return 32 - Integer.numberOfLeadingZeros(threads) + WALK_FORK_SLACK;
+    }
+
+    /**
+     * Visits a subtree in-order, forking the right subtree of each node in
+     * the top levels while the pool is short of work.
+     * 
+     * @param <R>
+     *            Type of result
+     */
+    private final class Walk<R> extends RecursiveTask<List<List<R>>> {
+        private static final long serialVersionUID = 1L;
+        private final Node<E> x;
+        private final Doable<E, R> operation;
+        /**
+         * true to return the results, in chunks, otherwise null.
+         */
+        private final boolean keep;
+        /**
+         * Levels which may still fork.
+         */
+        private final int forks;
+
+        Walk(Node<E> x, Doable<E, R> operation, boolean keep, int forks) {
+            this.x = x;
+            this.operation = operation;
+            this.keep = keep;
+            this.forks = forks;
+        }
+
+        protected List<List<R>> compute() {
+            List<List<R>> chunks = keep ? new ArrayList<List<R>>() : null;
+            if (SENTINEL == x) {
+                return chunks;
+            }
+            if ((0 == forks) || (getSurplusQueuedTaskCount() > WALK_SURPLUS)) {
+                List<R> chunk = keep ? new ArrayList<R>() : null;
+                walk(x, operation, chunk);
+                if (keep) {
+                    chunks.add(chunk);
+                }
+                return chunks;
+            }
+            Walk<R> right = new Walk<R>(x.right, operation, keep, forks - 1);
+            right.fork();
+            List<List<R>> left = new Walk<R>(x.left, operation, keep,
+                    forks - 1).compute();
+            R r = operation.run(x.value);
+            List<List<R>> rest = right.join();
+            if (keep) {
+                chunks.addAll(left);
+                chunks.add(Collections.singletonList(r));
+                chunks.addAll(rest);
+            }
+            return chunks;
+        }
+    }
+
+    /**
+     * Iterate a subtree in-order in the calling thread.
+     * 
+     * @param x
+     *            start node
+     * @param operation
+     *            operation done during walk
+     * @param results
+     *            list the results are appended to, or null
+     */
+    private <R> void walk(Node<E> x, Doable<E, R> operation, List<R> results) {
+        if (SENTINEL != x) {
+            walk(x.left, operation, results);
+            R r = operation.run(x.value);
+            if (null != results) {
+                results.add(r);
+            }
+            walk(x.right, operation, results);
+        }
+    }
+
     /**
      * Find the key in the tree.
      * 
@@ -517,42 +1112,98 @@ public class ParallelRBTree<E> {
      *            key
      * @return node found otherwise null
      */
-    @SuppressWarnings("unchecked")
     private Node<E> search(Node<E> x, E k) {
-        if (SENTINEL == x) { // tree is empty
-            return SENTINEL;
+        for (int i = 0; i < OPTIMISTIC_ATTEMPTS; i++) {
+            Node<E> n = optimisticSearch(x, k);
+            if (null != n) {
+                return n;
+            }
+            x = root;
         }
+        // writers keep changing the path, queue up with them instead
+        return lockedSearch(k);
+    }
 
-        int comp;
-
-        // locate position of key, use r-lock coupling from the root
-        x.rlock.lock();
-        while (x.isNotLeaf()) {
-            comp = ((Comparable) k).compareTo(x.value);
-            if (comp < 0) {
-                x.left.rlock.lock();
-                x.rlock.unlock();
-                x = x.left;
-            } else {
-                x.right.rlock.lock();
-                x.rlock.unlock();
-                x = x.right;
+    /**
+     * Lookup with lock coupling from the root, like the writers.
+     * 
+     * @param k
+     *            key
+     * @return node found, otherwise SENTINEL
+     */
+    @SuppressWarnings("unchecked")
+    private Node<E> lockedSearch(E k) {
+        Node<E> x;
+        while (true) {
+            x = root;
+            x.lock();
+            if (x == root) {
+                break;
             }
+            x.unlock();
         }
-
-        // reach the leaf, leaf is r-locked
-        assert x.isLeaf();
-
-        assert x != null;
-        assert x.value != null;
-
-        if (x.value.equals(k) && !x.req.contains(Request.REMOVAL)) {
+        try {
+            while (x.isNotLeaf()) {
+                Node<E> c = (((Comparable) k).compareTo(x.value) < 0) ? x.left
+                        : x.right;
+                c.lock();
+                x.unlock();
+                x = c;
+            }
             // node is logically removed if has Request.REMOVAL
-            x.rlock.unlock();
-            return x; // find
-        } else {
-            x.rlock.unlock();
-            return SENTINEL; // not find
+            if ((SENTINEL != x) && k.equals(x.value)
+                    && !x.has(Request.REMOVAL)) {
+                return x;
+            }
+            return SENTINEL;
+        } finally {
+            x.unlock();
+        }
+    }
+
+    /**
+     * Lookup without locking. Before it steps from x to a child it reads the
+     * child's stamp and then checks that the stamp of x is unchanged, so the
+     * child was reached through a consistent version of x.
+     * 
+     * @param x
+     *            start node
+     * @param k
+     *            key
+     * @return node found, SENTINEL if not found, or null if a node changed
+     */
+    @SuppressWarnings("unchecked")
+    private Node<E> optimisticSearch(Node<E> x, E k) {
+        if (SENTINEL == x) { // tree is empty
+            return SENTINEL;
+        }
+        long v = x.version;
+        if ((v & 1) != 0) {
+            return null;
+        }
+        while (true) {
+            Node<E> l = x.left;
+            Node<E> r = x.right;
+            E value = x.value;
+            if (null == value) {
+                // removed by the balancer
+                return null;
+            }
+            if ((SENTINEL == l) && (SENTINEL == r)) {
+                boolean found = value.equals(k)
+                        && !x.has(Request.REMOVAL);
+                if (x.version != v) {
+                    return null;
+                }
+                return found ? x : SENTINEL;
+            }
+            Node<E> c = (((Comparable) k).compareTo(value) < 0) ? l : r;
+            long cv = c.version;
+            if (((cv & 1) != 0) || (x.version != v)) {
+                return null;
+            }
+            x = c;
+            v = cv;
         }
     }
 
@@ -651,26 +1302,134 @@ public class ParallelRBTree<E> {
     }
 
     /**
-     * Balancer which execute rebalance request in a separated thread.
-     * 
+     * Balancer which settles rebalancing requests on a pool of threads.
+     * <p>
+     * Nodes with requests are sorted into lanes by subtree: the path of the
+     * node's key through the top levels of the tree picks the lane, and each
+     * lane is drained by one pool thread at a time. Settling a request
+     * touches nodes at most three levels above the node, so lanes of nodes
+     * far enough below the top levels never meet and run in parallel, while
+     * nodes near the root go to the top lane, which runs alone.
+     * <p>
+     * A node is queued once, however many requests it collects until it is
+     * handled, and a request that cannot get its locks in time stays on its
+     * node, which is queued again.
      */
     private class RelaxedBalancer {
         private static final int WAIT_FOR_TERMINATION = 30;
+        /**
+         * Nodes a lane handles before it gives its pool thread back.
+         */
+        private static final int BATCH = 64;
+        /**
+         * Levels a node must lie below the lane-selecting levels to be
+         * settled outside the top lane.
+         */
+        private static final int MARGIN = 4;
+        /**
+         * Microseconds to wait for a lock held by someone else. A request
+         * that fails is queued again, so the balancer gives way to writers,
+         * which lock in the opposite order, rather than stall them.
+         */
+        private static final int WAIT_FOR_LOCK = 200;
+
         /**
          * Executor in relaxed balancer.
          */
-        private ExecutorService exec = Executors.newSingleThreadExecutor();
+        private final ExecutorService exec;
+        /**
+         * true if exec was created by the balancer.
+         */
+        private final boolean ownExecutor;
+        /**
+         * Levels of the tree whose routers select a lane.
+         */
+        private final int laneBits;
+        private final List<Lane> lanes;
+        private final Lane top;
+        /**
+         * Read-locked by subtree lanes, write-locked by the top lane.
+         */
+        private final ReentrantReadWriteLock partition = new ReentrantReadWriteLock();
+        private final int maxBacklog;
+        /**
+         * Backlog at which waiting updates resume. Waking them as soon as the
+         * backlog dips under the limit would let each of them add one request
+         * and wait again, at the cost of a context switch per update.
+         */
+        private final int resumeBacklog;
+        /**
+         * Nodes queued and not yet handled.
+         */
+        private final AtomicInteger pending = new AtomicInteger();
+        private final LongAdder settled = new LongAdder();
+        private final LongAdder coalesced = new LongAdder();
+        /**
+         * Updating threads waiting for the backlog to shrink.
+         */
+        private final WaiterList throttled = new WaiterList();
+        private volatile boolean shutdown;
 
         /**
-         * Default constructor.
+         * Constructor.
+         * 
+         * @param exec
+         *            executor of lane tasks
+         * @param ownExecutor
+         *            true if the executor is to be shut down with the
+         *            balancer
+         * @param parallelism
+         *            number of threads of exec the balancer may use
+         * @param maxBacklog
+         *            number of pending nodes above which updates wait
          */
-        public RelaxedBalancer() {
+        RelaxedBalancer(ExecutorService exec, boolean ownExecutor,
+                int parallelism, int maxBacklog) {
+            if (null == exec) {
+                throw new NullPointerException();
+            }
+            if (maxBacklog < 1) {
+                throw new IllegalArgumentException();
+            }
+            this.exec = exec;
+            this.ownExecutor = ownExecutor;
+            this.maxBacklog = maxBacklog;
+            this.resumeBacklog = maxBacklog / 2;
+            // twice as many lanes as threads, so that requests crowding in
+            // one subtree do not leave the other threads idle
+            int bits = 1;
+            while ((1 << bits) < 2 * parallelism) {
+                bits++;
+            }
+            laneBits = bits;
+            lanes = new ArrayList<Lane>(1 << bits);
+            for (int i = 0; i < (1 << bits); i++) {
+                lanes.add(new Lane(partition.readLock()));
+            }
+            top = new Lane(partition.writeLock());
         }
 
         /**
          * shutdown balancer. Must be called after red-black is useless.
          */
         public void shutdown() {
+            long deadline = System.nanoTime()
+                    + TimeUnit.SECONDS.toNanos(WAIT_FOR_TERMINATION);
+            try {
+                // let queued requests settle, as the executor would do with
+                // tasks submitted before its shutdown
+                while ((pending.get() > 0)
+                        && (deadline - System.nanoTime() > 0)) {
+                    Thread.sleep(1);
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            shutdown = true;
+            throttled.signalAll();
+            if (!ownExecutor) {
+                return;
+            }
             exec.shutdown();
             try {
                 exec.awaitTermination(WAIT_FOR_TERMINATION, TimeUnit.SECONDS);
@@ -680,44 +1439,195 @@ public class ParallelRBTree<E> {
         }
 
         /**
-         * Add Up-in Up-out and Removal request to relaxed balancer.
+         * Add Up-in Up-out and Removal request to relaxed balancer. The
+         * request itself is added to the node by the caller.
          * 
          * @param node
          *            node
-         * @return future object generated by executor
          */
-        public Future<?> addRequest(final Node<E> node) {
-            return exec.submit(new Callable<Boolean>() {
-                public Boolean call() {
-                    // get the lock of node first
-                    node.xlock.lock();
-                    try {
-                        for (Request req : node.req) {
-                            node.xlock.lock();
-                            try {
-                                switch (req) {
-                                case REMOVAL:
-                                    handleRemoval(node);
-                                    break;
-                                case UP_IN:
-                                    handleUpIn(node);
-                                    break;
-                                case UP_OUT:
-                                    handleUpOut(node);
-                                    break;
-                                default:
-                                    return false;
-                                }
-                            } finally {
-                                node.xlock.unlock();
-                            }
+        public void addRequest(final Node<E> node) {
+            if ((node.queued != 0) || !Node.QUEUED.compareAndSet(node, 0, 1)) {
+                coalesced.increment();
+                return;
+            }
+            pending.incrementAndGet();
+            route(node).offer(node);
+        }
+
+        /**
+         * Queue node again if it holds requests, after they were moved onto
+         * it by a structural change.
+         * 
+         * @param node
+         *            node
+         */
+        private void requeue(Node<E> node) {
+            if (!!node.hasRequests()) {
+                addRequest(node);
+            }
+        }
+
+        /**
+         * Wait, once the backlog is over its limit, until it has dropped to
+         * half the limit. Called by updating threads after they released
+         * their locks.
+         */
+        void throttle() {
+            if (pending.get() <= maxBacklog) {
+                return;
+            }
+            WaiterList.Node w = null;
+            try {
+                while ((pending.get() > resumeBacklog) && !shutdown
+                        && !Thread.currentThread().isInterrupted()) {
+                    if ((null == w) || w.isDone()) {
+                        // register, then check the backlog once more
+                        w = throttled.add();
+                        continue;
+                    }
+                    LockSupport.park(this);
+                }
+            } finally {
+                if (null != w) {
+                    throttled.remove(w);
+                }
+            }
+        }
+
+        /**
+         * Find the lane of node by searching its key from the root. A node
+         * which is not found, because it was moved or removed meanwhile, goes
+         * to the top lane, which is safe for any node.
+         * 
+         * @param node
+         *            node with requests
+         * @return lane of node
+         */
+        @SuppressWarnings("unchecked")
+        private Lane route(Node<E> node) {
+            final E key = node.value;
+            if (null == key) {
+                return top;
+            }
+            Node<E> x = root;
+            int path = 0;
+            for (int depth = 0; x != node; depth++) {
+                E value = x.value;
+                if ((null == value) || x.isLeaf()) {
+                    return top;
+                }
+                boolean right = ((Comparable) key).compareTo(value) >= 0;
+                if (depth < laneBits) {
+                    path = (path << 1) | (right ? 1 : 0);
+                } else if (depth >= laneBits + MARGIN) {
+                    return lanes.get(path);
+                }
+                x = right ? x.right : x.left;
+            }
+            return top;
+        }
+
+        /**
+         * Handle all requests of node.
+         * 
+         * @param node
+         *            node taken from a lane
+         */
+        private void settle(Node<E> node) {
+            // requests added from now on queue the node again
+            node.queued = 0;
+            if ((pending.decrementAndGet() <= resumeBacklog)
+                    && throttled.hasWaiters()) {
+                throttled.signalAll();
+            }
+            // get the lock of node first
+            node.lock();
+            try {
+                for (Request req : node.requests()) {
+                    switch (req) {
+                    case REMOVAL:
+                        handleRemoval(node);
+                        break;
+                    case UP_IN:
+                        handleUpIn(node);
+                        break;
+                    case UP_OUT:
+                        handleUpOut(node);
+                        break;
+                    default:
+                        break;
+                    }
+                }
+            } finally {
+                node.unlock();
+            }
+            settled.increment();
+        }
+
+        /**
+         * Queue of nodes, drained by at most one pool thread at a time.
+         */
+        private final class Lane implements Runnable {
+            private final ConcurrentLinkedQueue<Node<E>> queue = new ConcurrentLinkedQueue<Node<E>>();
+            /**
+             * true while a task of the lane is submitted or running.
+             */
+            private final AtomicBoolean scheduled = new AtomicBoolean();
+            /**
+             * Lock of partition held while a node is handled.
+             */
+            private final Lock partitionLock;
+
+            Lane(Lock partitionLock) {
+                this.partitionLock = partitionLock;
+            }
+
+            void offer(Node<E> node) {
+                queue.offer(node);
+                schedule();
+            }
+
+            private void schedule() {
+                if (scheduled.get() || !scheduled.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    exec.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // shut down; the requests stay on their nodes
+                    scheduled.set(false);
+                }
+            }
+
+            public void run() {
+                try {
+                    for (int i = 0; i < BATCH; i++) {
+                        Node<E> node = queue.poll();
+                        if (null == node) {
+                            break;
                         }
-                    } finally {
-                        node.xlock.unlock();
+                        // the node may have moved to another subtree
+                        Lane lane = route(node);
+                        if (lane != this) {
+                            lane.offer(node);
+                            continue;
+                        }
+                        partitionLock.lock();
+                        try {
+                            settle(node);
+                        } finally {
+                            partitionLock.unlock();
+                        }
+                    }
+                } finally {
+                    scheduled.set(false);
+                    // a node offered before the flag was cleared found it
+                    // set; and a failed request must not strand the others
+                    if (!queue.isEmpty()) {
+                        schedule();
                     }
-                    return true;
                 }
-            });
+            }
         }
 
         /**
@@ -732,11 +1642,11 @@ public class ParallelRBTree<E> {
          */
         private void handleRemoval(Node<E> node) {
             if (node.value == null) {
-                node.req.clear();
+                node.clearRequests();
                 return;
             }
             assert node != root;
-            assert (node.req.contains(Request.REMOVAL));
+            assert (node.has(Request.REMOVAL));
             assert ((SENTINEL == node.left) && (SENTINEL == node.right));
 
             /*
@@ -747,57 +1657,79 @@ public class ParallelRBTree<E> {
              * that two removal request appended to both leaves of a black node
              * are always handled correctly.
              */
-            if (node.req.contains(Request.UP_OUT)) {
+            if (node.has(Request.UP_OUT)) {
                 handleUpOut(node);
             }
-            if (node.p.req.contains(Request.UP_OUT)) {
+            if (node.p.has(Request.UP_OUT)) {
                 handleUpOut(node.p);
             }
+            if (node.has(Request.UP_OUT)
+                    || node.p.has(Request.UP_OUT)) {
+                // the up-out request could not be settled yet
+                addRequest(node);
+                return;
+            }
 
             final Node<E> parent = node.p;
             try {
-                if (parent.xlock.tryLock(WAIT_FOR_TRY_LOCK,
-                        TimeUnit.MILLISECONDS)) {
+                if (parent.tryLock(WAIT_FOR_LOCK, TimeUnit.MICROSECONDS)) {
                     Node<E> x = null; // remaining sibling
-                    if (node == parent.left) { // z is left child
-                        x = parent.right;
-                    } else {
-                        x = parent.left;
-                    }
+                    try {
+                        if (node == parent.left) { // z is left child
+                            x = parent.right;
+                        } else {
+                            x = parent.left;
+                        }
 
-                    /*
-                     * if the silbing of a leaf with a removal request has an
-                     * up-in request then the up-in request must be settled or
-                     * bubbled up in the tree before the removal request can be
-                     * handled
-                     */
-                    // get sibling lock
-                    x.xlock.lock();
-                    if (x.req.contains(Request.UP_IN)) {
-                        handleUpIn(x);
-                    }
+                        /*
+                         * if the silbing of a leaf with a removal request has
+                         * an up-in request then the up-in request must be
+                         * settled or bubbled up in the tree before the removal
+                         * request can be handled
+                         */
+                        // get sibling lock
+                        x.lock();
+                        if (x.has(Request.UP_IN)) {
+                            handleUpIn(x);
+                        }
 
-                    /*
-                     * In order to resolve a removal request, the leaf is
-                     * removed together with its parent. If the parent is black,
-                     * then if the remaining sibling is red, it is colored
-                     * black, and otherwise an up-out request is deposited.
-                     */
-                    node.req.remove(Request.REMOVAL);
-                    Node<E> sibling = removeLeafAndParent(node);
-                    if (Color.BLACK == parent.color) {
-                        if (Color.RED == sibling.color) {
-                            sibling.color = Color.BLACK;
-                        } else {
-                            sibling.req.add(Request.UP_OUT);
-                            balancer.addRequest(sibling);
+                        /*
+                         * In order to resolve a removal request, the leaf is
+                         * removed together with its parent. If the parent is
+                         * black, then if the remaining sibling is red, it is
+                         * colored black, and otherwise an up-out request is
+                         * deposited.
+                         */
+                        /*
+                         * lookups must not find the leaf unmarked before it
+                         * is cut off
+                         */
+                        node.beginWrite();
+                        Node<E> sibling;
+                        try {
+                            node.remove(Request.REMOVAL);
+                            sibling = removeLeafAndParent(node);
+                        } finally {
+                            node.endWrite();
+                        }
+                        if (Color.BLACK == parent.color) {
+                            if (Color.RED == sibling.color) {
+                                sibling.color = Color.BLACK;
+                            } else {
+                                sibling.add(Request.UP_OUT);
+                                balancer.addRequest(sibling);
+                            }
                         }
+                    } finally {
+                        if (null != x) {
+                            x.unlock();
+                        }
+                        parent.unlock();
                     }
-                    x.xlock.unlock();
-                    parent.xlock.unlock();
                 } else {
                     // if try lock parent fails, readd the request to balancer.
-                    node.req.add(Request.REMOVAL);
+                    node.add(Request.REMOVAL);
+                    addRequest(node);
                 }
             } catch (InterruptedException e) {
                 e.printStackTrace();
@@ -831,97 +1763,153 @@ public class ParallelRBTree<E> {
          */
         private void handleUpIn(Node<E> node) {
             if (node.value == null) {
-                node.req.clear();
+                node.clearRequests();
                 return;
             }
 
-            assert (node.req.contains(Request.UP_IN));
-            node.req.remove(Request.UP_IN);
+            assert (node.has(Request.UP_IN));
+            node.remove(Request.UP_IN);
 
             if (root == node) {
                 root.color = Color.BLACK;
+                return;
             }
             // check the parent node
+            final Node<E> zParent = node.p;
             try {
-                final Node<E> zParent = node.p;
-                if (zParent.xlock.tryLock(WAIT_FOR_TRY_LOCK,
-                        TimeUnit.MILLISECONDS)) {
-                    // parent node is locked
-                    if (root == node.p) {
-                        node.p.color = Color.BLACK;
-                        node.p.xlock.unlock();
-                        return;
-                    }
-
-                    if (Color.RED == node.p.color) {
-                        Node<E> y = null; // sibling of parent
-                        final Node<E> zGrandparent = node.p.p;
-                        if (zGrandparent.xlock.tryLock(WAIT_FOR_TRY_LOCK,
-                                TimeUnit.MILLISECONDS)) {
+                if (!zParent.tryLock(WAIT_FOR_LOCK, TimeUnit.MICROSECONDS)) {
+                    node.add(Request.UP_IN);
+                    addRequest(node);
+                    return;
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                node.add(Request.UP_IN);
+                addRequest(node);
+                return;
+            }
+            try {
+                if (node.p != zParent) {
+                    // moved by a rotation meanwhile
+                    node.add(Request.UP_IN);
+                    addRequest(node);
+                    return;
+                }
+                // parent node is locked
+                if (root == zParent) {
+                    zParent.color = Color.BLACK;
+                    return;
+                }
+                if (Color.RED == zParent.color) {
+                    settleRedParent(node, zParent);
+                }
+            } finally {
+                zParent.unlock();
+            }
+            Thread.yield();
+        }
 
-                            // get grandfather's lock
-                            assert node.p.p != SENTINEL;
-                            if (node.p == node.p.p.left) {
-                                /*
-                                 * parent is left child
-                                 */
-                                y = node.p.p.right;
-                                y.xlock.lock();
-                                if (Color.RED == y.color) {
-                                    /*
-                                     * red sibling, shift request up, case 2.e
-                                     */
-                                    node.p.color = Color.BLACK;
-                                    y.color = Color.BLACK;
-                                    node.p.p.color = Color.RED;
-                                    node.p.p.req.add(Request.UP_IN);
-                                    balancer.addRequest(node.p.p);
-                                } else {
-                                    if (node == node.p.right) {
-                                        /*
-                                         * rotation, case 2.d value of z
-                                         * changed, unlock on z is missed. cause
-                                         * deadlock. fixed
-                                         */
-                                        leftRotate(node.p);
-                                    }
-                                    // double rotation, case 2.c
-                                    rightRotate(node.p.p);
-                                }
-                            } else {
-                                /*
-                                 * same as if clause with "right" and "left"
-                                 * exchanged
-                                 */
-                                y = node.p.p.left;
-                                y.xlock.lock();
-                                if (Color.RED == y.color) {
-                                    node.p.color = Color.BLACK;
-                                    y.color = Color.BLACK;
-                                    node.p.p.color = Color.RED;
-                                    node.p.p.req.add(Request.UP_IN);
-                                    balancer.addRequest(node.p.p);
-                                } else {
-                                    if (node == node.p.left) {
-                                        rightRotate(node.p);
-                                    }
-                                    leftRotate(node.p.p);
-                                }
-                            }
-                            y.xlock.unlock();
-                            zGrandparent.xlock.unlock();
-                        } else {
-                            node.req.add(Request.UP_IN);
+        /**
+         * Second half of up-in, for a node whose parent is red: lock the
+         * grandparent and either shift the request up or rotate.
+         * 
+         * @param node
+         *            node which had the UP_IN request, locked
+         * @param zParent
+         *            parent of node, red and locked
+         */
+        private void settleRedParent(Node<E> node, Node<E> zParent) {
+            final Node<E> zGrandparent = zParent.p;
+            if (SENTINEL == zGrandparent) {
+                // zParent is not the root, so it was cut off the tree
+                return;
+            }
+            try {
+                if (!zGrandparent.tryLock(WAIT_FOR_LOCK, TimeUnit.MICROSECONDS)) {
+                    node.add(Request.UP_IN);
+                    addRequest(node);
+                    return;
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                node.add(Request.UP_IN);
+                addRequest(node);
+                return;
+            }
+            Node<E> y = null; // sibling of parent
+            try {
+                if (zParent.p != zGrandparent) {
+                    // moved by a rotation meanwhile
+                    node.add(Request.UP_IN);
+                    addRequest(node);
+                    return;
+                }
+                if (Color.RED == zGrandparent.color) {
+                    /*
+                     * a chain of red nodes, left by updates the balancer lagged
+                     * behind: the parent breaks the balance condition too and
+                     * goes first
+                     */
+                    zParent.add(Request.UP_IN);
+                    addRequest(zParent);
+                    node.add(Request.UP_IN);
+                    addRequest(node);
+                    return;
+                }
+                /*
+                 * rotations exchange the contents of nodes, so zParent and
+                 * zGrandparent keep their positions in the tree
+                 */
+                if (zParent == zGrandparent.left) {
+                    /*
+                     * parent is left child
+                     */
+                    y = zGrandparent.right;
+                    y.lock();
+                    if (Color.RED == y.color) {
+                        /*
+                         * red sibling, shift request up, case 2.e
+                         */
+                        zParent.color = Color.BLACK;
+                        y.color = Color.BLACK;
+                        zGrandparent.color = Color.RED;
+                        zGrandparent.add(Request.UP_IN);
+                        balancer.addRequest(zGrandparent);
+                    } else {
+                        if (node == zParent.right) {
+                            /*
+                             * rotation, case 2.d value of z changed, unlock on
+                             * z is missed. cause deadlock. fixed
+                             */
+                            leftRotate(zParent);
                         }
+                        // double rotation, case 2.c
+                        rightRotate(zGrandparent);
                     }
-                    zParent.xlock.unlock();
                 } else {
-                    node.req.add(Request.UP_IN);
+                    /*
+                     * same as if clause with "right" and "left" exchanged
+                     */
+                    y = zGrandparent.left;
+                    y.lock();
+                    if (Color.RED == y.color) {
+                        zParent.color = Color.BLACK;
+                        y.color = Color.BLACK;
+                        zGrandparent.color = Color.RED;
+                        zGrandparent.add(Request.UP_IN);
+                        balancer.addRequest(zGrandparent);
+                    } else {
+                        if (node == zParent.left) {
+                            rightRotate(zParent);
+                        }
+                        leftRotate(zGrandparent);
+                    }
                 }
-                // z.xlock.unlock();
-                Thread.yield();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            } finally {
+                if (null != y) {
+                    y.unlock();
+                }
+                zGrandparent.unlock();
             }
         }
 
@@ -953,70 +1941,121 @@ public class ParallelRBTree<E> {
          */
         private void handleUpOut(Node<E> x) {
             if (x.value == null) {
-                x.req.clear();
+                x.clearRequests();
                 return;
             }
 
-            assert x != root;
-            assert (x.req.contains(Request.UP_OUT));
-            x.req.remove(Request.UP_OUT);
+            assert (x.has(Request.UP_OUT));
+            if (x == root) {
+                // every path lost a black node, which keeps the balance
+                x.remove(Request.UP_OUT);
+                x.color = Color.BLACK;
+                return;
+            }
 
-            Node<E> w = null; // sibling of x
-            if ((x != root) && (Color.BLACK == x.color)) {
-                if (x == x.p.left) { // x is left child
-                    w = x.p.right;
-                    if (Color.RED == w.color) { // case 4.a
-                        leftRotate(x.p);
-                        w = x.p.right;
-                    }
+            final Node<E> parent = x.p;
+            try {
+                if (!parent.tryLock(WAIT_FOR_LOCK, TimeUnit.MICROSECONDS)) {
+                    addRequest(x);
+                    return;
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                addRequest(x);
+                return;
+            }
+            /*
+             * other balancer threads work in other subtrees, but a writer may
+             * have passed the parent before it was locked, so the nodes below
+             * it that change are locked as well
+             */
+            Node<E> sibling = null;
+            Node<E> nephew = null;
+            Node<E> inner = null;
+            try {
+                if (x.p != parent) {
+                    // moved by a rotation meanwhile
+                    addRequest(x);
+                    return;
+                }
+                x.remove(Request.UP_OUT);
+
+                Node<E> w = null; // sibling of x
+                if (Color.BLACK == x.color) {
+                    if (x == x.p.left) { // x is left child
+                        w = sibling = x.p.right;
+                        sibling.lock();
+                        if (Color.RED == w.color) { // case 4.a
+                            leftRotate(x.p);
+                            w = nephew = x.p.right;
+                            nephew.lock();
+                        }
 
-                    if ((Color.BLACK == w.left.color) // case 4.b
-                            && (Color.BLACK == w.right.color)) {
-                        w.color = Color.RED;
-                        if (Color.RED == x.p.color) {
-                            x.p.color = Color.BLACK;
+                        if ((Color.BLACK == w.left.color) // case 4.b
+                                && (Color.BLACK == w.right.color)) {
+                            w.color = Color.RED;
+                            if (Color.RED == x.p.color) {
+                                x.p.color = Color.BLACK;
+                            } else {
+                                x.p.add(Request.UP_OUT);
+                                balancer.addRequest(x.p);
+                            }
                         } else {
-                            x.p.req.add(Request.UP_OUT);
-                            balancer.addRequest(x.p);
+                            if (Color.BLACK == w.right.color) { // case 4.d
+                                inner = w.left;
+                                inner.lock();
+                                rightRotate(w);
+                            }
+                            // case 4.c
+                            w.right.color = Color.BLACK;
+                            leftRotate(x.p);
+                            x.p.color = Color.BLACK;
+                            x = root;
                         }
-                    } else {
-                        if (Color.BLACK == w.right.color) { // case 4.d
-                            rightRotate(w);
+                    } else { // same as if clause with "right" and "left"
+                        // exchanged
+                        w = sibling = x.p.left;
+                        sibling.lock();
+                        if (Color.RED == w.color) {
+                            rightRotate(x.p);
+                            w = nephew = x.p.left;
+                            nephew.lock();
                         }
-                        // case 4.c
-                        w.right.color = Color.BLACK;
-                        leftRotate(x.p);
-                        x.p.color = Color.BLACK;
-                        x = root;
-                    }
-                } else { // same as if clause with "right" and "left"
-                    // exchanged
-                    w = x.p.left;
-                    if (Color.RED == w.color) {
-                        rightRotate(x.p);
-                        w = x.p.left;
-                    }
-                    if ((Color.BLACK == w.right.color)
-                            && (Color.BLACK == w.left.color)) {
-                        w.color = Color.RED;
-                        if (Color.RED == x.p.color) {
-                            x.p.color = Color.BLACK;
+                        if ((Color.BLACK == w.right.color)
+                                && (Color.BLACK == w.left.color)) {
+                            w.color = Color.RED;
+                            if (Color.RED == x.p.color) {
+                                x.p.color = Color.BLACK;
+                            } else {
+                                x.p.add(Request.UP_OUT);
+                                balancer.addRequest(x.p);
+                            }
                         } else {
-                            x.p.req.add(Request.UP_OUT);
-                            balancer.addRequest(x.p);
-                        }
-                    } else {
-                        if (Color.BLACK == w.left.color) {
-                            leftRotate(w);
+                            if (Color.BLACK == w.left.color) {
+                                inner = w.right;
+                                inner.lock();
+                                leftRotate(w);
+                            }
+                            w.left.color = Color.BLACK;
+                            rightRotate(x.p);
+                            x.p.color = Color.BLACK;
+                            x = root;
                         }
-                        w.left.color = Color.BLACK;
-                        rightRotate(x.p);
-                        x.p.color = Color.BLACK;
-                        x = root;
                     }
                 }
+                x.color = Color.BLACK;
+            } finally {
+                if (null != inner) {
+                    inner.unlock();
+                }
+                if (null != nephew) {
+                    nephew.unlock();
+                }
+                if (null != sibling) {
+                    sibling.unlock();
+                }
+                parent.unlock();
             }
-            x.color = Color.BLACK;
         }
 
         /**
@@ -1027,22 +2066,22 @@ public class ParallelRBTree<E> {
          */
         private void handleUpOutUpOut(Node<E> node) {
             if (node.value == null) {
-                node.req.clear();
+                node.clearRequests();
                 return;
             }
             assert node != root;
 
             Node<E> y = node.p;
-            assert (y.left.req.contains(Request.UP_OUT) && y.right.req
-                    .contains(Request.UP_OUT));
+            assert (y.left.has(Request.UP_OUT) && y.right
+                    .has(Request.UP_OUT));
 
-            y.left.req.remove(Request.UP_OUT);
-            y.right.req.remove(Request.UP_OUT);
+            y.left.remove(Request.UP_OUT);
+            y.right.remove(Request.UP_OUT);
 
             if (Color.RED == y.color) {
                 y.color = Color.BLACK;
             } else {
-                y.req.add(Request.UP_OUT);
+                y.add(Request.UP_OUT);
                 balancer.addRequest(y);
             }
         }
@@ -1066,8 +2105,7 @@ public class ParallelRBTree<E> {
 
             final Node<E> parent = z.p;
             try {
-                if (parent.xlock.tryLock(WAIT_FOR_TRY_LOCK,
-                        TimeUnit.MILLISECONDS)) {
+                if (parent.tryLock(WAIT_FOR_LOCK, TimeUnit.MICROSECONDS)) {
 
                     Node<E> sibling = null; // remaining sibling
                     if (z == parent.left) { // z is left child
@@ -1076,7 +2114,9 @@ public class ParallelRBTree<E> {
                         sibling = parent.left;
                     }
 
-                    sibling.xlock.lock();
+                    sibling.lock();
+                    parent.beginWrite();
+                    sibling.beginWrite();
                     /* replace parent's content with sibling's content */
                     parent.left = sibling.left;
                     parent.right = sibling.right;
@@ -1084,20 +2124,22 @@ public class ParallelRBTree<E> {
                     sibling.right.p = parent;
                     parent.color = sibling.color;
                     parent.value = sibling.value;
-                    parent.req.clear();
-                    parent.req.addAll(sibling.req);
+                    parent.copyRequests(sibling);
 
                     if (parent.value.equals(z.value)) {
                         assert false;
                     }
                     /* mark sibling as removed */
                     sibling.value = null;
+                    sibling.endWrite();
+                    parent.endWrite();
+                    requeue(parent);
 
-                    sibling.xlock.unlock();
-                    parent.xlock.unlock();
+                    sibling.unlock();
+                    parent.unlock();
                     return sibling;
                 } else {
-                    parent.req.add(Request.REMOVAL);
+                    parent.add(Request.REMOVAL);
                 }
             } catch (InterruptedException e) {
                 e.printStackTrace();
@@ -1121,29 +2163,35 @@ public class ParallelRBTree<E> {
             // lock y.right and x.right
             // make the new right subtree
             Node<E> xLeft = new Node<E>(x.value, x, x.left, y.left);
-            xLeft.req.addAll(x.req);
+            xLeft.copyRequests(x);
+            requeue(xLeft);
             if (y.left != SENTINEL) {
-                y.left.xlock.lock();
+                y.left.lock();
                 y.left.p = xLeft;
-                y.left.xlock.unlock();
+                y.left.unlock();
             }
             if (x.left != SENTINEL) {
-                x.left.xlock.lock();
+                x.left.lock();
                 x.left.p = xLeft;
-                x.left.xlock.unlock();
+                x.left.unlock();
             }
+            // x and y are locked by the caller
+            x.beginWrite();
+            y.beginWrite();
             x.left = xLeft;
             y.left = SENTINEL;
 
             // make the new root, copy y to x
             x.value = y.value;
-            x.req.clear();
-            x.req.addAll(y.req);
+            x.copyRequests(y);
             x.right = y.right;
             if (y.right != SENTINEL) {
                 y.right.p = x;
             }
             y.value = null;
+            y.endWrite();
+            x.endWrite();
+            requeue(x);
         }
 
         /**
@@ -1160,29 +2208,35 @@ public class ParallelRBTree<E> {
             final Node<E> y = x.left;
             // make the new right subtree
             Node<E> xRight = new Node<E>(x.value, x, y.right, x.right);
-            xRight.req.addAll(x.req);
+            xRight.copyRequests(x);
+            requeue(xRight);
             if (y.right != SENTINEL) {
-                y.right.xlock.lock();
+                y.right.lock();
                 y.right.p = xRight;
-                y.right.xlock.unlock();
+                y.right.unlock();
             }
             if (x.right != SENTINEL) {
-                x.right.xlock.lock();
+                x.right.lock();
                 x.right.p = xRight;
-                x.right.xlock.unlock();
+                x.right.unlock();
             }
+            // x and y are locked by the caller
+            x.beginWrite();
+            y.beginWrite();
             x.right = xRight;
             y.right = SENTINEL;
 
             // make the new root, copy y to x
             x.value = y.value;
-            x.req.clear();
-            x.req.addAll(y.req);
+            x.copyRequests(y);
             x.left = y.left;
             if (y.left != SENTINEL) {
                 y.left.p = x;
             }
             y.value = null;
+            y.endWrite();
+            x.endWrite();
+            requeue(x);
         }
     }
 
@@ -1259,14 +2313,14 @@ public class ParallelRBTree<E> {
     }
 
     private void printTree(Node<E> node, int level) {
-        // node.rlock.lock();
+        // node.lock();
         if (node == SENTINEL) {
             printData(node, level);
             return;
         }
         printTree(node.right, level + 1);
         printData(node, level);
-        // node.rlock.unlock();
+        // node.unlock();
         printTree(node.left, level + 1);
     }
 }
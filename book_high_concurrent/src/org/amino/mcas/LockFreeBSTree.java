@@ -16,6 +16,12 @@
 
 package org.amino.mcas;
 
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.LongAdder;
+
 import sun.misc.Unsafe;
 
 /**
@@ -44,10 +50,17 @@ import sun.misc.Unsafe;
  * subtrees are instead linked to the immediate predecessor or successor node in
  * the tree (see Fig. 4.6 in the paper).
  * <p>
- * Sample performance results here
+ * The thread links also give the ordered operations their in-order
+ * neighbours: {@link #ceilingKey(Object)} and its relatives finish where the
+ * search for a key ends, and a range iterator steps from a node to its
+ * successor without going back to the root, unless the node it stands on is
+ * deleted meanwhile. Ordered operations and iterators are weakly consistent.
+ * Values must not be null, as a null value marks a deleted node.
  * <p>
  * The following operations are thread-safe and scalable (but see notes in
- * method javadoc): find, remove, update.
+ * method javadoc): find, remove, update, firstKey, lastKey, ceilingKey,
+ * floorKey, higherKey, lowerKey, the entry variants, iterators, isEmpty and
+ * estimateSize.
  * <p>
  * The following operations are not thread-safe:
  * 
@@ -78,6 +91,11 @@ public class LockFreeBSTree<T, V> {
     private final Node<T, V> minDummyNode = new ThreadNode<T, V>(
             new Node<T, V>());
 
+    /**
+     * Number of insertions minus number of removals.
+     */
+    private final LongAdder count = new LongAdder();
+
     /**
      * Internal node definition of tree.
      * 
@@ -88,14 +106,21 @@ public class LockFreeBSTree<T, V> {
      */
     private static class Node<T, V> extends ObjectID {
         T key; // immutable
-        V value;
+        /*
+         * Fields updated by MultiCAS are declared Object, as they hold
+         * descriptors while an operation is in progress, and the compiler may
+         * otherwise trust their declared type and skip the casts after
+         * MultiCAS.mcasRead().
+         */
+        volatile Object value;
         ThreadNode<T, V> tnode;
-        volatile Node<T, V> left;
-        volatile Node<T, V> right;
+        volatile Object left;
+        volatile Object right;
 
         static final long VALUE_OFFSET;
         static final long LEFT_OFFSET;
         static final long RIGHT_OFFSET;
+        static final long TNODE_OFFSET;
 
         static {
             try {
@@ -105,6 +130,8 @@ public class LockFreeBSTree<T, V> {
                         .getDeclaredField("left"));
                 RIGHT_OFFSET = UNSAFE.objectFieldOffset(Node.class
                         .getDeclaredField("right"));
+                TNODE_OFFSET = UNSAFE.objectFieldOffset(Node.class
+                        .getDeclaredField("tnode"));
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
@@ -136,11 +163,17 @@ public class LockFreeBSTree<T, V> {
         /**
          * @return node with the thread wrapper
          */
+        @SuppressWarnings("unchecked")
         public Node<T, V> thread() {
-            if (null == tnode) {
-                tnode = new ThreadNode<T, V>(this);
+            ThreadNode<T, V> t = tnode;
+            if (null == t) {
+                // MCAS compares by identity, so all threads must agree on it
+                UNSAFE.compareAndSwapObject(this, TNODE_OFFSET, null,
+                        new ThreadNode<T, V>(this));
+                t = (ThreadNode<T, V>) UNSAFE.getObjectVolatile(this,
+                        TNODE_OFFSET);
             }
-            return tnode;
+            return t;
         }
 
         /**
@@ -194,6 +227,10 @@ public class LockFreeBSTree<T, V> {
     /**
      * Helper function of find.
      * 
+     * FIXME under heavy concurrent removal the retries below can go on
+     * indefinitely, since nothing guarantees that one of the racing removes
+     * completes.
+     * 
      * @param root
      *            root node
      * @param key
@@ -242,7 +279,8 @@ public class LockFreeBSTree<T, V> {
              * possible to find its parent without restarting from the root of
              * the tree.
              */
-            if (key == n.unthread().key) {
+            T k = n.unthread().key;
+            if ((k != null) && (compare(key, k) == 0)) {
                 continue retry;
             }
             return new Pair<T, V>(p, n);
@@ -312,6 +350,8 @@ public class LockFreeBSTree<T, V> {
          * used in both cases because only one memory location needs to be
          * updated.
          */
+        if (value == null)
+            throw new NullPointerException();
         Node<T, V> node = new Node<T, V>(key, value);
         V oldValue;
         Node<T, V> n;
@@ -323,14 +363,15 @@ public class LockFreeBSTree<T, V> {
                 p = pair.prev;
                 n = pair.curr;
 
-                // empty tree
-                if (null == n) {
+                // empty tree, or emptied by removals
+                if ((null == n) || ((p == root) && n.isThread())) {
                     node.left = minDummyNode;
                     node.right = maxDummyNode;
                     if (!UNSAFE.compareAndSwapObject(p, Node.LEFT_OFFSET, n,
                             node)) {
                         continue retry;
                     } else {
+                        count.increment();
                         return null;
                     }
                 }
@@ -380,6 +421,7 @@ public class LockFreeBSTree<T, V> {
             } while (!UNSAFE.compareAndSwapObject(p, ((Comparable) p.key)
                     .compareTo((Comparable) key) < 0 ? Node.RIGHT_OFFSET
                     : Node.LEFT_OFFSET, n, node));
+            count.increment();
             return null;
         }
     }
@@ -520,6 +562,8 @@ public class LockFreeBSTree<T, V> {
                     } else {
                         succR = (Node<T, V>) MultiCAS.mcasRead(succ,
                                 Node.RIGHT_OFFSET);
+                        if (succR == null)
+                            continue retry;
                         obj[6] = succ;
                         offset[6] = Node.RIGHT_OFFSET;
                         oldValue[6] = succR;
@@ -738,6 +782,8 @@ public class LockFreeBSTree<T, V> {
                     } else {
                         predL = (Node<T, V>) MultiCAS.mcasRead(pred,
                                 Node.LEFT_OFFSET);
+                        if (predL == null)
+                            continue retry;
                         obj[6] = pred;
                         offset[6] = Node.LEFT_OFFSET;
                         oldValue[6] = predL;
@@ -747,11 +793,6 @@ public class LockFreeBSTree<T, V> {
                         obj[7] = ppred;
                         offset[7] = Node.RIGHT_OFFSET;
                         oldValue[7] = pred;
-                        if (pred == null || predL == null) {
-                            System.out.println("predL = " + predL);
-                            System.out.println("pred = " + pred);
-                            System.out.println("ppred = " + ppred);
-                        }
                         newValue[7] = predL.isThread() ? pred.thread() : predL;
 
                         if (!MultiCAS.mcas(8, obj, offset, oldValue,
@@ -897,16 +938,439 @@ public class LockFreeBSTree<T, V> {
                     assert false;
                 }
             }
+            count.decrement();
             return dv;
         }
     }
 
     /**
      * Is the tree empty?
-     * 
+     *
      * @return true if the tree is empty, otherwise false
      */
     public boolean isEmpty() {
-        return root.right == null;
+        Node<T, V> n = child(root, Node.LEFT_OFFSET);
+        // removing the last node leaves a thread link behind
+        return (n == null) || n.isThread();
+    }
+
+    /**
+     * Estimated number of mappings. It is kept by a counter updated after
+     * each insertion and removal, so it is exact when the tree is quiescent
+     * and costs no traversal.
+     *
+     * @return estimated number of mappings
+     */
+    public long estimateSize() {
+        long n = count.sum();
+        return (n < 0) ? 0 : n;
+    }
+
+    /**
+     * @return the lowest key
+     * @throws NoSuchElementException
+     *             if the tree is empty
+     */
+    public T firstKey() {
+        return key(firstEntry());
+    }
+
+    /**
+     * @return the highest key
+     * @throws NoSuchElementException
+     *             if the tree is empty
+     */
+    public T lastKey() {
+        return key(lastEntry());
+    }
+
+    /**
+     * @return the mapping with the lowest key, or null if the tree is empty
+     */
+    public Map.Entry<T, V> firstEntry() {
+        while (true) {
+            Node<T, V> n = child(root, Node.LEFT_OFFSET);
+            if ((n == null) || n.isThread())
+                return null;
+            n = leftmost(n);
+            if (n == null)
+                continue;
+            Map.Entry<T, V> e = entry(n);
+            if (e != null)
+                return e;
+        }
+    }
+
+    /**
+     * @return the mapping with the highest key, or null if the tree is empty
+     */
+    public Map.Entry<T, V> lastEntry() {
+        while (true) {
+            Node<T, V> n = child(root, Node.LEFT_OFFSET);
+            if ((n == null) || n.isThread())
+                return null;
+            n = rightmost(n);
+            if (n == null)
+                continue;
+            Map.Entry<T, V> e = entry(n);
+            if (e != null)
+                return e;
+        }
+    }
+
+    /**
+     * @param key
+     *            key to look for
+     * @return the least key greater than or equal to key, or null
+     */
+    public T ceilingKey(T key) {
+        return keyOrNull(ceilingEntry(key));
+    }
+
+    /**
+     * @param key
+     *            key to look for
+     * @return the greatest key less than or equal to key, or null
+     */
+    public T floorKey(T key) {
+        return keyOrNull(floorEntry(key));
+    }
+
+    /**
+     * @param key
+     *            key to look for
+     * @return the least key strictly greater than key, or null
+     */
+    public T higherKey(T key) {
+        return keyOrNull(higherEntry(key));
+    }
+
+    /**
+     * @param key
+     *            key to look for
+     * @return the greatest key strictly less than key, or null
+     */
+    public T lowerKey(T key) {
+        return keyOrNull(lowerEntry(key));
+    }
+
+    /**
+     * @param key
+     *            key to look for
+     * @return mapping with the least key greater than or equal to key, or
+     *         null
+     */
+    public Map.Entry<T, V> ceilingEntry(T key) {
+        return nearest(key, true, true);
+    }
+
+    /**
+     * @param key
+     *            key to look for
+     * @return mapping with the greatest key less than or equal to key, or
+     *         null
+     */
+    public Map.Entry<T, V> floorEntry(T key) {
+        return nearest(key, false, true);
+    }
+
+    /**
+     * @param key
+     *            key to look for
+     * @return mapping with the least key strictly greater than key, or null
+     */
+    public Map.Entry<T, V> higherEntry(T key) {
+        return nearest(key, true, false);
+    }
+
+    /**
+     * @param key
+     *            key to look for
+     * @return mapping with the greatest key strictly less than key, or null
+     */
+    public Map.Entry<T, V> lowerEntry(T key) {
+        return nearest(key, false, false);
+    }
+
+    /**
+     * Iterator over all mappings in ascending key order.
+     *
+     * @return iterator over the mappings
+     */
+    public Iterator<Map.Entry<T, V>> entryIterator() {
+        return new RangeIterator(null, false, null, false);
+    }
+
+    /**
+     * Iterator over the mappings whose keys lie in a range, in ascending key
+     * order. Entries are fetched one ahead of the caller. The iterator is
+     * weakly consistent and its remove() removes the last key returned.
+     *
+     * @param fromKey
+     *            low end of the range, or null for no low end
+     * @param fromInclusive
+     *            true if fromKey itself is in the range
+     * @param toKey
+     *            high end of the range, or null for no high end
+     * @param toInclusive
+     *            true if toKey itself is in the range
+     * @return iterator over the mappings in the range
+     */
+    public Iterator<Map.Entry<T, V>> rangeIterator(T fromKey,
+            boolean fromInclusive, T toKey, boolean toInclusive) {
+        return new RangeIterator(fromKey, fromInclusive, toKey, toInclusive);
+    }
+
+    /**
+     * Ascending iterator that follows successor links.
+     */
+    private final class RangeIterator implements Iterator<Map.Entry<T, V>> {
+        private final T hi;
+        private final boolean hiInclusive;
+        /**
+         * Node of nextEntry.
+         */
+        private Node<T, V> node;
+        private Map.Entry<T, V> nextEntry;
+        private Map.Entry<T, V> last;
+        /**
+         * Key of the last entry returned, which every later key must exceed.
+         */
+        private T lastKey;
+
+        RangeIterator(T lo, boolean loInclusive, T hi, boolean hiInclusive) {
+            this.hi = hi;
+            this.hiInclusive = hiInclusive;
+            if (lo == null) {
+                Map.Entry<T, V> e = firstEntry();
+                advance((e == null) ? null : e.getKey(), true);
+            } else {
+                advance(lo, loInclusive);
+            }
+        }
+
+        /**
+         * Finds the first live node from key on, starting at the root.
+         */
+        private void advance(T key, boolean inclusive) {
+            node = null;
+            nextEntry = null;
+            if (key == null)
+                return;
+            while (true) {
+                Node<T, V> n = nearestNode(key, true, inclusive);
+                if ((n == null) || accept(n))
+                    return;
+                // never step back behind the last key returned
+                key = behind(n) ? lastKey : n.key;
+                inclusive = false;
+            }
+        }
+
+        /**
+         * @return true if n is not above the last key returned
+         */
+        private boolean behind(Node<T, V> n) {
+            return (lastKey != null) && (compare(n.key, lastKey) <= 0);
+        }
+
+        /**
+         * @return true if n is beyond the range, or live and then the next
+         *         node; false if n is deleted, or was moved by a concurrent
+         *         update to a place at or before the last key returned
+         */
+        private boolean accept(Node<T, V> n) {
+            if (behind(n))
+                return false;
+            if (hi != null) {
+                int c = compare(n.key, hi);
+                if ((c > 0) || ((c == 0) && !hiInclusive))
+                    return true;
+            }
+            Map.Entry<T, V> e = entry(n);
+            if (e == null)
+                return false;
+            node = n;
+            nextEntry = e;
+            return true;
+        }
+
+        public boolean hasNext() {
+            return nextEntry != null;
+        }
+
+        public Map.Entry<T, V> next() {
+            Map.Entry<T, V> e = nextEntry;
+            if (e == null)
+                throw new NoSuchElementException();
+            last = e;
+            lastKey = e.getKey();
+            Node<T, V> s = successor(node);
+            node = null;
+            nextEntry = null;
+            if (s == maxDummyNode)
+                return e;
+            if ((s == null) || !accept(s)) {
+                // node or its successor went away or moved; look again from
+                // the root
+                advance(lastKey, false);
+            }
+            return e;
+        }
+
+        public void remove() {
+            if (last == null)
+                throw new IllegalStateException();
+            LockFreeBSTree.this.remove(last.getKey());
+            last = null;
+        }
+    }
+
+    /**
+     * Finds the live mapping nearest to key in one direction.
+     *
+     * @param key
+     *            key to look for
+     * @param above
+     *            true to look at keys above key, otherwise below
+     * @param inclusive
+     *            true if key itself qualifies
+     * @return the mapping, or null if there is none
+     */
+    private Map.Entry<T, V> nearest(T key, boolean above, boolean inclusive) {
+        while (true) {
+            Node<T, V> n = nearestNode(key, above, inclusive);
+            if (n == null)
+                return null;
+            Map.Entry<T, V> e = entry(n);
+            if (e != null)
+                return e;
+            // n was removed meanwhile; continue past it
+            key = n.key;
+            inclusive = false;
+        }
+    }
+
+    /**
+     * The search for key ends either at the node with key, or at a thread
+     * link, which is taken from the last node passed in the direction of key.
+     * That node and the target of the link are the neighbours of key.
+     *
+     * @return the nearest node, which may be deleted already, or null
+     */
+    @SuppressWarnings("unchecked")
+    private Node<T, V> nearestNode(T key, boolean above, boolean inclusive) {
+        if (key == null)
+            throw new NullPointerException();
+        while (true) {
+            Pair<T, V> pair = search(root, key);
+            Node<T, V> p = pair.prev;
+            Node<T, V> n = pair.curr;
+            Node<T, V> r;
+            if ((n == null) || ((p == root) && n.isThread()))
+                return null;
+            if (!n.isThread()) {
+                if (inclusive)
+                    return n;
+                r = above ? successor(n) : predecessor(n);
+                if (r == null)
+                    continue;
+            } else if ((compare(p.key, key) < 0) != above) {
+                return p;
+            } else {
+                r = isDummy(n) ? n : n.unthread();
+            }
+            return isDummy(r) ? null : r;
+        }
+    }
+
+    /**
+     * In-order successor of n.
+     *
+     * @return the successor, maxDummyNode if n is the last node, or null if n
+     *         was deleted
+     */
+    private Node<T, V> successor(Node<T, V> n) {
+        Node<T, V> r = child(n, Node.RIGHT_OFFSET);
+        if ((r == null) || !r.isThread())
+            return (r == null) ? null : leftmost(r);
+        return isDummy(r) ? maxDummyNode : r.unthread();
+    }
+
+    /**
+     * In-order predecessor of n.
+     *
+     * @return the predecessor, minDummyNode if n is the first node, or null if
+     *         n was deleted
+     */
+    private Node<T, V> predecessor(Node<T, V> n) {
+        Node<T, V> l = child(n, Node.LEFT_OFFSET);
+        if ((l == null) || !l.isThread())
+            return (l == null) ? null : rightmost(l);
+        return isDummy(l) ? minDummyNode : l.unthread();
+    }
+
+    /**
+     * @return the lowest node of the subtree n, or null if a deleted node was
+     *         met
+     */
+    private Node<T, V> leftmost(Node<T, V> n) {
+        while (true) {
+            Node<T, V> c = child(n, Node.LEFT_OFFSET);
+            if (c == null)
+                return null;
+            if (c.isThread())
+                return n;
+            n = c;
+        }
+    }
+
+    /**
+     * @return the highest node of the subtree n, or null if a deleted node was
+     *         met
+     */
+    private Node<T, V> rightmost(Node<T, V> n) {
+        while (true) {
+            Node<T, V> c = child(n, Node.RIGHT_OFFSET);
+            if (c == null)
+                return null;
+            if (c.isThread())
+                return n;
+            n = c;
+        }
+    }
+
+    private boolean isDummy(Node<T, V> n) {
+        return (n == maxDummyNode) || (n == minDummyNode);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Node<T, V> child(Node<T, V> n, long offset) {
+        return (Node<T, V>) MultiCAS.mcasRead(n, offset);
+    }
+
+    /**
+     * @return the mapping of n, or null if n is deleted
+     */
+    @SuppressWarnings("unchecked")
+    private Map.Entry<T, V> entry(Node<T, V> n) {
+        V v = (V) MultiCAS.mcasRead(n, Node.VALUE_OFFSET);
+        return (v == null) ? null : new AbstractMap.SimpleImmutableEntry<T, V>(
+                n.key, v);
+    }
+
+    private static <T> T key(Map.Entry<T, ?> e) {
+        if (e == null)
+            throw new NoSuchElementException();
+        return e.getKey();
+    }
+
+    private static <T> T keyOrNull(Map.Entry<T, ?> e) {
+        return (e == null) ? null : e.getKey();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compare(Object k1, Object k2) {
+        return ((Comparable<Object>) k1).compareTo(k2);
     }
 }
@@ -16,6 +16,19 @@
 
 package org.amino.mcas;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.amino.utility.EpochReclaimer;
+
 import sun.misc.Unsafe;
 
 /**
@@ -71,24 +84,71 @@ enum Status {
  * to any remote operation that it may obstruct: this allows recursive helping
  * to be used to obtain the required lock-free progress guarantee.
  * <p>
- * Sample performance results here
+ * Outside this package, an operation is assembled with {@link #begin()} on
+ * volatile <code>Object</code> fields, named by a {@link FieldHandle}, and on
+ * slots of <code>Object[]</code> arrays. Locations that k-CAS operations
+ * update must only be read through {@link #read(Object, FieldHandle)} or
+ * {@link #readSlot(Object[], int)}, which help a pending operation instead
+ * of returning its descriptor. A single location is updated with a plain
+ * CAS, without any descriptor. Larger operations fail before installing
+ * anything if a location already holds an unexpected value. Their owner
+ * acquires the first location with a plain CAS, as no other thread can know
+ * the descriptor yet.
  * <p>
- * The following operations are thread-safe and scalable (but see notes in
- * method javadoc): mcasRead, mcas, ccasRead, ccas.
+ * Descriptors are reused through per-thread pools. A descriptor may still be
+ * read by threads helping it after its operation completed, so it goes back
+ * to the pool through an {@link EpochReclaimer}, and every operation that
+ * may dereference a descriptor runs inside a guard of it. A descriptor drops
+ * its locations and values when it becomes free, and the pool of a thread
+ * is dropped once the thread has ended, so pooling neither pins application
+ * objects nor grows with the number of threads that ever used the API.
  * <p>
- * The following operations are not thread-safe:
+ * The following operations are thread-safe and scalable (but see notes in
+ * method javadoc): mcasRead, mcas, ccasRead, ccas and the public API.
  * <p>
  * 
  * @author Xiao Jun Dai
  * 
  */
-final class MultiCAS {
+public final class MultiCAS {
     /**
      * Utility classes should not have a public or default constructor.
      */
     private MultiCAS() {
     }
 
+    /**
+     * Reclaimer kinds of the two descriptor classes.
+     */
+    private static final int MCAS_KIND = 0;
+    private static final int CCAS_KIND = 1;
+
+    /**
+     * Returns descriptors to the per-thread pools once no helper can read
+     * them any more.
+     */
+    private static final EpochReclaimer RECLAIMER = new EpochReclaimer(2,
+            new EpochReclaimer.Scrubber() {
+                public void scrub(int kind, Object o) {
+                    if (kind == MCAS_KIND)
+                        ((MCASDesc) o).clear();
+                    else
+                        ((CCASDesc) o).clear();
+                }
+            });
+
+    /**
+     * Initial number of locations a pooled MCAS descriptor has room for.
+     */
+    private static final int DESC_SIZE = 8;
+
+    /**
+     * Common superclass of descriptors, so that one type test tells a
+     * descriptor from an application value.
+     */
+    private abstract static class Descriptor {
+    }
+
     /**
      * MCAS descriptor installed in the memory. Each MCAS operation creates a
      * descriptor which fully describes the updates to be made (a set of (ai,
@@ -96,7 +156,7 @@ final class MultiCAS {
      * failed, or successful).
      * 
      */
-    private static class MCASDesc {
+    private static class MCASDesc extends Descriptor {
         /**
          * Number of memory address to multi-cas.
          */
@@ -106,19 +166,19 @@ final class MultiCAS {
          * directly, use object address and offset of field in the object
          * instead.
          */
-        Object[] obj;
+        final Object[] obj;
         /**
          * Array of offset from object.
          */
-        long[] offset;
+        final long[] offset;
         /**
          * Expected values.
          */
-        Object[] e;
+        final Object[] e;
         /**
          * New values.
          */
-        Object[] n;
+        final Object[] n;
         /**
          * Status of multi-cas.
          */
@@ -141,27 +201,45 @@ final class MultiCAS {
         /**
          * Constructor.
          * 
+         * @param capacity
+         *            maximal number of memory addresses
+         */
+        MCASDesc(int capacity) {
+            obj = new Object[capacity];
+            offset = new long[capacity];
+            e = new Object[capacity];
+            n = new Object[capacity];
+        }
+
+        /**
+         * Take a descriptor from the pool of the calling thread. It is filled
+         * in before the first CAS that publishes it.
+         * 
+         * @param g
+         *            guard of the calling thread
          * @param nAddr
-         *            Number of memory address to multi-cas.
-         * @param obj
-         *            Array of objects. Because in Java, memory address cannot
-         *            be access directly, use object address and offset of field
-         *            in the object instead.
-         * @param offset
-         *            Array of offset from object.
-         * @param e
-         *            Expected values.
-         * @param n
-         *            New values.
+         *            number of memory address to multi-cas
+         * @return an undecided descriptor for nAddr addresses
          */
-        public MCASDesc(int nAddr, Object[] obj, long[] offset, Object[] e,
-                Object[] n) {
-            this.numOfAddr = nAddr;
-            this.obj = obj;
-            this.offset = offset;
-            this.e = e;
-            this.n = n;
-            this.status = Status.UNDECIDED;
+        static MCASDesc obtain(EpochReclaimer.Guard g, int nAddr) {
+            MCASDesc d = (MCASDesc) g.reuse(MCAS_KIND);
+            if ((d == null) || (d.obj.length < nAddr))
+                d = new MCASDesc(Math.max(nAddr, DESC_SIZE));
+            d.numOfAddr = nAddr;
+            d.status = Status.UNDECIDED;
+            return d;
+        }
+
+        /**
+         * Drop the references to the locations and values of the last
+         * operation.
+         */
+        void clear() {
+            int nAddr = numOfAddr;
+            Arrays.fill(obj, 0, nAddr, null);
+            Arrays.fill(e, 0, nAddr, null);
+            Arrays.fill(n, 0, nAddr, null);
+            numOfAddr = 0;
         }
     }
 
@@ -171,7 +249,7 @@ final class MultiCAS {
      * normal CAS operation. If the contents of the conditional location are
      * zero then the operation proceeds, otherwise CCAS has no effect.
      */
-    private static class CCASDesc {
+    private static class CCASDesc extends Descriptor {
         /**
          * Object to CAS.
          */
@@ -189,13 +267,17 @@ final class MultiCAS {
          */
         Object n;
         /**
-         * Condition.
+         * MCAS descriptor whose status is the condition. It is read when the
+         * CCAS completes, not when it starts, so that a descriptor cannot be
+         * installed after its operation has been decided.
          */
-        Status cond;
+        MCASDesc cond;
 
         /**
-         * Constructor.
+         * Take a descriptor from the pool of the calling thread.
          * 
+         * @param g
+         *            guard of the calling thread
          * @param obj
          *            Object to CAS.
          * @param offset
@@ -206,13 +288,29 @@ final class MultiCAS {
          *            New value.
          * @param cond
          *            Condition.
+         * @return the filled in descriptor
          */
-        public CCASDesc(Object obj, long offset, Object e, Object n, Status cond) {
-            this.obj = obj;
-            this.offset = offset;
-            this.e = e;
-            this.n = n;
-            this.cond = cond;
+        static CCASDesc obtain(EpochReclaimer.Guard g, Object obj,
+                long offset, Object e, Object n, MCASDesc cond) {
+            CCASDesc d = (CCASDesc) g.reuse(CCAS_KIND);
+            if (d == null)
+                d = new CCASDesc();
+            d.obj = obj;
+            d.offset = offset;
+            d.e = e;
+            d.n = n;
+            d.cond = cond;
+            return d;
+        }
+
+        /**
+         * Drop the references to the location, the values and the condition.
+         */
+        void clear() {
+            obj = null;
+            e = null;
+            n = null;
+            cond = null;
         }
     }
 
@@ -221,6 +319,381 @@ final class MultiCAS {
      */
     private static final Unsafe UNSAFE = UnsafeWrapper.getUnsafe();
 
+    private static final long ARRAY_BASE = UNSAFE
+            .arrayBaseOffset(Object[].class);
+    private static final long ARRAY_SCALE = UNSAFE
+            .arrayIndexScale(Object[].class);
+
+    /**
+     * A volatile field of declared type <code>Object</code> that k-CAS
+     * operations may update. The type is fixed because descriptors are
+     * temporarily stored in the field.
+     */
+    public static final class FieldHandle {
+        private final Class<?> holder;
+        final long offset;
+
+        private FieldHandle(Class<?> holder, long offset) {
+            this.holder = holder;
+            this.offset = offset;
+        }
+
+        /**
+         * @param holder
+         *            class declaring the field
+         * @param name
+         *            name of the field
+         * @return handle of the field
+         * @throws IllegalArgumentException
+         *             if there is no such field, or it is static, not
+         *             volatile or not of type Object
+         */
+        public static FieldHandle of(Class<?> holder, String name) {
+            Field f;
+            try {
+                f = holder.getDeclaredField(name);
+            } catch (NoSuchFieldException e) {
+                throw new IllegalArgumentException(e);
+            }
+            int mod = f.getModifiers();
+            if (Modifier.isStatic(mod) || !Modifier.isVolatile(mod)
+                    || (f.getType() != Object.class))
+                throw new IllegalArgumentException(name
+                        + " is not a volatile Object instance field");
+            return new FieldHandle(holder, UNSAFE.objectFieldOffset(f));
+        }
+
+        private void check(Object obj) {
+            if (!holder.isInstance(obj))
+                throw new ClassCastException(obj.getClass().getName()
+                        + " is not a " + holder.getName());
+        }
+    }
+
+    /**
+     * @return offset of a slot of an Object[] array
+     */
+    private static long slotOffset(Object[] array, int index) {
+        if (array.getClass() != Object[].class)
+            throw new IllegalArgumentException("not an Object[] array");
+        if ((index < 0) || (index >= array.length))
+            throw new ArrayIndexOutOfBoundsException(index);
+        return ARRAY_BASE + index * ARRAY_SCALE;
+    }
+
+    /**
+     * A k-CAS being assembled. Each thread has one, returned by
+     * {@link MultiCAS#begin()}, so assembling does not allocate.
+     */
+    public static final class Op {
+        private Object[] obj = new Object[DESC_SIZE];
+        private long[] offset = new long[DESC_SIZE];
+        private Object[] e = new Object[DESC_SIZE];
+        private Object[] n = new Object[DESC_SIZE];
+        private int size;
+
+        private Op() {
+        }
+
+        /**
+         * Adds a field location.
+         * 
+         * @param holder
+         *            object holding the field
+         * @param field
+         *            the field
+         * @param expect
+         *            expected value
+         * @param update
+         *            new value
+         * @return this operation
+         */
+        public Op add(Object holder, FieldHandle field, Object expect,
+                Object update) {
+            field.check(holder);
+            return put(holder, field.offset, expect, update);
+        }
+
+        /**
+         * Adds an array slot location.
+         * 
+         * @param array
+         *            array, whose class must be Object[]
+         * @param index
+         *            index of the slot
+         * @param expect
+         *            expected value
+         * @param update
+         *            new value
+         * @return this operation
+         */
+        public Op addSlot(Object[] array, int index, Object expect,
+                Object update) {
+            return put(array, slotOffset(array, index), expect, update);
+        }
+
+        private Op put(Object o, long off, Object expect, Object update) {
+            if (size == obj.length) {
+                int len = size * 2;
+                obj = java.util.Arrays.copyOf(obj, len);
+                offset = java.util.Arrays.copyOf(offset, len);
+                e = java.util.Arrays.copyOf(e, len);
+                n = java.util.Arrays.copyOf(n, len);
+            }
+            obj[size] = o;
+            offset[size] = off;
+            e[size] = expect;
+            n[size] = update;
+            size++;
+            return this;
+        }
+
+        /**
+         * @return number of locations added
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Updates every location to its new value if each holds its expected
+         * value, and clears the operation.
+         * 
+         * @return true if the locations were updated
+         * @throws IllegalArgumentException
+         *             if a location was added twice
+         */
+        public boolean commit() {
+            try {
+                return MultiCAS.commit(this);
+            } finally {
+                clear();
+            }
+        }
+
+        /**
+         * Discards the locations added so far.
+         */
+        public void clear() {
+            Arrays.fill(obj, 0, size, null);
+            Arrays.fill(e, 0, size, null);
+            Arrays.fill(n, 0, size, null);
+            size = 0;
+        }
+
+        /**
+         * Sorts the locations into a global order, so that operations help
+         * each other in one direction only. Objects extending
+         * {@link ObjectID} come first, ordered by id, others follow by
+         * identity hash code with ties broken by a sequence number.
+         */
+        private void sort() {
+            for (int j = 1; j < size; j++) {
+                Object to = obj[j];
+                long toff = offset[j];
+                Object te = e[j];
+                Object tn = n[j];
+                int i = j - 1;
+                int c;
+                while ((i >= 0) && ((c = compare(obj[i], offset[i], to, toff)) >= 0)) {
+                    if ((c == 0) && (obj[i] == to))
+                        throw new IllegalArgumentException(
+                                "location added twice");
+                    obj[i + 1] = obj[i];
+                    offset[i + 1] = offset[i];
+                    e[i + 1] = e[i];
+                    n[i + 1] = n[i];
+                    i--;
+                }
+                obj[i + 1] = to;
+                offset[i + 1] = toff;
+                e[i + 1] = te;
+                n[i + 1] = tn;
+            }
+        }
+    }
+
+    /**
+     * Global order of locations, by object and then by field offset. Returns
+     * 0 only for the same field of the same object.
+     */
+    private static int compare(Object o1, long off1, Object o2, long off2) {
+        if (o1 != o2) {
+            int c = compareObjects(o1, o2);
+            if (c != 0)
+                return c;
+        }
+        return (off1 < off2) ? -1 : ((off1 == off2) ? 0 : 1);
+    }
+
+    /**
+     * Total order of distinct objects: {@link ObjectID}s first, by id, then
+     * other objects by identity hash code. Ties between distinct objects with
+     * the same identity hash code are broken by {@link TieBreaker}.
+     */
+    private static int compareObjects(Object o1, Object o2) {
+        boolean id1 = o1 instanceof ObjectID, id2 = o2 instanceof ObjectID;
+        if (id1 != id2)
+            return id1 ? -1 : 1;
+        int k1, k2;
+        if (id1) {
+            k1 = ((ObjectID) o1).id;
+            k2 = ((ObjectID) o2).id;
+        } else {
+            k1 = System.identityHashCode(o1);
+            k2 = System.identityHashCode(o2);
+        }
+        if (k1 != k2)
+            return (k1 < k2) ? -1 : 1;
+        long s1 = TieBreaker.sequence(o1, k1), s2 = TieBreaker.sequence(o2, k2);
+        return (s1 < s2) ? -1 : ((s1 == s2) ? 0 : 1);
+    }
+
+    /**
+     * Sequence numbers for objects whose order key collided with another
+     * object's. An object keeps its number as long as it is reachable, so the
+     * order between two live objects never changes. Only colliding objects are
+     * registered, and entries of collected objects are purged on the next
+     * registration.
+     */
+    private static final class TieBreaker extends WeakReference<Object> {
+        private static final Map<Integer, List<TieBreaker>> REGISTRY = new HashMap<Integer, List<TieBreaker>>();
+        private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<Object>();
+        private static long nextSequence;
+
+        private final int key;
+        private final long sequence;
+
+        private TieBreaker(Object o, int key, long sequence) {
+            super(o, QUEUE);
+            this.key = key;
+            this.sequence = sequence;
+        }
+
+        static synchronized long sequence(Object o, int key) {
+            purge();
+            List<TieBreaker> list = REGISTRY.get(key);
+            if (list == null) {
+                list = new ArrayList<TieBreaker>(2);
+                REGISTRY.put(key, list);
+            }
+            for (TieBreaker t : list) {
+                if (t.get() == o)
+                    return t.sequence;
+            }
+            TieBreaker t = new TieBreaker(o, key, nextSequence++);
+            list.add(t);
+            return t.sequence;
+        }
+
+        private static void purge() {
+            Reference<?> r;
+            while ((r = QUEUE.poll()) != null) {
+                TieBreaker t = (TieBreaker) r;
+                List<TieBreaker> list = REGISTRY.get(t.key);
+                if (list != null) {
+                    list.remove(t);
+                    if (list.isEmpty())
+                        REGISTRY.remove(t.key);
+                }
+            }
+        }
+    }
+
+    private static final ThreadLocal<Op> OPS = new ThreadLocal<Op>() {
+        @Override
+        protected Op initialValue() {
+            return new Op();
+        }
+    };
+
+    /**
+     * Starts assembling a k-CAS. The returned operation belongs to the
+     * calling thread and is cleared; it must be committed or cleared before
+     * the thread begins another one.
+     * 
+     * @return the calling thread's operation
+     */
+    public static Op begin() {
+        Op op = OPS.get();
+        op.clear();
+        return op;
+    }
+
+    /**
+     * Reads a field that k-CAS operations may update.
+     * 
+     * @param holder
+     *            object holding the field
+     * @param field
+     *            the field
+     * @return current logical value of the field
+     */
+    public static Object read(Object holder, FieldHandle field) {
+        field.check(holder);
+        return mcasRead(holder, field.offset);
+    }
+
+    /**
+     * Reads an array slot that k-CAS operations may update.
+     * 
+     * @param array
+     *            array, whose class must be Object[]
+     * @param index
+     *            index of the slot
+     * @return current logical value of the slot
+     */
+    public static Object readSlot(Object[] array, int index) {
+        return mcasRead(array, slotOffset(array, index));
+    }
+
+    /**
+     * Single-location CAS that respects concurrent k-CAS operations. It never
+     * installs a descriptor.
+     * 
+     * @param holder
+     *            object holding the field
+     * @param field
+     *            the field
+     * @param expect
+     *            expected value
+     * @param update
+     *            new value
+     * @return true if the field was updated
+     */
+    public static boolean cas(Object holder, FieldHandle field,
+            Object expect, Object update) {
+        field.check(holder);
+        return cas1(holder, field.offset, expect, update);
+    }
+
+    private static boolean cas1(Object obj, long offset, Object e, Object n) {
+        while (true) {
+            if (UNSAFE.compareAndSwapObject(obj, offset, e, n))
+                return true;
+            // a descriptor may stand for e; mcasRead() helps it away
+            if (mcasRead(obj, offset) != e)
+                return false;
+        }
+    }
+
+    private static boolean commit(Op op) {
+        int k = op.size;
+        if (k == 0)
+            return true;
+        if (k == 1)
+            return cas1(op.obj[0], op.offset[0], op.e[0], op.n[0]);
+
+        op.sort();
+        // fail before taking a descriptor if a location is plainly different
+        for (int i = 0; i < k; i++) {
+            Object v = UNSAFE.getObjectVolatile(op.obj[i], op.offset[i]);
+            if ((v != op.e[i]) && !(v instanceof Descriptor))
+                return false;
+        }
+        return mcas(k, op.obj, op.offset, op.e, op.n, false);
+    }
+
     /**
      * update N distinct memory locations obj + offset from expected values to
      * new values atomically.
@@ -239,40 +712,49 @@ final class MultiCAS {
      */
     static boolean mcas(int nAddr, Object[] obj, long[] offset, Object[] e,
             Object[] n) {
-        /* Generate a new mcas descriptor. */
-        MCASDesc d = new MCASDesc(nAddr, obj, offset, e, n);
-        // System.out.println("before sort address");
-        // for (int i = 0; i < N; i++) {
-        // System.out.println(obj[i] + ":" + ((ObjectID) obj[i]).getID());
-        // }
+        return mcas(nAddr, obj, offset, e, n, true);
+    }
 
-        /*
-         * Memory locations must be sorted into address order. Note that MCAS
-         * must acquire update locations in address order. This ensures that
-         * recursive helping eventually results in system-wide progress because
-         * each level of recursion must be caused by a conflict at a strictly
-         * higher memory address than the previous level. Recursive helping is
-         * therefore bounded by the number of memory locations in the shared
-         * heap. To ensure that updates are ordered correctly it sorts the
-         * update locations before calling MCASHelp. The sort can be omitted if
-         * the caller ensures that addresses are specified in some global total
-         * order . If addresses are not ordered then a recursive loop may be
-         * entered.
-         */
-//        addressSort(d, nAddr);
+    private static boolean mcas(int nAddr, Object[] obj, long[] offset,
+            Object[] e, Object[] n, boolean sort) {
+        EpochReclaimer.Guard g = RECLAIMER.enter();
+        try {
+            /* Take a mcas descriptor from the pool. */
+            MCASDesc d = MCASDesc.obtain(g, nAddr);
+            System.arraycopy(obj, 0, d.obj, 0, nAddr);
+            System.arraycopy(offset, 0, d.offset, 0, nAddr);
+            System.arraycopy(e, 0, d.e, 0, nAddr);
+            System.arraycopy(n, 0, d.n, 0, nAddr);
 
-        // System.out.println("after sort address");
-        // for (int i = 0; i < N; i++) {
-        // System.out.println(obj[i] + ":" + ((ObjectID) obj[i]).getID());
-        // }
+            /*
+             * Memory locations must be sorted into address order. Note that
+             * MCAS must acquire update locations in address order. This
+             * ensures that recursive helping eventually results in
+             * system-wide progress because each level of recursion must be
+             * caused by a conflict at a strictly higher memory address than
+             * the previous level. Recursive helping is therefore bounded by
+             * the number of memory locations in the shared heap. To ensure
+             * that updates are ordered correctly it sorts the update
+             * locations before calling MCASHelp. The sort can be omitted if
+             * the caller ensures that addresses are specified in some global
+             * total order . If addresses are not ordered then a recursive
+             * loop may be entered.
+             */
+            if (sort) {
+                addressSort(d, nAddr);
+            }
 
-        return mcasHelp(d);
+            boolean success = mcasHelp(d, g, true);
+            g.retire(MCAS_KIND, d);
+            return success;
+        } finally {
+            g.exit();
+        }
     }
 
     /**
-     * Sort memory locations in order. Object id is the key to sort.
-     * 
-     * TODO use sort() in jdk.
+     * Sort memory locations in order. Object id is the key to sort, the
+     * offset breaks ties between fields of one object.
      * 
      * @param d
      *            mcas descriptor
@@ -286,7 +768,6 @@ final class MultiCAS {
         Object[] n = d.n;
         int i;
 
-        int key;
 
         /* temporary variables */
         Object tempO;
@@ -300,11 +781,9 @@ final class MultiCAS {
             tempE = e[j];
             tempN = n[j];
 
-            /* Object id is the key to sort */
-            key = ((ObjectID) tempO).id;
             i = j - 1;
 
-            while (i >= 0 && ((ObjectID) obj[i]).id > key) {
+            while (i >= 0 && compare(obj[i], offset[i], tempO, tempOff) > 0) {
                 obj[i + 1] = obj[i];
                 offset[i + 1] = offset[i];
                 e[i + 1] = e[i];
@@ -330,11 +809,21 @@ final class MultiCAS {
      * @return read value
      */
     static Object mcasRead(Object obj, long offset) {
-        Object v;
-        for (v = ccasRead(obj, offset); isMCASDesc(v); v = ccasRead(obj, offset)) {
-            mcasHelp((MCASDesc) v);
+        Object v = UNSAFE.getObjectVolatile(obj, offset);
+        if (!(v instanceof Descriptor))
+            return v;
+        // the descriptor seen above may be recycled already; look again
+        // once it no longer can
+        EpochReclaimer.Guard g = RECLAIMER.enter();
+        try {
+            for (v = ccasRead(obj, offset); isMCASDesc(v); v = ccasRead(obj,
+                    offset)) {
+                mcasHelp((MCASDesc) v, g, false);
+            }
+            return v;
+        } finally {
+            g.exit();
         }
-        return v;
     }
 
     /**
@@ -342,9 +831,14 @@ final class MultiCAS {
      * 
      * @param d
      *            mcas descriptor.
+     * @param g
+     *            guard of the calling thread.
+     * @param owner
+     *            true if called by the thread that created d.
      * @return true if mcas success, otherwise false.
      */
-    private static boolean mcasHelp(MCASDesc d) {
+    private static boolean mcasHelp(MCASDesc d, EpochReclaimer.Guard g,
+            boolean owner) {
         /*
          * The first phase of the MCAS algorithm attempts to update each
          * location ai from its expected value, ei, to a reference to the
@@ -374,25 +868,33 @@ final class MultiCAS {
         /* PHASE 1: Attempt to acquire each location in turn */
         decision_point: while (true) {
             for (int i = 0; i < nAddr; i++) {
+                /*
+                 * Until d is installed somewhere only its owner knows it, so
+                 * the first location needs no conditional CAS.
+                 */
+                if (owner && (i == 0)
+                        && UNSAFE.compareAndSwapObject(d.obj[0], d.offset[0],
+                                d.e[0], d)) {
+                    continue;
+                }
                 while (true) {
-                    ccas(d.obj[i], d.offset[i], d.e[i], d, d.status);
+                    ccas(d.obj[i], d.offset[i], d.e[i], d, d, g);
                     // if CCAS fails
-                    v = UNSAFE.getObject(d.obj[i], d.offset[i]);
-                    // try {
-                    // Thread.sleep(ran.nextInt(100));
-                    // } catch (InterruptedException e) {
-                    // e.printStackTrace();
-                    // }
+                    v = UNSAFE.getObjectVolatile(d.obj[i], d.offset[i]);
                     if ((v == d.e[i]) && (d.status == Status.UNDECIDED)) {
                         continue;
                     }
                     if (v == d) {/* Move to next location */
                         break;
                     }
+                    if (v instanceof CCASDesc) {
+                        ccasHelp((CCASDesc) v);
+                        continue;
+                    }
                     if (!isMCASDesc(v)) {
                         break decision_point;
                     }
-                    mcasHelp((MCASDesc) v);
+                    mcasHelp((MCASDesc) v, g, false);
                 }
             }
             desired = Status.SUCCESSFUL;
@@ -406,8 +908,29 @@ final class MultiCAS {
         /* PHASE 2: Release each location that we hold */
         success = (d.status == Status.SUCCESSFUL);
         for (int i = 0; i < nAddr; ++i) {
-            UNSAFE.compareAndSwapObject(d.obj[i], d.offset[i], d,
-                    success ? d.n[i] : d.e[i]);
+            Object nv = success ? d.n[i] : d.e[i];
+            if (!owner) {
+                UNSAFE.compareAndSwapObject(d.obj[i], d.offset[i], d, nv);
+                continue;
+            }
+            /*
+             * The owner retires d afterwards, so no location may keep
+             * referring to it, also not through a late CCAS of a helper.
+             */
+            while (true) {
+                v = UNSAFE.getObjectVolatile(d.obj[i], d.offset[i]);
+                if (v == d) {
+                    if (UNSAFE.compareAndSwapObject(d.obj[i], d.offset[i], d,
+                            nv)) {
+                        break;
+                    }
+                } else if ((v instanceof CCASDesc)
+                        && (((CCASDesc) v).cond == d)) {
+                    ccasHelp((CCASDesc) v);
+                } else {
+                    break;
+                }
+            }
         }
         return success;
     }
@@ -451,9 +974,12 @@ final class MultiCAS {
      * @param n
      *            new value
      * @param cond
-     *            condition
+     *            mcas descriptor whose status is the condition
+     * @param g
+     *            guard of the calling thread
      */
-    static void ccas(Object obj, long offset, Object e, Object n, Status cond) {
+    static void ccas(Object obj, long offset, Object e, Object n,
+            MCASDesc cond, EpochReclaimer.Guard g) {
         /*
          * The pseudocode design begins by installing a CCAS descriptor in the
          * location to be updated. This ensures that the location's logical
@@ -469,21 +995,25 @@ final class MultiCAS {
          * performed exactly once even when the CCAS operation is helped to
          * complete by other processes
          */
-        CCASDesc d = new CCASDesc(obj, offset, e, n, cond);
+        CCASDesc d = CCASDesc.obtain(g, obj, offset, e, n, cond);
         Object v;
 
         while (!UNSAFE.compareAndSwapObject(d.obj, d.offset, d.e, d)) {
-            v = UNSAFE.getObject(d.obj, d.offset);
+            v = UNSAFE.getObjectVolatile(d.obj, d.offset);
             if (!isCCASDesc(v)) {
+                /* d was never published */
+                g.recycle(CCAS_KIND, d);
                 return;
             }
             ccasHelp((CCASDesc) v);
         }
         ccasHelp(d);
+        g.retire(CCAS_KIND, d);
     }
 
     /**
      * Read from locations which may be subject to concurrent CCAS operations.
+     * The caller must hold a guard of the descriptor reclaimer.
      * 
      * @param obj
      *            obejct read
@@ -493,8 +1023,8 @@ final class MultiCAS {
      */
     static Object ccasRead(Object obj, long offset) {
         Object v;
-        for (v = UNSAFE.getObject(obj, offset); isCCASDesc(v); v = UNSAFE
-                .getObject(obj, offset)) {
+        for (v = UNSAFE.getObjectVolatile(obj, offset); isCCASDesc(v); v = UNSAFE
+                .getObjectVolatile(obj, offset)) {
             ccasHelp((CCASDesc) v);
         }
         return v;
@@ -507,11 +1037,11 @@ final class MultiCAS {
      *            ccas descritpor.
      */
     private static void ccasHelp(CCASDesc d) {
-        boolean success = (d.cond == Status.UNDECIDED);
+        boolean success = (d.cond.status == Status.UNDECIDED);
         UNSAFE.compareAndSwapObject(d.obj, d.offset, d, success ? d.n : d.e);
     }
 
     private static boolean isCCASDesc(Object v) {
         return v instanceof CCASDesc;
     }
-}
\ No newline at end of file
+}
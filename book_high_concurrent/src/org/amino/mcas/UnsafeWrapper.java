@@ -20,12 +20,13 @@ import java.lang.reflect.Field;
 import sun.misc.Unsafe;
 
 /**
- * Wrapper class for using sun.misc.Unsafe.
+ * Wrapper class for using sun.misc.Unsafe. Public, because structures outside
+ * this package use it for off-heap CAS.
  * 
  * @author Xiao Jun Dai
  * 
  */
-final class UnsafeWrapper {
+public final class UnsafeWrapper {
 
     /**
      * Utility classes should not have a public or default constructor.
@@ -16,11 +16,12 @@
 
 package org.amino.pattern.internal;
 
-import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import org.amino.ds.lockfree.LockFreeDeque;
+import org.amino.ds.lockfree.WorkStealingDeque;
 import org.amino.scheduler.internal.AbstractScheduler;
 
 /**
@@ -29,6 +30,10 @@ import org.amino.scheduler.internal.AbstractScheduler;
  * MasterWorker, both the master and the workers may submit additional work for
  * processing after execution of workers has begun.
  * 
+ * Work submitted by a worker is pushed onto that worker's own
+ * {@link WorkStealingDeque}, which only the owner may push to. Work submitted
+ * by the master or any other thread goes to a per-worker inbox instead.
+ * 
  * The type parameter S indicates the type of the input work item. The type
  * parameter T indicates the type of the output.
  * 
@@ -45,7 +50,12 @@ class DynamicMasterWorker<S, T> extends AbstractMasterWorker<S, T> {
     /**
      * Working queue.
      */
-    protected Deque<WorkItem>[] workQ;
+    protected WorkStealingDeque<WorkItem>[] workQ;
+
+    /**
+     * Work submitted from outside the worker threads.
+     */
+    protected Queue<WorkItem>[] inbox;
 
     /**
      * @author ganzhi
@@ -72,7 +82,9 @@ class DynamicMasterWorker<S, T> extends AbstractMasterWorker<S, T> {
              */
             int nworkers = numWorkers();
             for (int i = (id + 1) % nworkers; i != id; i = (i + 1) % nworkers) {
-                WorkItem r = workQ[i].pollLast();
+                WorkItem r = workQ[i].steal();
+                if (r == null)
+                    r = inbox[i].poll();
                 if (r != null)
                     return r;
             }
@@ -101,7 +113,9 @@ class DynamicMasterWorker<S, T> extends AbstractMasterWorker<S, T> {
                         // " get work from own queue");
 
                         // Get some work from my queue.
-                        WorkItem input = workQ[id].poll();
+                        WorkItem input = workQ[id].popBottom();
+                        if (input == null)
+                            input = inbox[id].poll();
 
                         if (input == null) {
                             // if (debug) System.out.println("Thread " + id +
@@ -178,8 +192,8 @@ class DynamicMasterWorker<S, T> extends AbstractMasterWorker<S, T> {
 
                     ResultKey key = new ResultKeyImpl();
 
-                    boolean added = workQ[id].offer(new WorkItem(w, key));
-                    assert added; // workQ is an unbounded queue
+                    // only the worker itself runs this, so it owns workQ[id]
+                    workQ[id].pushBottom(new WorkItem(w, key));
 
                     // Inform a waiting thread that there is new work to do.
                     workerPool.newWorkAvailable();
@@ -208,12 +222,15 @@ class DynamicMasterWorker<S, T> extends AbstractMasterWorker<S, T> {
      * @param numWorkers
      *            number of worker threads
      */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
     public DynamicMasterWorker(DynamicWorker<S, T> r, int numWorkers) {
         super(numWorkers);
 
-        workQ = new Deque[numWorkers];
+        workQ = new WorkStealingDeque[numWorkers];
+        inbox = new Queue[numWorkers];
         for (int i = 0; i < numWorkers; i++) {
-            workQ[i] = new LockFreeDeque<WorkItem>();
+            workQ[i] = new WorkStealingDeque<WorkItem>();
+            inbox[i] = new ConcurrentLinkedQueue<WorkItem>();
             workerPool.createWorker(i, new WorkWrapper(r, i));
         }
     }
@@ -245,18 +262,18 @@ class DynamicMasterWorker<S, T> extends AbstractMasterWorker<S, T> {
         // then
         // lets add it to the associated queue.
         int id = workerPool.threadIndex();
-        // Otherwise, we just allocate work round-robin to the available
-        // threads.
-        if (id < 0)
-            id = nextQueue();
-
-        // Add the work to the appropriate queue.
         ResultKey key = new ResultKeyImpl();
-        boolean added = workQ[id].offer(new WorkItem(w, key));
-
-        // The queue is unbounded so should fail to add new entries only in out
-        // of memory situations
-        assert added;
+        if (id >= 0) {
+            workQ[id].pushBottom(new WorkItem(w, key));
+        } else {
+            // Otherwise, we just allocate work round-robin to the available
+            // threads.
+            boolean added = inbox[nextQueue()].offer(new WorkItem(w, key));
+
+            // The queue is unbounded so should fail to add new entries only
+            // in out of memory situations
+            assert added;
+        }
 
         // Indicate to threads waiting for work that there is new work to do.
         workerPool.newWorkAvailable();
@@ -124,6 +124,21 @@ public abstract class AbstractScheduler extends AbstractExecutorService
 		}
 	}
 
+	/**
+	 * Tells whether the calling thread is one of this scheduler's workers.
+	 * 
+	 * @return id of the calling worker thread, or -1 for any other thread
+	 */
+	protected int currentWorkerId() {
+		Thread t = Thread.currentThread();
+		if (t instanceof WorkThread) {
+			WorkThread w = (WorkThread) t;
+			if (threads[w.id] == w)
+				return w.id;
+		}
+		return -1;
+	}
+
 	private Thread[] threads;
 
 	/**
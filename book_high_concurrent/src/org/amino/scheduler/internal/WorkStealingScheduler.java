@@ -17,20 +17,30 @@
 package org.amino.scheduler.internal;
 
 import java.util.ArrayList;
-import java.util.Deque;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
-import org.amino.ds.lockfree.LockFreeDeque;
+import org.amino.ds.lockfree.WorkStealingDeque;
 import org.amino.utility.FastRandom;
 
 /**
  * Classes for a work stealing scheduler.
  * 
+ * <p>
+ * Each worker owns a {@link WorkStealingDeque}. Work submitted by a worker
+ * goes to the bottom of its own deque and is popped from there again; idle
+ * workers steal from the top of other deques. Since only the owner may push,
+ * work submitted by other threads is dealt round-robin to per-worker inboxes,
+ * which workers drain after their own deque and which may be stolen from as
+ * well.
+ * 
  * @author blainey
  * 
  */
 public class WorkStealingScheduler extends AbstractScheduler {
-	private Deque<Runnable>[] workQ;
+	private WorkStealingDeque<Runnable>[] workQ;
+	private Queue<Runnable>[] inbox;
 	private boolean randomStealing;
 
 	/**
@@ -56,12 +66,15 @@ public class WorkStealingScheduler extends AbstractScheduler {
 	 * @param doRandom
 	 *            randomly select thread for stealing work.
 	 */
-	@SuppressWarnings("unchecked")
+	@SuppressWarnings({ "unchecked", "rawtypes" })
 	public WorkStealingScheduler(int numWorkers, boolean doRandom) {
 		super(numWorkers);
-		workQ = new Deque[numWorkers];
-		for (int i = 0; i < numWorkers(); i++)
-			workQ[i] = new LockFreeDeque<Runnable>();
+		workQ = new WorkStealingDeque[numWorkers];
+		inbox = new Queue[numWorkers];
+		for (int i = 0; i < numWorkers(); i++) {
+			workQ[i] = new WorkStealingDeque<Runnable>();
+			inbox[i] = new ConcurrentLinkedQueue<Runnable>();
+		}
 		randomStealing = doRandom;
 		startWorkers();
 	}
@@ -73,8 +86,13 @@ public class WorkStealingScheduler extends AbstractScheduler {
 	 */
 	@Override
 	protected void addWork(Runnable command) {
-		workQ[now].add(command);
-		now = (now + 1) % numWorkers();
+		int id = currentWorkerId();
+		if (id >= 0) {
+			workQ[id].pushBottom(command);
+		} else {
+			inbox[now].add(command);
+			now = (now + 1) % numWorkers();
+		}
 	}
 
 	/**
@@ -86,7 +104,9 @@ public class WorkStealingScheduler extends AbstractScheduler {
 		int nworkers = numWorkers();
 		for (int i = 0; i < nworkers; i++) {
 			while (true) {
-				Runnable r = workQ[i].poll();
+				Runnable r = workQ[i].steal();
+				if (r == null)
+					r = inbox[i].poll();
 				if (r == null)
 					break;
 				result.add(r);
@@ -101,18 +121,19 @@ public class WorkStealingScheduler extends AbstractScheduler {
 	 */
 	@Override
 	protected Runnable getWork(int id) {
-		Runnable r = workQ[id].poll();
+		Runnable r = workQ[id].popBottom();
+		if (r == null)
+			r = inbox[id].poll();
 		if (r != null)
 			return r;
 
 		// Choose other queues at random to steal work
 		int nworkers = numWorkers();
 		for (int i = (id + 1) % nworkers; i != id; i = (i + 1) % nworkers) {
-			if (randomStealing)
-				r = workQ[FastRandom.nextInt(nworkers)].pollLast();
-
-			else
-				r = workQ[i].pollLast();
+			int victim = randomStealing ? FastRandom.localNextInt(nworkers) : i;
+			r = workQ[victim].steal();
+			if (r == null)
+				r = inbox[victim].poll();
 			if (r != null)
 				return r;
 		}
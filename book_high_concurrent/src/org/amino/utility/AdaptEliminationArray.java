@@ -16,7 +16,7 @@
 
 package org.amino.utility;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
@@ -24,20 +24,18 @@ import java.util.concurrent.atomic.AtomicReferenceArray;
  * this class try to get some intelligence by adjusting size of elimination
  * array automatically.
  * 
- * If elimination fails frequently for two reasons, we will adjust size of
- * elimination array:
- * <ol>
- * <li>When finding match operation, frequently got empty slot from elimination
- * array</li>
- * <li>CAS operation frequently fails</li>
- * </ol>
+ * Every attempt ends in one of three ways: it meets a partner (a hit), it
+ * waits in a slot until its time runs out without a partner coming (a
+ * timeout), or it finds no usable slot because other threads hold them (a
+ * collision). Timeouts mean that partners are spread over too many slots, so
+ * the active part of the arrays shrinks; collisions mean too few slots, so it
+ * grows. Unless one kind of failure outnumbers the other by 30%, the size
+ * stays. The spinning wait of {@link #tryAdd(Object)} and {@link #tryRemove()}
+ * is halved while waiting rarely pays off and doubled while most attempts
+ * succeed, within [{@link #MIN_SPIN_NANOS}, {@link #MAX_SPIN_NANOS}].
  * 
- * For the 1st reason, we should decrement size of elimination array. For the
- * 2nd reason, we should enlarge elimination array. And this is the main logic
- * of this class.
- * 
- * FIXME: Now this class only count succ and fail, we should identify different
- * reasons of failure
+ * Each thread counts its own outcomes and applies them every
+ * {@link #ADJUST_PERIOD} attempts, so the counting is not contended itself.
  * 
  * @author Zhi Gan (ganzhi@gmail.com)
  */
@@ -55,31 +53,50 @@ public class AdaptEliminationArray implements IEliminationArray {
 	private static final float CHANGE_THRESHOLD = 1.3f;
 
 	/**
-	 * Failure is caused by getting an empty slot.
+	 * Attempts a thread makes before its counts are applied.
 	 */
-	private AtomicInteger failEmpty;
+	static final int ADJUST_PERIOD = 64;
+
+	/**
+	 * Bounds of the spinning wait in nanoseconds.
+	 */
+	static final long MIN_SPIN_NANOS = 1L << 6, MAX_SPIN_NANOS = 1L << 14;
+
+	/**
+	 * Outcomes of the attempts a thread made since its last adjustment.
+	 */
+	private static final class Window {
+		int attempts, hits, timeouts, collisions;
+	}
+
+	private final ThreadLocal<Window> window = new ThreadLocal<Window>() {
+		@Override
+		protected Window initialValue() {
+			return new Window();
+		}
+	};
 
 	/**
-	 * Failure is caused by CAS failure.
+	 * Totals of the adjustments so far, for {@link #getHitRatio()}.
 	 */
-	private AtomicInteger failCas;
+	private final AtomicLong attempts = new AtomicLong(), hits = new AtomicLong();
 
 	private AtomicReferenceArray addList;
 	private AtomicReferenceArray removLlist;
-	private volatile int arraySize;
-	private final int lookahead;
 
-	private static final Object TOMB_STONE = new Object();
 	/**
-	 * Mark the element in the array is already removed.
+	 * Number of slots in use at the front of both arrays.
 	 */
-	private static final Object REMOVED = new Object();
+	private volatile int arraySize;
+	private volatile long spinNanos = EliminationArray.DEFAULT_SPIN_NANOS;
+	private final int lookahead;
 
 	/**
 	 * dump for debug.
 	 */
 	public void dump() {
-		System.out.println("fail_empty: " + failEmpty + "fail_cas: " + failCas);
+		System.out.println("size: " + arraySize + " spin: " + spinNanos
+				+ " hit ratio: " + getHitRatio());
 	}
 
 	/**
@@ -97,143 +114,200 @@ public class AdaptEliminationArray implements IEliminationArray {
 			lookahead = MINIMAL_EA_SIZE;
 		this.addList = new AtomicReferenceArray(arraySize * 2);
 		this.removLlist = new AtomicReferenceArray(arraySize * 2);
-
-		failCas = new AtomicInteger(0);
-		failEmpty = new AtomicInteger(0);
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	public boolean tryAdd(Object obj, int backOff) throws InterruptedException {
-		adjustArraySize();
-
-		int start = FastRandom.rand();
-
-		for (int i = 0; i < lookahead; i++) {
-			int index = (start + i) % arraySize;
-			Object removeObj = removLlist.get(index);
-			if (removeObj == TOMB_STONE) {
-				// if some thread is waiting for removal, let's feed it with
-				// added object and return success.
-				if (removLlist.compareAndSet(index, TOMB_STONE, obj)) {
-					return true;
-				}
-			} else if (removeObj == null)
-				failEmpty.incrementAndGet();
-		}
+		return add(obj, backOff, 0);
+	}
 
-		// let's try to put adding object to the buffer and waiting for
-		// removal threads
-		for (int i = 0; i < lookahead; i++) {
-			int index = (start + i) % arraySize;
-			Object oldAdd = addList.get(index);
-			if (oldAdd == null) {
-				if (addList.compareAndSet(index, null, obj)) {
-					Thread.sleep(backOff);
-
-					// now we check to see if added object is touched by
-					// removing threads
-					while (true) {
-						Object newAdd = addList.get(index);
-
-						if (newAdd == obj) {
-							if (addList.compareAndSet(index, obj, null)) {
-								return false;
-							}
-						} else {
-							assert newAdd == REMOVED;
-							addList.set(index, null);
-							return true;
-						}
-					}
-				}
-			} else {
-				failCas.incrementAndGet();
-			}
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean tryAdd(Object obj) {
+		try {
+			return add(obj, 0, spinNanos);
+		} catch (InterruptedException e) {
+			// only sleeping can be interrupted
+			throw new IllegalStateException(e);
 		}
+	}
 
-		Thread.sleep(backOff);
-		return false;
+	/**
+	 * {@inheritDoc}
+	 */
+	public Object tryRemove(int backOff) throws InterruptedException {
+		return remove(backOff, 0);
 	}
 
-	private void adjustArraySize() {
-		final int cycle = 200;
-		int fCas = failCas.get();
-		if (fCas > cycle) {
-			int fEmpty = failEmpty.get();
+	/**
+	 * {@inheritDoc}
+	 */
+	public Object tryRemove() {
+		try {
+			return remove(0, spinNanos);
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
 
-			if (fEmpty > cycle) {
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Attempts not yet applied by their thread are not counted.
+	 */
+	public double getHitRatio() {
+		long n = attempts.get();
+		return (n == 0) ? 0 : (double) hits.get() / n;
+	}
 
-				int tmp = arraySize;
-				if (fEmpty > (int) fCas * CHANGE_THRESHOLD) {
-					tmp /= 2;
-					if (tmp == 0)
-						tmp = 1;
+	/**
+	 * @return number of slots currently in use
+	 */
+	public int getActiveSize() {
+		return arraySize;
+	}
 
-					failCas.set(0);
-					failEmpty.set(0);
-					arraySize = tmp;
-				}
+	/**
+	 * @return current spinning wait in nanoseconds
+	 */
+	public long getSpinNanos() {
+		return spinNanos;
+	}
+
+	@SuppressWarnings("unchecked")
+	private boolean add(Object obj, int sleepMillis, long spin)
+			throws InterruptedException {
+		Window w = window.get();
+		int size = arraySize;
+		int start = FastRandom.localNextInt(size);
+		int n = Math.min(lookahead, size);
 
-				if (fCas > (int) fCas * CHANGE_THRESHOLD) {
-					tmp *= 2;
-					if (tmp > addList.length())
-						tmp = addList.length();
+		for (int i = 0; i < n; i++) {
+			int index = (start + i) % size;
+			// if some thread is waiting for removal, let's feed it with
+			// added object and return success.
+			if (removLlist.get(index) == EliminationArray.TOMB_STONE
+					&& removLlist.compareAndSet(index,
+							EliminationArray.TOMB_STONE, obj)) {
+				w.hits++;
+				adjust(w);
+				return true;
+			}
+		}
 
-					failCas.set(0);
-					failEmpty.set(0);
-					arraySize = tmp;
+		// let's try to put adding object to the buffer and waiting for
+		// removal threads
+		for (int i = 0; i < n; i++) {
+			int index = (start + i) % size;
+			if (addList.get(index) == null
+					&& addList.compareAndSet(index, null, obj)) {
+				if (!EliminationArray.awaitChange(addList, index, obj,
+						sleepMillis, spin)
+						&& addList.compareAndSet(index, obj, null)) {
+					w.timeouts++;
+					adjust(w);
+					return false;
 				}
+				// a removing thread has put REMOVED there
+				addList.set(index, null);
+				w.hits++;
+				adjust(w);
+				return true;
 			}
 		}
+
+		w.collisions++;
+		adjust(w);
+		if (sleepMillis > 0)
+			Thread.sleep(sleepMillis);
+		return false;
 	}
 
-	/**
-	 * {@inheritDoc}
-	 */
-	public Object tryRemove(int backOff) throws InterruptedException {
-		int start = FastRandom.rand();
-		for (int i = 0; i < lookahead; i++) {
-			int index = (start + i) % arraySize;
+	@SuppressWarnings("unchecked")
+	private Object remove(int sleepMillis, long spin)
+			throws InterruptedException {
+		Window w = window.get();
+		int size = arraySize;
+		int start = FastRandom.localNextInt(size);
+		int n = Math.min(lookahead, size);
+
+		for (int i = 0; i < n; i++) {
+			int index = (start + i) % size;
 
 			// Let's try to get some adding objects
 			Object objAdd = addList.get(index);
-			if (objAdd == null) {
-				failEmpty.incrementAndGet();
-			} else if (objAdd != REMOVED
-					&& addList.compareAndSet(index, objAdd, REMOVED)) {
+			if (objAdd != null && objAdd != EliminationArray.REMOVED
+					&& addList.compareAndSet(index, objAdd,
+							EliminationArray.REMOVED)) {
+				w.hits++;
+				adjust(w);
 				return objAdd;
 			}
 		}
 
 		// No match is found by looking at adding array. Let's wait in removing
 		// array
-		for (int i = 0; i < lookahead; i++) {
-			int index = (start + i) % arraySize;
-			Object oldRemove = removLlist.get(index);
-			if (oldRemove == null) {
-				if (removLlist.compareAndSet(index, null, TOMB_STONE)) {
-					Thread.sleep(backOff);
-					while (true) {
-						Object newRemove = removLlist.get(index);
-						if (newRemove != TOMB_STONE) {
-							removLlist.set(index, null);
-							return newRemove;
-						} else {
-							if (removLlist.compareAndSet(index, TOMB_STONE,
-									null)) {
-								return null;
-							}
-						}
-					}
+		for (int i = 0; i < n; i++) {
+			int index = (start + i) % size;
+			if (removLlist.get(index) == null
+					&& removLlist.compareAndSet(index, null,
+							EliminationArray.TOMB_STONE)) {
+				if (!EliminationArray.awaitChange(removLlist, index,
+						EliminationArray.TOMB_STONE, sleepMillis, spin)
+						&& removLlist.compareAndSet(index,
+								EliminationArray.TOMB_STONE, null)) {
+					w.timeouts++;
+					adjust(w);
+					return null;
 				}
-			} else {
-				failCas.incrementAndGet();
+				Object newRemove = removLlist.get(index);
+				removLlist.set(index, null);
+				w.hits++;
+				adjust(w);
+				return newRemove;
 			}
 		}
 
-		Thread.sleep(backOff);
+		w.collisions++;
+		adjust(w);
+		if (sleepMillis > 0)
+			Thread.sleep(sleepMillis);
 		return null;
 	}
+
+	/**
+	 * Counts one attempt of the calling thread and, once per period, resizes
+	 * the array and retunes the wait from the thread's window. Concurrent
+	 * adjustments may overwrite each other, which only delays the tuning.
+	 */
+	private void adjust(Window w) {
+		if (++w.attempts < ADJUST_PERIOD)
+			return;
+
+		attempts.addAndGet(w.attempts);
+		hits.addAndGet(w.hits);
+
+		int size = arraySize;
+		if (w.collisions > w.timeouts * CHANGE_THRESHOLD) {
+			if (size < addList.length())
+				arraySize = Math.min(size * 2, addList.length());
+		} else if (w.timeouts > w.collisions * CHANGE_THRESHOLD) {
+			if (size > 1)
+				arraySize = size / 2;
+		}
+
+		long spin = spinNanos;
+		if (w.hits * 2 < w.timeouts) {
+			if (spin > MIN_SPIN_NANOS)
+				spinNanos = Math.max(spin / 2, MIN_SPIN_NANOS);
+		} else if (w.hits > w.timeouts + w.collisions) {
+			if (spin < MAX_SPIN_NANOS)
+				spinNanos = Math.min(spin * 2, MAX_SPIN_NANOS);
+		}
+
+		w.attempts = w.hits = w.timeouts = w.collisions = 0;
+	}
 }
@@ -16,8 +16,8 @@
 
 package org.amino.utility;
 
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReferenceArray;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A global elimination array class for several data structures. It can be used
@@ -46,10 +46,15 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class EliminationArray implements IEliminationArray {
 	/**
-	 * In debug mode, we will statistic number of succ and fail elimination.
+	 * Time in nanoseconds that {@link #tryAdd(Object)} and
+	 * {@link #tryRemove()} wait for a partner.
 	 */
-	private static final boolean DEBUG = false;
-	private AtomicInteger succ, fail;
+	static final long DEFAULT_SPIN_NANOS = 1L << 10;
+
+	/**
+	 * Number of elimination attempts and of those that found a partner.
+	 */
+	private final AtomicLong attempts = new AtomicLong(), hits = new AtomicLong();
 
 	/**
 	 * Adding threads will put adding objects into this list and wait for match.
@@ -74,21 +79,20 @@ public class EliminationArray implements IEliminationArray {
 	 * TOMB_STONE will be put into removing array by removing threads, which
 	 * means a removing thread is waiting in that slot.
 	 */
-	private static final Object TOMB_STONE = new Object();
+	static final Object TOMB_STONE = new Object();
 
 	/**
 	 * REMOVED will be put into adding array by removing threads, which means a
 	 * match has been found by a removing thread. Both adding thread and
 	 * removing thread succeed.
 	 */
-	private static final Object REMOVED = new Object();
+	static final Object REMOVED = new Object();
 
 	/**
 	 * dump for debug.
 	 */
 	public void dump() {
-		if (succ != null && fail != null)
-			System.out.println("" + succ.get() + " " + fail.get());
+		System.out.println("" + hits.get() + " " + (attempts.get() - hits.get()));
 	}
 
 	/**
@@ -99,32 +103,69 @@ public class EliminationArray implements IEliminationArray {
 	 */
 	public EliminationArray(int arraySize) {
 		this.arraySize = arraySize;
-		lookahead = 4;
+		lookahead = Math.min(4, arraySize);
 		this.addLlist = new AtomicReferenceArray(arraySize);
 		this.removeList = new AtomicReferenceArray(arraySize);
+	}
 
-		if (DEBUG) {
-			this.succ = new AtomicInteger(0);
-			this.fail = new AtomicInteger(0);
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean tryAdd(Object obj, int backOff) throws InterruptedException {
+		return add(obj, backOff, 0);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean tryAdd(Object obj) {
+		try {
+			return add(obj, 0, DEFAULT_SPIN_NANOS);
+		} catch (InterruptedException e) {
+			// only sleeping can be interrupted
+			throw new IllegalStateException(e);
 		}
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
-	public boolean tryAdd(Object obj, int backOff) throws InterruptedException {
-		int start = FastRandom.rand();
+	public Object tryRemove(int backOff) throws InterruptedException {
+		return remove(backOff, 0);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Object tryRemove() {
+		try {
+			return remove(0, DEFAULT_SPIN_NANOS);
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public double getHitRatio() {
+		long n = attempts.get();
+		return (n == 0) ? 0 : (double) hits.get() / n;
+	}
+
+	@SuppressWarnings("unchecked")
+	private boolean add(Object obj, int sleepMillis, long spinNanos)
+			throws InterruptedException {
+		attempts.incrementAndGet();
+		int start = FastRandom.localNextInt(arraySize);
 
 		for (int i = 0; i < lookahead; i++) {
 			int index = (start + i) % arraySize;
-			Object removeObj = removeList.get(index);
-			// if some thread is waiting for removal,
-			// let's feed it with
+			// if some thread is waiting for removal, let's feed it with
 			// added object and return success.
-			if (removeObj == TOMB_STONE
-					&& removeList.compareAndSet(index, TOMB_STONE, obj)
-					&& DEBUG) {
-				succ.incrementAndGet();
+			if (removeList.get(index) == TOMB_STONE
+					&& removeList.compareAndSet(index, TOMB_STONE, obj)) {
+				hits.incrementAndGet();
 				return true;
 			}
 		}
@@ -133,62 +174,33 @@ public class EliminationArray implements IEliminationArray {
 		// removal threads
 		for (int i = 0; i < lookahead; i++) {
 			int index = (start + i) % arraySize;
-			Object oldAdd = addLlist.get(index);
-			if (oldAdd == null && addLlist.compareAndSet(index, null, obj)) {
-				Thread.sleep(backOff);
-
-				// now we check to see if added object is touched by
-				// removing threads
-				while (true) {
-					Object newAdd = addLlist.get(index);
-
-					if (newAdd == obj) {
-						if (addLlist.compareAndSet(index, obj, null)) {
-							// No removing thread touched us, return
-							// failure
-							if (DEBUG)
-								fail.incrementAndGet();
-
-							return false;
-						} else {
-							assert newAdd == REMOVED;
-							if (DEBUG)
-								succ.incrementAndGet();
-							/*
-							 * current value should be REMOVED. change REMOVED
-							 * to be null means this position is available
-							 * again..
-							 */
-							addLlist.set(index, null);
-							return true;
-						}
-
-					} else {
-						assert newAdd == REMOVED;
-						if (DEBUG)
-							succ.incrementAndGet();
-						/*
-						 * current value should be REMOVED. change REMOVED to be
-						 * null means this position is available again..
-						 */
-						addLlist.set(index, null);
-						return true;
-					}
+			if (addLlist.get(index) == null
+					&& addLlist.compareAndSet(index, null, obj)) {
+				if (!awaitChange(addLlist, index, obj, sleepMillis, spinNanos)
+						&& addLlist.compareAndSet(index, obj, null)) {
+					// No removing thread touched us, return failure
+					return false;
 				}
+				/*
+				 * current value should be REMOVED. change REMOVED to be null
+				 * means this position is available again..
+				 */
+				addLlist.set(index, null);
+				hits.incrementAndGet();
+				return true;
 			}
 		}
 
-		Thread.sleep(backOff);
-		if (DEBUG)
-			fail.incrementAndGet();
+		if (sleepMillis > 0)
+			Thread.sleep(sleepMillis);
 		return false;
 	}
 
-	/**
-	 * {@inheritDoc}
-	 */
-	public Object tryRemove(int backOff) throws InterruptedException {
-		int start = FastRandom.rand();
+	@SuppressWarnings("unchecked")
+	private Object remove(int sleepMillis, long spinNanos)
+			throws InterruptedException {
+		attempts.incrementAndGet();
+		int start = FastRandom.localNextInt(arraySize);
 		for (int i = 0; i < lookahead; i++) {
 			int index = (start + i) % arraySize;
 
@@ -196,8 +208,7 @@ public class EliminationArray implements IEliminationArray {
 			Object objAdd = addLlist.get(index);
 			if (objAdd != null && objAdd != REMOVED
 					&& addLlist.compareAndSet(index, objAdd, REMOVED)) {
-				if (DEBUG)
-					succ.incrementAndGet();
+				hits.incrementAndGet();
 				return objAdd;
 			}
 		}
@@ -206,32 +217,42 @@ public class EliminationArray implements IEliminationArray {
 		// array
 		for (int i = 0; i < lookahead; i++) {
 			int index = (start + i) % arraySize;
-			Object oldRemove = removeList.get(index);
-			if (oldRemove == null
+			if (removeList.get(index) == null
 					&& removeList.compareAndSet(index, null, TOMB_STONE)) {
-				Thread.sleep(backOff);
-				while (true) {
-					Object newRemove = removeList.get(index);
-					if (newRemove != TOMB_STONE) {
-						if (DEBUG)
-							succ.incrementAndGet();
-
-						removeList.set(index, null);
-						return newRemove;
-					} else {
-						if (removeList.compareAndSet(index, TOMB_STONE, null)) {
-							if (DEBUG)
-								fail.incrementAndGet();
-							return null;
-						}
-					}
-				}
+				if (!awaitChange(removeList, index, TOMB_STONE, sleepMillis,
+						spinNanos)
+						&& removeList.compareAndSet(index, TOMB_STONE, null))
+					return null;
+				Object newRemove = removeList.get(index);
+				removeList.set(index, null);
+				hits.incrementAndGet();
+				return newRemove;
 			}
 		}
 
-		Thread.sleep(backOff);
-		if (DEBUG)
-			fail.incrementAndGet();
+		if (sleepMillis > 0)
+			Thread.sleep(sleepMillis);
 		return null;
 	}
+
+	/**
+	 * Waits until slot index of a no longer holds expected. Sleeps for
+	 * sleepMillis if that is positive, otherwise spins for at most spinNanos.
+	 * 
+	 * @return true if the slot changed
+	 */
+	static boolean awaitChange(AtomicReferenceArray<?> a, int index,
+			Object expected, int sleepMillis, long spinNanos)
+			throws InterruptedException {
+		if (sleepMillis > 0) {
+			Thread.sleep(sleepMillis);
+			return a.get(index) != expected;
+		}
+		long deadline = System.nanoTime() + spinNanos;
+		do {
+			if (a.get(index) != expected)
+				return true;
+		} while (System.nanoTime() - deadline < 0);
+		return false;
+	}
 }
@@ -0,0 +1,355 @@
+/*
+ * Copyright (c) 2008 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.amino.utility;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Epoch-based reclamation of nodes for reuse, after Fraser, "Practical
+ * lock-freedom" (2004). A lock-free structure that recycles its nodes would
+ * otherwise suffer from ABA: a thread that has read a node may compare against
+ * it after the node was removed and handed out again.
+ * 
+ * <p>
+ * Every operation on the structure runs between {@link #enter()} and
+ * {@link Guard#exit()}. A removed node is passed to
+ * {@link Guard#retire(int, Object)} and only comes back from
+ * {@link Guard#reuse(int)} after the global epoch has advanced twice. The
+ * epoch can only advance when every thread inside an operation has seen the
+ * current value, so no thread can still hold a reference to the node by then.
+ * </p>
+ * 
+ * <p>
+ * Free nodes are kept per thread. A thread that frees more than it takes,
+ * e.g. the consumer of a producer/consumer pair, passes chunks of nodes to a
+ * small exchange that other threads take from, so both sides reach a steady
+ * state without allocation. Nodes are told apart by a small integer kind,
+ * which lets one reclaimer serve all node types of a structure.
+ * </p>
+ * 
+ * <p>
+ * A thread that stalls inside an operation stops all reuse, not correctness:
+ * retired nodes then pile up and callers fall back to allocation. The state
+ * of a thread that has ended, including its free nodes, is dropped when the
+ * next thread registers, so threads created per task do not accumulate.
+ * </p>
+ * 
+ * <p>
+ * Free nodes wait in the pools until they are reused. A {@link Scrubber}
+ * given to the constructor clears them on the way in, so that they do not
+ * keep the objects they referred to reachable.
+ * </p>
+ * 
+ * <p>
+ * Being inside an operation protects every node the thread can reach, so
+ * {@link Guard#protect(int, Object)} does nothing and
+ * {@link #needsProtect()} is false.
+ * </p>
+ */
+public final class EpochReclaimer implements IReclaimer {
+    private static final long IDLE = -1L;
+
+    /**
+     * Number of retired nodes between two attempts to advance the epoch.
+     */
+    private static final int ADVANCE_INTERVAL = 64;
+
+    /**
+     * Initial capacity of a limbo bag.
+     */
+    private static final int BAG_SIZE = 64;
+
+    /**
+     * Clears a node that has become free for reuse.
+     */
+    public interface Scrubber {
+        /**
+         * Drops the references o holds to objects outside the structure. No
+         * other thread can read o any more.
+         * 
+         * @param kind
+         *            kind of node
+         * @param o
+         *            the node
+         */
+        void scrub(int kind, Object o);
+    }
+
+    /**
+     * State of one thread, returned by {@link EpochReclaimer#enter()}. It must
+     * only be used by the thread that owns it.
+     */
+    public static final class Guard implements IReclaimer.Guard {
+        private final EpochReclaimer owner;
+
+        /**
+         * Thread that owns the guard, cleared by the GC after it ended.
+         */
+        private final WeakReference<Thread> thread;
+
+        /**
+         * Epoch seen when the thread entered, or IDLE outside an operation.
+         */
+        volatile long pinned = IDLE;
+
+        private int depth;
+        private int retired;
+
+        private final FreeNodes free;
+
+        /**
+         * Three bags of retired nodes per kind, indexed by epoch modulo 3.
+         */
+        private final Object[][][] limbo;
+        private final int[][] limboCount;
+        private final long[] bagEpoch = { IDLE, IDLE, IDLE };
+
+        Guard(EpochReclaimer owner, int kinds) {
+            this.owner = owner;
+            thread = new WeakReference<Thread>(Thread.currentThread());
+            free = new FreeNodes(owner.exchange, kinds, System
+                    .identityHashCode(this));
+            limbo = new Object[kinds][3][BAG_SIZE];
+            limboCount = new int[kinds][3];
+        }
+
+        /**
+         * Leaves the operation begun by the matching
+         * {@link EpochReclaimer#enter()}.
+         */
+        public void exit() {
+            if (--depth == 0)
+                pinnedUpdater.lazySet(this, IDLE);
+        }
+
+        /**
+         * Does nothing: nodes reachable inside an operation stay valid until
+         * it exits.
+         * 
+         * @param slot
+         *            ignored
+         * @param o
+         *            ignored
+         */
+        public void protect(int slot, Object o) {
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Object reuse(int kind) {
+            Object o = free.poll(kind);
+            if (o == null) {
+                owner.tryAdvance();
+                collect();
+                o = free.poll(kind);
+                if ((o == null) && free.refill(kind))
+                    o = free.poll(kind);
+            }
+            return o;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void recycle(int kind, Object o) {
+            release(kind, o);
+        }
+
+        /**
+         * Hands over a node that has been unlinked from the structure. Other
+         * threads may still be reading it, so it is reused only two epochs
+         * later.
+         * 
+         * @param kind
+         *            kind of node
+         * @param o
+         *            the node
+         */
+        public void retire(int kind, Object o) {
+            long e = owner.epoch;
+            int b = (int) (e % 3);
+            if (bagEpoch[b] != e) {
+                // the bag holds nodes from epoch e - 3 or older
+                flush(b);
+                bagEpoch[b] = e;
+            }
+            int n = limboCount[kind][b];
+            if (n == limbo[kind][b].length)
+                limbo[kind][b] = Arrays.copyOf(limbo[kind][b], n << 1);
+            limbo[kind][b][n] = o;
+            limboCount[kind][b] = n + 1;
+
+            if (++retired >= ADVANCE_INTERVAL) {
+                retired = 0;
+                owner.tryAdvance();
+                collect();
+            }
+        }
+
+        /**
+         * Frees the bags that are two or more epochs old.
+         */
+        private void collect() {
+            long e = owner.epoch;
+            for (int b = 0; b < 3; b++) {
+                if ((bagEpoch[b] != IDLE) && (bagEpoch[b] <= e - 2)) {
+                    flush(b);
+                    bagEpoch[b] = IDLE;
+                }
+            }
+        }
+
+        private void flush(int b) {
+            for (int k = 0; k < limbo.length; k++) {
+                Object[] bag = limbo[k][b];
+                int n = limboCount[k][b];
+                for (int i = 0; i < n; i++) {
+                    release(k, bag[i]);
+                    bag[i] = null;
+                }
+                limboCount[k][b] = 0;
+            }
+        }
+
+        private void release(int kind, Object o) {
+            if (owner.scrubber != null)
+                owner.scrubber.scrub(kind, o);
+            free.release(kind, o);
+        }
+
+        /**
+         * @return true if the owning thread has ended, so that the guard is
+         *         idle for good
+         */
+        boolean isOrphaned() {
+            Thread t = thread.get();
+            return (t == null) || !t.isAlive();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static final AtomicLongFieldUpdater<Guard> pinnedUpdater = AtomicLongFieldUpdater
+            .newUpdater(Guard.class, "pinned");
+
+    private volatile long epoch;
+
+    @SuppressWarnings("unchecked")
+    private static final AtomicLongFieldUpdater<EpochReclaimer> epochUpdater = AtomicLongFieldUpdater
+            .newUpdater(EpochReclaimer.class, "epoch");
+
+    /**
+     * Every live thread that has entered, copied on write.
+     */
+    private final AtomicReference<Guard[]> guards = new AtomicReference<Guard[]>(
+            new Guard[0]);
+
+    private final ThreadLocal<Guard> local = new ThreadLocal<Guard>();
+
+    private final int kinds;
+
+    private final NodeExchange exchange;
+
+    private final Scrubber scrubber;
+
+    /**
+     * @param kinds
+     *            number of node kinds, which are then numbered from 0
+     */
+    public EpochReclaimer(int kinds) {
+        this(kinds, null);
+    }
+
+    /**
+     * @param kinds
+     *            number of node kinds, which are then numbered from 0
+     * @param scrubber
+     *            clears nodes as they become free, or null
+     */
+    public EpochReclaimer(int kinds, Scrubber scrubber) {
+        if (kinds <= 0)
+            throw new IllegalArgumentException();
+        this.kinds = kinds;
+        this.scrubber = scrubber;
+        exchange = new NodeExchange(kinds);
+    }
+
+    /**
+     * Begins an operation of the calling thread. Calls nest; only the
+     * outermost one pins the epoch.
+     * 
+     * @return the calling thread's guard, to be exited in a finally block
+     */
+    @Parallel(ParallelType.LockFree)
+    public Guard enter() {
+        Guard g = local.get();
+        if (g == null)
+            g = register();
+        if (g.depth++ == 0) {
+            // a volatile write followed by the structure's volatile reads, so
+            // a concurrent tryAdvance() either sees the pin or we see its
+            // newer epoch
+            g.pinned = epoch;
+        }
+        return g;
+    }
+
+    private Guard register() {
+        Guard g = new Guard(this, kinds);
+        Guard[] old, copy;
+        do {
+            // the array is copied anyway, so drop the guards of threads that
+            // have ended; they can never be inside an operation again
+            old = guards.get();
+            copy = new Guard[old.length + 1];
+            int n = 0;
+            for (Guard o : old) {
+                if (!o.isOrphaned())
+                    copy[n++] = o;
+            }
+            copy[n++] = g;
+            if (n < copy.length)
+                copy = Arrays.copyOf(copy, n);
+        } while (!guards.compareAndSet(old, copy));
+        local.set(g);
+        return g;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean needsProtect() {
+        return false;
+    }
+
+    /**
+     * Advances the epoch if every thread inside an operation has seen it.
+     */
+    private void tryAdvance() {
+        long e = epoch;
+        for (Guard g : guards.get()) {
+            long p = g.pinned;
+            if ((p != IDLE) && (p != e))
+                return;
+        }
+        epochUpdater.compareAndSet(this, e, e + 1);
+    }
+}
@@ -15,17 +15,83 @@
  */
 package org.amino.utility;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * This class provides fast random method. The quality of random number is not
  * as good as standard library. And it's also not thread-safe, which means two
  * threads might get the same random number if data race occurs.
  * 
+ * <p>
+ * {@link #localRand()} and {@link #localNextInt(int)} keep a separate xorshift
+ * seed for each thread. They never write memory shared with other threads, so
+ * they should be preferred on hot paths which are executed by many threads at
+ * the same time.
+ * </p>
+ * 
  * @author Zhi Gan (ganzhi@gmail.com)
  * 
  */
 public final class FastRandom {
     private static int seed = 5;
 
+    /**
+     * Hands out a different initial seed to every thread.
+     */
+    private static final AtomicInteger SEED_GENERATOR = new AtomicInteger(
+            (int) System.nanoTime());
+
+    /**
+     * Increment of {@link #SEED_GENERATOR}, 2^32 divided by the golden ratio.
+     */
+    private static final int SEED_INCREMENT = 0x9e3779b9;
+
+    /**
+     * Padding in front of the per-thread seed.
+     */
+    static class SeedLhsPadding {
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    /**
+     * Holder of the per-thread seed value.
+     */
+    static class SeedValue extends SeedLhsPadding {
+        int value;
+    }
+
+    /**
+     * Per-thread seed. Seeds of different threads are usually allocated next
+     * to each other, so the value is padded on both sides to keep it off the
+     * cache lines of other threads. Fields of a super class are laid out
+     * first, which keeps the padding in place.
+     */
+    static final class Seed extends SeedValue {
+        long p9, p10, p11, p12, p13, p14, p15;
+
+        /**
+         * @param value
+         *            initial seed, must not be zero
+         */
+        Seed(int value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * Lazily creates the seed of each thread.
+     */
+    static class SeedThreadLocal extends ThreadLocal<Seed> {
+        @Override
+        protected Seed initialValue() {
+            int s = SEED_GENERATOR.addAndGet(SEED_INCREMENT);
+            // xorshift gets stuck at zero
+            return new Seed(s == 0 ? SEED_INCREMENT : s);
+        }
+    }
+
+    private static final SeedThreadLocal LOCAL_SEED = new SeedThreadLocal();
+
     /**
      * Utility classes should not have a public or default constructor.
      */
@@ -55,4 +121,32 @@ public final class FastRandom {
         seed = (seed * 12000 + 5) % 24001;
         return seed % upper;
     }
+
+    /**
+     * Generate a pseudo-random integer from the seed of current thread. The
+     * range of generated number is [0, 2^31)
+     * 
+     * @return a pseudo-random integer which lies between [0, 2^31)
+     */
+    public static int localRand() {
+        Seed s = LOCAL_SEED.get();
+        int x = s.value;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        s.value = x;
+        return x >>> 1;
+    }
+
+    /**
+     * Generate a pseudo-random integer from the seed of current thread. The
+     * range of generated number is [0, upper)
+     * 
+     * @param upper
+     *            Upper bound of generated random number, must be positive
+     * @return a pseudo-random integer which lies between [0, upper)
+     */
+    public static int localNextInt(int upper) {
+        return (int) (((long) localRand() * upper) >>> 31);
+    }
 }
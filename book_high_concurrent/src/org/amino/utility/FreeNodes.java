@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2008 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.amino.utility;
+
+import java.util.Arrays;
+
+/**
+ * Free nodes of one thread, per kind, backed by a {@link NodeExchange} when
+ * the thread has too many or none.
+ */
+final class FreeNodes {
+    /**
+     * Free nodes a thread keeps per kind.
+     */
+    private static final int LOCAL_LIMIT = 256;
+
+    private final NodeExchange exchange;
+    private final Object[][] free;
+    private final int[] freeCount;
+    private int slotHint;
+
+    FreeNodes(NodeExchange exchange, int kinds, int hint) {
+        this.exchange = exchange;
+        free = new Object[kinds][LOCAL_LIMIT];
+        freeCount = new int[kinds];
+        slotHint = hint;
+    }
+
+    /**
+     * @return a node of the thread's own list, or null
+     */
+    Object poll(int kind) {
+        int n = freeCount[kind];
+        if (n == 0)
+            return null;
+        freeCount[kind] = --n;
+        Object o = free[kind][n];
+        free[kind][n] = null;
+        return o;
+    }
+
+    /**
+     * Takes a chunk of nodes from the exchange.
+     * 
+     * @return false if the exchange had none of this kind
+     */
+    boolean refill(int kind) {
+        Object[] chunk = exchange.takeFull(kind, slotHint++);
+        if (chunk == null)
+            return false;
+        int n = freeCount[kind];
+        if (n + NodeExchange.CHUNK > LOCAL_LIMIT) {
+            exchange.putFull(kind, chunk, slotHint++);
+            return false;
+        }
+        System.arraycopy(chunk, 0, free[kind], n, NodeExchange.CHUNK);
+        freeCount[kind] = n + NodeExchange.CHUNK;
+        Arrays.fill(chunk, null);
+        exchange.putSpare(chunk, slotHint++);
+        return true;
+    }
+
+    /**
+     * Adds a node that is free for reuse.
+     */
+    void release(int kind, Object o) {
+        Object[] f = free[kind];
+        int n = freeCount[kind];
+        if (n == f.length) {
+            n -= NodeExchange.CHUNK;
+            if (giveChunk(kind, f, n))
+                freeCount[kind] = n;
+            else
+                return; // everything is full, leave o to the GC
+        }
+        f[n] = o;
+        freeCount[kind] = n + 1;
+    }
+
+    /**
+     * Moves the CHUNK nodes starting at from into the exchange.
+     */
+    private boolean giveChunk(int kind, Object[] f, int from) {
+        Object[] chunk = exchange.takeSpare(slotHint++);
+        if (chunk == null)
+            chunk = new Object[NodeExchange.CHUNK];
+        System.arraycopy(f, from, chunk, 0, NodeExchange.CHUNK);
+        if (exchange.putFull(kind, chunk, slotHint++)) {
+            Arrays.fill(f, from, from + NodeExchange.CHUNK, null);
+            return true;
+        }
+        Arrays.fill(chunk, null);
+        exchange.putSpare(chunk, slotHint++);
+        return false;
+    }
+}
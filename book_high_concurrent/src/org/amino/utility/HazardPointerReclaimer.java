@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2008 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.amino.utility;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hazard-pointer reclamation of nodes for reuse, after Michael, "Hazard
+ * Pointers: Safe Memory Reclamation for Lock-Free Objects" (2004).
+ * 
+ * <p>
+ * Each thread owns a few hazard slots. Before dereferencing a node, an
+ * operation publishes it with {@link Guard#protect(int, Object)} and checks
+ * that the node is still reachable. A retired node is freed by a scan that
+ * finds it in no thread's slots. Unlike {@link EpochReclaimer}, a stalled
+ * thread only holds back the few nodes it protects, at the price of a
+ * validation after every protected read. A structure whose operations may
+ * follow an unbounded number of nodes without validating them cannot use it.
+ * </p>
+ * 
+ * <p>
+ * Free nodes are kept per thread and exchanged in chunks, as in
+ * {@link EpochReclaimer}. Threads stay registered after they end.
+ * </p>
+ */
+public final class HazardPointerReclaimer implements IReclaimer {
+    /**
+     * Lower bound of retired nodes per thread before a scan.
+     */
+    private static final int MIN_SCAN = 64;
+
+    /**
+     * State of one thread, returned by {@link HazardPointerReclaimer#enter()}.
+     * It must only be used by the thread that owns it.
+     */
+    public static final class Guard implements IReclaimer.Guard {
+        private final HazardPointerReclaimer owner;
+
+        /**
+         * Nodes this thread may be reading.
+         */
+        final AtomicReferenceArray<Object> hazards;
+
+        private int depth;
+
+        private Object[] retired = new Object[MIN_SCAN];
+        private int[] retiredKind = new int[MIN_SCAN];
+        private int retiredCount;
+
+        /**
+         * Identity hash codes of all protected nodes, filled by scan().
+         */
+        private int[] protectedHashes = new int[MIN_SCAN];
+
+        private final FreeNodes free;
+
+        Guard(HazardPointerReclaimer owner, int kinds, int slots) {
+            this.owner = owner;
+            hazards = new AtomicReferenceArray<Object>(slots);
+            free = new FreeNodes(owner.exchange, kinds, System
+                    .identityHashCode(this));
+        }
+
+        /**
+         * Leaves the operation begun by the matching
+         * {@link HazardPointerReclaimer#enter()} and clears the thread's
+         * hazard slots.
+         */
+        public void exit() {
+            if (--depth == 0) {
+                for (int i = 0; i < hazards.length(); i++) {
+                    if (hazards.get(i) != null)
+                        hazards.lazySet(i, null);
+                }
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void protect(int slot, Object o) {
+            // a volatile write, ordered before the caller's validating read
+            hazards.set(slot, o);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Object reuse(int kind) {
+            Object o = free.poll(kind);
+            if (o == null) {
+                if (retiredCount > 0)
+                    scan();
+                o = free.poll(kind);
+                if ((o == null) && free.refill(kind))
+                    o = free.poll(kind);
+            }
+            return o;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void recycle(int kind, Object o) {
+            free.release(kind, o);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void retire(int kind, Object o) {
+            int n = retiredCount;
+            if (n == retired.length) {
+                retired = Arrays.copyOf(retired, n << 1);
+                retiredKind = Arrays.copyOf(retiredKind, n << 1);
+            }
+            retired[n] = o;
+            retiredKind[n] = kind;
+            retiredCount = n + 1;
+            if (retiredCount >= owner.scanThreshold())
+                scan();
+        }
+
+        /**
+         * Frees every retired node that no thread protects. Nodes are
+         * compared by identity hash code, so a collision only delays reuse.
+         */
+        private void scan() {
+            int np = 0;
+            for (Guard g : owner.guards.get()) {
+                AtomicReferenceArray<Object> h = g.hazards;
+                for (int i = 0; i < h.length(); i++) {
+                    Object o = h.get(i);
+                    if (o == null)
+                        continue;
+                    if (np == protectedHashes.length)
+                        protectedHashes = Arrays.copyOf(protectedHashes,
+                                np << 1);
+                    protectedHashes[np++] = System.identityHashCode(o);
+                }
+            }
+            Arrays.sort(protectedHashes, 0, np);
+
+            int kept = 0;
+            for (int i = 0; i < retiredCount; i++) {
+                Object o = retired[i];
+                if (Arrays.binarySearch(protectedHashes, 0, np, System
+                        .identityHashCode(o)) >= 0) {
+                    retired[kept] = o;
+                    retiredKind[kept++] = retiredKind[i];
+                } else {
+                    free.release(retiredKind[i], o);
+                }
+            }
+            Arrays.fill(retired, kept, retiredCount, null);
+            retiredCount = kept;
+        }
+    }
+
+    /**
+     * Every thread that ever entered, copied on write.
+     */
+    private final AtomicReference<Guard[]> guards = new AtomicReference<Guard[]>(
+            new Guard[0]);
+
+    private final ThreadLocal<Guard> local = new ThreadLocal<Guard>();
+
+    private final int kinds;
+
+    private final int slots;
+
+    private final NodeExchange exchange;
+
+    /**
+     * @param kinds
+     *            number of node kinds, which are then numbered from 0
+     * @param slots
+     *            hazard slots per thread, numbered from 0
+     */
+    public HazardPointerReclaimer(int kinds, int slots) {
+        if ((kinds <= 0) || (slots <= 0))
+            throw new IllegalArgumentException();
+        this.kinds = kinds;
+        this.slots = slots;
+        exchange = new NodeExchange(kinds);
+    }
+
+    /**
+     * Begins an operation of the calling thread. Calls nest and share the
+     * hazard slots; only the outermost exit clears them.
+     * 
+     * @return the calling thread's guard, to be exited in a finally block
+     */
+    @Parallel(ParallelType.LockFree)
+    public Guard enter() {
+        Guard g = local.get();
+        if (g == null)
+            g = register();
+        g.depth++;
+        return g;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean needsProtect() {
+        return true;
+    }
+
+    /**
+     * @return number of hazard slots per thread
+     */
+    public int getSlots() {
+        return slots;
+    }
+
+    private Guard register() {
+        Guard g = new Guard(this, kinds, slots);
+        Guard[] old, copy;
+        do {
+            old = guards.get();
+            copy = Arrays.copyOf(old, old.length + 1);
+            copy[old.length] = g;
+        } while (!guards.compareAndSet(old, copy));
+        local.set(g);
+        return g;
+    }
+
+    /**
+     * A scan costs O(threads * slots); running it once per that many
+     * retirements keeps the amortized cost constant.
+     */
+    private int scanThreshold() {
+        return Math.max(MIN_SCAN, 2 * slots * guards.get().length);
+    }
+}
@@ -66,4 +66,36 @@ public interface IEliminationArray {
      */
     Object tryRemove(int backOff) throws InterruptedException;
 
+    /**
+     * Same as {@link #tryAdd(Object, int)}, but spins instead of sleeping. The
+     * array chooses the wait itself, typically a few hundred nanoseconds, and
+     * returns as soon as a removing thread takes the object. This is the
+     * variant to use on a CAS retry path.
+     * 
+     * @param obj
+     *            the adding object
+     * @return true if match happened between this method and a remove method
+     */
+    boolean tryAdd(Object obj);
+
+    /**
+     * Same as {@link #tryRemove(int)}, but spins instead of sleeping, see
+     * {@link #tryAdd(Object)}.
+     * 
+     * @return null if no match. Argument to an add method if successful match
+     */
+    Object tryRemove();
+
+    /**
+     * Fraction of elimination attempts that met a partner operation. The
+     * value is approximate while other threads are using the array.
+     * 
+     * @return a value between 0 and 1, 0 if nothing has been tried yet
+     */
+    double getHitRatio();
+
+    /**
+     * Print the statistics of the array, for debugging.
+     */
+    void dump();
 }
\ No newline at end of file
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2008 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.amino.utility;
+
+/**
+ * Safe memory reclamation for lock-free structures that reuse their nodes. A
+ * node removed from such a structure may still be read by threads that found
+ * it before the removal; it must not be handed out again until all of them
+ * are done, or a CAS could succeed against a recycled node (the ABA problem).
+ * 
+ * <p>
+ * Each operation on the structure runs between {@link #enter()} and
+ * {@link Guard#exit()}, and gets fresh nodes from {@link Guard#reuse(int)}.
+ * The thread whose CAS unlinks a node passes it to
+ * {@link Guard#retire(int, Object)}. If {@link #needsProtect()} is true, every
+ * node the operation dereferences must first be announced with
+ * {@link Guard#protect(int, Object)} and then validated by re-reading the
+ * reference it was loaded from.
+ * </p>
+ * 
+ * <p>
+ * Nodes are told apart by a small integer kind, so a reclaimer can be shared
+ * by structures whose nodes of the same kind have the same class.
+ * </p>
+ * 
+ * @see EpochReclaimer
+ * @see HazardPointerReclaimer
+ */
+public interface IReclaimer {
+
+    /**
+     * Per-thread handle of a reclaimer. It must only be used by the thread
+     * that obtained it.
+     */
+    interface Guard {
+        /**
+         * Leaves the operation begun by the matching {@link #enter()}.
+         */
+        void exit();
+
+        /**
+         * Announces that the calling thread is about to dereference o. The
+         * caller must then check that o is still reachable from where it was
+         * read, and otherwise start over, because o may have been retired
+         * before the announcement became visible.
+         * 
+         * @param slot
+         *            announcement slot; a slot holds one node at a time
+         * @param o
+         *            the node, or null to clear the slot
+         */
+        void protect(int slot, Object o);
+
+        /**
+         * Hands out a node of the given kind that no thread references any
+         * more. The caller must reset all its fields before publishing it.
+         * 
+         * @param kind
+         *            kind of node
+         * @return a free node, or null if the caller has to allocate one
+         */
+        Object reuse(int kind);
+
+        /**
+         * Gives back a node that was never published, e.g. one prepared for
+         * an insertion that did not happen. It is free for reuse at once.
+         * 
+         * @param kind
+         *            kind of node
+         * @param o
+         *            the node
+         */
+        void recycle(int kind, Object o);
+
+        /**
+         * Hands over a node that has been unlinked from the structure. It is
+         * reused once no other thread can be reading it.
+         * 
+         * @param kind
+         *            kind of node
+         * @param o
+         *            the node
+         */
+        void retire(int kind, Object o);
+    }
+
+    /**
+     * Begins an operation of the calling thread. Calls nest; only the
+     * outermost one matters.
+     * 
+     * @return the calling thread's guard, to be exited in a finally block
+     */
+    Guard enter();
+
+    /**
+     * @return true if operations must protect and validate each node before
+     *         dereferencing it, false if being inside enter() and exit()
+     *         protects everything the operation can reach
+     */
+    boolean needsProtect();
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2008 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.amino.utility;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how a thread waits for a condition of a concurrent data structure,
+ * for example "queue not empty". Implementations trade latency against CPU
+ * use: they may spin, yield, or park on a {@link WaiterList}. The data
+ * structure calls {@link WaiterList#signalOne()} after each state change
+ * whenever {@link WaiterList#hasWaiters()} is true.
+ * 
+ * <p>
+ * The idea is taken from the wait strategies of the LMAX Disruptor.
+ * </p>
+ */
+public interface IWaitStrategy {
+
+    /**
+     * A condition that a waiting thread polls.
+     */
+    interface Condition {
+        /**
+         * @return true when the waiting thread may proceed
+         */
+        boolean isSatisfied();
+    }
+
+    /**
+     * Waits until the condition holds, the timeout expires or the thread is
+     * interrupted. The condition may already be false again when the caller
+     * acts on it, so callers retry their operation in a loop.
+     * 
+     * @param cond
+     *            condition to wait for
+     * @param waiters
+     *            list on which to park, signalled by the data structure
+     * @param timeout
+     *            maximal waiting time, negative to wait without limit
+     * @param unit
+     *            unit of timeout
+     * @return false if the timeout expired before the condition held
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    boolean await(Condition cond, WaiterList waiters, long timeout,
+            TimeUnit unit) throws InterruptedException;
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2008 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.amino.utility;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Chunks of free nodes shared by the threads of a reclaimer. A thread that
+ * frees more nodes than it takes, e.g. the consumer of a producer/consumer
+ * pair, puts chunks here and other threads take them, so both sides reach a
+ * steady state without allocation.
+ */
+final class NodeExchange {
+    /**
+     * Nodes passed between threads at once.
+     */
+    static final int CHUNK = 64;
+
+    /**
+     * Chunks the exchange holds per kind.
+     */
+    private static final int SLOTS = 8;
+
+    /**
+     * Chunks of free nodes, SLOTS per kind.
+     */
+    private final AtomicReferenceArray<Object[]> full;
+
+    /**
+     * Empty chunk arrays kept for reuse.
+     */
+    private final AtomicReferenceArray<Object[]> spare;
+
+    NodeExchange(int kinds) {
+        full = new AtomicReferenceArray<Object[]>(kinds * SLOTS);
+        spare = new AtomicReferenceArray<Object[]>(SLOTS);
+    }
+
+    /**
+     * @return an empty chunk, or null
+     */
+    Object[] takeSpare(int hint) {
+        return takeSlot(spare, 0, hint);
+    }
+
+    /**
+     * Keeps an empty chunk for later, or leaves it to the GC.
+     */
+    void putSpare(Object[] chunk, int hint) {
+        putSlot(spare, 0, hint, chunk);
+    }
+
+    /**
+     * @return false if the exchange is full for this kind
+     */
+    boolean putFull(int kind, Object[] chunk, int hint) {
+        return putSlot(full, kind * SLOTS, hint, chunk);
+    }
+
+    /**
+     * @return a chunk of CHUNK free nodes, or null
+     */
+    Object[] takeFull(int kind, int hint) {
+        return takeSlot(full, kind * SLOTS, hint);
+    }
+
+    private static boolean putSlot(AtomicReferenceArray<Object[]> slots,
+            int base, int hint, Object[] chunk) {
+        for (int i = 0; i < SLOTS; i++) {
+            int s = base + ((hint + i) & (SLOTS - 1));
+            if ((slots.get(s) == null) && slots.compareAndSet(s, null, chunk))
+                return true;
+        }
+        return false;
+    }
+
+    private static Object[] takeSlot(AtomicReferenceArray<Object[]> slots,
+            int base, int hint) {
+        for (int i = 0; i < SLOTS; i++) {
+            int s = base + ((hint + i) & (SLOTS - 1));
+            Object[] chunk = slots.get(s);
+            if ((chunk != null) && slots.compareAndSet(s, chunk, null))
+                return chunk;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2008 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.amino.utility;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Waits in three phases. The thread first re-checks the condition in a busy
+ * loop, then calls {@link Thread#yield()} between checks, and finally parks
+ * on the {@link WaiterList} until it is signalled. Short waits are served
+ * without a context switch, and an idle thread ends up using no CPU.
+ * 
+ * <p>
+ * Setting the spin or yield count to {@link Integer#MAX_VALUE} turns this
+ * into a busy-spinning or a yielding strategy; setting both to zero parks
+ * right away.
+ * </p>
+ */
+public class PhasedBackoffWaitStrategy implements IWaitStrategy {
+    /**
+     * Default number of busy re-checks.
+     */
+    public static final int DEFAULT_SPIN_TRIES = 128;
+    /**
+     * Default number of re-checks with a yield in between.
+     */
+    public static final int DEFAULT_YIELD_TRIES = 8;
+
+    private final int spinTries;
+    private final int yieldTries;
+
+    /**
+     * Creates a strategy with the default phase lengths.
+     */
+    public PhasedBackoffWaitStrategy() {
+        this(DEFAULT_SPIN_TRIES, DEFAULT_YIELD_TRIES);
+    }
+
+    /**
+     * @param spinTries
+     *            number of busy re-checks before yielding
+     * @param yieldTries
+     *            number of yields before parking
+     */
+    public PhasedBackoffWaitStrategy(int spinTries, int yieldTries) {
+        if ((spinTries < 0) || (yieldTries < 0))
+            throw new IllegalArgumentException();
+        this.spinTries = spinTries;
+        this.yieldTries = yieldTries;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean await(Condition cond, WaiterList waiters, long timeout,
+            TimeUnit unit) throws InterruptedException {
+        final boolean timed = timeout >= 0;
+        final long deadline = timed ? System.nanoTime() + unit.toNanos(timeout)
+                : 0L;
+
+        for (int i = 0; i < spinTries; i++) {
+            if (cond.isSatisfied())
+                return true;
+        }
+        for (int i = 0; i < yieldTries; i++) {
+            if (cond.isSatisfied())
+                return true;
+            if (timed && (deadline - System.nanoTime() <= 0))
+                return false;
+            Thread.yield();
+        }
+
+        WaiterList.Node node = null;
+        boolean satisfied = false;
+        try {
+            while (true) {
+                if (cond.isSatisfied()) {
+                    satisfied = true;
+                    return true;
+                }
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+                long nanos = 0L;
+                if (timed) {
+                    nanos = deadline - System.nanoTime();
+                    if (nanos <= 0)
+                        return false;
+                }
+                if ((node == null) || node.isDone()) {
+                    // register, then check the condition once more
+                    node = waiters.add();
+                    continue;
+                }
+                if (timed)
+                    LockSupport.parkNanos(this, nanos);
+                else
+                    LockSupport.park(this);
+            }
+        } finally {
+            // a signal that reached us while we give up belongs to someone
+            // else; pass it on
+            if ((node != null) && !waiters.remove(node) && !satisfied)
+                waiters.signalOne();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2008 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.amino.utility;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free list of parked threads, kept as a Treiber stack. A waiter
+ * registers itself before its last check of the condition it waits for, and a
+ * signaller changes the state before it looks at the list. Whichever comes
+ * second sees the other, so no wake-up is lost, and a signaller that finds the
+ * list empty pays one volatile read.
+ * 
+ * <p>
+ * Each registration is signalled at most once: the signaller and the waiter
+ * race to clear {@link Node#thread} with a CAS, and only the winner acts.
+ * </p>
+ */
+public final class WaiterList {
+
+    /**
+     * Registration of one waiting thread.
+     */
+    public static final class Node {
+        volatile Thread thread;
+        Node next;
+
+        Node(Thread thread) {
+            this.thread = thread;
+        }
+
+        /**
+         * @return true once the node has been signalled or removed
+         */
+        public boolean isDone() {
+            return thread == null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static final AtomicReferenceFieldUpdater<Node, Thread> threadUpdater = AtomicReferenceFieldUpdater
+            .newUpdater(Node.class, Thread.class, "thread");
+
+    private final AtomicReference<Node> top = new AtomicReference<Node>();
+
+    /**
+     * Registers the calling thread. The caller must re-check its condition
+     * after this call and before parking.
+     * 
+     * @return the registration, to be passed to {@link #remove(Node)}
+     */
+    public Node add() {
+        Node node = new Node(Thread.currentThread());
+        Node h;
+        do {
+            h = top.get();
+            // drop finished registrations on the way
+            while ((h != null) && (h.thread == null)) {
+                top.compareAndSet(h, h.next);
+                h = top.get();
+            }
+            node.next = h;
+        } while (!top.compareAndSet(h, node));
+        return node;
+    }
+
+    /**
+     * Withdraws a registration.
+     * 
+     * @param node
+     *            registration returned by {@link #add()}
+     * @return false if the node had already been signalled
+     */
+    public boolean remove(Node node) {
+        Thread t = node.thread;
+        boolean removed = (t != null) && threadUpdater.compareAndSet(node, t, null);
+        top.compareAndSet(node, node.next);
+        return removed;
+    }
+
+    /**
+     * @return true if some thread might be waiting
+     */
+    public boolean hasWaiters() {
+        return top.get() != null;
+    }
+
+    /**
+     * Unparks one registered thread, if there is one.
+     * 
+     * @return true if a thread was signalled
+     */
+    public boolean signalOne() {
+        while (true) {
+            Node h = top.get();
+            if (h == null)
+                return false;
+            if (!top.compareAndSet(h, h.next))
+                continue;
+            Thread t = h.thread;
+            if ((t != null) && threadUpdater.compareAndSet(h, t, null)) {
+                LockSupport.unpark(t);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Unparks every registered thread.
+     */
+    public void signalAll() {
+        while (signalOne())
+            ;
+    }
+}